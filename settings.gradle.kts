@@ -1,2 +1,5 @@
 rootProject.name = "Aconomy"
 
+// Storage backends with a JDBC driver, built as separate jars loaded from plugins/Aconomy/storage
+include("storage-sqlite", "storage-h2")
+
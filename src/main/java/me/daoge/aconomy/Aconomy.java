@@ -2,13 +2,25 @@ package me.daoge.aconomy;
 
 import lombok.Getter;
 import lombok.SneakyThrows;
+import me.daoge.aconomy.api.AccountCache;
+import me.daoge.aconomy.api.AdjustmentScheduler;
 import me.daoge.aconomy.api.AcoCurrency;
 import me.daoge.aconomy.api.AcoEconomyAPI;
+import me.daoge.aconomy.api.ChangeLogPoller;
+import me.daoge.aconomy.backup.BackupManager;
 import me.daoge.aconomy.command.AcoCommand;
+import me.daoge.aconomy.migration.MigrationResult;
+import me.daoge.aconomy.migration.StorageMigrator;
+import me.daoge.aconomy.storage.AbstractDatabaseStorage;
+import me.daoge.aconomy.storage.Durability;
 import me.daoge.aconomy.storage.EconomyStorage;
-import me.daoge.aconomy.storage.H2Storage;
 import me.daoge.aconomy.storage.JsonStorage;
-import me.daoge.aconomy.storage.SqliteStorage;
+import me.daoge.aconomy.storage.LatencyInjectingStorage;
+import me.daoge.aconomy.storage.LatencyProfile;
+import me.daoge.aconomy.storage.RateAdjustment;
+import me.daoge.aconomy.storage.ShardedStorage;
+import me.daoge.aconomy.storage.StorageFactory;
+import me.daoge.aconomy.storage.StorageOptions;
 import org.allaymc.api.eventbus.EventBus;
 import org.allaymc.api.eventbus.EventHandler;
 import org.allaymc.api.eventbus.event.server.PlayerJoinEvent;
@@ -23,7 +35,20 @@ import java.io.InputStream;
 import java.math.BigDecimal;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 /**
  * Aconomy - A simple economy plugin for AllayMC that implements EconomyAPI.
@@ -35,36 +60,79 @@ public class Aconomy extends Plugin {
     @Getter
     private static Aconomy instance;
 
+    /**
+     * The thread the server scheduler runs tasks on. Taken to be the thread loading the plugin until the
+     * first scheduled task captures it.
+     */
+    private static volatile Thread tickThread;
+    /**
+     * Whether the server scheduler runs the tasks of this plugin, from its first scheduled task until the plugin is disabled.
+     */
+    private static volatile boolean ticking;
+
     @Getter
     private Config config;
 
+    /**
+     * The type of the active storage, one of {@link StorageFactory#getTypes()}.
+     */
+    @Getter
+    private String storageType;
+    @Getter
+    private StorageFactory storageFactory;
     private EconomyStorage storage;
     private AcoEconomyAPI economyAPI;
+    private ChangeLogPoller changeLogPoller;
+    private AdjustmentScheduler adjustmentScheduler;
+    @Getter
+    private BackupManager backupManager;
+    private final AtomicBoolean migrating = new AtomicBoolean();
     private EventListener eventListener;
 
     @Override
     public void onLoad() {
         instance = this;
+        tickThread = Thread.currentThread();
         this.pluginLogger.info("Aconomy is loading...");
         loadConfig();
         // Initialize storage based on config
-        String storageType = config.getString("storage.type", "json").toLowerCase(Locale.ROOT);
+        storageType = config.getString("storage.type", "json").toLowerCase(Locale.ROOT);
         Path dataFolder = this.pluginContainer.dataFolder();
 
-        switch (storageType) {
-            case "sqlite" -> {
-                storage = new SqliteStorage(dataFolder);
-                this.pluginLogger.info("Using SQLite storage");
-            }
-            case "h2" -> {
-                storage = new H2Storage(dataFolder);
-                this.pluginLogger.info("Using H2 storage");
-            }
-            default -> {
-                storage = new JsonStorage(dataFolder);
-                this.pluginLogger.info("Using JSON storage");
+        // Only the providers are loaded here, a backend's classes and driver only once its storage is created
+        storageFactory = new StorageFactory(dataFolder);
+        storage = storageFactory.create(storageType, dataFolder, getStorageOptions());
+        if (storage == null && StorageFactory.MODULE_TYPES.contains(storageType)) {
+            // Falling back would start an empty economy next to the real one, and players would keep playing on it
+            throw new IllegalStateException("The " + storageType + " storage module is not installed, put its jar into " +
+                                            dataFolder.resolve(StorageFactory.MODULE_FOLDER_NAME) + " or change storage.type");
+        }
+        if (storage == null) {
+            this.pluginLogger.warn("No storage provider for type {}, falling back to json. Available types: {}. " +
+                                   "The sqlite and h2 storages are separate modules, put their jar into {}",
+                    storageType, String.join(", ", storageFactory.getTypes()), dataFolder.resolve(StorageFactory.MODULE_FOLDER_NAME));
+            storageType = "json";
+            storage = storageFactory.create(storageType, dataFolder, StorageOptions.DEFAULT);
+        }
+        this.pluginLogger.info("Using {} storage", storageType);
+        boolean changeLogEnabled = config.getBoolean("storage.change_log.enabled", false);
+        if (storage instanceof AbstractDatabaseStorage databaseStorage) {
+            configureDatabase(databaseStorage, changeLogEnabled);
+        } else if (storage instanceof JsonStorage jsonStorage) {
+            jsonStorage.setDurability(getDurability(), config.getLong("storage.durability.sync_interval_ms", 1000));
+        } else if (storage instanceof ShardedStorage shardedStorage) {
+            // Shards are local files no other server reads, they have no use for a change log
+            for (EconomyStorage shard : shardedStorage.getShards()) {
+                if (shard instanceof AbstractDatabaseStorage databaseStorage) {
+                    configureDatabase(databaseStorage, false);
+                }
             }
         }
+        boolean changeLogSupported = storage instanceof AbstractDatabaseStorage;
+        // Diagnostics only, slows down every storage call to check that slow disks don't lag the server
+        if (config.getBoolean("debug.latency_injection.enabled", false)) {
+            storage = new LatencyInjectingStorage(storage, getLatencyProfile());
+        }
         storage.init();
 
         // Load currency configuration
@@ -77,12 +145,88 @@ public class Aconomy extends Plugin {
         // Load default balance
         BigDecimal defaultBalance = BigDecimal.valueOf(config.getDouble("economy.default_balance", 0.0));
 
-        // Create currency
-        AcoCurrency currency = new AcoCurrency(currencyName, currencyPlural, currencySymbol, fractionDigits, true);
+        // Create currencies, the default one first
+        List<AcoCurrency> currencies = new ArrayList<>();
+        currencies.add(new AcoCurrency(currencyName, currencyPlural, currencySymbol, fractionDigits, 0));
+        currencies.addAll(getAdditionalCurrencies());
+
+        // Offline accounts are evicted from memory once idle or when the cache grows too large
+        AccountCache accountCache = new AccountCache(
+                config.getInt("cache.max_size", 10000),
+                TimeUnit.MINUTES.toMillis(config.getLong("cache.idle_minutes", 10))
+        );
 
         // Create and register EconomyAPI implementation
-        economyAPI = new AcoEconomyAPI(currency, storage, defaultBalance);
+        economyAPI = new AcoEconomyAPI(currencies, storage, defaultBalance, accountCache);
         EconomyAPI.API.set(economyAPI);
+        economyAPI.getJoinBatcher().setWindowMillis(config.getLong("join_batching.window_ms", 50));
+
+        // Answer lookups of unknown UUIDs without asking the storage. Accounts created by other
+        // servers are only seen through the change log, so a shared database needs it enabled
+        if (config.getBoolean("account_filter.enabled", true)) {
+            boolean shared = storageType.equals("h2") && !config.getString("storage.h2_url", "").isEmpty();
+            if (shared && !changeLogEnabled) {
+                this.pluginLogger.warn("Account filter disabled, a shared H2 database requires storage.change_log.enabled");
+            } else {
+                economyAPI.enableAccountFilter(
+                        config.getLong("account_filter.expected_accounts", 100000),
+                        config.getDouble("account_filter.false_positive_rate", 0.01)
+                );
+            }
+        }
+
+        // Shared accounts receiving many deposits collect them in striped counters
+        List<String> hotAccountIds = config.getStringList("hot_accounts.uuids");
+        if (hotAccountIds != null && !hotAccountIds.isEmpty()) {
+            Set<UUID> hotAccounts = new HashSet<>();
+            for (String id : hotAccountIds) {
+                try {
+                    hotAccounts.add(UUID.fromString(id));
+                } catch (IllegalArgumentException e) {
+                    this.pluginLogger.warn("Ignoring invalid hot account UUID {}", id);
+                }
+            }
+            economyAPI.getHotAccounts().enable(hotAccounts, config.getLong("hot_accounts.flush_interval_ms", 1000));
+        }
+
+        // Move accounts of players who stopped playing out of the active set
+        if (config.getBoolean("archive.enabled", false)) {
+            long dormantDays = config.getLong("archive.dormant_days", 90);
+            long defaultBalanceDays = config.getLong("archive.default_balance_days", 14);
+            economyAPI.scheduleArchival(
+                    TimeUnit.DAYS.toMillis(dormantDays),
+                    TimeUnit.DAYS.toMillis(defaultBalanceDays > 0 ? defaultBalanceDays : dormantDays),
+                    TimeUnit.HOURS.toMillis(config.getLong("archive.interval_hours", 6))
+            );
+        }
+
+        // Keep caches coherent with other servers sharing the database
+        if (changeLogEnabled && changeLogSupported) {
+            changeLogPoller = new ChangeLogPoller(economyAPI, TimeUnit.MINUTES.toMillis(config.getLong("storage.change_log.retention_minutes", 60)));
+            changeLogPoller.start(config.getLong("storage.change_log.poll_interval_ms", 1000));
+        }
+
+        // Interest and wealth tax cycles
+        adjustmentScheduler = new AdjustmentScheduler(economyAPI, dataFolder.resolve("adjustments.properties"));
+        scheduleAdjustment("interest", 1);
+        scheduleAdjustment("tax", -1);
+        adjustmentScheduler.start();
+
+        // Online backups, optionally on a schedule
+        backupManager = new BackupManager(
+                storage, storageType, dataFolder.resolve("backups"),
+                config.getInt("backup.keep", 10),
+                config.getInt("backup.max_age_days", 7),
+                // Pending hot-account credits and queued ledger entries are written before each backup
+                () -> {
+                    economyAPI.getHotAccounts().flushAll();
+                    economyAPI.getLedger().flush();
+                }
+        );
+        long backupInterval = config.getLong("backup.interval_minutes", 0);
+        if (backupInterval > 0) {
+            backupManager.start(backupInterval);
+        }
 
         this.pluginLogger.info("EconomyAPI implementation registered successfully!");
         this.pluginLogger.info("Aconomy loaded successfully!");
@@ -91,6 +235,14 @@ public class Aconomy extends Plugin {
     @Override
     public void onEnable() {
         this.pluginLogger.info("Aconomy is enabling...");
+        // The thread calling onEnable isn't necessarily the one ticking the server, scheduled tasks are
+        tickThread = Thread.currentThread();
+        Server.getInstance().getScheduler().runLater(this, () -> {
+            tickThread = Thread.currentThread();
+            ticking = true;
+            // Every plugin has been enabled and registered its listeners by the first tick
+            invalidateEventGate();
+        });
 
         // Register commands
         Registries.COMMANDS.register(new AcoCommand());
@@ -100,6 +252,7 @@ public class Aconomy extends Plugin {
         EventBus eventBus = Server.getInstance().getEventBus();
         eventListener = new EventListener();
         eventBus.registerListener(eventListener);
+        invalidateEventGate();
 
         this.pluginLogger.info("Aconomy enabled successfully!");
     }
@@ -107,11 +260,31 @@ public class Aconomy extends Plugin {
     @Override
     public void onDisable() {
         this.pluginLogger.info("Aconomy is disabling...");
+        // Tasks scheduled from now on may never run, the work done while shutting down runs inline
+        ticking = false;
 
         // Unregister event listener
         if (eventListener != null) {
             Server.getInstance().getEventBus().unregisterListener(eventListener);
         }
+        invalidateEventGate();
+
+        if (changeLogPoller != null) {
+            changeLogPoller.shutdown();
+        }
+
+        if (adjustmentScheduler != null) {
+            adjustmentScheduler.shutdown();
+        }
+
+        if (backupManager != null) {
+            backupManager.shutdown();
+        }
+
+        // Flush pending economy work before the storage goes away
+        if (economyAPI != null) {
+            economyAPI.shutdown();
+        }
 
         // Shutdown storage
         if (storage != null) {
@@ -121,6 +294,268 @@ public class Aconomy extends Plugin {
         this.pluginLogger.info("Aconomy disabled successfully!");
     }
 
+    /**
+     * Make the economy look up again which of its events have listeners, after plugins were enabled or disabled.
+     */
+    private void invalidateEventGate() {
+        if (economyAPI != null) {
+            economyAPI.getEventGate().invalidate();
+        }
+    }
+
+    /**
+     * Get the settings from the storage section of the config handed to storage providers.
+     *
+     * @return the storage settings
+     */
+    private StorageOptions getStorageOptions() {
+        return new StorageOptions(config.getString("storage.h2_url", ""), config.getInt("storage.shards", StorageOptions.DEFAULT.shards()));
+    }
+
+    /**
+     * Get the configured durability mode, batched if it isn't set or valid.
+     *
+     * @return the durability mode
+     */
+    private Durability getDurability() {
+        String mode = config.getString("storage.durability.mode", "batched");
+        try {
+            return Durability.valueOf(mode.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            this.pluginLogger.warn("Unknown durability mode {}, using batched", mode);
+            return Durability.BATCHED;
+        }
+    }
+
+    /**
+     * Get the latency, stalls and failures injected into storage calls for diagnostics.
+     *
+     * @return the latency profile from the debug section of the config
+     */
+    private LatencyProfile getLatencyProfile() {
+        String distribution = config.getString("debug.latency_injection.distribution", "exponential");
+        LatencyProfile.Distribution jitterDistribution;
+        try {
+            jitterDistribution = LatencyProfile.Distribution.valueOf(distribution.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            this.pluginLogger.warn("Unknown latency distribution {}, using exponential", distribution);
+            jitterDistribution = LatencyProfile.Distribution.EXPONENTIAL;
+        }
+        return new LatencyProfile(
+                config.getLong("debug.latency_injection.base_ms", 5),
+                config.getLong("debug.latency_injection.jitter_ms", 20),
+                jitterDistribution,
+                config.getDouble("debug.latency_injection.stall_probability", 0.001),
+                config.getLong("debug.latency_injection.stall_ms", 2000),
+                config.getDouble("debug.latency_injection.failure_probability", 0.0)
+        );
+    }
+
+    /**
+     * Read the additional currencies from the config. Their ordinals follow the order of the list,
+     * which is how their balances are stored, so currencies may only be appended.
+     *
+     * @return the additional currencies, with ordinals starting at 1
+     */
+    @SuppressWarnings("unchecked")
+    private List<AcoCurrency> getAdditionalCurrencies() {
+        List<AcoCurrency> currencies = new ArrayList<>();
+        List<Map> entries = config.getMapList("extra_currencies");
+        if (entries == null) {
+            return currencies;
+        }
+        for (Map<String, Object> entry : entries) {
+            int ordinal = currencies.size() + 1;
+            Object name = entry.get("name");
+            if (name == null) {
+                // Keeps the ordinals of the following currencies, removing an entry would shift their balances
+                this.pluginLogger.warn("Additional currency {} has no name, calling it currency-{}", ordinal, ordinal);
+                name = "currency-" + ordinal;
+            }
+            Object fractionDigits = entry.getOrDefault("fraction_digits", 0);
+            currencies.add(new AcoCurrency(
+                    name.toString(),
+                    String.valueOf(entry.getOrDefault("plural", name)),
+                    String.valueOf(entry.getOrDefault("symbol", "")),
+                    fractionDigits instanceof Number number ? number.intValue() : Integer.parseInt(fractionDigits.toString()),
+                    ordinal
+            ));
+        }
+        return currencies;
+    }
+
+    /**
+     * Apply the database settings from the storage section of the config, before the database is initialized.
+     *
+     * @param databaseStorage  the database to configure
+     * @param changeLogEnabled whether the database records a change log for other servers
+     */
+    private void configureDatabase(AbstractDatabaseStorage databaseStorage, boolean changeLogEnabled) {
+        databaseStorage.setChangeLogEnabled(changeLogEnabled);
+        databaseStorage.setDurability(getDurability(), config.getLong("storage.durability.sync_interval_ms", 1000));
+        boolean inMemory = false;
+        if (config.getBoolean("storage.in_memory.enabled", false)) {
+            inMemory = databaseStorage.enableInMemory(TimeUnit.SECONDS.toMillis(config.getLong("storage.in_memory.checkpoint_interval_seconds", 30)));
+            if (!inMemory) {
+                this.pluginLogger.warn("In-memory mode is not supported for a shared H2 database, ignoring it");
+            }
+        }
+        // Writes to memory don't wait for the disk, there is nothing to gain from group commit
+        if (!inMemory && config.getBoolean("storage.group_commit.enabled", false)) {
+            databaseStorage.enableGroupCommit(
+                    config.getBoolean("storage.group_commit.wait_for_durability", true),
+                    config.getInt("storage.group_commit.max_batch_size", 1000)
+            );
+        }
+    }
+
+    /**
+     * Schedule an interest or tax adjustment configured in the config section of the same name.
+     *
+     * @param name the name of the config section
+     * @param sign 1 to add the configured rate to balances, -1 to take it away
+     */
+    private void scheduleAdjustment(String name, int sign) {
+        ConfigSection section = config.getSection(name);
+        if (section == null || !section.getBoolean("enabled", false)) {
+            return;
+        }
+        BigDecimal rate = BigDecimal.valueOf(section.getDouble("rate", 0));
+        if (rate.signum() <= 0) {
+            this.pluginLogger.warn("Ignoring {}, its rate must be positive", name);
+            return;
+        }
+        double cap = section.getDouble("cap", 0);
+        RateAdjustment adjustment = new RateAdjustment(
+                sign < 0 ? rate.negate() : rate,
+                BigDecimal.valueOf(section.getDouble("threshold", 0)),
+                cap > 0 ? BigDecimal.valueOf(cap) : null,
+                config.getInt("currency.fraction_digits", 2)
+        );
+        adjustmentScheduler.schedule(name, adjustment, TimeUnit.MINUTES.toMillis(section.getLong("interval_minutes", 1440)));
+        this.pluginLogger.info("Scheduled {} of {} every {} minutes", name, rate, section.getLong("interval_minutes", 1440));
+    }
+
+    /**
+     * Migrate all accounts between two storages on a background thread. The active storage can
+     * be the source, but not the target, since writing to it would bypass the account caches.
+     * <p>
+     * Players keep writing to an active source, so it is copied from a snapshot. Such a copy can't
+     * be switched to, only the offline migration tool can migrate a storage that is no longer written to.
+     *
+     * @param from     the source storage type
+     * @param to       the target storage type
+     * @param progress receives progress messages, called from the migration thread
+     * @return false if the migration could not be started
+     */
+    public boolean startMigration(String from, String to, Consumer<String> progress) {
+        if (from.equals(to)) {
+            progress.accept("Source and target storage must be different");
+            return false;
+        }
+        if (to.equals(storageType)) {
+            progress.accept("Cannot migrate into the active " + to + " storage, run the offline migration tool instead");
+            return false;
+        }
+        if (!migrating.compareAndSet(false, true)) {
+            progress.accept("A migration is already running");
+            return false;
+        }
+
+        Thread thread = new Thread(() -> {
+            boolean activeSource = from.equals(storageType);
+            StorageOptions options = getStorageOptions();
+            EconomyStorage source = activeSource ? storage : storageFactory.create(from, this.pluginContainer.dataFolder(), options);
+            EconomyStorage target = storageFactory.create(to, this.pluginContainer.dataFolder(), options);
+            try {
+                if (!activeSource) {
+                    source.init();
+                }
+                target.init();
+                if (activeSource) {
+                    // The snapshot must include every pending credit
+                    economyAPI.getHotAccounts().flushAll();
+                }
+                MigrationResult result = new StorageMigrator(source, target, StorageMigrator.DEFAULT_BATCH_SIZE, progress, activeSource).migrate();
+                if (result != null && result.verified()) {
+                    progress.accept(activeSource
+                            ? "To switch to " + to + ", stop the server, remove the copy and run the offline migration tool"
+                            : "Set storage.type to " + to + " in config.yml and restart to use the migrated storage");
+                }
+            } catch (Exception e) {
+                this.pluginLogger.error("Storage migration failed", e);
+                progress.accept("Migration failed: " + e.getMessage());
+            } finally {
+                target.shutdown();
+                if (!activeSource) {
+                    source.shutdown();
+                }
+                migrating.set(false);
+            }
+        }, "Aconomy-Migration");
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    /**
+     * Check whether the current thread is the server tick thread. Until the server has run the first
+     * scheduled task of the plugin, this is the thread that loaded and enabled the plugin.
+     *
+     * @return true if called from the server tick thread
+     */
+    public static boolean isTickThread() {
+        return Thread.currentThread() == tickThread;
+    }
+
+    /**
+     * Run a task on the server tick thread without waiting for it, or run it right away if already on it
+     * or while the scheduler doesn't run the tasks of the plugin.
+     *
+     * @param task the task
+     */
+    public static void runOnTickThread(Runnable task) {
+        if (isTickThread() || !ticking) {
+            task.run();
+            return;
+        }
+        Server.getInstance().getScheduler().runLater(instance, task);
+    }
+
+    /**
+     * Run a task on the server tick thread and wait for its result, or run it right away if already on it.
+     * Event listeners expect to be called there. While the scheduler doesn't run the tasks of the plugin,
+     * before the first tick and while shutting down, the task runs right away on the calling thread.
+     *
+     * @param task          the task
+     * @param timeoutMillis how long to wait for the tick thread to run the task
+     * @param <T>           the result type
+     * @return the result of the task, or null if it failed or didn't run in time
+     */
+    public static <T> T callOnTickThread(Supplier<T> task, long timeoutMillis) {
+        if (isTickThread() || !ticking) {
+            return task.get();
+        }
+        CompletableFuture<T> future = new CompletableFuture<>();
+        Server.getInstance().getScheduler().runLater(instance, () -> {
+            try {
+                future.complete(task.get());
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            }
+        });
+        try {
+            return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            instance.pluginLogger.error("Task on the tick thread failed", e.getCause());
+        } catch (TimeoutException e) {
+            instance.pluginLogger.warn("Timed out waiting for the tick thread");
+        }
+        return null;
+    }
+
     /**
      * Load configuration from config.yml.
      * If config file doesn't exist, it will be created with default values from resources.
@@ -156,9 +591,8 @@ public class Aconomy extends Plugin {
             var uuid = player.getLoginData().getUuid();
             var name = player.getOriginName();
 
-            // Ensure account exists and update name
-            economyAPI.getOrCreateAccount(uuid);
-            economyAPI.updateAccountName(uuid, name);
+            // Ensure account exists, update name and load it into the cache, batched with other joins off the server thread
+            economyAPI.prefetchAccount(uuid, name);
         }
     }
 }
@@ -0,0 +1,154 @@
+package me.daoge.aconomy.api;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * A size and idle bounded cache of {@link AcoAccount} instances.
+ * <p>
+ * Accounts of online players are pinned and never evicted. Offline accounts are evicted by
+ * {@link #evict(Set)} once they have been idle for longer than the idle timeout, and the least
+ * recently used ones are evicted first whenever the cache holds more than its maximum size.
+ *
+ * @author daoge_cmd
+ */
+public class AccountCache {
+
+    private final Map<UUID, Entry> entries = new ConcurrentHashMap<>();
+    private final int maxSize;
+    private final long idleMillis;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxSize    the number of accounts above which offline accounts are evicted
+     * @param idleMillis how long an offline account may stay unused before it is evicted
+     */
+    public AccountCache(int maxSize, long idleMillis) {
+        this.maxSize = maxSize;
+        this.idleMillis = idleMillis;
+    }
+
+    /**
+     * Get a cached account.
+     *
+     * @param uuid the account id
+     * @return the account, or null if it is not cached
+     */
+    public AcoAccount get(UUID uuid) {
+        Entry entry = entries.get(uuid);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        entry.lastAccess = System.currentTimeMillis();
+        return entry.account;
+    }
+
+    /**
+     * Get a cached account without counting it as a use.
+     *
+     * @param uuid the account id
+     * @return the account, or null if it is not cached
+     */
+    public AcoAccount peek(UUID uuid) {
+        Entry entry = entries.get(uuid);
+        return entry != null ? entry.account : null;
+    }
+
+    /**
+     * Get a cached account, caching the one created by the given function if there is none.
+     * Doesn't count towards the hit rate, the caller is expected to have already looked it up.
+     *
+     * @param uuid    the account id
+     * @param factory creates the account if it isn't cached
+     * @return the cached account
+     */
+    public AcoAccount computeIfAbsent(UUID uuid, Function<UUID, AcoAccount> factory) {
+        return entries.computeIfAbsent(uuid, key -> new Entry(factory.apply(key))).account;
+    }
+
+    public void put(UUID uuid, AcoAccount account) {
+        entries.put(uuid, new Entry(account));
+    }
+
+    public void remove(UUID uuid) {
+        entries.remove(uuid);
+    }
+
+    /**
+     * Evict idle offline accounts, then the least recently used offline accounts while the cache
+     * is larger than its maximum size.
+     *
+     * @param pinned the accounts that must stay cached, usually those of online players
+     */
+    public void evict(Set<UUID> pinned) {
+        long idleBefore = System.currentTimeMillis() - idleMillis;
+        entries.entrySet().removeIf(entry -> {
+            if (pinned.contains(entry.getKey()) || entry.getValue().lastAccess >= idleBefore) {
+                return false;
+            }
+            evictions.increment();
+            return true;
+        });
+
+        int excess = entries.size() - maxSize;
+        if (excess <= 0) {
+            return;
+        }
+        entries.entrySet().stream()
+                .filter(entry -> !pinned.contains(entry.getKey()))
+                .sorted(Comparator.comparingLong(entry -> entry.getValue().lastAccess))
+                .limit(excess)
+                .map(Map.Entry::getKey)
+                .toList()
+                .forEach(uuid -> {
+                    if (entries.remove(uuid) != null) {
+                        evictions.increment();
+                    }
+                });
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Get the fraction of lookups that found the account cached.
+     *
+     * @return the hit rate between 0 and 1, or 0 if there were no lookups
+     */
+    public double getHitRate() {
+        long hits = getHits();
+        long total = hits + getMisses();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    private static class Entry {
+        final AcoAccount account;
+        volatile long lastAccess = System.currentTimeMillis();
+
+        Entry(AcoAccount account) {
+            this.account = account;
+        }
+    }
+}
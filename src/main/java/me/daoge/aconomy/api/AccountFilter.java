@@ -0,0 +1,127 @@
+package me.daoge.aconomy.api;
+
+import lombok.Getter;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A Bloom filter over the ids of existing accounts.
+ * <p>
+ * {@link #mightContain(UUID)} never returns false for an account that was added, so a negative
+ * answer proves that an account doesn't exist without asking the storage. Accounts can't be
+ * removed, a deleted account simply stays a false positive.
+ *
+ * @author daoge_cmd
+ */
+public class AccountFilter {
+
+    private final AtomicLongArray bits;
+    @Getter
+    private final long bitCount;
+    @Getter
+    private final int hashCount;
+    private final LongAdder insertions = new LongAdder();
+    private final LongAdder negatives = new LongAdder();
+
+    /**
+     * @param expectedAccounts  the number of accounts the filter is sized for
+     * @param falsePositiveRate the desired false positive rate at that number of accounts
+     */
+    public AccountFilter(long expectedAccounts, double falsePositiveRate) {
+        long n = Math.max(expectedAccounts, 1);
+        double p = Math.min(Math.max(falsePositiveRate, 1e-9), 0.5);
+        long m = (long) Math.ceil(-n * Math.log(p) / (Math.log(2) * Math.log(2)));
+        this.bits = new AtomicLongArray((int) Math.min((m + 63) >>> 6, Integer.MAX_VALUE));
+        this.bitCount = (long) bits.length() << 6;
+        this.hashCount = Math.max(1, (int) Math.round((double) bitCount / n * Math.log(2)));
+    }
+
+    /**
+     * Add an account to the filter.
+     *
+     * @param uuid the account id
+     */
+    public void add(UUID uuid) {
+        long h1 = mix(uuid.getMostSignificantBits() ^ uuid.getLeastSignificantBits());
+        long h2 = mix(uuid.getLeastSignificantBits() + 0x9E3779B97F4A7C15L) | 1;
+        for (int i = 0; i < hashCount; i++) {
+            long index = Long.remainderUnsigned(h1 + i * h2, bitCount);
+            int word = (int) (index >>> 6);
+            long mask = 1L << index;
+            long current;
+            do {
+                current = bits.get(word);
+                if ((current & mask) != 0) {
+                    break;
+                }
+            } while (!bits.compareAndSet(word, current, current | mask));
+        }
+        insertions.increment();
+    }
+
+    /**
+     * Check whether an account may exist.
+     *
+     * @param uuid the account id
+     * @return false if the account definitely doesn't exist, true if it may exist
+     */
+    public boolean mightContain(UUID uuid) {
+        long h1 = mix(uuid.getMostSignificantBits() ^ uuid.getLeastSignificantBits());
+        long h2 = mix(uuid.getLeastSignificantBits() + 0x9E3779B97F4A7C15L) | 1;
+        for (int i = 0; i < hashCount; i++) {
+            long index = Long.remainderUnsigned(h1 + i * h2, bitCount);
+            if ((bits.get((int) (index >>> 6)) & (1L << index)) == 0) {
+                negatives.increment();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the number of accounts added to the filter, including ones deleted since.
+     *
+     * @return the number of insertions
+     */
+    public long getInsertions() {
+        return insertions.sum();
+    }
+
+    /**
+     * Get the number of lookups answered without asking the storage.
+     *
+     * @return the number of definite negatives
+     */
+    public long getNegatives() {
+        return negatives.sum();
+    }
+
+    /**
+     * Estimate the current false positive rate from the number of insertions.
+     *
+     * @return the expected false positive rate between 0 and 1
+     */
+    public double getExpectedFalsePositiveRate() {
+        return Math.pow(1 - Math.exp(-(double) hashCount * getInsertions() / bitCount), hashCount);
+    }
+
+    /**
+     * Get the memory used by the filter's bit array.
+     *
+     * @return the size in bytes
+     */
+    public long getSizeBytes() {
+        return bitCount >>> 3;
+    }
+
+    /**
+     * Finalizer of the SplitMix64 generator, spreads the bits of UUIDs that aren't random, such as offline mode ones.
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
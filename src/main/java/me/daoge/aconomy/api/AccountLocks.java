@@ -0,0 +1,70 @@
+package me.daoge.aconomy.api;
+
+import java.util.Collection;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Striped locks guarding read-modify-write sequences on account balances.
+ * <p>
+ * Locks for several accounts are always acquired in stripe order, so operations touching
+ * overlapping sets of accounts cannot deadlock each other.
+ *
+ * @author daoge_cmd
+ */
+public class AccountLocks {
+
+    private static final int STRIPE_COUNT = 64;
+
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPE_COUNT];
+
+    public AccountLocks() {
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Lock a single account.
+     *
+     * @param uuid the account to lock
+     * @return a handle that releases the lock when closed
+     */
+    public Held lock(UUID uuid) {
+        ReentrantLock lock = stripes[stripeOf(uuid)];
+        lock.lock();
+        return lock::unlock;
+    }
+
+    /**
+     * Lock several accounts in a globally consistent order.
+     *
+     * @param uuids the accounts to lock
+     * @return a handle that releases all locks when closed
+     */
+    public Held lockAll(Collection<UUID> uuids) {
+        int[] indexes = uuids.stream().mapToInt(AccountLocks::stripeOf).distinct().sorted().toArray();
+        for (int index : indexes) {
+            stripes[index].lock();
+        }
+        return () -> {
+            for (int i = indexes.length - 1; i >= 0; i--) {
+                stripes[indexes[i]].unlock();
+            }
+        };
+    }
+
+    private static int stripeOf(UUID uuid) {
+        int hash = uuid.hashCode();
+        return (hash ^ (hash >>> 16)) & (STRIPE_COUNT - 1);
+    }
+
+    /**
+     * A set of held locks, released by {@link #close()}.
+     */
+    @FunctionalInterface
+    public interface Held extends AutoCloseable {
+        @Override
+        void close();
+    }
+}
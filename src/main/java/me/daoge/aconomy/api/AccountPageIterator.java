@@ -0,0 +1,55 @@
+package me.daoge.aconomy.api;
+
+import me.daoge.aconomy.storage.AccountRecord;
+import me.daoge.aconomy.storage.EconomyStorage;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+
+/**
+ * Iterates every account of a storage with keyset pagination, holding only the current page.
+ *
+ * @author daoge_cmd
+ */
+final class AccountPageIterator implements Iterator<AccountRecord> {
+
+    private final EconomyStorage storage;
+    private final int pageSize;
+    private List<AccountRecord> page = List.of();
+    private int index;
+    private UUID after;
+    private boolean lastPage;
+
+    AccountPageIterator(EconomyStorage storage, int pageSize) {
+        this.storage = storage;
+        this.pageSize = pageSize;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (index < page.size()) {
+            return true;
+        }
+        if (lastPage) {
+            return false;
+        }
+        page = storage.getAccountPage(after, pageSize);
+        index = 0;
+        lastPage = page.size() < pageSize;
+        if (page.isEmpty()) {
+            return false;
+        }
+        after = page.getLast().uuid();
+        return true;
+    }
+
+    @Override
+    public AccountRecord next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return page.get(index++);
+    }
+}
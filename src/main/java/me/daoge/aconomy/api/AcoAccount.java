@@ -1,106 +1,516 @@
 package me.daoge.aconomy.api;
 
 import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import me.daoge.aconomy.jfr.AccountOperationEvent;
+import me.daoge.aconomy.jfr.TransferEvent;
+import me.daoge.aconomy.storage.ChangeResult;
+import me.daoge.aconomy.storage.CurrencyBalances;
 import me.daoge.aconomy.storage.EconomyStorage;
+import me.daoge.aconomy.storage.VersionedBalance;
 import org.allaymc.api.server.Server;
 import org.allaymc.economyapi.Account;
 import org.allaymc.economyapi.Currency;
-import org.allaymc.economyapi.EconomyAPI;
 import org.allaymc.economyapi.event.BalanceChangeEvent;
 import org.allaymc.economyapi.event.BalanceTransferEvent;
 import org.jetbrains.annotations.Unmodifiable;
 
 import java.math.BigDecimal;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.UnaryOperator;
 
 /**
  * Implementation of the Account interface for Aconomy.
- * This implementation supports only a single currency type.
+ * <p>
+ * The default currency balance is kept as a decimal, the balances of the additional currencies as whole
+ * numbers of their smallest unit next to it, see {@link CurrencyBalances}. Hot accounts, statistics and
+ * multi-posting transactions only cover the default currency.
  *
  * @author daoge_cmd
  */
+@Slf4j
 public class AcoAccount implements Account {
 
+    /**
+     * Maximum number of attempts for an optimistic balance update before giving up.
+     */
+    static final int MAX_UPDATE_ATTEMPTS = 8;
+
+    private static final LongAdder CONFLICTS = new LongAdder();
+
     @Getter
     private final UUID uniqueId;
+    private final AcoEconomyAPI api;
     private final EconomyStorage storage;
+    /**
+     * The account name, loaded lazily and kept until the name changes.
+     */
+    private volatile String cachedName;
 
-    public AcoAccount(UUID uniqueId, EconomyStorage storage) {
+    public AcoAccount(UUID uniqueId, AcoEconomyAPI api) {
         this.uniqueId = uniqueId;
-        this.storage = storage;
+        this.api = api;
+        this.storage = api.getStorage();
     }
 
     @Override
     public String getName() {
-        String name = storage.getAccountName(uniqueId);
+        String name = cachedName;
+        if (name == null) {
+            JoinBatcher.PendingJoin join = api.getJoinBatcher().getPending(uniqueId);
+            if (join != null) {
+                return join.getName();
+            }
+            name = storage.getAccountName(uniqueId);
+            cachedName = name;
+        }
         return name != null ? name : uniqueId.toString();
     }
 
     @Override
     public BigDecimal getBalance(Currency currency) {
-        // Since we only support a single currency, we ignore the currency parameter
-        return storage.getBalance(uniqueId);
+        AcoCurrency additional = api.getAdditionalCurrency(currency);
+        if (additional != null) {
+            CurrencyBalances balances = readBalances();
+            return additional.fromUnits(balances != null ? balances.extra(additional.getOrdinal() - 1) : 0);
+        }
+        if (api.getJoinBatcher().getPending(uniqueId) != null) {
+            CurrencyBalances balances = readBalances();
+            return (balances != null ? balances.balance() : BigDecimal.ZERO).add(api.getHotAccounts().getPending(uniqueId));
+        }
+        return storage.getBalance(uniqueId).add(api.getHotAccounts().getPending(uniqueId));
     }
 
     @Override
     @Unmodifiable
     public Map<Currency, BigDecimal> getBalances() {
-        Currency defaultCurrency = EconomyAPI.getAPI().getDefaultCurrency();
-        Map<Currency, BigDecimal> balances = new HashMap<>();
-        balances.put(defaultCurrency, storage.getBalance(uniqueId));
-        return Collections.unmodifiableMap(balances);
+        // Every currency lives in the same row, one read covers all of them
+        CurrencyBalances balances = readBalances();
+        BigDecimal pending = api.getHotAccounts().getPending(uniqueId);
+        if (balances == null) {
+            return new BalanceView(api.getCurrencyList(), pending, new long[0]);
+        }
+        return new BalanceView(api.getCurrencyList(), balances.balance().add(pending), balances.extra());
+    }
+
+    /**
+     * Read every balance of the account. A joining player whose account is still queued reads as the
+     * default balance until the batch has been written, instead of waiting for it.
+     *
+     * @return the balances, or null if the account doesn't exist
+     */
+    private CurrencyBalances readBalances() {
+        CurrencyBalances balances = storage.getCurrencyBalances(uniqueId);
+        if (balances == null && api.getJoinBatcher().getPending(uniqueId) != null) {
+            return new CurrencyBalances(api.getDefaultBalance(), new long[0], 0);
+        }
+        return balances;
     }
 
     @Override
     public boolean setBalance(Currency currency, BigDecimal amount) {
-        if (amount.compareTo(BigDecimal.ZERO) < 0) {
+        AcoCurrency additional = api.getAdditionalCurrency(currency);
+        if (additional != null) {
+            return updateAdditionalBalance(additional, "set", oldBalance -> amount);
+        }
+        return updateBalance(currency, "set", oldBalance -> amount);
+    }
+
+    @Override
+    public boolean deposit(Currency currency, BigDecimal amount) {
+        if (amount.compareTo(BigDecimal.ZERO) <= 0) {
             return false;
         }
+        AcoCurrency additional = api.getAdditionalCurrency(currency);
+        if (additional != null) {
+            return updateAdditionalBalance(additional, "deposit", oldBalance -> oldBalance.add(amount));
+        }
+        if (api.getHotAccounts().isHot(uniqueId)) {
+            return creditHot(currency, amount);
+        }
+        return updateBalance(currency, "deposit", oldBalance -> oldBalance.add(amount));
+    }
 
-        BigDecimal oldBalance = storage.getBalance(uniqueId);
+    /**
+     * Deposit into a hot account without taking the account lock or writing to storage.
+     *
+     * @see HotAccounts
+     */
+    private boolean creditHot(Currency currency, BigDecimal amount) {
+        AccountOperationEvent jfrEvent = AccountOperationEvent.begin("deposit", 1);
+        boolean success = false;
+        try {
+            api.ensureJoined(uniqueId);
+            if (!api.getHotAccounts().exists(uniqueId)) {
+                return false;
+            }
+            if (api.getEventGate().isListened(BalanceChangeEvent.class)) {
+                BigDecimal oldBalance = getBalance(currency);
+                BalanceChangeEvent event = new BalanceChangeEvent(this, currency, oldBalance, oldBalance.add(amount));
+                if (!event.call(Server.getInstance().getEventBus())) {
+                    return false;
+                }
+            }
+            api.getHotAccounts().credit(uniqueId, amount);
+            success = true;
+            return true;
+        } finally {
+            jfrEvent.finish(success);
+        }
+    }
 
-        // Fire BalanceChangeEvent
-        BalanceChangeEvent event = new BalanceChangeEvent(this, currency, oldBalance, amount);
-        if (!event.call(Server.getInstance().getEventBus())) {
+    @Override
+    public boolean withdraw(Currency currency, BigDecimal amount) {
+        if (amount.compareTo(BigDecimal.ZERO) <= 0) {
             return false;
         }
+        AcoCurrency additional = api.getAdditionalCurrency(currency);
+        if (additional != null) {
+            return updateAdditionalBalance(additional, "withdraw", oldBalance -> oldBalance.subtract(amount));
+        }
+        return updateBalance(currency, "withdraw", oldBalance -> oldBalance.subtract(amount));
+    }
+
+    /**
+     * Update the balance under the account lock, firing a {@link BalanceChangeEvent} and recording the change in the ledger.
+     *
+     * @param currency the currency of the balance
+     * @param cause    what caused the change, recorded in the ledger
+     * @param update   computes the new balance from the old one
+     * @return true if the balance was updated
+     */
+    private boolean updateBalance(Currency currency, String cause, UnaryOperator<BigDecimal> update) {
+        return updateBalance(currency, cause, null, true, update);
+    }
+
+    /**
+     * Update the balance under the account lock and record the change in the ledger.
+     * <p>
+     * The event is fired once, before the account lock is taken. A write that lost a race against another
+     * server is retried with the listeners' decision, backing off without holding the account lock.
+     *
+     * @param currency     the currency of the balance
+     * @param cause        what caused the change, recorded in the ledger
+     * @param counterparty the other account involved, recorded in the ledger, or null
+     * @param fireEvent    whether to fire a {@link BalanceChangeEvent}, false if the caller fired its own event
+     * @param update       computes the new balance from the old one
+     * @return true if the balance was updated
+     */
+    private boolean updateBalance(Currency currency, String cause, UUID counterparty, boolean fireEvent, UnaryOperator<BigDecimal> update) {
+        AccountOperationEvent jfrEvent = AccountOperationEvent.begin(cause, 1);
+        boolean success = false;
+        try {
+            api.ensureJoined(uniqueId);
+            // Skipped entirely when nobody listens, the read is only needed for the event
+            if (fireEvent && api.getEventGate().isListened(BalanceChangeEvent.class)) {
+                // Listeners are called without the account lock, which the tick thread may be waiting for.
+                // They see the balance read before the lock is taken, the update is validated again under it
+                CurrencyBalances current = readForUpdate(uniqueId, 0);
+                if (current == null) {
+                    return false;
+                }
+                BigDecimal oldBalance = current.balance().add(api.getHotAccounts().getPending(uniqueId));
+                BigDecimal newBalance = update.apply(oldBalance);
+                if (newBalance.compareTo(BigDecimal.ZERO) < 0) {
+                    return false;
+                }
+                if (!new BalanceChangeEvent(this, currency, oldBalance, newBalance).call(Server.getInstance().getEventBus())) {
+                    return false;
+                }
+            }
+            for (int attempt = 0; attempt < MAX_UPDATE_ATTEMPTS; attempt++) {
+                if (attempt > 0) {
+                    onConflict(attempt - 1);
+                }
+                try (AccountLocks.Held ignored = api.getAccountLocks().lock(uniqueId)) {
+                    // Withdrawals and sets of a hot account must see every pending credit
+                    api.getHotAccounts().flush(uniqueId);
+                    // The local lock serializes this node, compare-and-set protects against writes from other nodes
+                    VersionedBalance current = storage.getVersionedBalance(uniqueId);
+                    if (current == null && attempt == 0 && api.restoreArchivedAccount(uniqueId)) {
+                        // Archived while this instance was held onto
+                        current = storage.getVersionedBalance(uniqueId);
+                    }
+                    if (current == null) {
+                        return false;
+                    }
+                    BigDecimal oldBalance = current.balance();
+                    BigDecimal newBalance = update.apply(oldBalance);
+                    if (newBalance.compareTo(BigDecimal.ZERO) < 0) {
+                        return false;
+                    }
+
+                    if (storage.compareAndSetBalance(uniqueId, current.version(), newBalance)) {
+                        api.getLedger().record(uniqueId, counterparty, newBalance.subtract(oldBalance), newBalance, cause);
+                        api.getStatistics().recordChange(uniqueId, oldBalance, newBalance);
+                        success = true;
+                        return true;
+                    }
+                }
+            }
+            log.warn("Gave up updating the balance of {} after {} conflicting attempts", uniqueId, MAX_UPDATE_ATTEMPTS);
+            return false;
+        } finally {
+            jfrEvent.finish(success);
+        }
+    }
+
+    /**
+     * Update the balance of an additional currency, like {@link #updateBalance(Currency, String, UnaryOperator)}.
+     * <p>
+     * Balances that have more fraction digits than the currency or don't fit its smallest unit are rejected.
+     *
+     * @param currency the additional currency
+     * @param cause    what caused the change, recorded in the ledger with the currency name
+     * @param update   computes the new balance from the old one
+     * @return true if the balance was updated
+     */
+    private boolean updateAdditionalBalance(AcoCurrency currency, String cause, UnaryOperator<BigDecimal> update) {
+        return updateAdditionalBalance(currency, cause, true, update);
+    }
 
-        storage.setBalance(uniqueId, amount);
-        return true;
+    /**
+     * Update the balance of an additional currency, optionally without firing a {@link BalanceChangeEvent}.
+     *
+     * @param currency  the additional currency
+     * @param cause     what caused the change, recorded in the ledger with the currency name
+     * @param fireEvent whether to fire a {@link BalanceChangeEvent}
+     * @param update    computes the new balance from the old one
+     * @return true if the balance was updated
+     */
+    private boolean updateAdditionalBalance(AcoCurrency currency, String cause, boolean fireEvent, UnaryOperator<BigDecimal> update) {
+        AccountOperationEvent jfrEvent = AccountOperationEvent.begin(cause, 1);
+        boolean success = false;
+        int index = currency.getOrdinal() - 1;
+        try {
+            api.ensureJoined(uniqueId);
+            if (fireEvent && api.getEventGate().isListened(BalanceChangeEvent.class)) {
+                // Called without the account lock like in updateBalance, the update is validated again under it
+                CurrencyBalances current = readForUpdate(uniqueId, 0);
+                if (current == null) {
+                    return false;
+                }
+                BigDecimal oldBalance = currency.fromUnits(current.extra(index));
+                BigDecimal newBalance = update.apply(oldBalance);
+                if (newBalance.compareTo(BigDecimal.ZERO) < 0) {
+                    return false;
+                }
+                if (!new BalanceChangeEvent(this, currency, oldBalance, newBalance).call(Server.getInstance().getEventBus())) {
+                    return false;
+                }
+            }
+            for (int attempt = 0; attempt < MAX_UPDATE_ATTEMPTS; attempt++) {
+                if (attempt > 0) {
+                    onConflict(attempt - 1);
+                }
+                try (AccountLocks.Held ignored = api.getAccountLocks().lock(uniqueId)) {
+                    CurrencyBalances current = readForUpdate(uniqueId, attempt);
+                    if (current == null) {
+                        return false;
+                    }
+                    BigDecimal oldBalance = currency.fromUnits(current.extra(index));
+                    BigDecimal newBalance = update.apply(oldBalance);
+                    if (newBalance.compareTo(BigDecimal.ZERO) < 0) {
+                        return false;
+                    }
+                    long newUnits;
+                    try {
+                        newUnits = currency.toUnits(newBalance);
+                    } catch (ArithmeticException e) {
+                        return false;
+                    }
+
+                    // Shares the version of the default balance, so either update retries if both race
+                    if (storage.compareAndSetExtraBalances(uniqueId, current.version(), current.withExtra(index, newUnits))) {
+                        api.getLedger().record(uniqueId, null, newBalance.subtract(oldBalance), newBalance, cause + ":" + currency.getName());
+                        success = true;
+                        return true;
+                    }
+                }
+            }
+            log.warn("Gave up updating the {} balance of {} after {} conflicting attempts", currency.getName(), uniqueId, MAX_UPDATE_ATTEMPTS);
+            return false;
+        } finally {
+            jfrEvent.finish(success);
+        }
     }
 
     @Override
     public boolean transfer(Account to, Currency currency, BigDecimal amount) {
+        TransferEvent jfrEvent = TransferEvent.begin("transfer", uniqueId, to.getUniqueId(), amount, 2);
+        boolean success = doTransfer(to, currency, amount);
+        jfrEvent.finish(success);
+        return success;
+    }
+
+    private boolean doTransfer(Account to, Currency currency, BigDecimal amount) {
         if (amount.compareTo(BigDecimal.ZERO) <= 0) {
             return false;
         }
 
-        BigDecimal currentBalance = getBalance(currency);
-        if (currentBalance.compareTo(amount) < 0) {
+        AcoCurrency additional = api.getAdditionalCurrency(currency);
+        if (additional != null) {
+            return transferAdditional(to, additional, amount);
+        }
+
+        if (to instanceof AcoAccount) {
+            // Validated, locked and applied in a single storage transaction
+            return api.newTransaction(currency).transfer(this, to, amount).commit();
+        }
+
+        if (getBalance(currency).compareTo(amount) < 0) {
             return false;
         }
 
         // Fire BalanceTransferEvent
-        BalanceTransferEvent event = new BalanceTransferEvent(this, to, currency, amount);
-        if (!event.call(Server.getInstance().getEventBus())) {
+        if (api.getEventGate().isListened(BalanceTransferEvent.class)) {
+            BalanceTransferEvent event = new BalanceTransferEvent(this, to, currency, amount);
+            if (!event.call(Server.getInstance().getEventBus())) {
+                return false;
+            }
+        }
+
+        // The other account belongs to another economy, each side is updated through its own checked path
+        if (!updateBalance(currency, "transfer", to.getUniqueId(), false, oldBalance -> oldBalance.subtract(amount))) {
             return false;
         }
+        if (to.deposit(currency, amount)) {
+            return true;
+        }
+        if (!updateBalance(currency, "refund", to.getUniqueId(), false, oldBalance -> oldBalance.add(amount))) {
+            log.error("Failed to refund {} to {} after a failed transfer", amount, uniqueId);
+        }
+        return false;
+    }
 
-        // Perform the transfer
-        BigDecimal newFromBalance = currentBalance.subtract(amount);
-        BigDecimal newToBalance = to.getBalance(currency).add(amount);
+    /**
+     * Transfer an additional currency. Between Aconomy accounts both balances are set in a single storage
+     * transaction, an account of another economy gets a withdrawal followed by a deposit, handing the amount
+     * back if the deposit fails.
+     */
+    private boolean transferAdditional(Account to, AcoCurrency currency, BigDecimal amount) {
+        if (!(to instanceof AcoAccount target)) {
+            if (getBalance(currency).compareTo(amount) < 0) {
+                return false;
+            }
+            if (api.getEventGate().isListened(BalanceTransferEvent.class)) {
+                BalanceTransferEvent event = new BalanceTransferEvent(this, to, currency, amount);
+                if (!event.call(Server.getInstance().getEventBus())) {
+                    return false;
+                }
+            }
+            if (!updateAdditionalBalance(currency, "transfer", false, oldBalance -> oldBalance.subtract(amount))) {
+                return false;
+            }
+            if (to.deposit(currency, amount)) {
+                return true;
+            }
+            if (!updateAdditionalBalance(currency, "refund", false, oldBalance -> oldBalance.add(amount))) {
+                log.error("Failed to refund {} {} to {} after a failed transfer", amount, currency.getName(), uniqueId);
+            }
+            return false;
+        }
 
-        storage.setBalance(uniqueId, newFromBalance);
-        if (to instanceof AcoAccount acoTo) {
-            acoTo.storage.setBalance(acoTo.uniqueId, newToBalance);
-        } else {
-            to.setBalance(currency, newToBalance);
+        long units;
+        try {
+            units = currency.toUnits(amount);
+        } catch (ArithmeticException e) {
+            return false;
+        }
+        UUID targetId = target.getUniqueId();
+        if (targetId.equals(uniqueId)) {
+            // Nothing moves, only the balance is checked
+            return getBalance(currency).compareTo(amount) >= 0
+                    && (!api.getEventGate().isListened(BalanceTransferEvent.class)
+                    || new BalanceTransferEvent(this, to, currency, amount).call(Server.getInstance().getEventBus()));
         }
 
-        return true;
+        AccountOperationEvent jfrEvent = AccountOperationEvent.begin("transfer", 2);
+        boolean success = false;
+        int index = currency.getOrdinal() - 1;
+        try {
+            api.ensureJoined(uniqueId);
+            api.ensureJoined(targetId);
+            // Listeners are called without the account locks, the balances are checked again by the storage
+            if (getBalance(currency).compareTo(amount) < 0) {
+                return false;
+            }
+            if (api.getEventGate().isListened(BalanceTransferEvent.class)) {
+                BalanceTransferEvent event = new BalanceTransferEvent(this, to, currency, amount);
+                if (!event.call(Server.getInstance().getEventBus())) {
+                    return false;
+                }
+            }
+            for (int attempt = 0; attempt < MAX_UPDATE_ATTEMPTS; attempt++) {
+                if (attempt > 0) {
+                    onConflict(attempt - 1);
+                }
+                try (AccountLocks.Held ignored = api.getAccountLocks().lockAll(List.of(uniqueId, targetId))) {
+                    CurrencyBalances from = readForUpdate(uniqueId, attempt);
+                    CurrencyBalances dest = readForUpdate(targetId, attempt);
+                    if (from == null || dest == null) {
+                        return false;
+                    }
+                    if (from.extra(index) < units) {
+                        return false;
+                    }
+
+                    // Both balances change in one storage transaction, or through change intents across shards
+                    ChangeResult result = storage.applyExtraChanges(index, Map.of(uniqueId, BigDecimal.valueOf(-units), targetId, BigDecimal.valueOf(units)));
+                    if (result.status() == ChangeResult.Status.REJECTED) {
+                        return false;
+                    }
+                    if (result.isApplied()) {
+                        String cause = "transfer:" + currency.getName();
+                        api.getLedger().record(uniqueId, targetId, amount.negate(), currency.fromUnits(result.balances().get(uniqueId).longValueExact()), cause);
+                        api.getLedger().record(targetId, uniqueId, amount, currency.fromUnits(result.balances().get(targetId).longValueExact()), cause);
+                        success = true;
+                        return true;
+                    }
+                }
+            }
+            log.warn("Gave up transferring {} {} from {} to {} after {} conflicting attempts", amount, currency.getName(), uniqueId, targetId, MAX_UPDATE_ATTEMPTS);
+            return false;
+        } finally {
+            jfrEvent.finish(success);
+        }
+    }
+
+    /**
+     * Read every balance of an account to update it, restoring the account from the archive on the first attempt.
+     */
+    private CurrencyBalances readForUpdate(UUID uuid, int attempt) {
+        CurrencyBalances current = storage.getCurrencyBalances(uuid);
+        if (current == null && attempt == 0 && api.restoreArchivedAccount(uuid)) {
+            current = storage.getCurrencyBalances(uuid);
+        }
+        return current;
+    }
+
+    /**
+     * Record a lost compare-and-set race and back off briefly before the next attempt.
+     * Callers release the account lock before backing off, so the backoff doesn't hold up other updates of the account.
+     *
+     * @param attempt the zero-based attempt that conflicted
+     */
+    static void onConflict(int attempt) {
+        CONFLICTS.increment();
+        LockSupport.parkNanos(ThreadLocalRandom.current().nextLong(100_000L << Math.min(attempt, 6)));
+    }
+
+    /**
+     * Get the number of balance updates that had to be retried because another writer, usually
+     * another server sharing the database, modified the account in between.
+     *
+     * @return the number of write conflicts since startup
+     */
+    public static long getConflictCount() {
+        return CONFLICTS.sum();
     }
 
     /**
@@ -109,6 +519,26 @@ public class AcoAccount implements Account {
      * @param name the new name
      */
     public void setName(String name) {
+        if (name.equals(cachedName)) {
+            return;
+        }
         storage.setAccountName(uniqueId, name);
+        cachedName = name;
+    }
+
+    /**
+     * Remember a name that was just written to storage, so that reading it doesn't have to wait for storage.
+     *
+     * @param name the stored name
+     */
+    void cacheName(String name) {
+        cachedName = name;
+    }
+
+    /**
+     * Drop the data this account keeps in memory, for example after another server changed it.
+     */
+    void invalidate() {
+        cachedName = null;
     }
 }
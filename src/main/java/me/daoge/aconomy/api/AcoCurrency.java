@@ -8,6 +8,10 @@ import java.math.RoundingMode;
 
 /**
  * Implementation of the Currency interface for Aconomy.
+ * <p>
+ * Currencies are numbered in the order they are configured, the default currency has ordinal 0.
+ * The balances of the other currencies are stored as whole numbers of their smallest unit, see
+ * {@link #toUnits(BigDecimal)}.
  *
  * @author daoge_cmd
  */
@@ -18,14 +22,14 @@ public class AcoCurrency implements Currency {
     private final String pluralName;
     private final String symbol;
     private final int defaultFractionDigits;
-    private final boolean isDefault;
+    private final int ordinal;
 
-    public AcoCurrency(String name, String pluralName, String symbol, int defaultFractionDigits, boolean isDefault) {
+    public AcoCurrency(String name, String pluralName, String symbol, int defaultFractionDigits, int ordinal) {
         this.name = name;
         this.pluralName = pluralName;
         this.symbol = symbol;
         this.defaultFractionDigits = defaultFractionDigits;
-        this.isDefault = isDefault;
+        this.ordinal = ordinal;
     }
 
     @Override
@@ -36,6 +40,27 @@ public class AcoCurrency implements Currency {
 
     @Override
     public boolean isDefault() {
-        return isDefault;
+        return ordinal == 0;
+    }
+
+    /**
+     * Convert an amount to a whole number of the smallest unit of this currency, such as cents.
+     *
+     * @param amount the amount
+     * @return the amount in smallest units
+     * @throws ArithmeticException if the amount has more fraction digits than this currency or doesn't fit a long
+     */
+    public long toUnits(BigDecimal amount) {
+        return amount.setScale(defaultFractionDigits, RoundingMode.UNNECESSARY).unscaledValue().longValueExact();
+    }
+
+    /**
+     * Convert a whole number of the smallest unit of this currency back to an amount.
+     *
+     * @param units the amount in smallest units
+     * @return the amount
+     */
+    public BigDecimal fromUnits(long units) {
+        return BigDecimal.valueOf(units, defaultFractionDigits);
     }
 }
@@ -2,7 +2,23 @@ package me.daoge.aconomy.api;
 
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
+import me.daoge.aconomy.Aconomy;
+import me.daoge.aconomy.event.BulkBalanceChangeEvent;
+import me.daoge.aconomy.event.RateAdjustmentEvent;
+import me.daoge.aconomy.jfr.AccountOperationEvent;
+import me.daoge.aconomy.jfr.TransferEvent;
+import me.daoge.aconomy.ledger.LedgerEntry;
+import me.daoge.aconomy.ledger.LedgerWriter;
+import me.daoge.aconomy.storage.AccountChange;
+import me.daoge.aconomy.storage.AccountRecord;
+import me.daoge.aconomy.storage.AdjustmentResult;
+import me.daoge.aconomy.storage.BalanceFilter;
+import me.daoge.aconomy.storage.BalanceUpdate;
+import me.daoge.aconomy.storage.BulkOperation;
+import me.daoge.aconomy.storage.DormancyRule;
 import me.daoge.aconomy.storage.EconomyStorage;
+import me.daoge.aconomy.storage.EnsureResult;
+import me.daoge.aconomy.storage.RateAdjustment;
 import org.allaymc.api.server.Server;
 import org.allaymc.economyapi.Account;
 import org.allaymc.economyapi.Currency;
@@ -13,45 +29,140 @@ import org.allaymc.economyapi.event.AccountDeleteEvent;
 import java.math.BigDecimal;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Main implementation of the EconomyAPI interface for Aconomy.
- * This implementation supports a single currency type configured via config.yml.
+ * The default currency and any number of additional currencies are configured via config.yml.
  *
  * @author daoge_cmd
  */
 @Slf4j
 public class AcoEconomyAPI implements EconomyAPI {
 
+    /**
+     * How often idle offline accounts are evicted from the account cache, in seconds.
+     */
+    private static final long CACHE_SWEEP_INTERVAL_SECONDS = 30;
+    /**
+     * The number of accounts archived per storage call, which is also how many account locks one call holds.
+     */
+    private static final int ARCHIVE_BATCH_SIZE = 500;
+    /**
+     * The number of accounts read per storage call when iterating all accounts.
+     */
+    private static final int ACCOUNT_PAGE_SIZE = 1000;
+    /**
+     * How long creating an account off the tick thread waits for the tick thread to call the account creation listeners.
+     */
+    private static final long CREATE_EVENT_TIMEOUT_MILLIS = 5000;
+
     @Getter
     private final Currency defaultCurrency;
     private final Set<Currency> currencies;
+    /**
+     * Every currency indexed by ordinal, the default currency first.
+     */
+    @Getter
+    private final List<AcoCurrency> currencyList;
     private final EconomyStorage storage;
-    private final Map<UUID, AcoAccount> accountCache = new ConcurrentHashMap<>();
+    @Getter
+    private final AccountCache accountCache;
+    @Getter
     private final BigDecimal defaultBalance;
+    /**
+     * Answers lookups of unknown accounts without asking the storage, null if disabled.
+     */
+    @Getter
+    private volatile AccountFilter accountFilter;
+    @Getter
+    private final AccountLocks accountLocks = new AccountLocks();
+    @Getter
+    private final LedgerWriter ledger;
+    @Getter
+    private final EventGate eventGate = new EventGate();
+    private final List<Consumer<AccountChange>> changeListeners = new CopyOnWriteArrayList<>();
+    @Getter
+    private final EconomyStatistics statistics;
+    @Getter
+    private final HotAccounts hotAccounts;
+    /**
+     * Accounts being created through {@link #getOrCreateAccount(UUID)}, so concurrent callers share one {@link AccountCreateEvent}.
+     */
+    private final Map<UUID, CreateClaim> creating = new ConcurrentHashMap<>();
+    @Getter
+    private final JoinBatcher joinBatcher = new JoinBatcher(this::ensureJoinedAccounts);
+    /**
+     * Runs account prefetching and cache eviction off the server thread.
+     */
+    private final ScheduledExecutorService maintenanceExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Aconomy-Maintenance");
+        thread.setDaemon(true);
+        return thread;
+    });
 
-    public AcoEconomyAPI(Currency defaultCurrency, EconomyStorage storage, BigDecimal defaultBalance) {
-        this.defaultCurrency = defaultCurrency;
-        this.currencies = Collections.singleton(defaultCurrency);
+    /**
+     * Create the economy.
+     *
+     * @param currencies     every currency in ordinal order, the first one is the default currency
+     * @param storage        the storage holding the accounts
+     * @param defaultBalance the balance of new accounts in the default currency
+     * @param accountCache   the cache of loaded accounts
+     */
+    public AcoEconomyAPI(List<AcoCurrency> currencies, EconomyStorage storage, BigDecimal defaultBalance, AccountCache accountCache) {
+        this.currencyList = List.copyOf(currencies);
+        this.defaultCurrency = currencyList.getFirst();
+        this.currencies = Collections.unmodifiableSet(new LinkedHashSet<>(currencyList));
         this.storage = storage;
         this.defaultBalance = defaultBalance;
+        this.accountCache = accountCache;
+        this.ledger = new LedgerWriter(storage);
+        this.statistics = new EconomyStatistics(storage, maintenanceExecutor);
+        this.hotAccounts = new HotAccounts(this);
 
-        // Load existing accounts into cache
-        for (UUID uuid : storage.getAllAccountIds()) {
-            accountCache.put(uuid, new AcoAccount(uuid, storage));
-        }
+        // Seed the running aggregates once, they are kept up to date incrementally from then on
+        maintenanceExecutor.execute(statistics::recompute);
+
+        // Accounts are loaded on demand, only online players are kept in memory indefinitely
+        maintenanceExecutor.scheduleWithFixedDelay(
+                () -> accountCache.evict(Server.getInstance().getPlayerManager().getPlayers().keySet()),
+                CACHE_SWEEP_INTERVAL_SECONDS, CACHE_SWEEP_INTERVAL_SECONDS, TimeUnit.SECONDS
+        );
 
-        log.info("AcoEconomyAPI initialized with {} accounts", accountCache.size());
+        log.info("AcoEconomyAPI initialized");
     }
 
     @Override
     public Currency getCurrency(String name) {
-        if (defaultCurrency.getName().equalsIgnoreCase(name)) {
-            return defaultCurrency;
+        for (AcoCurrency currency : currencyList) {
+            if (currency.getName().equalsIgnoreCase(name)) {
+                return currency;
+            }
         }
         return null;
     }
 
+    /**
+     * Get the additional currency the given currency refers to.
+     *
+     * @param currency a currency passed to an account method
+     * @return the additional currency, or null if the default currency is meant
+     */
+    AcoCurrency getAdditionalCurrency(Currency currency) {
+        // Anything that isn't one of the configured additional currencies means the default one, as it always has
+        if (!(currency instanceof AcoCurrency acoCurrency) || acoCurrency.isDefault()) {
+            return null;
+        }
+        int ordinal = acoCurrency.getOrdinal();
+        return ordinal < currencyList.size() && currencyList.get(ordinal) == acoCurrency ? acoCurrency : null;
+    }
+
     @Override
     public Set<Currency> getCurrencies() {
         return currencies;
@@ -59,69 +170,543 @@ public class AcoEconomyAPI implements EconomyAPI {
 
     @Override
     public boolean hasAccount(UUID uuid) {
-        return storage.hasAccount(uuid);
+        if (joinBatcher.getPending(uuid) != null) {
+            // Answered from the queued join instead of waiting for its batch, which creates the account
+            return true;
+        }
+        return mightHaveAccount(uuid) && (storage.hasAccount(uuid) || restoreArchivedAccount(uuid));
+    }
+
+    /**
+     * Move an archived account back into the active set, so that archival stays invisible to callers.
+     *
+     * @param uuid the account id
+     * @return true if the account exists now
+     */
+    boolean restoreArchivedAccount(UUID uuid) {
+        try (AccountLocks.Held ignored = accountLocks.lock(uuid)) {
+            if (storage.hasAccount(uuid)) {
+                // Restored by another caller while waiting for the lock
+                return true;
+            }
+            if (!storage.restoreAccount(uuid)) {
+                return false;
+            }
+            statistics.recordCreate(uuid, storage.getBalance(uuid));
+        }
+        log.debug("Restored archived account {}", uuid);
+        return true;
+    }
+
+    /**
+     * Archive every account matching the rule, in batches. Hot accounts and accounts in the account
+     * cache, which includes every online player, are left alone.
+     *
+     * @param rule the rule deciding which accounts are dormant
+     * @return the number of accounts archived
+     */
+    public int archiveDormantAccounts(DormancyRule rule) {
+        AccountOperationEvent jfrEvent = AccountOperationEvent.begin("archiveDormantAccounts", 0);
+        int archived = 0;
+        UUID after = null;
+        while (true) {
+            List<UUID> candidates = storage.findDormantAccounts(rule, after, ARCHIVE_BATCH_SIZE);
+            if (candidates.isEmpty()) {
+                break;
+            }
+            after = candidates.getLast();
+            try (AccountLocks.Held ignored = accountLocks.lockAll(candidates)) {
+                // Checked under the locks, so no balance update can be in progress on an archived account
+                List<UUID> batch = candidates.stream().filter(uuid -> accountCache.peek(uuid) == null && !hotAccounts.isHot(uuid)).toList();
+                if (!batch.isEmpty()) {
+                    archived += storage.archiveAccounts(batch);
+                }
+            }
+            if (candidates.size() < ARCHIVE_BATCH_SIZE) {
+                break;
+            }
+        }
+        if (archived > 0) {
+            statistics.invalidate();
+            log.info("Archived {} dormant accounts", archived);
+        }
+        jfrEvent.finish(true);
+        return archived;
+    }
+
+    /**
+     * Archive dormant accounts at a fixed interval on the maintenance thread.
+     *
+     * @param dormantMillis               how long an account's owner must not have been seen before it is archived
+     * @param defaultBalanceDormantMillis the same for accounts still at the default balance
+     * @param intervalMillis              the interval between archival runs
+     */
+    public void scheduleArchival(long dormantMillis, long defaultBalanceDormantMillis, long intervalMillis) {
+        maintenanceExecutor.scheduleWithFixedDelay(() -> {
+            long now = System.currentTimeMillis();
+            archiveDormantAccounts(new DormancyRule(now - dormantMillis, defaultBalance, now - defaultBalanceDormantMillis));
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Enable the account filter, seeding it with every existing account.
+     * <p>
+     * Only safe if every account creation is seen by this server, that is either no other server
+     * shares the storage or the storage change log is enabled.
+     *
+     * @param expectedAccounts  the number of accounts to size the filter for
+     * @param falsePositiveRate the desired false positive rate
+     */
+    public void enableAccountFilter(long expectedAccounts, double falsePositiveRate) {
+        // Archived accounts still exist, lookups of them have to reach the storage to restore them
+        Set<UUID> archived = storage.getArchivedAccountIds();
+        long accounts = storage.getAccountCount() + (long) archived.size();
+        // Leave room to grow so the false positive rate holds for a while after startup
+        AccountFilter filter = new AccountFilter(Math.max(expectedAccounts, accounts * 2), falsePositiveRate);
+        storage.forEachAccount(ACCOUNT_PAGE_SIZE, batch -> batch.forEach(account -> filter.add(account.uuid())));
+        archived.forEach(filter::add);
+        this.accountFilter = filter;
+        log.info("Account filter enabled with {} accounts, {} KiB and {} hash functions",
+                accounts, filter.getSizeBytes() / 1024, filter.getHashCount());
+    }
+
+    private boolean mightHaveAccount(UUID uuid) {
+        AccountFilter filter = accountFilter;
+        return filter == null || filter.mightContain(uuid);
     }
 
     @Override
     public Account getOrCreateAccount(UUID uuid) {
-        AcoAccount existing = accountCache.get(uuid);
+        AccountOperationEvent jfrEvent = AccountOperationEvent.begin("getOrCreateAccount", 1);
+        Account account = doGetOrCreateAccount(uuid);
+        jfrEvent.finish(account != null);
+        return account;
+    }
+
+    private Account doGetOrCreateAccount(UUID uuid) {
+        AcoAccount existing = getAccount(uuid);
         if (existing != null) {
             return existing;
         }
 
-        // Check if account exists in storage
-        if (storage.hasAccount(uuid)) {
-            AcoAccount account = new AcoAccount(uuid, storage);
-            accountCache.put(uuid, account);
-            return account;
-        }
+        // Claimed before the listeners are asked, every concurrent caller then waits for the same answer
+        CreateClaim claim = creating.computeIfAbsent(uuid, key -> new CreateClaim(new AcoAccount(key, this)));
+        try {
+            // A caller that claimed after another one finished finds the account created
+            existing = getAccount(uuid);
+            if (existing != null) {
+                return existing;
+            }
+
+            // Fire AccountCreateEvent on the tick thread, without holding the account lock the tick thread may be waiting for
+            Boolean allowed = eventGate.isListened(AccountCreateEvent.class)
+                    ? Aconomy.callOnTickThread(claim::isAllowed, CREATE_EVENT_TIMEOUT_MILLIS)
+                    : Boolean.TRUE;
+            if (allowed == null) {
+                log.warn("Could not ask the listeners about the new account {}, it isn't created", uuid);
+                return null;
+            }
+            if (!allowed) {
+                return null;
+            }
 
-        // Create new account
-        String name = getPlayerName(uuid);
-        AcoAccount newAccount = new AcoAccount(uuid, storage);
+            try (AccountLocks.Held ignored = accountLocks.lock(uuid)) {
+                existing = getAccount(uuid);
+                if (existing != null) {
+                    return existing;
+                }
 
-        // Fire AccountCreateEvent
-        AccountCreateEvent event = new AccountCreateEvent(newAccount);
-        if (!event.call(Server.getInstance().getEventBus())) {
+                // Create new account
+                String name = getPlayerName(uuid);
+
+                // Create account in storage, added to the filter first so it is never missed
+                AccountFilter filter = accountFilter;
+                if (filter != null) {
+                    filter.add(uuid);
+                }
+                if (storage.createAccount(uuid, name, defaultBalance)) {
+                    statistics.recordCreate(uuid, defaultBalance);
+                }
+                accountCache.put(uuid, claim.account);
+
+                log.info("Created new account for {} with initial balance {}", name, defaultBalance);
+                return claim.account;
+            }
+        } finally {
+            // Only released once the account exists, so a later claim never asks the listeners again
+            creating.remove(uuid, claim);
+        }
+    }
+
+    /**
+     * Get an existing account, loading it into the account cache if it isn't cached yet.
+     *
+     * @param uuid the account id
+     * @return the account, or null if it doesn't exist
+     */
+    private AcoAccount getAccount(UUID uuid) {
+        AcoAccount cached = accountCache.get(uuid);
+        if (cached != null) {
+            return cached;
+        }
+        if (!hasAccount(uuid)) {
             return null;
         }
+        return accountCache.computeIfAbsent(uuid, key -> new AcoAccount(key, this));
+    }
 
-        // Create account in storage
-        storage.createAccount(uuid, name, defaultBalance);
-        accountCache.put(uuid, newAccount);
+    /**
+     * Get an account for a one-off read without filling the account cache with it.
+     *
+     * @param uuid the id of an existing account
+     * @return the cached account, or a new uncached instance
+     */
+    private AcoAccount wrapAccount(UUID uuid) {
+        AcoAccount cached = accountCache.peek(uuid);
+        return cached != null ? cached : new AcoAccount(uuid, this);
+    }
 
-        log.info("Created new account for {} with initial balance {}", name, defaultBalance);
-        return newAccount;
+    /**
+     * Take a consistent, immutable view of all accounts as of now.
+     * Reports and audits should read from a snapshot instead of querying accounts one by one.
+     *
+     * @return the snapshot, or null if the accounts could not be read
+     */
+    public EconomySnapshot takeSnapshot() {
+        AccountOperationEvent jfrEvent = AccountOperationEvent.begin("takeSnapshot", 0);
+        // The stored balances must include every pending credit
+        hotAccounts.flushAll();
+        long time = System.currentTimeMillis();
+        try {
+            EconomySnapshot snapshot = new EconomySnapshot(time, storage.snapshot());
+            jfrEvent.finish(true);
+            return snapshot;
+        } catch (RuntimeException e) {
+            log.error("Failed to take a snapshot of the economy", e);
+            jfrEvent.finish(false);
+            return null;
+        }
     }
 
+    /**
+     * Get a read-only view of every account that reads them from storage page by page while it is
+     * iterated, instead of copying all accounts at once. Archived accounts are not included.
+     */
     @Override
     public Set<Account> getAccounts() {
-        return new HashSet<>(accountCache.values());
+        // Read from storage since the cache only holds recently used accounts
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<Account> iterator() {
+                Iterator<AccountRecord> records = new AccountPageIterator(storage, ACCOUNT_PAGE_SIZE);
+                return new Iterator<>() {
+                    @Override
+                    public boolean hasNext() {
+                        return records.hasNext();
+                    }
+
+                    @Override
+                    public Account next() {
+                        return wrapAccount(records.next().uuid());
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return storage.getAccountCount();
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return o instanceof Account account && storage.hasAccount(account.getUniqueId());
+            }
+        };
+    }
+
+    /**
+     * Stream every account from storage page by page, so a pass over the whole economy only ever holds
+     * one page in memory. Pages are read lazily as the stream is consumed, in {@link EconomyStorage#ACCOUNT_ORDER}.
+     * <p>
+     * The records hold stored balances, credits of hot accounts that are still pending are not included.
+     *
+     * @param pageSize the number of accounts read per storage call
+     * @return the accounts
+     */
+    public Stream<AccountRecord> streamAccounts(int pageSize) {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(new AccountPageIterator(storage, pageSize),
+                Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * Get a page of accounts from storage. Pass the UUID of the last account of a page to get the next one.
+     *
+     * @param after the UUID of the last account of the previous page, or null for the first page
+     * @param limit the maximum number of accounts to return
+     * @return the accounts in {@link EconomyStorage#ACCOUNT_ORDER}, fewer than the limit only on the last page
+     */
+    public List<AccountRecord> getAccountPage(UUID after, int limit) {
+        return storage.getAccountPage(after, limit);
     }
 
     @Override
     public boolean deleteAccount(UUID uuid) {
-        AcoAccount account = accountCache.get(uuid);
+        AccountOperationEvent jfrEvent = AccountOperationEvent.begin("deleteAccount", 1);
+        boolean deleted = doDeleteAccount(uuid);
+        jfrEvent.finish(deleted);
+        return deleted;
+    }
+
+    private boolean doDeleteAccount(UUID uuid) {
+        AcoAccount account = getAccount(uuid);
         if (account == null) {
             return false;
         }
 
-        // Fire AccountDeleteEvent
-        AccountDeleteEvent event = new AccountDeleteEvent(account);
-        if (!event.call(Server.getInstance().getEventBus())) {
-            return false;
+        // Fire AccountDeleteEvent, skipped entirely when nobody listens
+        if (eventGate.isListened(AccountDeleteEvent.class)) {
+            AccountDeleteEvent event = new AccountDeleteEvent(account);
+            if (!event.call(Server.getInstance().getEventBus())) {
+                return false;
+            }
         }
 
         accountCache.remove(uuid);
+        hotAccounts.flush(uuid);
+        BigDecimal balance = storage.getBalance(uuid);
         boolean deleted = storage.deleteAccount(uuid);
 
         if (deleted) {
+            statistics.recordDelete(uuid, balance);
             log.info("Deleted account for UUID {}", uuid);
         }
 
         return deleted;
     }
 
+    /**
+     * Flush pending work and stop background tasks. Called before the storage is shut down.
+     */
+    public void shutdown() {
+        joinBatcher.shutdown();
+        hotAccounts.shutdown();
+        maintenanceExecutor.shutdown();
+        try {
+            if (!maintenanceExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
+                log.warn("Timed out waiting for account maintenance tasks to finish");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        ledger.shutdown();
+    }
+
+    /**
+     * Make sure a joining player has an account with an up to date name and last-seen time, and
+     * load the account into the account cache, without blocking the calling thread.
+     * <p>
+     * Joins are written in batches by the {@link JoinBatcher}.
+     *
+     * @param uuid the player's UUID
+     * @param name the player's name
+     */
+    public void prefetchAccount(UUID uuid, String name) {
+        joinBatcher.enqueue(uuid, name);
+    }
+
+    /**
+     * Make sure the accounts of a batch of joining players exist with their current names, and load
+     * them into the account cache. Existing and new accounts are written in a single storage call.
+     *
+     * @param joins the queued joins, one per player
+     */
+    private void ensureJoinedAccounts(Collection<JoinBatcher.PendingJoin> joins) {
+        AccountOperationEvent jfrEvent = AccountOperationEvent.begin("ensureJoinedAccounts", joins.size());
+        Map<UUID, String> batch = new HashMap<>();
+        joins.forEach(join -> batch.put(join.getUuid(), join.getName()));
+        boolean success = false;
+        try {
+            // Listeners may cancel a creation, which has to be decided before anything is written.
+            // They are called on the tick thread, without holding account locks the tick thread may be waiting for
+            List<JoinBatcher.PendingJoin> newcomers = !eventGate.isListened(AccountCreateEvent.class) ? List.of() : joins.stream()
+                    .filter(join -> !storage.hasAccount(join.getUuid()) && !restoreArchivedAccount(join.getUuid()))
+                    .toList();
+            if (!newcomers.isEmpty()) {
+                List<UUID> cancelled = Aconomy.callOnTickThread(
+                        () -> newcomers.stream().filter(join -> !allowCreate(join)).map(JoinBatcher.PendingJoin::getUuid).toList(),
+                        CREATE_EVENT_TIMEOUT_MILLIS
+                );
+                if (cancelled == null) {
+                    log.warn("Could not ask the listeners about {} new accounts of joining players, they are created on first use", newcomers.size());
+                    newcomers.forEach(join -> batch.remove(join.getUuid()));
+                } else {
+                    cancelled.forEach(batch::remove);
+                }
+            }
+            if (!batch.isEmpty()) {
+                writeJoinedAccounts(batch);
+            }
+            success = true;
+        } finally {
+            jfrEvent.finish(success);
+        }
+    }
+
+    /**
+     * Write the accounts of a batch of joining players whose creation has been allowed.
+     *
+     * @param batch the name of every joining player
+     */
+    private void writeJoinedAccounts(Map<UUID, String> batch) {
+        try (AccountLocks.Held ignored = accountLocks.lockAll(batch.keySet())) {
+            // Added to the filter first so no account is ever missed
+            AccountFilter filter = accountFilter;
+            if (filter != null) {
+                batch.keySet().forEach(filter::add);
+            }
+            long now = System.currentTimeMillis();
+            EnsureResult result = storage.ensureAccounts(batch, defaultBalance, now);
+            if (result == null) {
+                // Fall back to one account at a time, their creation has already been allowed
+                batch.forEach((uuid, name) -> {
+                    if (!storage.hasAccount(uuid) && !restoreArchivedAccount(uuid)) {
+                        if (!storage.createAccount(uuid, name, defaultBalance)) {
+                            return;
+                        }
+                        statistics.recordCreate(uuid, defaultBalance);
+                    }
+                    accountCache.computeIfAbsent(uuid, key -> new AcoAccount(key, this)).setName(name);
+                    storage.setLastSeen(uuid, now);
+                });
+                return;
+            }
+
+            for (Map.Entry<UUID, String> entry : batch.entrySet()) {
+                UUID uuid = entry.getKey();
+                if (result.archived().contains(uuid)) {
+                    // Players returning after a long time, rare enough to restore one by one
+                    if (restoreArchivedAccount(uuid)) {
+                        accountCache.computeIfAbsent(uuid, key -> new AcoAccount(key, this)).setName(entry.getValue());
+                        storage.setLastSeen(uuid, now);
+                    }
+                    continue;
+                }
+                if (result.created().contains(uuid)) {
+                    statistics.recordCreate(uuid, defaultBalance);
+                    log.info("Created new account for {} with initial balance {}", entry.getValue(), defaultBalance);
+                }
+                accountCache.computeIfAbsent(uuid, key -> new AcoAccount(key, this)).cacheName(entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Ask the listeners of {@link AccountCreateEvent} whether the account of a joining player may be
+     * created, once per join. Must be called on the tick thread.
+     *
+     * @param join the queued join
+     * @return true if the account may be created
+     */
+    private boolean allowCreate(JoinBatcher.PendingJoin join) {
+        Boolean allowed = join.getCreateAllowed();
+        if (allowed == null) {
+            allowed = !eventGate.isListened(AccountCreateEvent.class)
+                    || new AccountCreateEvent(new AcoAccount(join.getUuid(), this)).call(Server.getInstance().getEventBus());
+            join.setCreateAllowed(allowed);
+        }
+        return allowed;
+    }
+
+    /**
+     * Make sure the account of a joining player exists before it is changed. Off the tick thread this
+     * waits for the player's batch. The tick thread creates the account right away instead, as the
+     * batch may itself be waiting for the tick thread to call the listeners of {@link AccountCreateEvent}.
+     *
+     * @param uuid the account id
+     */
+    void ensureJoined(UUID uuid) {
+        JoinBatcher.PendingJoin join = joinBatcher.getPending(uuid);
+        if (join == null) {
+            return;
+        }
+        if (!Aconomy.isTickThread()) {
+            joinBatcher.await(uuid);
+            return;
+        }
+        try (AccountLocks.Held ignored = accountLocks.lock(uuid)) {
+            if (storage.hasAccount(uuid) || restoreArchivedAccount(uuid)) {
+                return;
+            }
+            if (!allowCreate(join)) {
+                return;
+            }
+            AccountFilter filter = accountFilter;
+            if (filter != null) {
+                filter.add(uuid);
+            }
+            if (storage.createAccount(uuid, join.getName(), defaultBalance)) {
+                statistics.recordCreate(uuid, defaultBalance);
+                log.info("Created new account for {} with initial balance {}", join.getName(), defaultBalance);
+            }
+        }
+    }
+
+    /**
+     * Get a page of an account's balance history, newest first.
+     *
+     * @param uuid     the account to get the history of
+     * @param fromTime the start of the time range in epoch milliseconds (inclusive)
+     * @param toTime   the end of the time range in epoch milliseconds (exclusive)
+     * @param page     the zero-based page number
+     * @param pageSize the number of entries per page
+     * @return the entries on the requested page
+     */
+    public List<LedgerEntry> getHistory(UUID uuid, long fromTime, long toTime, int page, int pageSize) {
+        // Make sure changes still waiting in the writer queue show up
+        ledger.flush();
+        return storage.getLedgerEntries(uuid, fromTime, toTime, page * pageSize, pageSize);
+    }
+
+    /**
+     * Register a listener for account changes made by other servers sharing the same database,
+     * so that plugins can invalidate their own caches.
+     *
+     * @param listener the listener, called from the change log poller thread
+     */
+    public void addChangeListener(Consumer<AccountChange> listener) {
+        changeListeners.add(listener);
+    }
+
+    /**
+     * Apply a change read from the storage change log to the local caches.
+     *
+     * @param change the change, possibly made by another server
+     */
+    public void applyChange(AccountChange change) {
+        switch (change.type()) {
+            case CREATE -> {
+                AccountFilter filter = accountFilter;
+                if (filter != null) {
+                    filter.add(change.uuid());
+                }
+            }
+            case DELETE -> accountCache.remove(change.uuid());
+            case NAME -> {
+                AcoAccount account = accountCache.peek(change.uuid());
+                if (account != null) {
+                    account.invalidate();
+                }
+            }
+            default -> {
+                // Balances are read through from storage
+            }
+        }
+        statistics.recordRemote(change);
+        for (Consumer<AccountChange> listener : changeListeners) {
+            listener.accept(change);
+        }
+    }
+
     /**
      * Get the storage instance.
      *
@@ -138,11 +723,126 @@ public class AcoEconomyAPI implements EconomyAPI {
      * @return sorted list of accounts
      */
     public List<Account> getTopAccounts(int limit) {
-        return accountCache.values().stream()
-                .sorted((a, b) -> b.getBalance(defaultCurrency).compareTo(a.getBalance(defaultCurrency)))
-                .limit(limit)
-                .map(a -> (Account) a)
+        AccountOperationEvent jfrEvent = AccountOperationEvent.begin("getTopAccounts", limit);
+        // Ranked by storage since the cache only holds recently used accounts
+        List<Account> top = storage.getTopBalances(limit).keySet().stream()
+                .map(uuid -> (Account) wrapAccount(uuid))
                 .toList();
+        jfrEvent.finish(true);
+        return top;
+    }
+
+    /**
+     * Start a new atomic multi-posting transaction in the given currency.
+     *
+     * @param currency the currency of the transaction, only the default currency is supported,
+     *                 a transaction in an additional currency fails on commit
+     * @return a new, empty transaction
+     */
+    public EconomyTransaction newTransaction(Currency currency) {
+        return new EconomyTransaction(this, currency);
+    }
+
+    /**
+     * Pay several recipients from one account atomically, in the default currency.
+     * <p>
+     * All legs are validated once against the source balance and committed in a single storage
+     * transaction, so either every recipient is paid or none is.
+     *
+     * @param from       the account to pay from
+     * @param recipients the amount to pay each recipient, every amount must be positive
+     * @return true if all payments were applied
+     */
+    public boolean transferMany(Account from, Map<Account, BigDecimal> recipients) {
+        BigDecimal total = recipients.values().stream().reduce(BigDecimal.ZERO, BigDecimal::add);
+        TransferEvent jfrEvent = TransferEvent.begin("transferMany", from.getUniqueId(), null, total, recipients.size() + 1);
+
+        EconomyTransaction transaction = newTransaction(defaultCurrency);
+        recipients.forEach((to, amount) -> transaction.transfer(from, to, amount));
+        boolean success = transaction.commit();
+
+        jfrEvent.finish(success);
+        return success;
+    }
+
+    /**
+     * Apply a balance operation to many accounts at once.
+     * <p>
+     * The update is applied by the storage in a single transaction instead of one
+     * event and one write per account. Instead of a {@link org.allaymc.economyapi.event.BalanceChangeEvent}
+     * per account, a single {@link BulkBalanceChangeEvent} is fired on the tick thread after the update is
+     * committed. Every changed balance gets its own ledger entry. May be called off the tick thread.
+     *
+     * @param operation the operation to apply
+     * @param amount    the operand of the operation, must not be negative
+     * @param target    the accounts to apply the operation to
+     * @param filter    the balance filter accounts must match, or null to match any balance
+     * @return the number of accounts updated
+     */
+    public int bulkUpdate(BulkOperation operation, BigDecimal amount, BulkTarget target, BalanceFilter filter) {
+        if (amount.compareTo(BigDecimal.ZERO) < 0) {
+            return 0;
+        }
+
+        AccountOperationEvent jfrEvent = AccountOperationEvent.begin("bulkUpdate", 0);
+        Set<UUID> uuids = null;
+        if (target == BulkTarget.ONLINE) {
+            uuids = new HashSet<>(Server.getInstance().getPlayerManager().getPlayers().keySet());
+            // Make sure every online player has an account to update
+            uuids.forEach(this::getOrCreateAccount);
+        }
+
+        // Set-based updates read the stored balances, which must include every pending credit
+        hotAccounts.flushAll();
+        List<BalanceUpdate> updates = storage.bulkUpdate(operation, amount, defaultCurrency.getDefaultFractionDigits(), uuids, filter);
+        int updated = updates.size();
+        jfrEvent.finish(true);
+        if (updated > 0) {
+            statistics.invalidate();
+            String cause = "bulk " + operation.name().toLowerCase(Locale.ROOT) + " " + target.name().toLowerCase(Locale.ROOT);
+            for (BalanceUpdate update : updates) {
+                ledger.record(update.uuid(), null, update.newBalance().subtract(update.oldBalance()), update.newBalance(), cause);
+            }
+
+            // One coalesced notification instead of a BalanceChangeEvent per account
+            BulkBalanceChangeEvent event = new BulkBalanceChangeEvent(operation, amount, target, filter, updated);
+            Aconomy.runOnTickThread(() -> Server.getInstance().getEventBus().callEvent(event));
+        }
+
+        log.info("Applied bulk {} of {} to {} accounts", operation, amount, updated);
+        return updated;
+    }
+
+    /**
+     * Apply a proportional change, such as interest or a wealth tax, to every balance above a threshold.
+     * <p>
+     * Applied by the storage in a single transaction, with one ledger entry and one
+     * {@link RateAdjustmentEvent} for the whole cycle.
+     *
+     * @param name       the name of the adjustment, recorded as the ledger cause
+     * @param adjustment the change to apply
+     * @return the number of accounts changed and the total amount, or null if the change failed and nothing was applied
+     */
+    public AdjustmentResult applyAdjustment(String name, RateAdjustment adjustment) {
+        AccountOperationEvent jfrEvent = AccountOperationEvent.begin("applyAdjustment", 0);
+        hotAccounts.flushAll();
+        AdjustmentResult result = storage.applyAdjustment(adjustment);
+        jfrEvent.finish(result != null);
+        if (result == null) {
+            log.error("Failed to apply {}, it is retried with the next check", name);
+            return null;
+        }
+        if (result.accounts() > 0) {
+            statistics.invalidate();
+        }
+        ledger.record(LedgerEntry.SYSTEM_ACCOUNT, null, result.total(), BigDecimal.ZERO, name + " x" + result.accounts());
+
+        if (result.accounts() > 0) {
+            Server.getInstance().getEventBus().callEvent(new RateAdjustmentEvent(name, adjustment, result.accounts(), result.total()));
+        }
+
+        log.info("Applied {} to {} accounts, total {}", name, result.accounts(), result.total().toPlainString());
+        return result;
     }
 
     /**
@@ -166,7 +866,7 @@ public class AcoEconomyAPI implements EconomyAPI {
      * @param name the player's name
      */
     public void updateAccountName(UUID uuid, String name) {
-        AcoAccount account = accountCache.get(uuid);
+        AcoAccount account = getAccount(uuid);
         if (account != null) {
             account.setName(name);
         }
@@ -179,11 +879,32 @@ public class AcoEconomyAPI implements EconomyAPI {
      * @return the account, or null if not found
      */
     public Account getAccountByName(String name) {
-        for (AcoAccount account : accountCache.values()) {
-            if (account.getName().equalsIgnoreCase(name)) {
-                return account;
+        UUID uuid = storage.findAccountByName(name);
+        return uuid != null ? getAccount(uuid) : null;
+    }
+
+    /**
+     * The creation of an account shared by the callers of {@link #getOrCreateAccount(UUID)} racing to create it.
+     */
+    private static final class CreateClaim {
+
+        private final AcoAccount account;
+        private Boolean allowed;
+
+        private CreateClaim(AcoAccount account) {
+            this.account = account;
+        }
+
+        /**
+         * Ask the listeners of {@link AccountCreateEvent} whether the account may be created, only the first time.
+         *
+         * @return true if the account may be created
+         */
+        synchronized boolean isAllowed() {
+            if (allowed == null) {
+                allowed = new AccountCreateEvent(account).call(Server.getInstance().getEventBus());
             }
+            return allowed;
         }
-        return null;
     }
 }
@@ -0,0 +1,130 @@
+package me.daoge.aconomy.api;
+
+import lombok.extern.slf4j.Slf4j;
+import me.daoge.aconomy.storage.RateAdjustment;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically applies interest and tax adjustments on a background thread.
+ * <p>
+ * The time of the last cycle of each adjustment is persisted, so the schedule survives restarts:
+ * a cycle that became due while the server was stopped runs shortly after startup, once. A cycle
+ * that fails is only recorded once it has been applied, so it is retried with the next check.
+ *
+ * @author daoge_cmd
+ */
+@Slf4j
+public class AdjustmentScheduler {
+
+    private static final long CHECK_INTERVAL_SECONDS = 60;
+    private static final long INITIAL_DELAY_SECONDS = 10;
+
+    private final AcoEconomyAPI api;
+    private final Path stateFile;
+    private final Properties lastRuns = new Properties();
+    private final List<Schedule> schedules = new ArrayList<>();
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Aconomy-Adjustments");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param api       the economy API to apply adjustments through
+     * @param stateFile the file the time of the last cycle of each adjustment is kept in
+     */
+    public AdjustmentScheduler(AcoEconomyAPI api, Path stateFile) {
+        this.api = api;
+        this.stateFile = stateFile;
+    }
+
+    /**
+     * Add an adjustment to apply periodically. Must be called before {@link #start()}.
+     *
+     * @param name           the name of the adjustment, used as the ledger cause and to persist its schedule
+     * @param adjustment     the change to apply each cycle
+     * @param intervalMillis the time between cycles in milliseconds
+     */
+    public void schedule(String name, RateAdjustment adjustment, long intervalMillis) {
+        schedules.add(new Schedule(name, adjustment, intervalMillis));
+    }
+
+    /**
+     * Start checking for due adjustments. Does nothing if no adjustment was scheduled.
+     */
+    public void start() {
+        if (schedules.isEmpty()) {
+            return;
+        }
+        if (Files.exists(stateFile)) {
+            try (Reader reader = Files.newBufferedReader(stateFile)) {
+                lastRuns.load(reader);
+            } catch (IOException e) {
+                log.error("Failed to load adjustment schedule", e);
+            }
+        }
+        executor.scheduleWithFixedDelay(this::runDue, INITIAL_DELAY_SECONDS, CHECK_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private void runDue() {
+        boolean changed = false;
+        for (Schedule schedule : schedules) {
+            long now = System.currentTimeMillis();
+            String lastRun = lastRuns.getProperty(schedule.name());
+            if (lastRun == null) {
+                // Start the clock when an adjustment is first enabled instead of applying it right away
+                lastRuns.setProperty(schedule.name(), Long.toString(now));
+                changed = true;
+                continue;
+            }
+            if (now - Long.parseLong(lastRun) < schedule.intervalMillis()) {
+                continue;
+            }
+            try {
+                if (api.applyAdjustment(schedule.name(), schedule.adjustment()) == null) {
+                    continue;
+                }
+            } catch (Exception e) {
+                log.error("Failed to apply {}", schedule.name(), e);
+                continue;
+            }
+            lastRuns.setProperty(schedule.name(), Long.toString(now));
+            changed = true;
+        }
+        if (changed) {
+            try (Writer writer = Files.newBufferedWriter(stateFile)) {
+                lastRuns.store(writer, "Time of the last cycle of each adjustment, in epoch milliseconds");
+            } catch (IOException e) {
+                log.error("Failed to save adjustment schedule", e);
+            }
+        }
+    }
+
+    /**
+     * Stop applying adjustments, waiting for a running cycle to finish.
+     */
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                log.warn("Timed out waiting for the running adjustment to finish");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private record Schedule(String name, RateAdjustment adjustment, long intervalMillis) {
+    }
+}
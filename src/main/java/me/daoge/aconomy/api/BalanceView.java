@@ -0,0 +1,82 @@
+package me.daoge.aconomy.api;
+
+import me.daoge.aconomy.storage.CurrencyBalances;
+import org.allaymc.economyapi.Currency;
+
+import java.math.BigDecimal;
+import java.util.*;
+
+/**
+ * An unmodifiable map of every balance of an account, backed by a single {@link CurrencyBalances} read.
+ * <p>
+ * Amounts of the additional currencies are converted from their smallest unit when they are looked up.
+ *
+ * @author daoge_cmd
+ */
+final class BalanceView extends AbstractMap<Currency, BigDecimal> {
+
+    private final List<AcoCurrency> currencies;
+    private final BigDecimal balance;
+    private final long[] extra;
+
+    /**
+     * @param currencies every currency indexed by ordinal
+     * @param balance    the balance of the default currency
+     * @param extra      the balances of the additional currencies in smallest units
+     */
+    BalanceView(List<AcoCurrency> currencies, BigDecimal balance, long[] extra) {
+        this.currencies = currencies;
+        this.balance = balance;
+        this.extra = extra;
+    }
+
+    private BigDecimal balanceOf(AcoCurrency currency) {
+        if (currency.isDefault()) {
+            return balance;
+        }
+        int index = currency.getOrdinal() - 1;
+        return currency.fromUnits(index < extra.length ? extra[index] : 0);
+    }
+
+    @Override
+    public int size() {
+        return currencies.size();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key instanceof AcoCurrency currency && currencies.contains(currency);
+    }
+
+    @Override
+    public BigDecimal get(Object key) {
+        return containsKey(key) ? balanceOf((AcoCurrency) key) : null;
+    }
+
+    @Override
+    public Set<Entry<Currency, BigDecimal>> entrySet() {
+        return new AbstractSet<>() {
+            @Override
+            public int size() {
+                return currencies.size();
+            }
+
+            @Override
+            public Iterator<Entry<Currency, BigDecimal>> iterator() {
+                Iterator<AcoCurrency> iterator = currencies.iterator();
+                return new Iterator<>() {
+                    @Override
+                    public boolean hasNext() {
+                        return iterator.hasNext();
+                    }
+
+                    @Override
+                    public Entry<Currency, BigDecimal> next() {
+                        AcoCurrency currency = iterator.next();
+                        return new SimpleImmutableEntry<>(currency, balanceOf(currency));
+                    }
+                };
+            }
+        };
+    }
+}
@@ -0,0 +1,18 @@
+package me.daoge.aconomy.api;
+
+/**
+ * The set of accounts a bulk operation applies to.
+ *
+ * @author daoge_cmd
+ */
+public enum BulkTarget {
+
+    /**
+     * Accounts of all players currently online.
+     */
+    ONLINE,
+    /**
+     * Every account in storage.
+     */
+    ALL
+}
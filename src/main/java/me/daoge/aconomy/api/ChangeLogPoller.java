@@ -0,0 +1,121 @@
+package me.daoge.aconomy.api;
+
+import lombok.extern.slf4j.Slf4j;
+import me.daoge.aconomy.storage.AccountChange;
+import me.daoge.aconomy.storage.EconomyStorage;
+
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Incrementally polls the storage change log and applies changes made by other servers to the
+ * local caches of {@link AcoEconomyAPI}.
+ * <p>
+ * Each poll only reads changes past the last seen sequence number, so an idle economy costs a
+ * single indexed query per interval.
+ * <p>
+ * Sequence numbers are assigned when a change is written, not when it is committed, so a change can
+ * become visible after a change with a higher number. Skipped numbers are remembered as gaps and
+ * read again on every poll until their change shows up or they time out, which covers
+ * transactions that were rolled back and never fill their gap.
+ *
+ * @author daoge_cmd
+ */
+@Slf4j
+public class ChangeLogPoller {
+
+    private static final int BATCH_SIZE = 1000;
+    private static final long GAP_TIMEOUT_MILLIS = 60000;
+    private static final int MAX_GAPS = 10000;
+
+    private final AcoEconomyAPI api;
+    private final EconomyStorage storage;
+    private final long retentionMillis;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Aconomy-ChangeLogPoller");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private long lastSequence;
+    private long lastPrune;
+    /**
+     * Sequence numbers below {@link #lastSequence} whose change hasn't been seen yet, with the time they were noticed.
+     */
+    private final NavigableMap<Long, Long> gaps = new TreeMap<>();
+
+    /**
+     * @param api             the economy API whose caches are kept up to date
+     * @param retentionMillis how long change-log entries are kept before being pruned
+     */
+    public ChangeLogPoller(AcoEconomyAPI api, long retentionMillis) {
+        this.api = api;
+        this.storage = api.getStorage();
+        this.retentionMillis = retentionMillis;
+    }
+
+    /**
+     * Start polling at the given interval. Changes made before this call are skipped,
+     * since the caches were loaded after them.
+     *
+     * @param intervalMillis the poll interval in milliseconds
+     */
+    public void start(long intervalMillis) {
+        lastSequence = storage.getLatestChangeSequence();
+        executor.scheduleWithFixedDelay(this::poll, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        log.info("Polling the change log every {} ms starting after sequence {}", intervalMillis, lastSequence);
+    }
+
+    /**
+     * Stop polling.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void poll() {
+        try {
+            long now = System.currentTimeMillis();
+            gaps.values().removeIf(noticed -> now - noticed >= GAP_TIMEOUT_MILLIS);
+            long after = gaps.isEmpty() ? lastSequence : gaps.firstKey() - 1;
+            List<AccountChange> changes;
+            do {
+                changes = storage.getChangesSince(after, BATCH_SIZE);
+                for (AccountChange change : changes) {
+                    after = change.sequence();
+                    accept(change, now);
+                }
+            } while (changes.size() == BATCH_SIZE);
+
+            if (now - lastPrune >= retentionMillis) {
+                storage.pruneChanges(now - retentionMillis);
+                lastPrune = now;
+            }
+        } catch (Exception e) {
+            log.error("Failed to poll the change log", e);
+        }
+    }
+
+    private void accept(AccountChange change, long now) {
+        long sequence = change.sequence();
+        if (sequence <= lastSequence) {
+            // Read again because of an older gap, only a change filling a gap is new
+            if (gaps.remove(sequence) != null) {
+                api.applyChange(change);
+            }
+            return;
+        }
+        if (sequence - lastSequence - 1 > MAX_GAPS - gaps.size()) {
+            log.warn("Not tracking {} skipped change log entries before sequence {}", sequence - lastSequence - 1, sequence);
+        } else {
+            for (long missing = lastSequence + 1; missing < sequence; missing++) {
+                gaps.put(missing, now);
+            }
+        }
+        api.applyChange(change);
+        lastSequence = sequence;
+    }
+}
@@ -0,0 +1,101 @@
+package me.daoge.aconomy.api;
+
+import lombok.Getter;
+import me.daoge.aconomy.storage.AccountRecord;
+
+import java.math.BigDecimal;
+import java.util.*;
+
+/**
+ * An immutable view of all accounts as of a single point in time.
+ * <p>
+ * Taking a snapshot copies the balances once, reading from it never touches the storage or holds
+ * any lock, so long reports and audits stay consistent while players keep trading.
+ *
+ * @author daoge_cmd
+ */
+public final class EconomySnapshot {
+
+    /**
+     * When the snapshot was taken, in epoch milliseconds.
+     */
+    @Getter
+    private final long time;
+    private final Map<UUID, AccountRecord> accounts;
+    private volatile BigDecimal totalSupply;
+
+    EconomySnapshot(long time, List<AccountRecord> records) {
+        this.time = time;
+        Map<UUID, AccountRecord> accounts = new HashMap<>(records.size() * 4 / 3 + 1);
+        for (AccountRecord record : records) {
+            accounts.put(record.uuid(), record);
+        }
+        this.accounts = Collections.unmodifiableMap(accounts);
+    }
+
+    /**
+     * Get the number of accounts in the snapshot.
+     *
+     * @return the number of accounts
+     */
+    public int size() {
+        return accounts.size();
+    }
+
+    /**
+     * Get an account as of the snapshot.
+     *
+     * @param uuid the account id
+     * @return the account, or null if it didn't exist when the snapshot was taken
+     */
+    public AccountRecord getAccount(UUID uuid) {
+        return accounts.get(uuid);
+    }
+
+    /**
+     * Get the balance of an account as of the snapshot.
+     *
+     * @param uuid the account id
+     * @return the balance, or null if the account didn't exist when the snapshot was taken
+     */
+    public BigDecimal getBalance(UUID uuid) {
+        AccountRecord record = accounts.get(uuid);
+        return record != null ? record.balance() : null;
+    }
+
+    /**
+     * Get all accounts of the snapshot.
+     *
+     * @return an unmodifiable collection of the accounts, in no particular order
+     */
+    public Collection<AccountRecord> getAccounts() {
+        return accounts.values();
+    }
+
+    /**
+     * Get the sum of all balances of the snapshot.
+     *
+     * @return the total money supply
+     */
+    public BigDecimal getTotalSupply() {
+        BigDecimal supply = totalSupply;
+        if (supply == null) {
+            supply = accounts.values().stream().map(AccountRecord::balance).reduce(BigDecimal.ZERO, BigDecimal::add);
+            totalSupply = supply;
+        }
+        return supply;
+    }
+
+    /**
+     * Get the accounts with the highest balances of the snapshot.
+     *
+     * @param limit the maximum number of accounts to return
+     * @return the accounts, ordered by balance descending
+     */
+    public List<AccountRecord> getTopAccounts(int limit) {
+        return accounts.values().stream()
+                .sorted(Comparator.comparing(AccountRecord::balance).reversed())
+                .limit(limit)
+                .toList();
+    }
+}
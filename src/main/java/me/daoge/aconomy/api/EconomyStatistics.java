@@ -0,0 +1,353 @@
+package me.daoge.aconomy.api;
+
+import lombok.extern.slf4j.Slf4j;
+import me.daoge.aconomy.storage.AccountChange;
+import me.daoge.aconomy.storage.AccountRecord;
+import me.daoge.aconomy.storage.EconomyStorage;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.DoubleAdder;
+
+/**
+ * Running aggregates of all balances, updated on every balance change so that reading them is free.
+ * <p>
+ * Balances are counted in a logarithmic histogram with four buckets per power of ten, from which
+ * the median and Gini coefficient are estimated. Changes made by other servers are applied from the
+ * balances in the change log. Changes whose per-account effect is unknown, such as bulk updates,
+ * trigger an exact recomputation from storage.
+ *
+ * @author daoge_cmd
+ */
+@Slf4j
+public class EconomyStatistics {
+
+    private static final int BUCKETS_PER_DECADE = 4;
+    /**
+     * Bucket 0 holds empty balances, bucket 1 balances below 1 and the last bucket everything from 10^16 up.
+     */
+    private static final int BUCKET_COUNT = 2 + 16 * BUCKETS_PER_DECADE;
+    private static final long RECOMPUTE_DELAY_SECONDS = 5;
+
+    private final EconomyStorage storage;
+    private final ScheduledExecutorService executor;
+    private final AtomicBoolean recomputeScheduled = new AtomicBoolean();
+    /**
+     * Guards recording changes against replacing the state, so that no change is lost in between.
+     */
+    private final Object recordLock = new Object();
+    private volatile State state = new State();
+    /**
+     * The latest balance of every account changed while a recomputation reads its snapshot, empty
+     * for deleted accounts. Null while not recomputing.
+     */
+    private Map<UUID, Optional<BigDecimal>> journal;
+    private volatile EconomySummary lastExact;
+
+    /**
+     * @param storage  the storage to recompute the aggregates from
+     * @param executor the executor recomputations run on
+     */
+    public EconomyStatistics(EconomyStorage storage, ScheduledExecutorService executor) {
+        this.storage = storage;
+        this.executor = executor;
+    }
+
+    /**
+     * Get the lower bound of a histogram bucket.
+     *
+     * @param bucket the bucket index
+     * @return the smallest balance counted in the bucket
+     */
+    public static double bucketLowerBound(int bucket) {
+        return bucket < 2 ? 0 : Math.pow(10, (double) (bucket - 2) / BUCKETS_PER_DECADE);
+    }
+
+    private static int bucketOf(BigDecimal balance) {
+        if (balance.signum() <= 0) {
+            return 0;
+        }
+        double value = balance.doubleValue();
+        if (value < 1) {
+            return 1;
+        }
+        return Math.min(2 + (int) Math.floor(Math.log10(value) * BUCKETS_PER_DECADE), BUCKET_COUNT - 1);
+    }
+
+    public void recordCreate(UUID uuid, BigDecimal balance) {
+        synchronized (recordLock) {
+            state.add(balance, 1);
+            state.move(balance, 1);
+            journal(uuid, balance);
+        }
+    }
+
+    public void recordDelete(UUID uuid, BigDecimal balance) {
+        synchronized (recordLock) {
+            state.add(balance.negate(), -1);
+            state.move(balance, -1);
+            journal(uuid, null);
+        }
+    }
+
+    public void recordChange(UUID uuid, BigDecimal oldBalance, BigDecimal newBalance) {
+        synchronized (recordLock) {
+            state.add(newBalance.subtract(oldBalance), 0);
+            state.move(oldBalance, -1);
+            state.move(newBalance, 1);
+            journal(uuid, newBalance);
+        }
+    }
+
+    private void journal(UUID uuid, BigDecimal balance) {
+        if (journal != null) {
+            journal.put(uuid, Optional.ofNullable(balance));
+        }
+    }
+
+    /**
+     * Apply a change read from the change log. Changes made by this server were already recorded
+     * when they were made, changes without balances in the log trigger a recomputation.
+     *
+     * @param change the change
+     */
+    public void recordRemote(AccountChange change) {
+        // The aggregates only cover the default currency
+        if (change.local() || change.type() == AccountChange.Type.NAME || change.type() == AccountChange.Type.EXTRA_BALANCE) {
+            return;
+        }
+        BigDecimal oldBalance = change.oldBalance();
+        BigDecimal newBalance = change.newBalance();
+        switch (change.type()) {
+            case CREATE -> {
+                if (newBalance != null) {
+                    recordCreate(change.uuid(), newBalance);
+                    return;
+                }
+            }
+            case DELETE -> {
+                if (oldBalance != null) {
+                    recordDelete(change.uuid(), oldBalance);
+                    return;
+                }
+            }
+            case BALANCE -> {
+                if (oldBalance != null && newBalance != null) {
+                    recordChange(change.uuid(), oldBalance, newBalance);
+                }
+                return;
+            }
+            default -> {
+                // A bulk change may have touched any account
+            }
+        }
+        invalidate();
+    }
+
+    /**
+     * Mark the aggregates as out of date after changes whose effect on single accounts is unknown.
+     * Several invalidations in quick succession cause a single recomputation.
+     */
+    public void invalidate() {
+        if (recomputeScheduled.compareAndSet(false, true)) {
+            executor.schedule(() -> {
+                recomputeScheduled.set(false);
+                recompute();
+            }, RECOMPUTE_DELAY_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Get the current aggregates without touching the storage.
+     *
+     * @return the aggregates, with the median and Gini coefficient estimated from the histogram
+     */
+    public EconomySummary getSummary() {
+        State current = state;
+        long accounts = current.count.get();
+        BigDecimal supply = current.supply();
+        long[] histogram = new long[BUCKET_COUNT];
+        double[] sums = new double[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            histogram[i] = Math.max(current.buckets.get(i), 0);
+            sums[i] = Math.max(current.bucketSums[i].sum(), 0);
+        }
+        return new EconomySummary(accounts, supply, mean(supply, accounts),
+                estimateMedian(histogram, accounts), estimateGini(histogram, sums, accounts),
+                histogram, false, System.currentTimeMillis());
+    }
+
+    /**
+     * Get the result of the last exact recomputation.
+     *
+     * @return the exact aggregates, or null if none was computed yet
+     */
+    public EconomySummary getLastExactSummary() {
+        return lastExact;
+    }
+
+    /**
+     * Recompute all aggregates exactly from storage, replacing the running aggregates.
+     *
+     * @return the exact aggregates, or null if the accounts could not be read
+     */
+    public synchronized EconomySummary recompute() {
+        long start = System.nanoTime();
+        synchronized (recordLock) {
+            journal = new HashMap<>();
+        }
+        // One consistent point in time, so the figures add up even while balances keep changing
+        List<AccountRecord> snapshot;
+        try {
+            snapshot = storage.snapshot();
+        } catch (RuntimeException e) {
+            synchronized (recordLock) {
+                journal = null;
+            }
+            log.error("Failed to recompute economy statistics", e);
+            return null;
+        }
+        Map<UUID, BigDecimal> latest = new HashMap<>(snapshot.size());
+        State fresh = new State();
+        for (AccountRecord record : snapshot) {
+            latest.put(record.uuid(), record.balance());
+            fresh.add(record.balance(), 1);
+            fresh.move(record.balance(), 1);
+        }
+        synchronized (recordLock) {
+            // Changes recorded meanwhile may or may not be part of the snapshot, either way the
+            // latest balance of each changed account is known
+            journal.forEach((uuid, balance) -> {
+                BigDecimal seen = balance.isPresent() ? latest.put(uuid, balance.get()) : latest.remove(uuid);
+                if (seen != null) {
+                    fresh.add(seen.negate(), -1);
+                    fresh.move(seen, -1);
+                }
+                balance.ifPresent(value -> {
+                    fresh.add(value, 1);
+                    fresh.move(value, 1);
+                });
+            });
+            journal = null;
+            state = fresh;
+        }
+
+        List<BigDecimal> balances = new ArrayList<>(latest.values());
+        balances.sort(null);
+        int n = balances.size();
+        BigDecimal median = BigDecimal.ZERO;
+        if (n > 0) {
+            median = n % 2 == 1
+                    ? balances.get(n / 2)
+                    : balances.get(n / 2 - 1).add(balances.get(n / 2)).divide(BigDecimal.TWO, MathContext.DECIMAL64);
+        }
+        // G = 2 * sum(i * x_i) / (n * sum(x)) - (n + 1) / n over balances sorted ascending, i starting at 1
+        double weighted = 0;
+        double total = 0;
+        for (int i = 0; i < n; i++) {
+            double value = balances.get(i).doubleValue();
+            weighted += (i + 1) * value;
+            total += value;
+        }
+        double gini = n > 0 && total > 0 ? 2 * weighted / (n * total) - (double) (n + 1) / n : 0;
+
+        EconomySummary approximate = getSummary();
+        EconomySummary exact = new EconomySummary(approximate.accounts(), approximate.supply(), approximate.mean(),
+                median, gini, approximate.histogram(), true, approximate.time());
+        lastExact = exact;
+        log.debug("Recomputed economy statistics over {} accounts in {} ms", n, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return exact;
+    }
+
+    private static BigDecimal mean(BigDecimal supply, long accounts) {
+        return accounts > 0 ? supply.divide(BigDecimal.valueOf(accounts), 8, RoundingMode.HALF_UP).stripTrailingZeros() : BigDecimal.ZERO;
+    }
+
+    private static BigDecimal estimateMedian(long[] histogram, long accounts) {
+        if (accounts <= 0) {
+            return BigDecimal.ZERO;
+        }
+        double rank = (accounts - 1) / 2.0;
+        long seen = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            if (histogram[i] == 0 || seen + histogram[i] <= rank) {
+                seen += histogram[i];
+                continue;
+            }
+            // Interpolate within the bucket, geometrically since the bucket bounds are
+            double fraction = (rank - seen + 0.5) / histogram[i];
+            double low = bucketLowerBound(i);
+            double high = bucketLowerBound(i + 1);
+            double value = switch (i) {
+                case 0 -> 0;
+                case 1 -> high * fraction;
+                default -> low * Math.pow(high / low, fraction);
+            };
+            return BigDecimal.valueOf(value).setScale(2, RoundingMode.HALF_UP);
+        }
+        return BigDecimal.ZERO;
+    }
+
+    private static double estimateGini(long[] histogram, double[] sums, long accounts) {
+        double total = 0;
+        for (double sum : sums) {
+            total += sum;
+        }
+        if (accounts <= 0 || total <= 0) {
+            return 0;
+        }
+        // One minus twice the area under the Lorenz curve, with the curve linear within each bucket
+        double area = 0;
+        double cumulativeWealth = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            double population = (double) histogram[i] / accounts;
+            double previous = cumulativeWealth;
+            cumulativeWealth += sums[i] / total;
+            area += population * (previous + cumulativeWealth);
+        }
+        return Math.min(Math.max(1 - area, 0), 1);
+    }
+
+    /**
+     * The running aggregates, replaced as a whole by a recomputation.
+     */
+    private static class State {
+        final AtomicLong count = new AtomicLong();
+        final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+        final DoubleAdder[] bucketSums = new DoubleAdder[BUCKET_COUNT];
+        private BigDecimal supply = BigDecimal.ZERO;
+
+        State() {
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                bucketSums[i] = new DoubleAdder();
+            }
+        }
+
+        synchronized void add(BigDecimal amount, int accounts) {
+            supply = supply.add(amount);
+            count.addAndGet(accounts);
+        }
+
+        synchronized BigDecimal supply() {
+            return supply;
+        }
+
+        void move(BigDecimal balance, int accounts) {
+            int bucket = bucketOf(balance);
+            buckets.addAndGet(bucket, accounts);
+            bucketSums[bucket].add(accounts * balance.doubleValue());
+        }
+    }
+}
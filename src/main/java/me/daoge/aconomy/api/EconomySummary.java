@@ -0,0 +1,21 @@
+package me.daoge.aconomy.api;
+
+import java.math.BigDecimal;
+
+/**
+ * Aggregate figures of the whole economy.
+ *
+ * @param accounts  the number of accounts
+ * @param supply    the total money supply, the sum of all balances
+ * @param mean      the mean balance
+ * @param median    the median balance, estimated from the histogram unless exact
+ * @param gini      the Gini coefficient of the balances between 0 (equal) and 1 (one account owns everything),
+ *                  estimated from the histogram unless exact
+ * @param histogram the number of accounts per balance bucket, see {@link EconomyStatistics#bucketLowerBound(int)}
+ * @param exact     whether the median and Gini coefficient were computed from every balance
+ * @param time      when the figures were taken, in epoch milliseconds
+ * @author daoge_cmd
+ */
+public record EconomySummary(long accounts, BigDecimal supply, BigDecimal mean, BigDecimal median, double gini,
+                             long[] histogram, boolean exact, long time) {
+}
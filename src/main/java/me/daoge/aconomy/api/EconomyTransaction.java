@@ -0,0 +1,270 @@
+package me.daoge.aconomy.api;
+
+import lombok.extern.slf4j.Slf4j;
+import me.daoge.aconomy.jfr.AccountOperationEvent;
+import me.daoge.aconomy.ledger.LedgerWriter;
+import me.daoge.aconomy.storage.ChangeResult;
+import org.allaymc.api.server.Server;
+import org.allaymc.economyapi.Account;
+import org.allaymc.economyapi.Currency;
+import org.allaymc.economyapi.event.BalanceChangeEvent;
+import org.allaymc.economyapi.event.BalanceTransferEvent;
+
+import java.math.BigDecimal;
+import java.util.*;
+
+/**
+ * A set of balance postings that are validated once and committed atomically.
+ * <p>
+ * Create one with {@link AcoEconomyAPI#newTransaction(Currency)}, add legs with
+ * {@link #transfer(Account, Account, BigDecimal)}, {@link #deposit(Account, BigDecimal)} and
+ * {@link #withdraw(Account, BigDecimal)}, then call {@link #commit()}. Either every leg is applied
+ * in a single storage transaction or none is. A leg with an account of another economy or an amount
+ * that isn't positive makes the whole transaction fail on commit.
+ *
+ * @author daoge_cmd
+ */
+@Slf4j
+public class EconomyTransaction {
+
+    private final AcoEconomyAPI api;
+    private final Currency currency;
+    private final List<Leg> legs = new ArrayList<>();
+    /**
+     * Set when a leg is invalid, the transaction is then rejected on commit.
+     */
+    private boolean invalid;
+    private boolean committed;
+
+    EconomyTransaction(AcoEconomyAPI api, Currency currency) {
+        this.api = api;
+        this.currency = currency;
+        if (api.getAdditionalCurrency(currency) != null) {
+            log.warn("Rejecting transaction in {}, transactions only support the default currency", currency.getName());
+            invalid = true;
+        }
+    }
+
+    /**
+     * Add a transfer leg from one account to another.
+     *
+     * @param from   the account to take the amount from
+     * @param to     the account to give the amount to
+     * @param amount the amount to transfer, must be positive
+     * @return this transaction
+     */
+    public EconomyTransaction transfer(Account from, Account to, BigDecimal amount) {
+        if (isValid(from) && isValid(to) && isValid(amount)) {
+            legs.add(new Leg((AcoAccount) from, (AcoAccount) to, amount));
+        }
+        return this;
+    }
+
+    /**
+     * Add a deposit leg.
+     *
+     * @param account the account to give the amount to
+     * @param amount  the amount to deposit, must be positive
+     * @return this transaction
+     */
+    public EconomyTransaction deposit(Account account, BigDecimal amount) {
+        if (isValid(account) && isValid(amount)) {
+            legs.add(new Leg(null, (AcoAccount) account, amount));
+        }
+        return this;
+    }
+
+    /**
+     * Add a withdrawal leg.
+     *
+     * @param account the account to take the amount from
+     * @param amount  the amount to withdraw, must be positive
+     * @return this transaction
+     */
+    public EconomyTransaction withdraw(Account account, BigDecimal amount) {
+        if (isValid(account) && isValid(amount)) {
+            legs.add(new Leg((AcoAccount) account, null, amount));
+        }
+        return this;
+    }
+
+    /**
+     * Validate and apply every leg of this transaction atomically.
+     * <p>
+     * The involved accounts are locked in a consistent order, balances are checked once against
+     * the net change of every account, and a {@link BalanceTransferEvent} or {@link BalanceChangeEvent}
+     * is fired for each leg. If any leg is invalid, any account would end up negative or any event
+     * is cancelled, nothing is applied.
+     *
+     * @return true if the transaction was applied
+     */
+    public boolean commit() {
+        if (committed) {
+            throw new IllegalStateException("Transaction has already been committed");
+        }
+        committed = true;
+        if (invalid) {
+            return false;
+        }
+        if (legs.isEmpty()) {
+            return true;
+        }
+
+        Map<UUID, BigDecimal> deltas = new HashMap<>();
+        for (Leg leg : legs) {
+            if (leg.from != null) {
+                deltas.merge(leg.from.getUniqueId(), leg.amount.negate(), BigDecimal::add);
+            }
+            if (leg.to != null) {
+                deltas.merge(leg.to.getUniqueId(), leg.amount, BigDecimal::add);
+            }
+        }
+
+        // Accounts of joining players still queued have to be written first
+        deltas.keySet().forEach(api::ensureJoined);
+
+        // Net credits into hot accounts bypass their lock and row, they are added to the pending credits after the commit
+        HotAccounts hotAccounts = api.getHotAccounts();
+        Map<UUID, BigDecimal> hotCredits = new HashMap<>();
+        deltas.entrySet().removeIf(entry -> {
+            if (entry.getValue().signum() > 0 && hotAccounts.isHot(entry.getKey())) {
+                hotCredits.put(entry.getKey(), entry.getValue());
+                return true;
+            }
+            return false;
+        });
+
+        AccountOperationEvent jfrEvent = AccountOperationEvent.begin("commitTransaction", deltas.size() + hotCredits.size());
+        boolean success = false;
+        try {
+            for (UUID uuid : hotCredits.keySet()) {
+                if (!hotAccounts.exists(uuid)) {
+                    return false;
+                }
+            }
+
+            // Listeners are called without the account locks, which the tick thread may be waiting for.
+            // They see balances read before the locks are taken, the changes are validated again by the storage
+            EventGate eventGate = api.getEventGate();
+            boolean changeListened = eventGate.isListened(BalanceChangeEvent.class);
+            boolean transferListened = eventGate.isListened(BalanceTransferEvent.class);
+            if (changeListened || transferListened) {
+                Map<UUID, BigDecimal> balances = new HashMap<>();
+                if (changeListened) {
+                    for (Map.Entry<UUID, BigDecimal> entry : deltas.entrySet()) {
+                        BigDecimal balance = api.getStorage().getBalance(entry.getKey()).add(hotAccounts.getPending(entry.getKey()));
+                        if (balance.add(entry.getValue()).compareTo(BigDecimal.ZERO) < 0) {
+                            return false;
+                        }
+                        balances.put(entry.getKey(), balance);
+                    }
+                    for (UUID uuid : hotCredits.keySet()) {
+                        balances.put(uuid, api.getStorage().getBalance(uuid).add(hotAccounts.getPending(uuid)));
+                    }
+                }
+                for (Leg leg : legs) {
+                    boolean transfer = leg.from != null && leg.to != null;
+                    if ((transfer ? transferListened : changeListened) && !fireEvent(leg, balances)) {
+                        return false;
+                    }
+                }
+            }
+
+            ChangeResult result;
+            try (AccountLocks.Held ignored = api.getAccountLocks().lockAll(deltas.keySet())) {
+                if (deltas.isEmpty()) {
+                    hotCredits.forEach(hotAccounts::credit);
+                    success = true;
+                    return true;
+                }
+
+                // Debits from a hot account are checked against its merged balance, the storage rejects any that no longer fit
+                deltas.keySet().forEach(hotAccounts::flush);
+                // Events are fired once, only the storage write is retried when another node wins a race
+                result = api.getStorage().applyChanges(deltas);
+                recordStatistics(deltas, result);
+            }
+            // Backing off without the account locks, the balances are checked again by the storage on every attempt
+            for (int attempt = 1; result.status() == ChangeResult.Status.CONFLICT && attempt < AcoAccount.MAX_UPDATE_ATTEMPTS; attempt++) {
+                AcoAccount.onConflict(attempt - 1);
+                try (AccountLocks.Held ignored = api.getAccountLocks().lockAll(deltas.keySet())) {
+                    deltas.keySet().forEach(hotAccounts::flush);
+                    result = api.getStorage().applyChanges(deltas);
+                    recordStatistics(deltas, result);
+                }
+            }
+            success = result.isApplied();
+            if (success) {
+                hotCredits.forEach(hotAccounts::credit);
+                recordLedger(deltas, result.balances());
+            }
+            return success;
+        } finally {
+            jfrEvent.finish(success);
+        }
+    }
+
+    /**
+     * Count applied changes in the statistics, while the account locks still order them.
+     */
+    private void recordStatistics(Map<UUID, BigDecimal> deltas, ChangeResult result) {
+        if (result.isApplied()) {
+            result.balances().forEach((uuid, balance) -> api.getStatistics().recordChange(uuid, balance.subtract(deltas.get(uuid)), balance));
+        }
+    }
+
+    private boolean fireEvent(Leg leg, Map<UUID, BigDecimal> balances) {
+        var eventBus = Server.getInstance().getEventBus();
+        if (leg.from != null && leg.to != null) {
+            return new BalanceTransferEvent(leg.from, leg.to, currency, leg.amount).call(eventBus);
+        }
+
+        AcoAccount account = leg.from != null ? leg.from : leg.to;
+        BigDecimal oldBalance = balances.get(account.getUniqueId());
+        BigDecimal newBalance = leg.from != null ? oldBalance.subtract(leg.amount) : oldBalance.add(leg.amount);
+        return new BalanceChangeEvent(account, currency, oldBalance, newBalance).call(eventBus);
+    }
+
+    private void recordLedger(Map<UUID, BigDecimal> deltas, Map<UUID, BigDecimal> finalBalances) {
+        // Replay the legs from the balances before the transaction to get each leg's resulting balance
+        Map<UUID, BigDecimal> balances = new HashMap<>();
+        finalBalances.forEach((uuid, balance) -> balances.put(uuid, balance.subtract(deltas.get(uuid))));
+
+        LedgerWriter ledger = api.getLedger();
+        for (Leg leg : legs) {
+            UUID from = leg.from != null ? leg.from.getUniqueId() : null;
+            UUID to = leg.to != null ? leg.to.getUniqueId() : null;
+            String cause = from != null && to != null ? "transfer" : (from != null ? "withdraw" : "deposit");
+            if (from != null && deltas.containsKey(from)) {
+                BigDecimal balance = balances.merge(from, leg.amount.negate(), BigDecimal::add);
+                ledger.record(from, to, leg.amount.negate(), balance, cause);
+            }
+            // Hot accounts credited by the transaction record their credits when they are merged
+            if (to != null && deltas.containsKey(to)) {
+                BigDecimal balance = balances.merge(to, leg.amount, BigDecimal::add);
+                ledger.record(to, from, leg.amount, balance, cause);
+            }
+        }
+    }
+
+    private boolean isValid(Account account) {
+        if (!(account instanceof AcoAccount)) {
+            log.warn("Rejecting transaction leg with an account of another economy: {}", account);
+            invalid = true;
+            return false;
+        }
+        return true;
+    }
+
+    private boolean isValid(BigDecimal amount) {
+        if (amount == null || amount.compareTo(BigDecimal.ZERO) <= 0) {
+            log.warn("Rejecting transaction leg with an amount that isn't positive: {}", amount);
+            invalid = true;
+            return false;
+        }
+        return true;
+    }
+
+    private record Leg(AcoAccount from, AcoAccount to, BigDecimal amount) {
+    }
+}
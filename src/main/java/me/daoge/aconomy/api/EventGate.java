@@ -0,0 +1,124 @@
+package me.daoge.aconomy.api;
+
+import lombok.extern.slf4j.Slf4j;
+import org.allaymc.api.eventbus.EventBus;
+import org.allaymc.api.eventbus.event.Event;
+import org.allaymc.api.server.Server;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cached check for whether any listener is registered for an event type, so that events nobody
+ * listens to are neither constructed nor dispatched.
+ * <p>
+ * The check reads the handler registration of the server's event bus, through a {@code hasListeners(Class)}
+ * method or the map of handlers by event type the implementation keeps. Handlers registered for a supertype
+ * of the event count as well. The answer is cached per event type until {@link #invalidate()} is called,
+ * which happens whenever plugins may have registered or unregistered listeners: once every plugin has been
+ * enabled, and when this plugin is enabled or disabled. If the registration can't be read, every event is
+ * dispatched as if it had listeners.
+ *
+ * @author daoge_cmd
+ */
+@Slf4j
+public class EventGate {
+
+    private final Map<Class<?>, Boolean> cache = new ConcurrentHashMap<>();
+    private volatile Probe probe;
+
+    /**
+     * Check whether an event of the given type would reach at least one listener.
+     *
+     * @param eventType the event type
+     * @return true if the event should be constructed and dispatched
+     */
+    public boolean isListened(Class<? extends Event> eventType) {
+        Boolean listened = cache.get(eventType);
+        if (listened == null) {
+            listened = probe(eventType);
+            cache.put(eventType, listened);
+        }
+        return listened;
+    }
+
+    /**
+     * Drop every cached answer. Called when plugins are enabled or disabled, and by plugins that
+     * register economy listeners at any other time.
+     */
+    public void invalidate() {
+        cache.clear();
+    }
+
+    private boolean probe(Class<? extends Event> eventType) {
+        Probe current = probe;
+        if (current == null) {
+            current = resolveProbe(Server.getInstance().getEventBus());
+            probe = current;
+        }
+        try {
+            for (Class<?> type = eventType; type != null && Event.class.isAssignableFrom(type); type = type.getSuperclass()) {
+                if (current.hasHandlers(type)) {
+                    return true;
+                }
+            }
+            return false;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.warn("Failed to check listeners for {}, dispatching events unconditionally", eventType.getSimpleName(), e);
+            probe = type -> true;
+            return true;
+        }
+    }
+
+    private static Probe resolveProbe(EventBus eventBus) {
+        try {
+            Method method = eventBus.getClass().getMethod("hasListeners", Class.class);
+            return type -> (boolean) method.invoke(eventBus, type);
+        } catch (NoSuchMethodException ignored) {
+            // Fall back to the handler map
+        }
+        for (Class<?> type = eventBus.getClass(); type != null; type = type.getSuperclass()) {
+            for (Field field : type.getDeclaredFields()) {
+                if (!Map.class.isAssignableFrom(field.getType()) || !isKeyedByClass(field)) {
+                    continue;
+                }
+                try {
+                    field.setAccessible(true);
+                    Map<?, ?> handlers = (Map<?, ?>) field.get(eventBus);
+                    if (handlers != null) {
+                        return eventType -> hasEntries(handlers.get(eventType));
+                    }
+                } catch (ReflectiveOperationException | RuntimeException e) {
+                    log.debug("Cannot read event handler map {}", field.getName(), e);
+                }
+            }
+        }
+        log.info("Event bus cannot report listeners, economy events will always be dispatched");
+        return eventType -> true;
+    }
+
+    private static boolean isKeyedByClass(Field field) {
+        return field.getGenericType() instanceof ParameterizedType type
+                && type.getActualTypeArguments().length == 2
+                && (type.getActualTypeArguments()[0] instanceof ParameterizedType key ? key.getRawType() : type.getActualTypeArguments()[0]) == Class.class;
+    }
+
+    private static boolean hasEntries(Object handlers) {
+        if (handlers instanceof Collection<?> collection) {
+            return !collection.isEmpty();
+        }
+        if (handlers instanceof Map<?, ?> map) {
+            return !map.isEmpty();
+        }
+        return handlers != null;
+    }
+
+    @FunctionalInterface
+    private interface Probe {
+        boolean hasHandlers(Class<?> eventType) throws ReflectiveOperationException;
+    }
+}
@@ -0,0 +1,294 @@
+package me.daoge.aconomy.api;
+
+import lombok.extern.slf4j.Slf4j;
+import me.daoge.aconomy.storage.EconomyStorage;
+import me.daoge.aconomy.storage.VersionedBalance;
+
+import java.math.BigDecimal;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Contention-free deposits into shared accounts that receive many of them, such as a server treasury.
+ * <p>
+ * A deposit into a hot account is added to one of several striped pending amounts instead of
+ * updating the stored balance, so concurrent depositors neither wait for the account lock nor for
+ * the storage, and rarely touch the same stripe. Pending credits are merged into the stored balance
+ * at a fixed interval and before anything takes money out of the account, so withdrawals are still
+ * checked against the real balance. Balance reads add the pending credits to the stored balance,
+ * including the credits of a merge that is still being written.
+ * <p>
+ * Credits that have not been merged yet are only kept in memory and are lost if the server crashes.
+ * The ledger records one deposit per merge instead of one per deposit.
+ *
+ * @author daoge_cmd
+ */
+@Slf4j
+public class HotAccounts {
+
+    /**
+     * Array slots between two stripes, so that stripes written by different threads don't share a cache line.
+     */
+    private static final int PADDING = 16;
+    private static final int MAX_STRIPES = 64;
+
+    private final AcoEconomyAPI api;
+    private final EconomyStorage storage;
+    private final LongAdder merges = new LongAdder();
+    private volatile Map<UUID, Credits> accounts = Map.of();
+    private ScheduledExecutorService executor;
+
+    HotAccounts(AcoEconomyAPI api) {
+        this.api = api;
+        this.storage = api.getStorage();
+    }
+
+    /**
+     * Treat the given accounts as hot and merge their pending credits at a fixed interval.
+     *
+     * @param uuids          the hot accounts
+     * @param intervalMillis the interval between merges in milliseconds
+     */
+    public synchronized void enable(Collection<UUID> uuids, long intervalMillis) {
+        int stripes = Math.min(Integer.highestOneBit(Math.max(Runtime.getRuntime().availableProcessors() * 2 - 1, 1)) << 1, MAX_STRIPES);
+        Map<UUID, Credits> hot = new HashMap<>();
+        for (UUID uuid : uuids) {
+            hot.put(uuid, new Credits(stripes));
+        }
+        accounts = Map.copyOf(hot);
+        if (executor == null) {
+            executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "Aconomy-HotAccounts");
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.scheduleWithFixedDelay(this::flushAll, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+        log.info("{} hot accounts enabled with {} stripes each", hot.size(), stripes);
+    }
+
+    /**
+     * Check whether an account is hot.
+     *
+     * @param uuid the account id
+     * @return true if deposits into the account are collected in striped counters
+     */
+    public boolean isHot(UUID uuid) {
+        return accounts.containsKey(uuid);
+    }
+
+    /**
+     * Check that a hot account exists before crediting it, restoring it if it was archived.
+     * Only the first check of an account reads the storage, until a merge finds the account missing.
+     *
+     * @param uuid the id of a hot account
+     * @return true if the account exists
+     */
+    public boolean exists(UUID uuid) {
+        Credits credits = accounts.get(uuid);
+        if (credits.confirmed) {
+            return true;
+        }
+        if (storage.hasAccount(uuid) || api.restoreArchivedAccount(uuid)) {
+            credits.confirmed = true;
+        }
+        return credits.confirmed;
+    }
+
+    /**
+     * Add a deposit to the pending credits of a hot account, which must {@link #exists(UUID) exist}.
+     *
+     * @param uuid   the id of a hot account
+     * @param amount the positive amount to deposit
+     */
+    public void credit(UUID uuid, BigDecimal amount) {
+        accounts.get(uuid).add(amount);
+    }
+
+    /**
+     * Get the credits of an account that haven't been merged into its stored balance yet.
+     *
+     * @param uuid the account id
+     * @return the pending amount, zero if the account isn't hot
+     */
+    public BigDecimal getPending(UUID uuid) {
+        Credits credits = accounts.get(uuid);
+        return credits != null ? credits.sum() : BigDecimal.ZERO;
+    }
+
+    /**
+     * Get the number of merges that wrote pending credits to storage.
+     *
+     * @return the number of merges since startup
+     */
+    public long getMergeCount() {
+        return merges.sum();
+    }
+
+    /**
+     * Merge the pending credits of an account into its stored balance. Does nothing if the account isn't hot.
+     *
+     * @param uuid the account id
+     */
+    public void flush(UUID uuid) {
+        Credits credits = accounts.get(uuid);
+        if (credits == null) {
+            return;
+        }
+        for (int attempt = 0; attempt < AcoAccount.MAX_UPDATE_ATTEMPTS; attempt++) {
+            if (attempt > 0) {
+                AcoAccount.onConflict(attempt - 1);
+            }
+            try (AccountLocks.Held ignored = api.getAccountLocks().lock(uuid)) {
+                // Moved to the in-flight amount, so balance reads keep seeing the credits while they are written
+                BigDecimal pending = credits.drain();
+                if (pending.signum() == 0) {
+                    return;
+                }
+                VersionedBalance current = storage.getVersionedBalance(uuid);
+                if (current == null && api.restoreArchivedAccount(uuid)) {
+                    current = storage.getVersionedBalance(uuid);
+                }
+                if (current == null) {
+                    // Kept pending until the account exists again, new deposits are refused meanwhile
+                    credits.confirmed = false;
+                    credits.restore();
+                    log.warn("Kept {} of pending credits, hot account {} doesn't exist", pending.toPlainString(), uuid);
+                    return;
+                }
+                BigDecimal newBalance = current.balance().add(pending);
+                if (storage.compareAndSetBalance(uuid, current.version(), newBalance)) {
+                    credits.merged();
+                    api.getLedger().record(uuid, null, pending, newBalance, "deposit");
+                    api.getStatistics().recordChange(uuid, current.balance(), newBalance);
+                    merges.increment();
+                    return;
+                }
+                // Put back before the lock is released, the next attempt drains them again
+                credits.restore();
+            }
+        }
+        // Kept pending and retried with the next merge
+        log.warn("Gave up merging the pending credits of hot account {} after {} conflicting attempts", uuid, AcoAccount.MAX_UPDATE_ATTEMPTS);
+    }
+
+    /**
+     * Merge the pending credits of every hot account.
+     */
+    public void flushAll() {
+        for (UUID uuid : accounts.keySet()) {
+            try {
+                flush(uuid);
+            } catch (RuntimeException e) {
+                log.error("Failed to merge the pending credits of hot account {}", uuid, e);
+            }
+        }
+    }
+
+    /**
+     * Stop merging at an interval and merge the remaining credits one last time.
+     */
+    public synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flushAll();
+    }
+
+    /**
+     * The pending credits of one hot account, spread over padded stripes.
+     */
+    private static final class Credits {
+
+        private final AtomicReferenceArray<BigDecimal> stripes;
+        private final int mask;
+        /**
+         * Credits taken out of the stripes by a merge that hasn't been written yet, only changed under the account lock.
+         */
+        private volatile BigDecimal inFlight = BigDecimal.ZERO;
+        /**
+         * Odd while credits are moved between the stripes and the in-flight amount, bumped only under the account lock.
+         * Sums taken while it was odd or changed are retried, so a move is never seen half done.
+         */
+        private volatile long moves;
+        private volatile boolean confirmed;
+
+        Credits(int stripeCount) {
+            this.stripes = new AtomicReferenceArray<>(stripeCount * PADDING);
+            this.mask = stripeCount - 1;
+            for (int i = 0; i < stripeCount; i++) {
+                stripes.set(i * PADDING, BigDecimal.ZERO);
+            }
+        }
+
+        void add(BigDecimal amount) {
+            // Start at the calling thread's stripe, move on to the next one on contention
+            int stripe = Long.hashCode(Thread.currentThread().threadId() * 0x9E3779B97F4A7C15L) & mask;
+            while (true) {
+                int slot = stripe * PADDING;
+                BigDecimal current = stripes.get(slot);
+                if (stripes.compareAndSet(slot, current, current.add(amount))) {
+                    return;
+                }
+                stripe = (stripe + 1) & mask;
+            }
+        }
+
+        BigDecimal sum() {
+            while (true) {
+                long before = moves;
+                if ((before & 1) == 0) {
+                    BigDecimal sum = inFlight;
+                    for (int slot = 0; slot < stripes.length(); slot += PADDING) {
+                        sum = sum.add(stripes.get(slot));
+                    }
+                    if (moves == before) {
+                        return sum;
+                    }
+                }
+                Thread.onSpinWait();
+            }
+        }
+
+        BigDecimal drain() {
+            moves++;
+            try {
+                for (int slot = 0; slot < stripes.length(); slot += PADDING) {
+                    BigDecimal amount = stripes.getAndSet(slot, BigDecimal.ZERO);
+                    if (amount.signum() != 0) {
+                        inFlight = inFlight.add(amount);
+                    }
+                }
+                return inFlight;
+            } finally {
+                moves++;
+            }
+        }
+
+        void merged() {
+            inFlight = BigDecimal.ZERO;
+        }
+
+        void restore() {
+            moves++;
+            try {
+                add(inFlight);
+                inFlight = BigDecimal.ZERO;
+            } finally {
+                moves++;
+            }
+        }
+    }
+}
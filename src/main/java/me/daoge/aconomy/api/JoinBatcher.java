@@ -0,0 +1,205 @@
+package me.daoge.aconomy.api;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+/**
+ * Makes sure joining players have accounts in batches from a background thread, so a burst of joins
+ * after a restart costs one storage write per batch instead of several per player.
+ * <p>
+ * A join is only a queue insertion. The background thread waits for the batching window after the
+ * first queued join, then hands every join queued by then to the handler at once. Lookups of a
+ * player whose join is still queued are answered from the join itself, see {@link #getPending(UUID)}.
+ *
+ * @author daoge_cmd
+ */
+@Slf4j
+public class JoinBatcher {
+
+    private static final int MAX_BATCH_SIZE = 1000;
+    /**
+     * How long a lookup waits for the batch of a joining player before going to storage by itself.
+     */
+    private static final long AWAIT_TIMEOUT_MILLIS = 2000;
+
+    private final Consumer<Collection<PendingJoin>> handler;
+    private final BlockingQueue<PendingJoin> queue = new LinkedBlockingQueue<>();
+    /**
+     * The latest queued join of every player whose account hasn't been written yet.
+     */
+    private final Map<UUID, PendingJoin> pending = new ConcurrentHashMap<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+    private volatile long windowMillis = 50;
+    /**
+     * The thread running the handler, which must never wait for its own batch.
+     */
+    private volatile Thread handlerThread;
+
+    /**
+     * @param handler makes sure the accounts of the joins exist with their names, called with one batch at a time
+     */
+    JoinBatcher(Consumer<Collection<PendingJoin>> handler) {
+        this.handler = handler;
+        this.thread = new Thread(this::run, "Aconomy-Joins");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Set how long to wait for more joins after the first one before writing the batch.
+     *
+     * @param windowMillis the batching window in milliseconds, 0 to write whatever is queued right away
+     */
+    public void setWindowMillis(long windowMillis) {
+        this.windowMillis = Math.max(windowMillis, 0);
+    }
+
+    /**
+     * Queue a joining player.
+     *
+     * @param uuid the player's UUID
+     * @param name the player's name
+     */
+    public void enqueue(UUID uuid, String name) {
+        PendingJoin join = new PendingJoin(uuid, name);
+        pending.put(uuid, join);
+        queue.add(join);
+    }
+
+    /**
+     * Get the queued join of a player whose account hasn't been written yet.
+     *
+     * @param uuid the account id
+     * @return the latest queued join, or null if the player has no join waiting
+     */
+    public PendingJoin getPending(UUID uuid) {
+        return pending.get(uuid);
+    }
+
+    /**
+     * Wait until the account of a joining player has been written, if its join is still queued.
+     * Must not be called on the server thread, whose work a batch may be waiting for.
+     *
+     * @param uuid the account id
+     */
+    public void await(UUID uuid) {
+        PendingJoin join = pending.get(uuid);
+        if (join == null || Thread.currentThread() == handlerThread) {
+            return;
+        }
+        try {
+            join.written.get(AWAIT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            log.warn("Gave up waiting for the account of joining player {} to be written", uuid);
+        }
+    }
+
+    /**
+     * Get the number of joining players whose accounts haven't been written yet.
+     *
+     * @return the number of queued joins
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Stop the background thread and write any remaining joins.
+     */
+    public void shutdown() {
+        running = false;
+        thread.interrupt();
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        List<PendingJoin> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        while (queue.drainTo(batch, MAX_BATCH_SIZE) > 0) {
+            write(batch);
+            batch.clear();
+        }
+    }
+
+    private void run() {
+        List<PendingJoin> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        while (running) {
+            try {
+                PendingJoin first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                // Let the players joining right after this one share the write
+                long window = windowMillis;
+                if (window > 0) {
+                    Thread.sleep(window);
+                }
+                queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+                write(batch);
+                batch.clear();
+            } catch (InterruptedException e) {
+                // Woken up by shutdown(), the remaining joins are written there
+                if (!batch.isEmpty()) {
+                    write(batch);
+                }
+                break;
+            }
+        }
+    }
+
+    private void write(List<PendingJoin> batch) {
+        // A player joining twice in one window keeps the latest name
+        Map<UUID, PendingJoin> joins = new LinkedHashMap<>();
+        for (PendingJoin join : batch) {
+            joins.put(join.getUuid(), join);
+        }
+        handlerThread = Thread.currentThread();
+        try {
+            handler.accept(joins.values());
+        } catch (Exception e) {
+            log.error("Failed to write the accounts of {} joining players", joins.size(), e);
+        } finally {
+            handlerThread = null;
+            for (PendingJoin join : batch) {
+                // A player who joined again meanwhile stays pending until that join is written too
+                pending.remove(join.getUuid(), join);
+                join.written.complete(null);
+            }
+        }
+    }
+
+    /**
+     * A queued join of a player.
+     */
+    public static final class PendingJoin {
+
+        @Getter
+        private final UUID uuid;
+        @Getter
+        private final String name;
+        private final CompletableFuture<Void> written = new CompletableFuture<>();
+        /**
+         * Whether the listeners of {@code AccountCreateEvent} allowed creating the account, null
+         * until they have been asked. Only accessed on the server thread.
+         */
+        @Getter
+        private Boolean createAllowed;
+
+        PendingJoin(UUID uuid, String name) {
+            this.uuid = uuid;
+            this.name = name;
+        }
+
+        void setCreateAllowed(boolean createAllowed) {
+            this.createAllowed = createAllowed;
+        }
+    }
+}
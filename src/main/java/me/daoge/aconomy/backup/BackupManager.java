@@ -0,0 +1,173 @@
+package me.daoge.aconomy.backup;
+
+import lombok.extern.slf4j.Slf4j;
+import me.daoge.aconomy.storage.EconomyStorage;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Takes online backups of the active storage on a background thread and rotates old backups.
+ *
+ * @author daoge_cmd
+ */
+@Slf4j
+public class BackupManager {
+
+    private static final String FILE_PREFIX = "economy-";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final DateTimeFormatter FILE_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+    private final EconomyStorage storage;
+    private final Path backupFolder;
+    private final String fileExtension;
+    private final int keep;
+    private final long maxAgeMillis;
+    private final Runnable beforeBackup;
+    private final AtomicBoolean running = new AtomicBoolean();
+    /**
+     * A single low priority thread, so backups never run concurrently or compete with the server threads for CPU.
+     */
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Aconomy-Backup");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    /**
+     * @param storage      the storage to back up
+     * @param storageType  the storage type, used to name the backup files
+     * @param backupFolder the folder backups are written to
+     * @param keep         the number of backups to keep, 0 to keep any number
+     * @param maxAgeDays   the number of days after which backups are deleted, 0 to keep them regardless of age
+     * @param beforeBackup writes out changes still held in memory, run on the backup thread before each backup
+     */
+    public BackupManager(EconomyStorage storage, String storageType, Path backupFolder, int keep, int maxAgeDays, Runnable beforeBackup) {
+        this.storage = storage;
+        this.backupFolder = backupFolder;
+        // SQLite writes a copy of the database file, H2 and JSON write zip archives
+        this.fileExtension = storageType.equals("sqlite") ? ".db" : ".zip";
+        this.keep = keep;
+        this.maxAgeMillis = TimeUnit.DAYS.toMillis(maxAgeDays);
+        this.beforeBackup = beforeBackup;
+    }
+
+    /**
+     * Schedule periodic backups.
+     *
+     * @param intervalMinutes the interval between backups in minutes
+     */
+    public void start(long intervalMinutes) {
+        executor.scheduleWithFixedDelay(() -> {
+            // Skipped if a requested backup is still running
+            if (running.compareAndSet(false, true)) {
+                runBackup(message -> log.info("[Backup] {}", message));
+            }
+        }, intervalMinutes, intervalMinutes, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Take a backup on the background thread.
+     *
+     * @param callback receives the outcome, called from the backup thread
+     * @return false if a backup is already running
+     */
+    public boolean backup(Consumer<String> callback) {
+        // Claimed before submitting, so a second request can't be accepted and then silently dropped
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+        try {
+            executor.execute(() -> runBackup(callback));
+        } catch (RejectedExecutionException e) {
+            running.set(false);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Write a backup, releasing {@link #running} when done. Must only be called after claiming it.
+     */
+    private void runBackup(Consumer<String> callback) {
+        try {
+            beforeBackup.run();
+            Files.createDirectories(backupFolder);
+            String name = FILE_PREFIX + LocalDateTime.now().format(FILE_TIME_FORMAT) + fileExtension;
+            // Written under a temporary name first, so rotation never sees an incomplete backup
+            Path tempFile = backupFolder.resolve(name + TEMP_SUFFIX);
+            long start = System.nanoTime();
+            if (!storage.backup(tempFile)) {
+                Files.deleteIfExists(tempFile);
+                callback.accept("Backup failed, see the server log for details");
+                return;
+            }
+            Path file = Files.move(tempFile, backupFolder.resolve(name), StandardCopyOption.REPLACE_EXISTING);
+            callback.accept("Backup " + name + " (" + Files.size(file) / 1024 + " KiB) written in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+            rotate();
+        } catch (IOException | RuntimeException e) {
+            // Also caught for unchecked failures, which would otherwise cancel the scheduled backups
+            log.error("Failed to write backup", e);
+            callback.accept("Backup failed: " + e.getMessage());
+        } finally {
+            running.set(false);
+        }
+    }
+
+    /**
+     * Delete the backups that fall outside the retention policy, newest first.
+     */
+    private void rotate() throws IOException {
+        List<Path> backups;
+        try (Stream<Path> files = Files.list(backupFolder)) {
+            backups = files
+                    .filter(file -> {
+                        String name = file.getFileName().toString();
+                        return name.startsWith(FILE_PREFIX) && !name.endsWith(TEMP_SUFFIX);
+                    })
+                    // The timestamp in the name sorts chronologically
+                    .sorted(Comparator.comparing(Path::getFileName).reversed())
+                    .toList();
+        }
+        long oldestAllowed = System.currentTimeMillis() - maxAgeMillis;
+        for (int i = 1; i < backups.size(); i++) {
+            // The newest backup is always kept
+            Path backup = backups.get(i);
+            boolean tooMany = keep > 0 && i >= keep;
+            boolean tooOld = maxAgeMillis > 0 && Files.getLastModifiedTime(backup).toMillis() < oldestAllowed;
+            if (tooMany || tooOld) {
+                Files.deleteIfExists(backup);
+                log.info("Deleted old backup {}", backup.getFileName());
+            }
+        }
+    }
+
+    /**
+     * Stop scheduled backups, waiting for a running backup to finish.
+     */
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                log.warn("Timed out waiting for the running backup to finish");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
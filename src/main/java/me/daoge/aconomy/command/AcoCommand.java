@@ -1,7 +1,22 @@
 package me.daoge.aconomy.command;
 
+import lombok.extern.slf4j.Slf4j;
+import me.daoge.aconomy.Aconomy;
+import me.daoge.aconomy.api.AccountCache;
+import me.daoge.aconomy.api.AccountFilter;
+import me.daoge.aconomy.api.AcoAccount;
 import me.daoge.aconomy.api.AcoEconomyAPI;
+import me.daoge.aconomy.api.BulkTarget;
+import me.daoge.aconomy.api.EconomyStatistics;
+import me.daoge.aconomy.api.EconomySummary;
+import me.daoge.aconomy.ledger.LedgerEntry;
+import me.daoge.aconomy.storage.AbstractDatabaseStorage;
+import me.daoge.aconomy.storage.BalanceFilter;
+import me.daoge.aconomy.storage.BulkOperation;
+import me.daoge.aconomy.storage.EconomyStorage;
+import me.daoge.aconomy.storage.LatencyInjectingStorage;
 import org.allaymc.api.command.Command;
+import org.allaymc.api.command.CommandSender;
 import org.allaymc.api.command.SenderType;
 import org.allaymc.api.command.tree.CommandNode;
 import org.allaymc.api.command.tree.CommandTree;
@@ -13,9 +28,17 @@ import org.allaymc.economyapi.Currency;
 import org.allaymc.economyapi.EconomyAPI;
 
 import java.math.BigDecimal;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 /**
  * Main command for Aconomy plugin.
@@ -23,8 +46,12 @@ import java.util.UUID;
  *
  * @author daoge_cmd
  */
+@Slf4j
 public class AcoCommand extends Command {
 
+    private static final int HISTORY_PAGE_SIZE = 10;
+    private static final DateTimeFormatter HISTORY_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
     public AcoCommand() {
         super("aconomy", "Aconomy economy command", "aconomy.command");
         this.aliases.add("aco");
@@ -47,6 +74,86 @@ public class AcoCommand extends Command {
         return entityPlayer.getUniqueId().toString();
     }
 
+    /**
+     * Create a receiver for messages of background tasks, sent to the player if a player started
+     * the task or to the server log otherwise.
+     */
+    private static Consumer<String> asyncReporter(CommandSender sender, String task) {
+        if (sender.isPlayer() && sender.asPlayer().getController() != null) {
+            var controller = sender.asPlayer().getController();
+            return message -> controller.sendMessage(TextFormat.YELLOW + "[" + task + "] " + message);
+        }
+        return message -> log.info("[{}] {}", task, message);
+    }
+
+    private static String formatHistory(AcoEconomyAPI api, String targetName, int page, List<LedgerEntry> entries) {
+        if (entries.isEmpty()) {
+            return TextFormat.YELLOW + "No history found on page " + page + ".";
+        }
+        Currency currency = api.getDefaultCurrency();
+        // A page often involves the same few counterparties, each name is looked up once
+        Map<UUID, String> names = new HashMap<>();
+        StringBuilder sb = new StringBuilder();
+        sb.append(TextFormat.GREEN).append(targetName).append("'s history (page ").append(page).append(")");
+        for (LedgerEntry entry : entries) {
+            boolean credit = entry.amount().compareTo(BigDecimal.ZERO) >= 0;
+            sb.append("\n")
+                    .append(TextFormat.GRAY)
+                    .append(HISTORY_TIME_FORMAT.format(Instant.ofEpochMilli(entry.time())))
+                    .append(" ")
+                    .append(credit ? TextFormat.GREEN + "+" : TextFormat.RED + "-")
+                    .append(currency.format(entry.amount().abs()))
+                    .append(TextFormat.WHITE)
+                    .append(" ")
+                    .append(entry.cause());
+            if (entry.counterparty() != null) {
+                String counterpartyName = names.computeIfAbsent(entry.counterparty(), uuid -> {
+                    String name = api.getStorage().getAccountName(uuid);
+                    return name != null ? name : uuid.toString();
+                });
+                sb.append(credit ? " from " : " to ").append(counterpartyName);
+            }
+            sb.append(TextFormat.GRAY)
+                    .append(" -> ")
+                    .append(TextFormat.GOLD)
+                    .append(currency.format(entry.balance()));
+        }
+        return sb.toString();
+    }
+
+    private static String formatSummary(EconomySummary summary, Currency currency) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(TextFormat.GREEN).append("Economy overview").append(summary.exact() ? " (exact)" : " (estimated)")
+                .append("\n").append(TextFormat.WHITE).append("Accounts: ").append(TextFormat.YELLOW).append(summary.accounts())
+                .append("\n").append(TextFormat.WHITE).append("Money supply: ").append(TextFormat.YELLOW).append(currency.format(summary.supply()))
+                .append("\n").append(TextFormat.WHITE).append("Mean balance: ").append(TextFormat.YELLOW).append(currency.format(summary.mean()))
+                .append("\n").append(TextFormat.WHITE).append("Median balance: ").append(TextFormat.YELLOW).append(currency.format(summary.median()))
+                .append("\n").append(TextFormat.WHITE).append("Gini coefficient: ").append(TextFormat.YELLOW).append(String.format(Locale.ROOT, "%.3f", summary.gini()))
+                .append("\n").append(TextFormat.WHITE).append("Distribution:");
+        long[] histogram = summary.histogram();
+        // Whole decades are easier to read than the quarter-decade buckets
+        long empty = histogram[0];
+        if (empty > 0) {
+            sb.append("\n").append(TextFormat.GRAY).append("  empty: ").append(TextFormat.YELLOW).append(empty);
+        }
+        long belowOne = histogram[1];
+        if (belowOne > 0) {
+            sb.append("\n").append(TextFormat.GRAY).append("  < 1: ").append(TextFormat.YELLOW).append(belowOne);
+        }
+        for (int bucket = 2; bucket < histogram.length; bucket += 4) {
+            long count = 0;
+            for (int i = bucket; i < Math.min(bucket + 4, histogram.length); i++) {
+                count += histogram[i];
+            }
+            if (count > 0) {
+                sb.append("\n").append(TextFormat.GRAY).append("  ")
+                        .append(String.format(Locale.ROOT, "%.0f", EconomyStatistics.bucketLowerBound(bucket)))
+                        .append("+: ").append(TextFormat.YELLOW).append(count);
+            }
+        }
+        return sb.toString();
+    }
+
     @Override
     public void prepareCommandTree(CommandTree tree) {
         CommandNode root = tree.getRoot();
@@ -339,5 +446,181 @@ public class AcoCommand extends Command {
                     context.addOutput(TextFormat.GREEN + "Withdrew " + TextFormat.YELLOW + currency.format(amount) + TextFormat.GREEN + " from " + targetName + "'s account");
                     return context.success();
                 }, SenderType.ANY);
+
+        // /aconomy bulk <operation> <amount> <target> [min] [max]
+        root.key("bulk")
+                .permission("aconomy.command.bulk")
+                .enums("operation", new String[]{"deposit", "set", "multiply"})
+                .doubleNum("amount")
+                .enums("target", new String[]{"online", "all"})
+                .doubleNum("min", -1)
+                .optional()
+                .doubleNum("max", -1)
+                .optional()
+                .exec((context, sender) -> {
+                    String operationName = context.getResult(1);
+                    double amountDouble = context.getResult(2);
+                    String targetName = context.getResult(3);
+                    double min = context.getResult(4);
+                    double max = context.getResult(5);
+
+                    if (amountDouble < 0) {
+                        context.addError("Amount cannot be negative!");
+                        return context.fail();
+                    }
+
+                    BulkOperation operation = BulkOperation.valueOf(operationName.toUpperCase(Locale.ROOT));
+                    BulkTarget target = BulkTarget.valueOf(targetName.toUpperCase(Locale.ROOT));
+                    BalanceFilter filter = null;
+                    if (min >= 0 || max >= 0) {
+                        filter = new BalanceFilter(
+                                min >= 0 ? BigDecimal.valueOf(min) : null,
+                                max >= 0 ? BigDecimal.valueOf(max) : null
+                        );
+                    }
+
+                    AcoEconomyAPI api = (AcoEconomyAPI) EconomyAPI.getAPI();
+                    BalanceFilter balanceFilter = filter;
+                    // Rewrites every matching balance, kept off the server thread
+                    Consumer<String> reporter = asyncReporter(sender, "Bulk");
+                    CompletableFuture.runAsync(() -> {
+                        int updated = api.bulkUpdate(operation, BigDecimal.valueOf(amountDouble), target, balanceFilter);
+                        reporter.accept(TextFormat.GREEN + "Applied " + TextFormat.YELLOW + operationName + " " + amountDouble + TextFormat.GREEN + " to " + TextFormat.YELLOW + updated + TextFormat.GREEN + " accounts");
+                    });
+                    context.addOutput(TextFormat.GREEN + "Applying " + TextFormat.YELLOW + operationName + " " + amountDouble + TextFormat.GREEN + " to " + targetName + " accounts...");
+                    return context.success();
+                }, SenderType.ANY);
+
+        // /aconomy history [player] [page]
+        root.key("history")
+                .permission("aconomy.command.history")
+                .playerTarget("player")
+                .optional()
+                .intNum("page", 1)
+                .optional()
+                .exec((context, sender) -> {
+                    List<EntityPlayer> targets = context.getResult(1);
+                    int page = context.getResult(2);
+                    if (page <= 0) {
+                        page = 1;
+                    }
+
+                    EntityPlayer target;
+                    if (targets == null || targets.isEmpty()) {
+                        if (!sender.isPlayer()) {
+                            context.addPlayerNotFoundError();
+                            return context.fail();
+                        }
+                        target = sender.asPlayer();
+                    } else if (targets.size() > 1) {
+                        context.addTooManyTargetsError();
+                        return context.fail();
+                    } else {
+                        target = targets.getFirst();
+                    }
+
+                    AcoEconomyAPI api = (AcoEconomyAPI) EconomyAPI.getAPI();
+                    UUID targetId = target.getUniqueId();
+                    String targetName = getPlayerName(target);
+                    int pageNumber = page;
+                    // Waits for the ledger writer and reads the ledger, kept off the server thread
+                    Consumer<String> reporter = asyncReporter(sender, "History");
+                    CompletableFuture.runAsync(() -> reporter.accept(formatHistory(api, targetName, pageNumber,
+                            api.getHistory(targetId, 0, Long.MAX_VALUE, pageNumber - 1, HISTORY_PAGE_SIZE))));
+                    context.addOutput(TextFormat.GREEN + "Reading the history of " + TextFormat.YELLOW + targetName + TextFormat.GREEN + "...");
+                    return context.success();
+                }, SenderType.ANY);
+
+        // /aconomy migrate <from> <to>
+        String[] storageTypes = Aconomy.getInstance().getStorageFactory().getTypes().toArray(new String[0]);
+        root.key("migrate")
+                .permission("aconomy.command.migrate")
+                .enums("from", storageTypes)
+                .enums("to", storageTypes)
+                .exec((context, sender) -> {
+                    String from = context.getResult(1);
+                    String to = context.getResult(2);
+
+                    if (!Aconomy.getInstance().startMigration(from, to, asyncReporter(sender, "Migration"))) {
+                        return context.fail();
+                    }
+                    context.addOutput(TextFormat.GREEN + "Started migrating accounts from " + TextFormat.YELLOW + from + TextFormat.GREEN + " to " + TextFormat.YELLOW + to);
+                    return context.success();
+                }, SenderType.ANY);
+
+        // /aconomy backup
+        root.key("backup")
+                .permission("aconomy.command.backup")
+                .exec((context, sender) -> {
+                    if (!Aconomy.getInstance().getBackupManager().backup(asyncReporter(sender, "Backup"))) {
+                        context.addError("A backup is already running!");
+                        return context.fail();
+                    }
+                    context.addOutput(TextFormat.GREEN + "Started backup");
+                    return context.success();
+                }, SenderType.ANY);
+
+        // /aconomy economy [exact]
+        root.key("economy")
+                .permission("aconomy.command.economy")
+                .enums("mode", new String[]{"exact"})
+                .optional()
+                .exec((context, sender) -> {
+                    AcoEconomyAPI api = (AcoEconomyAPI) EconomyAPI.getAPI();
+                    if ("exact".equals(context.getResult(1))) {
+                        // A full scan, kept off the server thread
+                        Consumer<String> reporter = asyncReporter(sender, "Economy");
+                        CompletableFuture.runAsync(() -> {
+                            EconomySummary summary = api.getStatistics().recompute();
+                            reporter.accept(summary != null
+                                    ? formatSummary(summary, api.getDefaultCurrency())
+                                    : TextFormat.RED + "Failed to read the accounts, see the server log");
+                        });
+                        context.addOutput(TextFormat.GREEN + "Recomputing economy statistics...");
+                        return context.success();
+                    }
+                    context.addOutput(formatSummary(api.getStatistics().getSummary(), api.getDefaultCurrency()));
+                    return context.success();
+                }, SenderType.ANY);
+
+        // /aconomy stats
+        root.key("stats")
+                .permission("aconomy.command.stats")
+                .exec((context, sender) -> {
+                    AcoEconomyAPI api = (AcoEconomyAPI) EconomyAPI.getAPI();
+                    AccountCache cache = api.getAccountCache();
+                    context.addOutput(TextFormat.GREEN + "Aconomy statistics"
+                            + "\n" + TextFormat.WHITE + "Cached accounts: " + TextFormat.YELLOW + cache.size()
+                            + "\n" + TextFormat.WHITE + "Cache hit rate: " + TextFormat.YELLOW + String.format(Locale.ROOT, "%.1f%%", cache.getHitRate() * 100)
+                            + TextFormat.GRAY + " (" + cache.getHits() + " hits, " + cache.getMisses() + " misses)"
+                            + "\n" + TextFormat.WHITE + "Cache evictions: " + TextFormat.YELLOW + cache.getEvictions()
+                            + "\n" + TextFormat.WHITE + "Write conflicts: " + TextFormat.YELLOW + AcoAccount.getConflictCount()
+                            + "\n" + TextFormat.WHITE + "Archived accounts: " + TextFormat.YELLOW + api.getStorage().getArchivedAccountCount());
+                    EconomyStorage storage = api.getStorage();
+                    if (storage instanceof LatencyInjectingStorage latencyInjecting) {
+                        context.addOutput(TextFormat.WHITE + "Storage calls on the tick thread: " + TextFormat.YELLOW + latencyInjecting.getTickThreadCallCount()
+                                + TextFormat.GRAY + " " + latencyInjecting.getTickThreadCalls()
+                                + "\n" + TextFormat.WHITE + "Injected storage failures: " + TextFormat.YELLOW + latencyInjecting.getInjectedFailureCount());
+                        storage = latencyInjecting.getDelegate();
+                    }
+                    if (storage instanceof AbstractDatabaseStorage databaseStorage && databaseStorage.isInMemory()) {
+                        context.addOutput(TextFormat.WHITE + "Checkpoints: " + TextFormat.YELLOW + databaseStorage.getCheckpointCount()
+                                + TextFormat.GRAY + " (last took " + databaseStorage.getLastCheckpointMillis() + " ms)");
+                    }
+                    if (storage instanceof AbstractDatabaseStorage databaseStorage && databaseStorage.getLostWriteCount() > 0) {
+                        context.addOutput(TextFormat.WHITE + "Lost writes: " + TextFormat.RED + databaseStorage.getLostWriteCount());
+                    }
+                    if (api.getHotAccounts().getMergeCount() > 0) {
+                        context.addOutput(TextFormat.WHITE + "Hot account merges: " + TextFormat.YELLOW + api.getHotAccounts().getMergeCount());
+                    }
+                    AccountFilter filter = api.getAccountFilter();
+                    if (filter != null) {
+                        context.addOutput(TextFormat.WHITE + "Account filter: " + TextFormat.YELLOW + filter.getSizeBytes() / 1024 + " KiB"
+                                + TextFormat.GRAY + " (" + filter.getHashCount() + " hashes, " + filter.getInsertions() + " accounts, "
+                                + String.format(Locale.ROOT, "%.3f%%", filter.getExpectedFalsePositiveRate() * 100) + " false positives, "
+                                + filter.getNegatives() + " lookups skipped)");
+                    }
+                    return context.success();
+                }, SenderType.ANY);
     }
 }
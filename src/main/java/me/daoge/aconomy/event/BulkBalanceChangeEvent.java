@@ -0,0 +1,33 @@
+package me.daoge.aconomy.event;
+
+import lombok.Getter;
+import me.daoge.aconomy.api.BulkTarget;
+import me.daoge.aconomy.storage.BalanceFilter;
+import me.daoge.aconomy.storage.BulkOperation;
+import org.allaymc.api.eventbus.event.Event;
+
+import java.math.BigDecimal;
+
+/**
+ * Called once after a bulk balance operation has been committed, instead of one
+ * {@link org.allaymc.economyapi.event.BalanceChangeEvent} per affected account.
+ *
+ * @author daoge_cmd
+ */
+@Getter
+public class BulkBalanceChangeEvent extends Event {
+
+    private final BulkOperation operation;
+    private final BigDecimal amount;
+    private final BulkTarget target;
+    private final BalanceFilter filter;
+    private final int updatedAccounts;
+
+    public BulkBalanceChangeEvent(BulkOperation operation, BigDecimal amount, BulkTarget target, BalanceFilter filter, int updatedAccounts) {
+        this.operation = operation;
+        this.amount = amount;
+        this.target = target;
+        this.filter = filter;
+        this.updatedAccounts = updatedAccounts;
+    }
+}
@@ -0,0 +1,32 @@
+package me.daoge.aconomy.event;
+
+import lombok.Getter;
+import me.daoge.aconomy.storage.RateAdjustment;
+import org.allaymc.api.eventbus.event.Event;
+
+import java.math.BigDecimal;
+
+/**
+ * Called once after an interest or tax cycle has been applied to all matching accounts,
+ * instead of one {@link org.allaymc.economyapi.event.BalanceChangeEvent} per account.
+ *
+ * @author daoge_cmd
+ */
+@Getter
+public class RateAdjustmentEvent extends Event {
+
+    private final String name;
+    private final RateAdjustment adjustment;
+    private final int updatedAccounts;
+    /**
+     * The sum of all changes, negative if money was taken away.
+     */
+    private final BigDecimal total;
+
+    public RateAdjustmentEvent(String name, RateAdjustment adjustment, int updatedAccounts, BigDecimal total) {
+        this.name = name;
+        this.adjustment = adjustment;
+        this.updatedAccounts = updatedAccounts;
+        this.total = total;
+    }
+}
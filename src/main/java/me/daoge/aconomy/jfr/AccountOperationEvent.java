@@ -0,0 +1,60 @@
+package me.daoge.aconomy.jfr;
+
+import jdk.jfr.*;
+import me.daoge.aconomy.Aconomy;
+
+/**
+ * JFR event emitted for account level operations made through {@link me.daoge.aconomy.api.AcoEconomyAPI}
+ * and {@link me.daoge.aconomy.api.AcoAccount}, such as account lookups, creations and balance updates.
+ *
+ * @author daoge_cmd
+ */
+@Name("aconomy.AccountOperation")
+@Label("Account Operation")
+@Category({"Aconomy", "Account"})
+@Description("An account level operation in the Aconomy economy API")
+@StackTrace(false)
+public class AccountOperationEvent extends Event {
+
+    @Label("Operation")
+    private String operation;
+
+    @Label("Account Count")
+    private int accountCount;
+
+    @Label("Success")
+    private boolean success;
+
+    @Label("Tick Thread")
+    @Description("Whether the operation ran on the server tick thread")
+    private boolean tickThread;
+
+    /**
+     * Create and start a new account operation event.
+     *
+     * @param operation    the operation name
+     * @param accountCount the number of accounts touched by the operation
+     * @return the started event
+     */
+    public static AccountOperationEvent begin(String operation, int accountCount) {
+        AccountOperationEvent event = new AccountOperationEvent();
+        event.operation = operation;
+        event.accountCount = accountCount;
+        event.begin();
+        return event;
+    }
+
+    /**
+     * End the event and commit it if it passes the recording's threshold.
+     *
+     * @param success whether the operation succeeded
+     */
+    public void finish(boolean success) {
+        end();
+        if (shouldCommit()) {
+            this.success = success;
+            tickThread = Aconomy.isTickThread();
+            commit();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package me.daoge.aconomy.jfr;
+
+import jdk.jfr.*;
+import me.daoge.aconomy.Aconomy;
+
+/**
+ * JFR event emitted for every call into an economy storage backend.
+ * <p>
+ * Usage follows the usual JFR pattern: the event is started with {@link #begin(String, String, int)}
+ * before the storage work and closed with {@link #finish()} afterward. When the event type is disabled
+ * in the recording settings the JIT reduces this to little more than an allocation that escape
+ * analysis removes, so it is safe to leave on the hot path.
+ *
+ * @author daoge_cmd
+ */
+@Name("aconomy.StorageCall")
+@Label("Storage Call")
+@Category({"Aconomy", "Storage"})
+@Description("A call into an Aconomy economy storage backend")
+@StackTrace(false)
+public class StorageCallEvent extends Event {
+
+    @Label("Operation")
+    private String operation;
+
+    @Label("Backend")
+    private String backend;
+
+    @Label("Account Count")
+    @Description("Number of accounts touched by the call")
+    private int accountCount;
+
+    @Label("Tick Thread")
+    @Description("Whether the call ran on the server tick thread")
+    private boolean tickThread;
+
+    /**
+     * Create and start a new storage call event.
+     *
+     * @param operation    the storage operation name
+     * @param backend      the storage backend name
+     * @param accountCount the number of accounts touched by the call
+     * @return the started event
+     */
+    public static StorageCallEvent begin(String operation, String backend, int accountCount) {
+        StorageCallEvent event = new StorageCallEvent();
+        event.operation = operation;
+        event.backend = backend;
+        event.accountCount = accountCount;
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Update the number of accounts touched, for calls that only know it after running.
+     *
+     * @param accountCount the number of accounts touched by the call
+     */
+    public void setAccountCount(int accountCount) {
+        this.accountCount = accountCount;
+    }
+
+    /**
+     * End the event and commit it if it passes the recording's threshold.
+     */
+    public void finish() {
+        end();
+        if (shouldCommit()) {
+            tickThread = Aconomy.isTickThread();
+            commit();
+        }
+    }
+}
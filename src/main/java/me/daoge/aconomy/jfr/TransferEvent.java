@@ -0,0 +1,84 @@
+package me.daoge.aconomy.jfr;
+
+import jdk.jfr.*;
+import me.daoge.aconomy.Aconomy;
+
+import java.math.BigDecimal;
+
+/**
+ * JFR event emitted for every balance transfer made through {@link me.daoge.aconomy.api.AcoAccount}.
+ *
+ * @author daoge_cmd
+ */
+@Name("aconomy.Transfer")
+@Label("Transfer")
+@Category({"Aconomy", "Account"})
+@Description("A balance transfer between Aconomy accounts")
+@StackTrace(false)
+public class TransferEvent extends Event {
+
+    @Label("Operation")
+    private String operation;
+
+    @Label("Backend")
+    @Description("The type of the active storage")
+    private String backend;
+
+    @Label("From")
+    private String from;
+
+    @Label("To")
+    private String to;
+
+    @Label("Amount")
+    private String amount;
+
+    @Label("Account Count")
+    private int accountCount;
+
+    @Label("Success")
+    private boolean success;
+
+    @Label("Tick Thread")
+    @Description("Whether the transfer ran on the server tick thread")
+    private boolean tickThread;
+
+    /**
+     * Create and start a new transfer event.
+     *
+     * @param operation    the transfer operation name
+     * @param from         the source account id
+     * @param to           the target account id, or {@code null} for multi-leg transfers
+     * @param amount       the total amount transferred
+     * @param accountCount the number of accounts touched by the transfer
+     * @return the started event
+     */
+    public static TransferEvent begin(String operation, Object from, Object to, BigDecimal amount, int accountCount) {
+        TransferEvent event = new TransferEvent();
+        event.begin();
+        if (event.isEnabled()) {
+            Aconomy plugin = Aconomy.getInstance();
+            event.operation = operation;
+            event.backend = plugin != null ? plugin.getStorageType() : null;
+            event.from = String.valueOf(from);
+            event.to = String.valueOf(to);
+            event.amount = amount.toPlainString();
+            event.accountCount = accountCount;
+        }
+        return event;
+    }
+
+    /**
+     * End the event and commit it if it passes the recording's threshold.
+     *
+     * @param success whether the transfer was applied
+     */
+    public void finish(boolean success) {
+        end();
+        if (shouldCommit()) {
+            this.success = success;
+            tickThread = Aconomy.isTickThread();
+            commit();
+        }
+    }
+}
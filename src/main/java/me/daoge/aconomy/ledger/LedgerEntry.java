@@ -0,0 +1,23 @@
+package me.daoge.aconomy.ledger;
+
+import java.math.BigDecimal;
+import java.util.UUID;
+
+/**
+ * A single append-only record of a balance change.
+ *
+ * @param time         the time of the change in epoch milliseconds
+ * @param account      the account whose balance changed
+ * @param counterparty the other account involved in the change, or null if there is none
+ * @param amount       the signed amount the balance changed by
+ * @param balance      the balance after the change
+ * @param cause        a short description of what caused the change, such as "transfer" or "deposit"
+ * @author daoge_cmd
+ */
+public record LedgerEntry(long time, UUID account, UUID counterparty, BigDecimal amount, BigDecimal balance, String cause) {
+
+    /**
+     * The account id used for entries that are not tied to a single account, such as bulk operations.
+     */
+    public static final UUID SYSTEM_ACCOUNT = new UUID(0L, 0L);
+}
@@ -0,0 +1,145 @@
+package me.daoge.aconomy.ledger;
+
+import lombok.extern.slf4j.Slf4j;
+import me.daoge.aconomy.storage.EconomyStorage;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.*;
+
+/**
+ * Writes ledger entries to storage in batches from a background thread, so recording a
+ * balance change on the hot path is only a queue insertion.
+ * <p>
+ * Flushes are queued behind the entries as well and handled by the same thread, so a flush
+ * also waits for a batch the writer thread has already taken but not finished writing.
+ *
+ * @author daoge_cmd
+ */
+@Slf4j
+public class LedgerWriter {
+
+    private static final int MAX_BATCH_SIZE = 500;
+    private static final long FLUSH_TIMEOUT_MILLIS = 10000;
+
+    private final EconomyStorage storage;
+    /**
+     * Holds {@link LedgerEntry ledger entries} and the flush markers of waiting {@link #flush()} calls.
+     */
+    private final BlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    public LedgerWriter(EconomyStorage storage) {
+        this.storage = storage;
+        this.thread = new Thread(this::run, "Aconomy-LedgerWriter");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Queue a ledger entry for writing.
+     *
+     * @param account      the account whose balance changed
+     * @param counterparty the other account involved, or null
+     * @param amount       the signed amount the balance changed by
+     * @param balance      the balance after the change
+     * @param cause        what caused the change
+     */
+    public void record(UUID account, UUID counterparty, BigDecimal amount, BigDecimal balance, String cause) {
+        queue.add(new LedgerEntry(System.currentTimeMillis(), account, counterparty, amount, balance, cause));
+    }
+
+    /**
+     * Wait until every entry queued so far has been written to storage.
+     */
+    public void flush() {
+        if (!thread.isAlive() || Thread.currentThread() == thread) {
+            drain();
+            return;
+        }
+        CompletableFuture<Void> marker = new CompletableFuture<>();
+        queue.add(marker);
+        try {
+            marker.get(FLUSH_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            log.warn("Timed out waiting for the ledger to be flushed");
+        } catch (ExecutionException e) {
+            log.error("Failed to flush the ledger", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stop the background thread and write any remaining entries.
+     */
+    public void shutdown() {
+        running = false;
+        thread.interrupt();
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    private void run() {
+        List<Object> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        while (running) {
+            try {
+                Object first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+                process(batch);
+                batch.clear();
+            } catch (InterruptedException e) {
+                // Woken up by shutdown(), the remaining entries are flushed there
+                break;
+            }
+        }
+    }
+
+    private void drain() {
+        List<Object> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        while (queue.drainTo(batch, MAX_BATCH_SIZE) > 0) {
+            process(batch);
+            batch.clear();
+        }
+    }
+
+    /**
+     * Write the entries of a batch in order, completing each flush marker once the entries queued before it are written.
+     */
+    private void process(List<Object> batch) {
+        List<LedgerEntry> entries = new ArrayList<>(batch.size());
+        for (Object item : batch) {
+            if (item instanceof LedgerEntry entry) {
+                entries.add(entry);
+                continue;
+            }
+            if (!entries.isEmpty()) {
+                write(entries);
+                entries.clear();
+            }
+            ((CompletableFuture<?>) item).complete(null);
+        }
+        if (!entries.isEmpty()) {
+            write(entries);
+        }
+    }
+
+    private void write(List<LedgerEntry> batch) {
+        try {
+            storage.appendLedgerEntries(batch);
+        } catch (Exception e) {
+            log.error("Failed to write {} ledger entries", batch.size(), e);
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package me.daoge.aconomy.migration;
+
+/**
+ * The outcome of a storage migration.
+ *
+ * @param sourceAccounts the number of accounts read from the source storage
+ * @param targetAccounts the number of accounts found in the target storage afterwards
+ * @param sourceChecksum the checksum over every account read from the source storage
+ * @param targetChecksum the checksum over every account found in the target storage afterwards
+ * @param elapsedMillis  how long the migration took, including verification
+ * @author daoge_cmd
+ */
+public record MigrationResult(long sourceAccounts, long targetAccounts, long sourceChecksum, long targetChecksum, long elapsedMillis) {
+
+    /**
+     * Check whether the target storage holds exactly the accounts of the source storage.
+     *
+     * @return true if both the account counts and the checksums match
+     */
+    public boolean verified() {
+        return sourceAccounts == targetAccounts && sourceChecksum == targetChecksum;
+    }
+}
@@ -0,0 +1,55 @@
+package me.daoge.aconomy.migration;
+
+import me.daoge.aconomy.storage.EconomyStorage;
+import me.daoge.aconomy.storage.StorageFactory;
+import me.daoge.aconomy.storage.StorageOptions;
+
+import java.nio.file.Path;
+
+/**
+ * Offline entry point for migrating accounts between storages while the server is stopped.
+ * <p>
+ * Usage: {@code java -cp <allay-server.jar>:<Aconomy-shaded.jar> me.daoge.aconomy.migration.MigrationTool <dataFolder> <from> <to> [h2Url] [shards]}
+ *
+ * @author daoge_cmd
+ */
+public final class MigrationTool {
+
+    private MigrationTool() {
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 3) {
+            System.err.println("Usage: MigrationTool <dataFolder> <from> <to> [h2Url] [shards]");
+            System.exit(2);
+            return;
+        }
+
+        Path dataFolder = Path.of(args[0]);
+        StorageOptions options = new StorageOptions(args.length > 3 ? args[3] : "",
+                args.length > 4 ? Integer.parseInt(args[4]) : StorageOptions.DEFAULT.shards());
+        // Storage modules are picked up from the storage folder of the data folder, like on the server
+        StorageFactory storageFactory = new StorageFactory(dataFolder);
+        EconomyStorage source = storageFactory.create(args[1], dataFolder, options);
+        EconomyStorage target = storageFactory.create(args[2], dataFolder, options);
+        if (source == null || target == null || args[1].equalsIgnoreCase(args[2])) {
+            System.err.println("Source and target must be two different storage types of: " + String.join(", ", storageFactory.getTypes()));
+            System.exit(2);
+            return;
+        }
+
+        MigrationResult result;
+        source.init();
+        try {
+            target.init();
+            try {
+                result = new StorageMigrator(source, target, StorageMigrator.DEFAULT_BATCH_SIZE, System.out::println).migrate();
+            } finally {
+                target.shutdown();
+            }
+        } finally {
+            source.shutdown();
+        }
+        System.exit(result != null && result.verified() ? 0 : 1);
+    }
+}
@@ -0,0 +1,227 @@
+package me.daoge.aconomy.migration;
+
+import lombok.extern.slf4j.Slf4j;
+import me.daoge.aconomy.storage.AccountRecord;
+import me.daoge.aconomy.storage.CurrencyBalances;
+import me.daoge.aconomy.storage.EconomyStorage;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Copies every account from one storage into another.
+ * <p>
+ * A reader thread streams accounts out of the source in bounded batches while the calling thread
+ * imports them into the target, one transaction per batch. Afterwards the target is read back and
+ * compared with the source by account count and checksum. Only accounts are migrated, the
+ * transaction ledger stays in the source storage.
+ * <p>
+ * A source that is still being written to is read as a single snapshot instead, so the copy is
+ * consistent, but it misses every change made after the snapshot.
+ *
+ * @author daoge_cmd
+ */
+@Slf4j
+public class StorageMigrator {
+
+    public static final int DEFAULT_BATCH_SIZE = 5000;
+
+    /**
+     * Number of batches the reader may be ahead of the writer, bounds the memory used.
+     */
+    private static final int QUEUE_CAPACITY = 4;
+    private static final long PROGRESS_INTERVAL_MILLIS = 2000;
+    private static final List<AccountRecord> END_OF_STREAM = List.of();
+
+    private final EconomyStorage source;
+    private final EconomyStorage target;
+    private final int batchSize;
+    private final Consumer<String> progress;
+    private final boolean live;
+
+    /**
+     * @param source    the initialized storage to copy accounts from
+     * @param target    the initialized, empty storage to copy accounts into
+     * @param batchSize the number of accounts imported per transaction
+     * @param progress  receives progress messages
+     */
+    public StorageMigrator(EconomyStorage source, EconomyStorage target, int batchSize, Consumer<String> progress) {
+        this(source, target, batchSize, progress, false);
+    }
+
+    /**
+     * @param source    the initialized storage to copy accounts from
+     * @param target    the initialized, empty storage to copy accounts into
+     * @param batchSize the number of accounts imported per transaction
+     * @param progress  receives progress messages
+     * @param live      whether the source is still being written to, it is then copied from a snapshot
+     */
+    public StorageMigrator(EconomyStorage source, EconomyStorage target, int batchSize, Consumer<String> progress, boolean live) {
+        this.source = source;
+        this.target = target;
+        this.batchSize = batchSize;
+        this.progress = progress;
+        this.live = live;
+    }
+
+    /**
+     * Run the migration on the calling thread.
+     *
+     * @return the result, or null if the migration failed
+     */
+    public MigrationResult migrate() {
+        long start = System.currentTimeMillis();
+        // Cheapest way to check for an empty storage through the interface
+        if (!target.getTopBalances(1).isEmpty()) {
+            progress.accept("The target storage already contains accounts, refusing to migrate into it");
+            return null;
+        }
+        int archived = source.getArchivedAccountCount();
+        if (archived > 0) {
+            progress.accept(archived + " archived accounts are not migrated, they stay in the archive of the source storage");
+        }
+
+        BlockingQueue<List<AccountRecord>> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        AtomicBoolean aborted = new AtomicBoolean();
+        AtomicReference<Throwable> readFailure = new AtomicReference<>();
+        Checksum sourceChecksum = new Checksum();
+        Thread reader = new Thread(() -> {
+            Consumer<List<AccountRecord>> consumer = batch -> {
+                if (aborted.get()) {
+                    throw new CancellationException();
+                }
+                sourceChecksum.add(batch);
+                putUninterruptibly(queue, batch);
+            };
+            try {
+                if (live) {
+                    // Pages read one after another would mix states from before and after concurrent writes
+                    List<AccountRecord> snapshot = source.snapshot();
+                    progress.accept("Took a snapshot of " + snapshot.size() + " accounts");
+                    for (int i = 0; i < snapshot.size(); i += batchSize) {
+                        consumer.accept(snapshot.subList(i, Math.min(i + batchSize, snapshot.size())));
+                    }
+                } else {
+                    source.forEachAccount(batchSize, consumer);
+                }
+            } catch (CancellationException ignored) {
+                // The writer gave up
+            } catch (Throwable t) {
+                readFailure.set(t);
+            } finally {
+                putUninterruptibly(queue, END_OF_STREAM);
+            }
+        }, "Aconomy-MigrationReader");
+        reader.setDaemon(true);
+        reader.start();
+
+        long migrated = 0;
+        long lastReport = start;
+        try {
+            while (true) {
+                List<AccountRecord> batch = queue.take();
+                if (batch == END_OF_STREAM) {
+                    break;
+                }
+                if (aborted.get()) {
+                    // Keep draining so the reader never blocks on a full queue
+                    continue;
+                }
+                int imported = target.importAccounts(batch);
+                if (imported != batch.size()) {
+                    progress.accept("Failed to import a batch of " + batch.size() + " accounts, aborting");
+                    aborted.set(true);
+                    continue;
+                }
+                migrated += imported;
+                long now = System.currentTimeMillis();
+                if (now - lastReport >= PROGRESS_INTERVAL_MILLIS) {
+                    progress.accept("Migrated " + migrated + " accounts (" + migrated * 1000 / Math.max(now - start, 1) + "/s)");
+                    lastReport = now;
+                }
+            }
+            reader.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            aborted.set(true);
+            progress.accept("Migration interrupted");
+            return null;
+        }
+
+        if (readFailure.get() != null) {
+            log.error("Failed to read accounts from the source storage", readFailure.get());
+            progress.accept("Failed to read accounts from the source storage: " + readFailure.get());
+            return null;
+        }
+        if (aborted.get()) {
+            return null;
+        }
+        target.save();
+
+        progress.accept("Migrated " + migrated + " accounts, verifying...");
+        Checksum targetChecksum = new Checksum();
+        target.forEachAccount(batchSize, targetChecksum::add);
+        MigrationResult result = new MigrationResult(
+                sourceChecksum.count, targetChecksum.count,
+                sourceChecksum.sum, targetChecksum.sum,
+                System.currentTimeMillis() - start
+        );
+        if (result.verified() && live) {
+            progress.accept("Copy of a snapshot of " + result.sourceAccounts() + " accounts verified in " + result.elapsedMillis()
+                    + " ms, changes made since the snapshot are not in it");
+        } else if (result.verified()) {
+            progress.accept("Migration of " + result.sourceAccounts() + " accounts verified in " + result.elapsedMillis() + " ms");
+        } else {
+            progress.accept("Verification failed: " + result.sourceAccounts() + " accounts read with checksum " + Long.toHexString(result.sourceChecksum())
+                    + ", " + result.targetAccounts() + " accounts written with checksum " + Long.toHexString(result.targetChecksum()));
+        }
+        return result;
+    }
+
+    private static void putUninterruptibly(BlockingQueue<List<AccountRecord>> queue, List<AccountRecord> batch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(batch);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * An order independent checksum over accounts, the sum of a hash of every account.
+     */
+    private static class Checksum {
+        long count;
+        long sum;
+
+        void add(List<AccountRecord> batch) {
+            for (AccountRecord record : batch) {
+                long hash = record.uuid().getMostSignificantBits() * 31 + record.uuid().getLeastSignificantBits();
+                hash = hash * 31 + Objects.hashCode(record.name());
+                // Storages may keep a different scale, compare the numeric value only
+                hash = hash * 31 + record.balance().stripTrailingZeros().hashCode();
+                hash = hash * 31 + CurrencyBalances.encode(record.extra()).hashCode();
+                sum += mix(hash);
+                count++;
+            }
+        }
+
+        private static long mix(long z) {
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            return z ^ (z >>> 31);
+        }
+    }
+}
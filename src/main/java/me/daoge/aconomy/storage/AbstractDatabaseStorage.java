@@ -1,24 +1,83 @@
 package me.daoge.aconomy.storage;
 
+import lombok.Getter;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
+import me.daoge.aconomy.jfr.StorageCallEvent;
+import me.daoge.aconomy.ledger.LedgerEntry;
 
+import java.io.IOException;
 import java.math.BigDecimal;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
 
 /**
  * Abstract base class for JDBC-based database storage implementations.
+ * <p>
+ * Every call runs on one shared connection, which is used by the server thread and several
+ * background threads at once. Transactions and auto-commit are state of the connection, not of
+ * a thread, so every use of the connection holds the connection lock: reads for the duration of
+ * their query, writes for their whole transaction, and the group commit writer for a whole group.
  *
  * @author daoge_cmd
  */
 @Slf4j
 public abstract class AbstractDatabaseStorage implements EconomyStorage {
 
+    /**
+     * Maximum number of uuids bound into a single IN clause, kept below SQLite's parameter limit.
+     */
+    private static final int MAX_IN_CLAUSE_SIZE = 500;
+    /**
+     * Number of balances read and written back at once when balances are recomputed in Java.
+     */
+    private static final int BALANCE_PAGE_SIZE = 500;
+    private static final String ACCOUNT_PAGE_SQL = "SELECT uuid, name, balance, extra_balances FROM accounts WHERE uuid > ? ORDER BY uuid LIMIT ?";
+    private static final String CREATE_LEDGER_INDEX_SQL =
+            "CREATE INDEX IF NOT EXISTS idx_ledger_account_time ON ledger (account, created_at)";
+    private static final String CREATE_INTENT_TABLE_SQL =
+            "CREATE TABLE IF NOT EXISTS change_intents (id VARCHAR(36) PRIMARY KEY, deltas VARCHAR NOT NULL)";
+
     protected final Path dataFolder;
     protected Connection connection;
+    /**
+     * Held by every use of {@link #connection}, see the class documentation.
+     */
+    private final ReentrantLock connectionLock = new ReentrantLock();
+    private volatile Driver driver;
+    private boolean changeLogEnabled;
+    /**
+     * Written with every change log entry, so that entries written through this instance can be told apart.
+     */
+    private final String instanceId = UUID.randomUUID().toString();
+    private boolean groupCommitEnabled;
+    private boolean groupCommitWaitForDurability;
+    private int groupCommitMaxBatchSize;
+    private GroupCommitWriter groupCommit;
+    private boolean inMemory;
+    private long checkpointIntervalMillis;
+    private ScheduledExecutorService checkpointExecutor;
+    private final Object checkpointLock = new Object();
+    private Durability durability = Durability.STRICT;
+    private long syncIntervalMillis;
+    /**
+     * A second connection syncing committed writes to disk, so syncs don't interleave with transactions on the main connection.
+     */
+    private Connection syncConnection;
+    private ScheduledExecutorService syncExecutor;
+    @Getter
+    private volatile long lastCheckpointMillis;
+    @Getter
+    private volatile long checkpointCount;
 
     protected AbstractDatabaseStorage(Path dataFolder) {
         this.dataFolder = dataFolder;
@@ -44,22 +103,371 @@ public abstract class AbstractDatabaseStorage implements EconomyStorage {
      */
     protected abstract String getCreateTableSql();
 
+    /**
+     * Get the SQL statement to create the ledger table.
+     */
+    protected abstract String getCreateLedgerTableSql();
+
+    /**
+     * Get the SQL statement to create the change log table.
+     */
+    protected abstract String getCreateChangeLogTableSql();
+
+    /**
+     * Get the SQL statement to create the table archived accounts are moved to.
+     */
+    protected abstract String getCreateArchiveTableSql();
+
+    /**
+     * Enable recording every mutation in the change log table, so that other servers sharing the
+     * database can keep their caches coherent. Must be called before {@link #init()}.
+     *
+     * @param changeLogEnabled whether to record changes
+     */
+    public void setChangeLogEnabled(boolean changeLogEnabled) {
+        this.changeLogEnabled = changeLogEnabled;
+    }
+
+    /**
+     * Enable group commit: every write is handed to a single writer thread that commits the
+     * queued writes together in one transaction. Must be called before {@link #init()}.
+     *
+     * @param waitForDurability whether callers wait until their write has been committed,
+     *                          or only until it has been executed
+     * @param maxBatchSize      the maximum number of writes committed together
+     */
+    public void enableGroupCommit(boolean waitForDurability, int maxBatchSize) {
+        this.groupCommitEnabled = true;
+        this.groupCommitWaitForDurability = waitForDurability;
+        this.groupCommitMaxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Keep the working database in memory, loading it from the checkpoint file at {@link #init()}
+     * and writing it back at an interval and on {@link #shutdown()}. Must be called before {@link #init()}.
+     *
+     * @param checkpointIntervalMillis the interval between checkpoints in milliseconds
+     * @return false if this database doesn't support running in memory
+     */
+    public boolean enableInMemory(long checkpointIntervalMillis) {
+        if (getInMemoryJdbcUrl() == null) {
+            return false;
+        }
+        this.inMemory = true;
+        this.checkpointIntervalMillis = checkpointIntervalMillis;
+        return true;
+    }
+
+    /**
+     * Set when committed writes are synced to disk. Must be called before {@link #init()}.
+     * Has no effect in in-memory mode, where the checkpoint interval decides what can be lost.
+     *
+     * @param durability         the durability mode
+     * @param syncIntervalMillis the interval between syncs in batched mode, in milliseconds
+     */
+    public void setDurability(Durability durability, long syncIntervalMillis) {
+        this.durability = durability;
+        this.syncIntervalMillis = syncIntervalMillis;
+    }
+
+    /**
+     * Get the number of writes lost because their group failed to commit after they had returned.
+     *
+     * @return the number of lost writes, or 0 if group commit is disabled
+     * @see GroupCommitWriter#getLostWriteCount()
+     */
+    public long getLostWriteCount() {
+        return groupCommit != null ? groupCommit.getLostWriteCount() : 0;
+    }
+
+    /**
+     * Check whether the working database is kept in memory.
+     *
+     * @return true if in-memory mode is enabled
+     */
+    public boolean isInMemory() {
+        return inMemory;
+    }
+
+    /**
+     * Get the JDBC url of the in-memory database.
+     *
+     * @return the url, or null if this database can't run in memory
+     */
+    protected abstract String getInMemoryJdbcUrl();
+
+    /**
+     * Get the file the in-memory database is checkpointed to.
+     */
+    protected abstract Path getCheckpointFile();
+
+    /**
+     * Get the SQL statement that loads the in-memory database from a checkpoint file.
+     *
+     * @param file the absolute path of the checkpoint file, already escaped for use in a string literal
+     */
+    protected abstract String getRestoreSql(String file);
+
+    /**
+     * Get the SQL statement that writes the in-memory database to a checkpoint file.
+     *
+     * @param file the absolute path of the checkpoint file, already escaped for use in a string literal
+     */
+    protected abstract String getCheckpointSql(String file);
+
+    /**
+     * Get the SQL statement that writes an online backup of the database to a file.
+     *
+     * @param file the absolute path of the backup file, already escaped for use in a string literal
+     * @return the statement, or null if this database can't be backed up from here
+     */
+    protected abstract String getBackupSql(String file);
+
+    /**
+     * Get the statements that configure the main connection for a durability mode, run at {@link #init()}.
+     *
+     * @param durability         the durability mode
+     * @param syncIntervalMillis the interval between syncs in batched mode, in milliseconds
+     * @return the statements, empty if the durability is managed by a database server
+     */
+    protected abstract List<String> getDurabilitySql(Durability durability, long syncIntervalMillis);
+
+    /**
+     * Get the SQL statement that syncs every committed write to disk, run at an interval in batched
+     * mode and by {@link #save()}.
+     *
+     * @return the statement, or null if the durability is managed by a database server
+     */
+    protected abstract String getSyncSql();
+
+    /**
+     * Get an SQL expression that reads the given text expression as a number, for ordering and narrowing queries.
+     * Balances are stored as text. The number may be approximate, balances are never computed with it.
+     *
+     * @param expression the text expression, such as a column name or a parameter placeholder
+     */
+    protected abstract String toNumericSql(String expression);
+
     @SneakyThrows
     @Override
     public void init() {
-        // Load JDBC driver
-        Class.forName(getDriverClassName());
-
         Files.createDirectories(dataFolder);
-        connection = DriverManager.getConnection(getJdbcUrl());
+        connection = openConnection(inMemory ? getInMemoryJdbcUrl() : getJdbcUrl());
         try (Statement stmt = connection.createStatement()) {
+            if (!inMemory) {
+                for (String sql : getDurabilitySql(durability, syncIntervalMillis)) {
+                    stmt.execute(sql);
+                }
+            }
+            if (inMemory && Files.exists(getCheckpointFile())) {
+                long start = System.nanoTime();
+                stmt.execute(getRestoreSql(escape(getCheckpointFile())));
+                log.info("Loaded in-memory {} database from {} in {} ms", getDatabaseName(), getCheckpointFile().getFileName(),
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            }
             stmt.execute(getCreateTableSql());
+            if (!hasColumn("accounts", "version")) {
+                // Databases created before optimistic concurrency was added lack the version column
+                stmt.execute("ALTER TABLE accounts ADD COLUMN version BIGINT NOT NULL DEFAULT 0");
+            }
+            if (!hasColumn("accounts", "last_seen")) {
+                // Existing accounts count as seen now, so upgrading doesn't archive everyone at once
+                stmt.execute("ALTER TABLE accounts ADD COLUMN last_seen BIGINT NOT NULL DEFAULT 0");
+                stmt.execute("UPDATE accounts SET last_seen = " + System.currentTimeMillis());
+            }
+            stmt.execute(getCreateArchiveTableSql());
+            // Databases created before additional currencies were added lack their balance column
+            for (String table : List.of("accounts", "archived_accounts")) {
+                if (!hasColumn(table, "extra_balances")) {
+                    stmt.execute("ALTER TABLE " + table + " ADD COLUMN extra_balances VARCHAR(4096) NOT NULL DEFAULT ''");
+                }
+            }
+            stmt.execute(getCreateLedgerTableSql());
+            stmt.execute(CREATE_LEDGER_INDEX_SQL);
+            stmt.execute(getCreateChangeLogTableSql());
+            if (!hasColumn("account_changes", "origin")) {
+                // Entries logged before balances were, their balances are unknown
+                for (String column : List.of("origin", "old_balance", "new_balance")) {
+                    stmt.execute("ALTER TABLE account_changes ADD COLUMN " + column + " VARCHAR(255)");
+                }
+            }
+            stmt.execute(CREATE_INTENT_TABLE_SQL);
+        }
+        if (!inMemory && durability != Durability.STRICT && getSyncSql() != null) {
+            syncConnection = openConnection(getJdbcUrl());
+            if (durability == Durability.BATCHED) {
+                syncExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "Aconomy-" + getDatabaseName() + "-Sync");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                syncExecutor.scheduleWithFixedDelay(this::save, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (groupCommitEnabled) {
+            groupCommit = new GroupCommitWriter(connection, connectionLock, getDatabaseName(), groupCommitWaitForDurability, groupCommitMaxBatchSize);
+        }
+        if (inMemory) {
+            checkpointExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "Aconomy-" + getDatabaseName() + "-Checkpoint");
+                thread.setDaemon(true);
+                return thread;
+            });
+            checkpointExecutor.scheduleWithFixedDelay(this::checkpoint, checkpointIntervalMillis, checkpointIntervalMillis, TimeUnit.MILLISECONDS);
         }
         log.info("{} storage initialized successfully", getDatabaseName());
     }
 
+    /**
+     * Open a new connection through the JDBC driver, loading the driver on first use.
+     * <p>
+     * {@link DriverManager} only hands out drivers visible to its caller's class loader, which
+     * drivers bundled with a storage module loaded in its own class loader aren't.
+     *
+     * @param url the JDBC url to connect to
+     * @return the connection
+     */
+    protected Connection openConnection(String url) throws SQLException {
+        Driver loaded = driver;
+        if (loaded == null) {
+            try {
+                loaded = (Driver) Class.forName(getDriverClassName(), true, getClass().getClassLoader()).getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException e) {
+                throw new SQLException("Failed to load JDBC driver " + getDriverClassName(), e);
+            }
+            driver = loaded;
+        }
+        Connection opened = loaded.connect(url, new Properties());
+        if (opened == null) {
+            throw new SQLException("JDBC driver " + getDriverClassName() + " doesn't accept " + url);
+        }
+        return opened;
+    }
+
+    /**
+     * Write the in-memory database to its checkpoint file, replacing the previous checkpoint atomically.
+     *
+     * @return true if the checkpoint was written
+     */
+    public boolean checkpoint() {
+        if (!inMemory || connection == null) {
+            return false;
+        }
+        StorageCallEvent event = StorageCallEvent.begin("checkpoint", getDatabaseName(), 0);
+        synchronized (checkpointLock) {
+            long start = System.nanoTime();
+            Path file = getCheckpointFile();
+            Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+            try {
+                // Holding the connection lock, so no transaction is open while the database is written out
+                withConnection(() -> {
+                    try (Statement stmt = connection.createStatement()) {
+                        return stmt.execute(getCheckpointSql(escape(tempFile)));
+                    }
+                });
+                Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (SQLException | IOException e) {
+                log.error("Failed to checkpoint in-memory {} database", getDatabaseName(), e);
+                return false;
+            } finally {
+                event.finish();
+            }
+            lastCheckpointMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            checkpointCount++;
+            if (lastCheckpointMillis > checkpointIntervalMillis / 2) {
+                log.warn("Checkpointing the in-memory {} database took {} ms, consider a longer checkpoint interval",
+                        getDatabaseName(), lastCheckpointMillis);
+            }
+            return true;
+        }
+    }
+
+    private static String escape(Path file) {
+        return file.toAbsolutePath().toString().replace("'", "''");
+    }
+
+    @Override
+    public boolean backup(Path file) {
+        if (inMemory) {
+            // There is no database file to back up from another connection, write a checkpoint instead
+            StorageCallEvent event = StorageCallEvent.begin("backup", getDatabaseName(), 0);
+            try {
+                // Holding the connection lock, so the backup never contains half a transaction
+                withConnection(() -> {
+                    try (Statement stmt = connection.createStatement()) {
+                        return stmt.execute(getCheckpointSql(escape(file)));
+                    }
+                });
+                return true;
+            } catch (SQLException e) {
+                log.error("Failed to back up in-memory {} database", getDatabaseName(), e);
+                return false;
+            } finally {
+                event.finish();
+            }
+        }
+        StorageCallEvent event = StorageCallEvent.begin("backup", getDatabaseName(), 0);
+        try {
+            String sql = getBackupSql(escape(file));
+            if (sql == null) {
+                log.error("Online backups of this {} database are not supported, back it up on the database server", getDatabaseName());
+                return false;
+            }
+            // A separate connection, so the backup doesn't hold up writes on the main connection
+            try (Connection backupConnection = openConnection(getJdbcUrl());
+                 Statement stmt = backupConnection.createStatement()) {
+                stmt.execute(sql);
+                return true;
+            } catch (SQLException e) {
+                log.error("Failed to back up {} database", getDatabaseName(), e);
+                return false;
+            }
+        } finally {
+            event.finish();
+        }
+    }
+
+    private boolean hasColumn(String table, String column) {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.executeQuery("SELECT " + column + " FROM " + table + " WHERE 1 = 0").close();
+            return true;
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
     @Override
     public void shutdown() {
+        if (groupCommit != null) {
+            groupCommit.shutdown();
+        }
+        if (checkpointExecutor != null) {
+            checkpointExecutor.shutdown();
+            try {
+                checkpointExecutor.awaitTermination(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            // Everything written since the last checkpoint would be lost otherwise
+            checkpoint();
+        }
+        if (syncExecutor != null) {
+            syncExecutor.shutdown();
+            try {
+                syncExecutor.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (syncConnection != null) {
+            // Not synced yet in batched and relaxed mode
+            save();
+            try {
+                syncConnection.close();
+            } catch (SQLException e) {
+                log.error("Failed to close {} sync connection", getDatabaseName(), e);
+            }
+        }
         if (connection != null) {
             try {
                 connection.close();
@@ -71,138 +479,1400 @@ public abstract class AbstractDatabaseStorage implements EconomyStorage {
 
     @Override
     public boolean hasAccount(UUID uuid) {
-        String sql = "SELECT COUNT(*) FROM accounts WHERE uuid = ?";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            pstmt.setString(1, uuid.toString());
-            ResultSet rs = pstmt.executeQuery();
-            if (rs.next()) {
-                return rs.getInt(1) > 0;
+        StorageCallEvent event = StorageCallEvent.begin("hasAccount", getDatabaseName(), 1);
+        connectionLock.lock();
+        try {
+            String sql = "SELECT COUNT(*) FROM accounts WHERE uuid = ?";
+            try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+                pstmt.setString(1, uuid.toString());
+                ResultSet rs = pstmt.executeQuery();
+                if (rs.next()) {
+                    return rs.getInt(1) > 0;
+                }
+            } catch (SQLException e) {
+                log.error("Failed to check account existence", e);
             }
-        } catch (SQLException e) {
-            log.error("Failed to check account existence", e);
+            return false;
+        } finally {
+            connectionLock.unlock();
+            event.finish();
         }
-        return false;
     }
 
     @Override
     public BigDecimal getBalance(UUID uuid) {
-        String sql = "SELECT balance FROM accounts WHERE uuid = ?";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            pstmt.setString(1, uuid.toString());
-            ResultSet rs = pstmt.executeQuery();
-            if (rs.next()) {
-                return new BigDecimal(rs.getString("balance"));
+        StorageCallEvent event = StorageCallEvent.begin("getBalance", getDatabaseName(), 1);
+        connectionLock.lock();
+        try {
+            String sql = "SELECT balance FROM accounts WHERE uuid = ?";
+            try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+                pstmt.setString(1, uuid.toString());
+                ResultSet rs = pstmt.executeQuery();
+                if (rs.next()) {
+                    return new BigDecimal(rs.getString("balance"));
+                }
+            } catch (SQLException e) {
+                log.error("Failed to get balance", e);
             }
-        } catch (SQLException e) {
-            log.error("Failed to get balance", e);
+            return BigDecimal.ZERO;
+        } finally {
+            connectionLock.unlock();
+            event.finish();
         }
-        return BigDecimal.ZERO;
     }
 
     @Override
     public void setBalance(UUID uuid, BigDecimal balance) {
-        String sql = "UPDATE accounts SET balance = ? WHERE uuid = ?";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            pstmt.setString(1, balance.toPlainString());
-            pstmt.setString(2, uuid.toString());
-            pstmt.executeUpdate();
+        StorageCallEvent event = StorageCallEvent.begin("setBalance", getDatabaseName(), 1);
+        try {
+            String sql = "UPDATE accounts SET balance = ?, version = version + 1 WHERE uuid = ?";
+            writeTransaction(() -> {
+                BigDecimal oldBalance = readLoggedBalance(uuid);
+                try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+                    pstmt.setString(1, balance.toPlainString());
+                    pstmt.setString(2, uuid.toString());
+                    if (pstmt.executeUpdate() > 0) {
+                        logChange(uuid, AccountChange.Type.BALANCE, oldBalance, balance);
+                    }
+                }
+                return null;
+            });
         } catch (SQLException e) {
             log.error("Failed to set balance", e);
+        } finally {
+            event.finish();
         }
     }
 
     @Override
-    public String getAccountName(UUID uuid) {
-        String sql = "SELECT name FROM accounts WHERE uuid = ?";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            pstmt.setString(1, uuid.toString());
-            ResultSet rs = pstmt.executeQuery();
-            if (rs.next()) {
-                return rs.getString("name");
+    public VersionedBalance getVersionedBalance(UUID uuid) {
+        StorageCallEvent event = StorageCallEvent.begin("getVersionedBalance", getDatabaseName(), 1);
+        connectionLock.lock();
+        try {
+            String sql = "SELECT balance, version FROM accounts WHERE uuid = ?";
+            try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+                pstmt.setString(1, uuid.toString());
+                ResultSet rs = pstmt.executeQuery();
+                if (rs.next()) {
+                    return new VersionedBalance(new BigDecimal(rs.getString("balance")), rs.getLong("version"));
+                }
+            } catch (SQLException e) {
+                log.error("Failed to get versioned balance", e);
             }
+            return null;
+        } finally {
+            connectionLock.unlock();
+            event.finish();
+        }
+    }
+
+    @Override
+    public boolean compareAndSetBalance(UUID uuid, long expectedVersion, BigDecimal balance) {
+        StorageCallEvent event = StorageCallEvent.begin("compareAndSetBalance", getDatabaseName(), 1);
+        try {
+            String sql = "UPDATE accounts SET balance = ?, version = version + 1 WHERE uuid = ? AND version = ?";
+            return writeTransaction(() -> {
+                // Read at the expected version if the update succeeds, versions only ever grow
+                BigDecimal oldBalance = readLoggedBalance(uuid);
+                try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+                    pstmt.setString(1, balance.toPlainString());
+                    pstmt.setString(2, uuid.toString());
+                    pstmt.setLong(3, expectedVersion);
+                    if (pstmt.executeUpdate() == 0) {
+                        return false;
+                    }
+                }
+                logChange(uuid, AccountChange.Type.BALANCE, oldBalance, balance);
+                return true;
+            });
         } catch (SQLException e) {
-            log.error("Failed to get account name", e);
+            log.error("Failed to compare and set balance", e);
+            return false;
+        } finally {
+            event.finish();
+        }
+    }
+
+    @Override
+    public CurrencyBalances getCurrencyBalances(UUID uuid) {
+        StorageCallEvent event = StorageCallEvent.begin("getCurrencyBalances", getDatabaseName(), 1);
+        connectionLock.lock();
+        try {
+            String sql = "SELECT balance, extra_balances, version FROM accounts WHERE uuid = ?";
+            try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+                pstmt.setString(1, uuid.toString());
+                ResultSet rs = pstmt.executeQuery();
+                if (rs.next()) {
+                    return new CurrencyBalances(new BigDecimal(rs.getString("balance")),
+                            CurrencyBalances.decode(rs.getString("extra_balances")), rs.getLong("version"));
+                }
+            } catch (SQLException e) {
+                log.error("Failed to get currency balances", e);
+            }
+            return null;
+        } finally {
+            connectionLock.unlock();
+            event.finish();
+        }
+    }
+
+    @Override
+    public boolean compareAndSetExtraBalances(UUID uuid, long expectedVersion, long[] extra) {
+        StorageCallEvent event = StorageCallEvent.begin("compareAndSetExtraBalances", getDatabaseName(), 1);
+        try {
+            String sql = "UPDATE accounts SET extra_balances = ?, version = version + 1 WHERE uuid = ? AND version = ?";
+            return writeTransaction(() -> {
+                try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+                    pstmt.setString(1, CurrencyBalances.encode(extra));
+                    pstmt.setString(2, uuid.toString());
+                    pstmt.setLong(3, expectedVersion);
+                    if (pstmt.executeUpdate() == 0) {
+                        return false;
+                    }
+                }
+                logChange(uuid, AccountChange.Type.EXTRA_BALANCE);
+                return true;
+            });
+        } catch (SQLException e) {
+            log.error("Failed to compare and set extra balances", e);
+            return false;
+        } finally {
+            event.finish();
+        }
+    }
+
+    @Override
+    public String getAccountName(UUID uuid) {
+        StorageCallEvent event = StorageCallEvent.begin("getAccountName", getDatabaseName(), 1);
+        connectionLock.lock();
+        try {
+            String sql = "SELECT name FROM accounts WHERE uuid = ?";
+            try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+                pstmt.setString(1, uuid.toString());
+                ResultSet rs = pstmt.executeQuery();
+                if (rs.next()) {
+                    return rs.getString("name");
+                }
+            } catch (SQLException e) {
+                log.error("Failed to get account name", e);
+            }
+            return null;
+        } finally {
+            connectionLock.unlock();
+            event.finish();
         }
-        return null;
     }
 
     @Override
     public void setAccountName(UUID uuid, String name) {
-        String sql = "UPDATE accounts SET name = ? WHERE uuid = ?";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            pstmt.setString(1, name);
-            pstmt.setString(2, uuid.toString());
-            pstmt.executeUpdate();
+        StorageCallEvent event = StorageCallEvent.begin("setAccountName", getDatabaseName(), 1);
+        try {
+            String sql = "UPDATE accounts SET name = ? WHERE uuid = ?";
+            writeTransaction(() -> {
+                try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+                    pstmt.setString(1, name);
+                    pstmt.setString(2, uuid.toString());
+                    if (pstmt.executeUpdate() > 0) {
+                        logChange(uuid, AccountChange.Type.NAME);
+                    }
+                }
+                return null;
+            });
         } catch (SQLException e) {
             log.error("Failed to set account name", e);
+        } finally {
+            event.finish();
         }
     }
 
     @Override
     public boolean createAccount(UUID uuid, String name, BigDecimal initialBalance) {
-        if (hasAccount(uuid)) {
+        StorageCallEvent event = StorageCallEvent.begin("createAccount", getDatabaseName(), 1);
+        try {
+            if (hasAccount(uuid)) {
+                return false;
+            }
+            String sql = "INSERT INTO accounts (uuid, name, balance, last_seen) VALUES (?, ?, ?, ?)";
+            return writeTransaction(() -> {
+                try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+                    pstmt.setString(1, uuid.toString());
+                    pstmt.setString(2, name);
+                    pstmt.setString(3, initialBalance.toPlainString());
+                    pstmt.setLong(4, System.currentTimeMillis());
+                    pstmt.executeUpdate();
+                }
+                logChange(uuid, AccountChange.Type.CREATE, null, initialBalance);
+                return true;
+            });
+        } catch (SQLException e) {
+            log.error("Failed to create account", e);
             return false;
+        } finally {
+            event.finish();
         }
-        String sql = "INSERT INTO accounts (uuid, name, balance) VALUES (?, ?, ?)";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            pstmt.setString(1, uuid.toString());
-            pstmt.setString(2, name);
-            pstmt.setString(3, initialBalance.toPlainString());
-            pstmt.executeUpdate();
-            return true;
+    }
+
+    @Override
+    public EnsureResult ensureAccounts(Map<UUID, String> names, BigDecimal initialBalance, long lastSeen) {
+        StorageCallEvent event = StorageCallEvent.begin("ensureAccounts", getDatabaseName(), names.size());
+        try {
+            List<UUID> uuids = new ArrayList<>(names.keySet());
+            return inTransaction(() -> {
+                // Rename existing accounts first, the ones no row was updated for are missing
+                List<UUID> missing = new ArrayList<>();
+                try (PreparedStatement update = connection.prepareStatement("UPDATE accounts SET name = ?, last_seen = ? WHERE uuid = ?")) {
+                    for (UUID uuid : uuids) {
+                        update.setString(1, names.get(uuid));
+                        update.setLong(2, lastSeen);
+                        update.setString(3, uuid.toString());
+                        update.addBatch();
+                    }
+                    int[] counts = update.executeBatch();
+                    for (int i = 0; i < counts.length; i++) {
+                        if (counts[i] == 0) {
+                            missing.add(uuids.get(i));
+                        } else {
+                            logChange(uuids.get(i), AccountChange.Type.NAME);
+                        }
+                    }
+                }
+
+                Set<UUID> archived = new HashSet<>();
+                for (int i = 0; i < missing.size(); i += MAX_IN_CLAUSE_SIZE) {
+                    List<UUID> chunk = missing.subList(i, Math.min(i + MAX_IN_CLAUSE_SIZE, missing.size()));
+                    String sql = "SELECT uuid FROM archived_accounts WHERE uuid IN (" + String.join(", ", Collections.nCopies(chunk.size(), "?")) + ")";
+                    try (PreparedStatement select = connection.prepareStatement(sql)) {
+                        for (int j = 0; j < chunk.size(); j++) {
+                            select.setString(j + 1, chunk.get(j).toString());
+                        }
+                        try (ResultSet rs = select.executeQuery()) {
+                            while (rs.next()) {
+                                archived.add(UUID.fromString(rs.getString("uuid")));
+                            }
+                        }
+                    }
+                }
+
+                Set<UUID> created = new HashSet<>();
+                try (PreparedStatement insert = connection.prepareStatement("INSERT INTO accounts (uuid, name, balance, last_seen) VALUES (?, ?, ?, ?)")) {
+                    for (UUID uuid : missing) {
+                        if (archived.contains(uuid)) {
+                            continue;
+                        }
+                        insert.setString(1, uuid.toString());
+                        insert.setString(2, names.get(uuid));
+                        insert.setString(3, initialBalance.toPlainString());
+                        insert.setLong(4, lastSeen);
+                        insert.addBatch();
+                        created.add(uuid);
+                    }
+                    if (!created.isEmpty()) {
+                        insert.executeBatch();
+                    }
+                }
+                for (UUID uuid : created) {
+                    logChange(uuid, AccountChange.Type.CREATE, null, initialBalance);
+                }
+                event.setAccountCount(created.size());
+                return new EnsureResult(created, archived);
+            });
         } catch (SQLException e) {
-            log.error("Failed to create account", e);
+            log.error("Failed to ensure accounts", e);
+            return null;
+        } finally {
+            event.finish();
         }
-        return false;
     }
 
     @Override
     public boolean deleteAccount(UUID uuid) {
-        String sql = "DELETE FROM accounts WHERE uuid = ?";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            pstmt.setString(1, uuid.toString());
-            int affected = pstmt.executeUpdate();
-            return affected > 0;
+        StorageCallEvent event = StorageCallEvent.begin("deleteAccount", getDatabaseName(), 1);
+        try {
+            String sql = "DELETE FROM accounts WHERE uuid = ?";
+            return writeTransaction(() -> {
+                BigDecimal oldBalance = readLoggedBalance(uuid);
+                try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+                    pstmt.setString(1, uuid.toString());
+                    if (pstmt.executeUpdate() == 0) {
+                        return false;
+                    }
+                }
+                logChange(uuid, AccountChange.Type.DELETE, oldBalance, null);
+                return true;
+            });
         } catch (SQLException e) {
             log.error("Failed to delete account", e);
+            return false;
+        } finally {
+            event.finish();
         }
-        return false;
     }
 
     @Override
     public Map<UUID, BigDecimal> getAllBalances() {
-        Map<UUID, BigDecimal> result = new HashMap<>();
-        String sql = "SELECT uuid, balance FROM accounts";
+        StorageCallEvent event = StorageCallEvent.begin("getAllBalances", getDatabaseName(), 0);
+        connectionLock.lock();
+        try {
+            Map<UUID, BigDecimal> result = new HashMap<>();
+            String sql = "SELECT uuid, balance FROM accounts";
+            try (Statement stmt = connection.createStatement();
+                 ResultSet rs = stmt.executeQuery(sql)) {
+                while (rs.next()) {
+                    UUID uuid = UUID.fromString(rs.getString("uuid"));
+                    BigDecimal balance = new BigDecimal(rs.getString("balance"));
+                    result.put(uuid, balance);
+                }
+            } catch (SQLException e) {
+                log.error("Failed to get all balances", e);
+            }
+            event.setAccountCount(result.size());
+            return result;
+        } finally {
+            connectionLock.unlock();
+            event.finish();
+        }
+    }
+
+    @Override
+    public Set<UUID> getAllAccountIds() {
+        StorageCallEvent event = StorageCallEvent.begin("getAllAccountIds", getDatabaseName(), 0);
+        connectionLock.lock();
+        try {
+            Set<UUID> result = new HashSet<>();
+            String sql = "SELECT uuid FROM accounts";
+            try (Statement stmt = connection.createStatement();
+                 ResultSet rs = stmt.executeQuery(sql)) {
+                while (rs.next()) {
+                    result.add(UUID.fromString(rs.getString("uuid")));
+                }
+            } catch (SQLException e) {
+                log.error("Failed to get all account IDs", e);
+            }
+            event.setAccountCount(result.size());
+            return result;
+        } finally {
+            connectionLock.unlock();
+            event.finish();
+        }
+    }
+
+    @Override
+    public int getAccountCount() {
+        StorageCallEvent event = StorageCallEvent.begin("getAccountCount", getDatabaseName(), 0);
+        connectionLock.lock();
         try (Statement stmt = connection.createStatement();
-             ResultSet rs = stmt.executeQuery(sql)) {
+             ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM accounts")) {
+            return rs.next() ? rs.getInt(1) : 0;
+        } catch (SQLException e) {
+            log.error("Failed to count accounts", e);
+            return 0;
+        } finally {
+            connectionLock.unlock();
+            event.finish();
+        }
+    }
+
+    @Override
+    public List<AccountRecord> getAccountPage(UUID after, int limit) {
+        StorageCallEvent event = StorageCallEvent.begin("getAccountPage", getDatabaseName(), 0);
+        connectionLock.lock();
+        try (PreparedStatement pstmt = connection.prepareStatement(ACCOUNT_PAGE_SQL)) {
+            List<AccountRecord> page = readAccountPage(pstmt, after, limit);
+            event.setAccountCount(page.size());
+            return page;
+        } catch (SQLException e) {
+            log.error("Failed to get a page of accounts", e);
+            return List.of();
+        } finally {
+            connectionLock.unlock();
+            event.finish();
+        }
+    }
+
+    private static AccountRecord readAccountRecord(ResultSet rs) throws SQLException {
+        return new AccountRecord(UUID.fromString(rs.getString("uuid")), rs.getString("name"),
+                new BigDecimal(rs.getString("balance")), CurrencyBalances.decode(rs.getString("extra_balances")));
+    }
+
+    private static List<AccountRecord> readAccountPage(PreparedStatement pstmt, UUID after, int limit) throws SQLException {
+        List<AccountRecord> page = new ArrayList<>();
+        // Every uuid text sorts after the empty string
+        pstmt.setString(1, after != null ? after.toString() : "");
+        pstmt.setInt(2, limit);
+        try (ResultSet rs = pstmt.executeQuery()) {
             while (rs.next()) {
-                UUID uuid = UUID.fromString(rs.getString("uuid"));
-                BigDecimal balance = new BigDecimal(rs.getString("balance"));
-                result.put(uuid, balance);
+                page.add(readAccountRecord(rs));
+            }
+        }
+        return page;
+    }
+
+    @Override
+    public Map<UUID, BigDecimal> getTopBalances(int limit) {
+        StorageCallEvent event = StorageCallEvent.begin("getTopBalances", getDatabaseName(), 0);
+        connectionLock.lock();
+        try {
+            Map<UUID, BigDecimal> result = new LinkedHashMap<>();
+            // Balances are stored as text, order by their numeric value
+            String sql = "SELECT uuid, balance FROM accounts ORDER BY " + toNumericSql("balance") + " DESC LIMIT ?";
+            try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+                pstmt.setInt(1, limit);
+                ResultSet rs = pstmt.executeQuery();
+                while (rs.next()) {
+                    result.put(UUID.fromString(rs.getString("uuid")), new BigDecimal(rs.getString("balance")));
+                }
+            } catch (SQLException e) {
+                log.error("Failed to get top balances", e);
+            }
+            event.setAccountCount(result.size());
+            return result;
+        } finally {
+            connectionLock.unlock();
+            event.finish();
+        }
+    }
+
+    @Override
+    public UUID findAccountByName(String name) {
+        StorageCallEvent event = StorageCallEvent.begin("findAccountByName", getDatabaseName(), 1);
+        connectionLock.lock();
+        try {
+            // Archived accounts are found too, getting them restores them
+            for (String table : List.of("accounts", "archived_accounts")) {
+                String sql = "SELECT uuid FROM " + table + " WHERE LOWER(name) = LOWER(?)";
+                try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+                    pstmt.setString(1, name);
+                    ResultSet rs = pstmt.executeQuery();
+                    if (rs.next()) {
+                        return UUID.fromString(rs.getString("uuid"));
+                    }
+                }
             }
+            return null;
         } catch (SQLException e) {
-            log.error("Failed to get all balances", e);
+            log.error("Failed to find account by name", e);
+            return null;
+        } finally {
+            connectionLock.unlock();
+            event.finish();
         }
-        return result;
     }
 
     @Override
-    public Set<UUID> getAllAccountIds() {
-        Set<UUID> result = new HashSet<>();
-        String sql = "SELECT uuid FROM accounts";
+    public void forEachAccount(int batchSize, Consumer<List<AccountRecord>> consumer) {
+        StorageCallEvent event = StorageCallEvent.begin("forEachAccount", getDatabaseName(), 0);
+        try {
+            // Keyset pagination over the primary key, so no cursor is held open while a batch is consumed
+            int count = 0;
+            try {
+                UUID after = null;
+                while (true) {
+                    // The connection is only held for each page, not while the consumer runs
+                    UUID pageAfter = after;
+                    List<AccountRecord> batch = withConnection(() -> {
+                        try (PreparedStatement pstmt = connection.prepareStatement(ACCOUNT_PAGE_SQL)) {
+                            return readAccountPage(pstmt, pageAfter, batchSize);
+                        }
+                    });
+                    if (batch.isEmpty()) {
+                        break;
+                    }
+                    count += batch.size();
+                    consumer.accept(batch);
+                    if (batch.size() < batchSize) {
+                        break;
+                    }
+                    after = batch.getLast().uuid();
+                }
+            } catch (SQLException e) {
+                log.error("Failed to iterate accounts", e);
+            }
+            event.setAccountCount(count);
+        } finally {
+            event.finish();
+        }
+    }
+
+    @Override
+    public List<AccountRecord> snapshot() {
+        StorageCallEvent event = StorageCallEvent.begin("snapshot", getDatabaseName(), 0);
+        connectionLock.lock();
+        try {
+            List<AccountRecord> snapshot = new ArrayList<>();
+            // A single statement reads one consistent state of the table
+            String sql = "SELECT uuid, name, balance, extra_balances FROM accounts";
+            try (Statement stmt = connection.createStatement();
+                 ResultSet rs = stmt.executeQuery(sql)) {
+                while (rs.next()) {
+                    snapshot.add(readAccountRecord(rs));
+                }
+            } catch (SQLException e) {
+                throw new IllegalStateException("Failed to take a snapshot of all accounts", e);
+            }
+            event.setAccountCount(snapshot.size());
+            return snapshot;
+        } finally {
+            connectionLock.unlock();
+            event.finish();
+        }
+    }
+
+    @Override
+    public int importAccounts(List<AccountRecord> records) {
+        StorageCallEvent event = StorageCallEvent.begin("importAccounts", getDatabaseName(), records.size());
+        try {
+            String sql = "INSERT INTO accounts (uuid, name, balance, extra_balances, last_seen) VALUES (?, ?, ?, ?, ?)";
+            long now = System.currentTimeMillis();
+            // One transaction and one batched statement per batch instead of a commit per account
+            return inTransaction(() -> {
+                try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+                    for (AccountRecord record : records) {
+                        pstmt.setString(1, record.uuid().toString());
+                        pstmt.setString(2, record.name());
+                        pstmt.setString(3, record.balance().toPlainString());
+                        pstmt.setString(4, CurrencyBalances.encode(record.extra()));
+                        pstmt.setLong(5, now);
+                        pstmt.addBatch();
+                    }
+                    pstmt.executeBatch();
+                }
+                // Not recorded in the change log, an import target isn't expected to be in use yet
+                return records.size();
+            });
+        } catch (SQLException e) {
+            log.error("Failed to import accounts", e);
+            return 0;
+        } finally {
+            event.finish();
+        }
+    }
+
+    @Override
+    public void setLastSeen(UUID uuid, long time) {
+        StorageCallEvent event = StorageCallEvent.begin("setLastSeen", getDatabaseName(), 1);
+        try {
+            // Not recorded in the change log, no server caches it
+            String sql = "UPDATE accounts SET last_seen = ? WHERE uuid = ?";
+            writeTransaction(() -> {
+                try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+                    pstmt.setLong(1, time);
+                    pstmt.setString(2, uuid.toString());
+                    return pstmt.executeUpdate();
+                }
+            });
+        } catch (SQLException e) {
+            log.error("Failed to set last seen time", e);
+        } finally {
+            event.finish();
+        }
+    }
+
+    @Override
+    public List<UUID> findDormantAccounts(DormancyRule rule, UUID after, int limit) {
+        StorageCallEvent event = StorageCallEvent.begin("findDormantAccounts", getDatabaseName(), 0);
+        connectionLock.lock();
+        try {
+            List<UUID> result = new ArrayList<>();
+            String sql = "SELECT uuid FROM accounts WHERE uuid > ? AND (last_seen < ? OR (last_seen < ? AND " +
+                         toNumericSql("balance") + " = " + toNumericSql("?") + ")) ORDER BY uuid LIMIT ?";
+            try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+                pstmt.setString(1, after != null ? after.toString() : "");
+                pstmt.setLong(2, rule.seenBefore());
+                pstmt.setLong(3, rule.defaultBalanceSeenBefore());
+                pstmt.setString(4, rule.defaultBalance().toPlainString());
+                pstmt.setInt(5, limit);
+                ResultSet rs = pstmt.executeQuery();
+                while (rs.next()) {
+                    result.add(UUID.fromString(rs.getString("uuid")));
+                }
+            } catch (SQLException e) {
+                log.error("Failed to find dormant accounts", e);
+            }
+            event.setAccountCount(result.size());
+            return result;
+        } finally {
+            connectionLock.unlock();
+            event.finish();
+        }
+    }
+
+    @Override
+    public int archiveAccounts(Collection<UUID> uuids) {
+        StorageCallEvent event = StorageCallEvent.begin("archiveAccounts", getDatabaseName(), uuids.size());
+        try {
+            List<UUID> targets = new ArrayList<>(uuids);
+            long now = System.currentTimeMillis();
+            int archived = inTransaction(() -> {
+                int total = 0;
+                for (int i = 0; i < targets.size(); i += MAX_IN_CLAUSE_SIZE) {
+                    List<UUID> chunk = targets.subList(i, Math.min(i + MAX_IN_CLAUSE_SIZE, targets.size()));
+                    String in = " WHERE uuid IN (" + String.join(", ", Collections.nCopies(chunk.size(), "?")) + ")";
+                    try (PreparedStatement insert = connection.prepareStatement(
+                            "INSERT INTO archived_accounts (uuid, name, balance, extra_balances, version, last_seen, archived_at) " +
+                            "SELECT uuid, name, balance, extra_balances, version, last_seen, ? FROM accounts" + in);
+                         PreparedStatement delete = connection.prepareStatement("DELETE FROM accounts" + in)) {
+                        insert.setLong(1, now);
+                        for (int j = 0; j < chunk.size(); j++) {
+                            insert.setString(j + 2, chunk.get(j).toString());
+                            delete.setString(j + 1, chunk.get(j).toString());
+                        }
+                        insert.executeUpdate();
+                        total += delete.executeUpdate();
+                    }
+                    // Other servers drop archived accounts from their caches, their next access restores them
+                    Map<UUID, BigDecimal> balances = readLoggedBalances("archived_accounts", chunk);
+                    for (UUID uuid : chunk) {
+                        logChange(uuid, AccountChange.Type.DELETE, balances.get(uuid), null);
+                    }
+                }
+                return total;
+            });
+            event.setAccountCount(archived);
+            return archived;
+        } catch (SQLException e) {
+            log.error("Failed to archive accounts", e);
+            return 0;
+        } finally {
+            event.finish();
+        }
+    }
+
+    @Override
+    public boolean restoreAccount(UUID uuid) {
+        StorageCallEvent event = StorageCallEvent.begin("restoreAccount", getDatabaseName(), 1);
+        try {
+            return inTransaction(() -> {
+                try (PreparedStatement insert = connection.prepareStatement(
+                        "INSERT INTO accounts (uuid, name, balance, extra_balances, version, last_seen) " +
+                        "SELECT uuid, name, balance, extra_balances, version, last_seen FROM archived_accounts WHERE uuid = ?")) {
+                    insert.setString(1, uuid.toString());
+                    if (insert.executeUpdate() == 0) {
+                        return false;
+                    }
+                }
+                try (PreparedStatement delete = connection.prepareStatement("DELETE FROM archived_accounts WHERE uuid = ?")) {
+                    delete.setString(1, uuid.toString());
+                    delete.executeUpdate();
+                }
+                logChange(uuid, AccountChange.Type.CREATE, null, readLoggedBalance(uuid));
+                return true;
+            });
+        } catch (SQLException e) {
+            log.error("Failed to restore archived account", e);
+            return false;
+        } finally {
+            event.finish();
+        }
+    }
+
+    @Override
+    public int getArchivedAccountCount() {
+        StorageCallEvent event = StorageCallEvent.begin("getArchivedAccountCount", getDatabaseName(), 0);
+        connectionLock.lock();
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM archived_accounts")) {
+            return rs.next() ? rs.getInt(1) : 0;
+        } catch (SQLException e) {
+            log.error("Failed to count archived accounts", e);
+            return 0;
+        } finally {
+            connectionLock.unlock();
+            event.finish();
+        }
+    }
+
+    @Override
+    public Set<UUID> getArchivedAccountIds() {
+        StorageCallEvent event = StorageCallEvent.begin("getArchivedAccountIds", getDatabaseName(), 0);
+        connectionLock.lock();
+        try {
+            Set<UUID> result = new HashSet<>();
+            try (Statement stmt = connection.createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT uuid FROM archived_accounts")) {
+                while (rs.next()) {
+                    result.add(UUID.fromString(rs.getString("uuid")));
+                }
+            } catch (SQLException e) {
+                log.error("Failed to get archived account IDs", e);
+            }
+            event.setAccountCount(result.size());
+            return result;
+        } finally {
+            connectionLock.unlock();
+            event.finish();
+        }
+    }
+
+    @Override
+    public ChangeResult applyChanges(Map<UUID, BigDecimal> deltas) {
+        StorageCallEvent event = StorageCallEvent.begin("applyChanges", getDatabaseName(), deltas.size());
+        try {
+            return inTransaction(() -> applyDeltas(deltas));
+        } catch (WriteConflictException e) {
+            return ChangeResult.CONFLICT;
+        } catch (SQLException e) {
+            log.error("Failed to apply balance changes", e);
+            return ChangeResult.REJECTED;
+        } finally {
+            event.finish();
+        }
+    }
+
+    @Override
+    public ChangeResult applyExtraChanges(int index, Map<UUID, BigDecimal> deltas) {
+        StorageCallEvent event = StorageCallEvent.begin("applyExtraChanges", getDatabaseName(), deltas.size());
+        try {
+            return inTransaction(() -> applyExtraDeltas(index, deltas));
+        } catch (WriteConflictException e) {
+            return ChangeResult.CONFLICT;
+        } catch (SQLException e) {
+            log.error("Failed to apply extra balance changes", e);
+            return ChangeResult.REJECTED;
+        } finally {
+            event.finish();
+        }
+    }
+
+    @Override
+    public ChangeResult applyIntent(ChangeIntent intent, Map<UUID, BigDecimal> deltas) {
+        StorageCallEvent event = StorageCallEvent.begin("applyIntent", getDatabaseName(), deltas.size());
+        try {
+            return inTransaction(() -> {
+                if (hasIntent(intent.id())) {
+                    return ChangeResult.applied(Map.of());
+                }
+                ChangeResult result = intent.isExtra() ? applyExtraDeltas(intent.extraIndex(), deltas) : applyDeltas(deltas);
+                if (result.isApplied()) {
+                    try (PreparedStatement insert = connection.prepareStatement("INSERT INTO change_intents (id, deltas) VALUES (?, ?)")) {
+                        insert.setString(1, intent.id());
+                        insert.setString(2, intent.encodeDeltas());
+                        insert.executeUpdate();
+                    }
+                }
+                return result;
+            });
+        } catch (WriteConflictException e) {
+            return ChangeResult.CONFLICT;
+        } catch (SQLException e) {
+            log.error("Failed to apply part of change {}", intent.id(), e);
+            return ChangeResult.REJECTED;
+        } finally {
+            event.finish();
+        }
+    }
+
+    @Override
+    public ChangeResult revertIntent(ChangeIntent intent, Map<UUID, BigDecimal> deltas) {
+        StorageCallEvent event = StorageCallEvent.begin("revertIntent", getDatabaseName(), deltas.size());
+        try {
+            return inTransaction(() -> {
+                if (!hasIntent(intent.id())) {
+                    return ChangeResult.applied(Map.of());
+                }
+                Map<UUID, BigDecimal> inverse = new HashMap<>();
+                deltas.forEach((uuid, delta) -> inverse.put(uuid, delta.negate()));
+                ChangeResult result = intent.isExtra() ? applyExtraDeltas(intent.extraIndex(), inverse) : applyDeltas(inverse);
+                if (result.isApplied()) {
+                    try (PreparedStatement delete = connection.prepareStatement("DELETE FROM change_intents WHERE id = ?")) {
+                        delete.setString(1, intent.id());
+                        delete.executeUpdate();
+                    }
+                }
+                return result;
+            });
+        } catch (WriteConflictException e) {
+            return ChangeResult.CONFLICT;
+        } catch (SQLException e) {
+            log.error("Failed to revert part of change {}", intent.id(), e);
+            return ChangeResult.REJECTED;
+        } finally {
+            event.finish();
+        }
+    }
+
+    private boolean hasIntent(String id) throws SQLException {
+        try (PreparedStatement select = connection.prepareStatement("SELECT 1 FROM change_intents WHERE id = ?")) {
+            select.setString(1, id);
+            try (ResultSet rs = select.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
+    @Override
+    public List<ChangeIntent> getIntents() {
+        StorageCallEvent event = StorageCallEvent.begin("getIntents", getDatabaseName(), 0);
+        connectionLock.lock();
         try (Statement stmt = connection.createStatement();
-             ResultSet rs = stmt.executeQuery(sql)) {
+             ResultSet rs = stmt.executeQuery("SELECT id, deltas FROM change_intents")) {
+            List<ChangeIntent> intents = new ArrayList<>();
             while (rs.next()) {
-                result.add(UUID.fromString(rs.getString("uuid")));
+                intents.add(ChangeIntent.decode(rs.getString("id"), rs.getString("deltas")));
             }
+            return intents;
         } catch (SQLException e) {
-            log.error("Failed to get all account IDs", e);
+            log.error("Failed to get recorded changes", e);
+            return List.of();
+        } finally {
+            connectionLock.unlock();
+            event.finish();
+        }
+    }
+
+    @Override
+    public void removeIntents(Collection<String> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        StorageCallEvent event = StorageCallEvent.begin("removeIntents", getDatabaseName(), 0);
+        try {
+            writeTransaction(() -> {
+                try (PreparedStatement delete = connection.prepareStatement("DELETE FROM change_intents WHERE id = ?")) {
+                    for (String id : ids) {
+                        delete.setString(1, id);
+                        delete.addBatch();
+                    }
+                    return delete.executeBatch();
+                }
+            });
+        } catch (SQLException e) {
+            log.error("Failed to remove {} recorded changes", ids.size(), e);
+        } finally {
+            event.finish();
+        }
+    }
+
+    /**
+     * Add the given amounts to the balances, inside a transaction.
+     */
+    private ChangeResult applyDeltas(Map<UUID, BigDecimal> deltas) throws SQLException {
+        // Read in a consistent order so concurrent multi-account transactions cannot deadlock
+        List<UUID> ordered = new ArrayList<>(deltas.keySet());
+        Collections.sort(ordered);
+
+        Map<UUID, VersionedBalance> newBalances = new LinkedHashMap<>();
+        try (PreparedStatement select = connection.prepareStatement("SELECT balance, version FROM accounts WHERE uuid = ?")) {
+            for (UUID uuid : ordered) {
+                select.setString(1, uuid.toString());
+                try (ResultSet rs = select.executeQuery()) {
+                    if (!rs.next()) {
+                        return ChangeResult.REJECTED;
+                    }
+                    BigDecimal newBalance = new BigDecimal(rs.getString("balance")).add(deltas.get(uuid));
+                    if (newBalance.compareTo(BigDecimal.ZERO) < 0) {
+                        return ChangeResult.REJECTED;
+                    }
+                    newBalances.put(uuid, new VersionedBalance(newBalance, rs.getLong("version")));
+                }
+            }
+        }
+
+        // Compare-and-set every row, so a write from another node in between aborts the whole change
+        String sql = "UPDATE accounts SET balance = ?, version = version + 1 WHERE uuid = ? AND version = ?";
+        try (PreparedStatement update = connection.prepareStatement(sql)) {
+            for (Map.Entry<UUID, VersionedBalance> entry : newBalances.entrySet()) {
+                update.setString(1, entry.getValue().balance().toPlainString());
+                update.setString(2, entry.getKey().toString());
+                update.setLong(3, entry.getValue().version());
+                update.addBatch();
+            }
+            for (int count : update.executeBatch()) {
+                if (count == 0) {
+                    throw new WriteConflictException();
+                }
+            }
+        }
+        for (Map.Entry<UUID, VersionedBalance> entry : newBalances.entrySet()) {
+            BigDecimal newBalance = entry.getValue().balance();
+            logChange(entry.getKey(), AccountChange.Type.BALANCE, newBalance.subtract(deltas.get(entry.getKey())), newBalance);
+        }
+
+        Map<UUID, BigDecimal> result = new HashMap<>();
+        newBalances.forEach((uuid, balance) -> result.put(uuid, balance.balance()));
+        return ChangeResult.applied(result);
+    }
+
+    /**
+     * Add the given amounts in smallest units to the balances of an additional currency, inside a transaction.
+     */
+    private ChangeResult applyExtraDeltas(int index, Map<UUID, BigDecimal> deltas) throws SQLException {
+        List<UUID> ordered = new ArrayList<>(deltas.keySet());
+        Collections.sort(ordered);
+
+        Map<UUID, CurrencyBalances> newBalances = new LinkedHashMap<>();
+        try (PreparedStatement select = connection.prepareStatement("SELECT extra_balances, version FROM accounts WHERE uuid = ?")) {
+            for (UUID uuid : ordered) {
+                select.setString(1, uuid.toString());
+                try (ResultSet rs = select.executeQuery()) {
+                    if (!rs.next()) {
+                        return ChangeResult.REJECTED;
+                    }
+                    CurrencyBalances balances = new CurrencyBalances(BigDecimal.ZERO, CurrencyBalances.decode(rs.getString("extra_balances")), rs.getLong("version"));
+                    long newUnits;
+                    try {
+                        newUnits = Math.addExact(balances.extra(index), deltas.get(uuid).longValueExact());
+                    } catch (ArithmeticException e) {
+                        return ChangeResult.REJECTED;
+                    }
+                    if (newUnits < 0) {
+                        return ChangeResult.REJECTED;
+                    }
+                    newBalances.put(uuid, new CurrencyBalances(BigDecimal.ZERO, balances.withExtra(index, newUnits), balances.version()));
+                }
+            }
+        }
+
+        String sql = "UPDATE accounts SET extra_balances = ?, version = version + 1 WHERE uuid = ? AND version = ?";
+        try (PreparedStatement update = connection.prepareStatement(sql)) {
+            for (Map.Entry<UUID, CurrencyBalances> entry : newBalances.entrySet()) {
+                update.setString(1, CurrencyBalances.encode(entry.getValue().extra()));
+                update.setString(2, entry.getKey().toString());
+                update.setLong(3, entry.getValue().version());
+                update.addBatch();
+            }
+            for (int count : update.executeBatch()) {
+                if (count == 0) {
+                    throw new WriteConflictException();
+                }
+            }
+        }
+        Map<UUID, BigDecimal> result = new HashMap<>();
+        for (Map.Entry<UUID, CurrencyBalances> entry : newBalances.entrySet()) {
+            logChange(entry.getKey(), AccountChange.Type.EXTRA_BALANCE);
+            result.put(entry.getKey(), BigDecimal.valueOf(entry.getValue().extra(index)));
+        }
+        return ChangeResult.applied(result);
+    }
+
+    @Override
+    public List<BalanceUpdate> bulkUpdate(BulkOperation operation, BigDecimal amount, int scale, Collection<UUID> uuids, BalanceFilter filter) {
+        StorageCallEvent event = StorageCallEvent.begin("bulkUpdate", getDatabaseName(), 0);
+        try {
+            // The numeric comparisons only narrow the rows read, whether an account matches is decided exactly
+            StringBuilder sql = new StringBuilder();
+            List<String> parameters = new ArrayList<>();
+            if (filter != null && filter.min() != null) {
+                sql.append(" AND ").append(toNumericSql("balance")).append(" >= ").append(toNumericSql("?"));
+                parameters.add(filter.min().toPlainString());
+            }
+            if (filter != null && filter.max() != null) {
+                sql.append(" AND ").append(toNumericSql("balance")).append(" <= ").append(toNumericSql("?"));
+                parameters.add(filter.max().toPlainString());
+            }
+            String condition = sql.toString();
+            UnaryOperator<BigDecimal> update = balance -> filter == null || filter.matches(balance)
+                    ? operation.apply(balance, amount, scale)
+                    : null;
+
+            List<BalanceUpdate> updates = inTransaction(() -> {
+                // Other servers can't tell which rows a bulk update touched, so log it as one bulk change
+                logChange(null, AccountChange.Type.BULK);
+                List<BalanceUpdate> changed = new ArrayList<>();
+                if (uuids == null) {
+                    rewriteBalances(condition, parameters, update, changed);
+                    return changed;
+                }
+                List<UUID> targets = new ArrayList<>(uuids);
+                for (int i = 0; i < targets.size(); i += MAX_IN_CLAUSE_SIZE) {
+                    List<UUID> chunk = targets.subList(i, Math.min(i + MAX_IN_CLAUSE_SIZE, targets.size()));
+                    List<String> chunkParameters = new ArrayList<>(parameters);
+                    chunk.forEach(uuid -> chunkParameters.add(uuid.toString()));
+                    String chunkCondition = condition + " AND uuid IN (" + String.join(", ", Collections.nCopies(chunk.size(), "?")) + ")";
+                    rewriteBalances(chunkCondition, chunkParameters, update, changed);
+                }
+                return changed;
+            });
+            event.setAccountCount(updates.size());
+            return updates;
+        } catch (WriteConflictException e) {
+            log.warn("Bulk update conflicted with a write from another server, nothing was applied");
+            return List.of();
+        } catch (SQLException e) {
+            log.error("Failed to apply bulk update", e);
+            return List.of();
+        } finally {
+            event.finish();
+        }
+    }
+
+    @Override
+    public AdjustmentResult applyAdjustment(RateAdjustment adjustment) {
+        StorageCallEvent event = StorageCallEvent.begin("applyAdjustment", getDatabaseName(), 0);
+        try {
+            // The numeric comparison only narrows the rows read, whether an account matches is decided exactly
+            String condition = " AND " + toNumericSql("balance") + " >= " + toNumericSql("?");
+            AdjustmentResult result = inTransaction(() -> {
+                AdjustmentResult changed = rewriteBalances(condition, List.of(adjustment.threshold().toPlainString()),
+                        balance -> adjustment.matches(balance) ? balance.add(adjustment.changeFor(balance)) : null, null);
+                logChange(null, AccountChange.Type.BULK);
+                return changed;
+            });
+            event.setAccountCount(result.accounts());
+            return result;
+        } catch (WriteConflictException e) {
+            log.warn("Rate adjustment conflicted with a write from another server, nothing was applied");
+            return null;
+        } catch (SQLException e) {
+            log.error("Failed to apply rate adjustment", e);
+            return null;
+        } finally {
+            event.finish();
+        }
+    }
+
+    /**
+     * Recompute balances with BigDecimal arithmetic and write them back in batches, page by page, so the
+     * result is exact on every backend. Must run inside a transaction.
+     *
+     * @param condition  an SQL condition starting with AND, narrowing the accounts read
+     * @param parameters the parameters of the condition
+     * @param update     computes the new balance from the old one, or returns null to leave the account unchanged
+     * @param changed    receives every balance changed, or null
+     * @return the number of accounts changed and the sum of their changes
+     */
+    private AdjustmentResult rewriteBalances(String condition, List<String> parameters, UnaryOperator<BigDecimal> update,
+                                             List<BalanceUpdate> changed) throws SQLException {
+        String selectSql = "SELECT uuid, balance, version FROM accounts WHERE uuid > ?" + condition + " ORDER BY uuid LIMIT ?";
+        String updateSql = "UPDATE accounts SET balance = ?, version = version + 1 WHERE uuid = ? AND version = ?";
+        int accounts = 0;
+        BigDecimal total = BigDecimal.ZERO;
+        try (PreparedStatement select = connection.prepareStatement(selectSql);
+             PreparedStatement updateStmt = connection.prepareStatement(updateSql)) {
+            String after = "";
+            while (true) {
+                int index = 1;
+                select.setString(index++, after);
+                for (String parameter : parameters) {
+                    select.setString(index++, parameter);
+                }
+                select.setInt(index, BALANCE_PAGE_SIZE);
+                int read = 0;
+                try (ResultSet rs = select.executeQuery()) {
+                    while (rs.next()) {
+                        read++;
+                        after = rs.getString("uuid");
+                        BigDecimal balance = new BigDecimal(rs.getString("balance"));
+                        BigDecimal newBalance = update.apply(balance);
+                        if (newBalance == null || newBalance.compareTo(balance) == 0) {
+                            continue;
+                        }
+                        updateStmt.setString(1, newBalance.toPlainString());
+                        updateStmt.setString(2, after);
+                        updateStmt.setLong(3, rs.getLong("version"));
+                        updateStmt.addBatch();
+                        accounts++;
+                        total = total.add(newBalance.subtract(balance));
+                        if (changed != null) {
+                            changed.add(new BalanceUpdate(UUID.fromString(after), balance, newBalance));
+                        }
+                    }
+                }
+                for (int count : updateStmt.executeBatch()) {
+                    if (count == 0) {
+                        // Changed by another server since it was read, the whole operation is rolled back
+                        throw new WriteConflictException();
+                    }
+                }
+                if (read < BALANCE_PAGE_SIZE) {
+                    return new AdjustmentResult(accounts, total);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void appendLedgerEntries(List<LedgerEntry> entries) {
+        StorageCallEvent event = StorageCallEvent.begin("appendLedgerEntries", getDatabaseName(), entries.size());
+        String sql = "INSERT INTO ledger (created_at, account, counterparty, amount, balance, cause) VALUES (?, ?, ?, ?, ?, ?)";
+        try {
+            inTransaction(() -> {
+                try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+                    for (LedgerEntry entry : entries) {
+                        pstmt.setLong(1, entry.time());
+                        pstmt.setString(2, entry.account().toString());
+                        pstmt.setString(3, entry.counterparty() != null ? entry.counterparty().toString() : null);
+                        pstmt.setString(4, entry.amount().toPlainString());
+                        pstmt.setString(5, entry.balance().toPlainString());
+                        pstmt.setString(6, entry.cause());
+                        pstmt.addBatch();
+                    }
+                    return pstmt.executeBatch();
+                }
+            });
+        } catch (SQLException e) {
+            log.error("Failed to append ledger entries", e);
+        } finally {
+            event.finish();
+        }
+    }
+
+    @Override
+    public List<LedgerEntry> getLedgerEntries(UUID uuid, long fromTime, long toTime, int offset, int limit) {
+        StorageCallEvent event = StorageCallEvent.begin("getLedgerEntries", getDatabaseName(), 1);
+        connectionLock.lock();
+        try {
+            List<LedgerEntry> result = new ArrayList<>();
+            String sql = "SELECT created_at, counterparty, amount, balance, cause FROM ledger " +
+                         "WHERE account = ? AND created_at >= ? AND created_at < ? " +
+                         "ORDER BY created_at DESC, id DESC LIMIT ? OFFSET ?";
+            try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+                pstmt.setString(1, uuid.toString());
+                pstmt.setLong(2, fromTime);
+                pstmt.setLong(3, toTime);
+                pstmt.setInt(4, limit);
+                pstmt.setInt(5, offset);
+                ResultSet rs = pstmt.executeQuery();
+                while (rs.next()) {
+                    String counterparty = rs.getString("counterparty");
+                    result.add(new LedgerEntry(
+                            rs.getLong("created_at"),
+                            uuid,
+                            counterparty != null ? UUID.fromString(counterparty) : null,
+                            new BigDecimal(rs.getString("amount")),
+                            new BigDecimal(rs.getString("balance")),
+                            rs.getString("cause")
+                    ));
+                }
+            } catch (SQLException e) {
+                log.error("Failed to get ledger entries", e);
+            }
+            return result;
+        } finally {
+            connectionLock.unlock();
+            event.finish();
+        }
+    }
+
+    @Override
+    public List<AccountChange> getChangesSince(long sequence, int limit) {
+        StorageCallEvent event = StorageCallEvent.begin("getChangesSince", getDatabaseName(), 0);
+        connectionLock.lock();
+        try {
+            List<AccountChange> result = new ArrayList<>();
+            String sql = "SELECT seq, uuid, change_type, origin, old_balance, new_balance FROM account_changes WHERE seq > ? ORDER BY seq LIMIT ?";
+            try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+                pstmt.setLong(1, sequence);
+                pstmt.setInt(2, limit);
+                ResultSet rs = pstmt.executeQuery();
+                while (rs.next()) {
+                    String uuid = rs.getString("uuid");
+                    String oldBalance = rs.getString("old_balance");
+                    String newBalance = rs.getString("new_balance");
+                    result.add(new AccountChange(
+                            rs.getLong("seq"),
+                            uuid != null ? UUID.fromString(uuid) : null,
+                            AccountChange.Type.valueOf(rs.getString("change_type")),
+                            oldBalance != null ? new BigDecimal(oldBalance) : null,
+                            newBalance != null ? new BigDecimal(newBalance) : null,
+                            instanceId.equals(rs.getString("origin"))
+                    ));
+                }
+            } catch (SQLException e) {
+                log.error("Failed to get changes", e);
+            }
+            event.setAccountCount(result.size());
+            return result;
+        } finally {
+            connectionLock.unlock();
+            event.finish();
+        }
+    }
+
+    @Override
+    public long getLatestChangeSequence() {
+        StorageCallEvent event = StorageCallEvent.begin("getLatestChangeSequence", getDatabaseName(), 0);
+        connectionLock.lock();
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT MAX(seq) FROM account_changes")) {
+            return rs.next() ? rs.getLong(1) : 0;
+        } catch (SQLException e) {
+            log.error("Failed to get latest change sequence", e);
+            return 0;
+        } finally {
+            connectionLock.unlock();
+            event.finish();
+        }
+    }
+
+    @Override
+    public void pruneChanges(long beforeTime) {
+        StorageCallEvent event = StorageCallEvent.begin("pruneChanges", getDatabaseName(), 0);
+        try {
+            writeTransaction(() -> {
+                try (PreparedStatement pstmt = connection.prepareStatement("DELETE FROM account_changes WHERE created_at < ?")) {
+                    pstmt.setLong(1, beforeTime);
+                    return pstmt.executeUpdate();
+                }
+            });
+        } catch (SQLException e) {
+            log.error("Failed to prune changes", e);
+        } finally {
+            event.finish();
+        }
+    }
+
+    /**
+     * Record a mutation in the change log, as part of the current transaction.
+     *
+     * @param uuid the changed account, or null for changes affecting many accounts
+     * @param type the kind of change
+     */
+    private void logChange(UUID uuid, AccountChange.Type type) throws SQLException {
+        logChange(uuid, type, null, null);
+    }
+
+    /**
+     * Record a mutation in the change log along with the default currency balances it changed, as
+     * part of the current transaction.
+     *
+     * @param uuid       the changed account, or null for changes affecting many accounts
+     * @param type       the kind of change
+     * @param oldBalance the balance before the change, or null
+     * @param newBalance the balance after the change, or null
+     */
+    private void logChange(UUID uuid, AccountChange.Type type, BigDecimal oldBalance, BigDecimal newBalance) throws SQLException {
+        if (!changeLogEnabled) {
+            return;
+        }
+        String sql = "INSERT INTO account_changes (uuid, change_type, created_at, origin, old_balance, new_balance) VALUES (?, ?, ?, ?, ?, ?)";
+        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+            pstmt.setString(1, uuid != null ? uuid.toString() : null);
+            pstmt.setString(2, type.name());
+            pstmt.setLong(3, System.currentTimeMillis());
+            pstmt.setString(4, instanceId);
+            pstmt.setString(5, oldBalance != null ? oldBalance.toPlainString() : null);
+            pstmt.setString(6, newBalance != null ? newBalance.toPlainString() : null);
+            pstmt.executeUpdate();
+        }
+    }
+
+    /**
+     * Read the balance of an account for the change log, as part of the current transaction.
+     *
+     * @param uuid the account
+     * @return the balance, or null if the change log is disabled or the account doesn't exist
+     */
+    private BigDecimal readLoggedBalance(UUID uuid) throws SQLException {
+        return readLoggedBalances("accounts", List.of(uuid)).get(uuid);
+    }
+
+    /**
+     * Read the balances of several accounts for the change log, as part of the current transaction.
+     *
+     * @param table the table holding the accounts
+     * @param uuids the accounts, at most {@link #MAX_IN_CLAUSE_SIZE}
+     * @return the balance of every account found, empty if the change log is disabled
+     */
+    private Map<UUID, BigDecimal> readLoggedBalances(String table, List<UUID> uuids) throws SQLException {
+        Map<UUID, BigDecimal> balances = new HashMap<>();
+        if (!changeLogEnabled || uuids.isEmpty()) {
+            return balances;
+        }
+        String sql = "SELECT uuid, balance FROM " + table + " WHERE uuid IN (" + String.join(", ", Collections.nCopies(uuids.size(), "?")) + ")";
+        try (PreparedStatement select = connection.prepareStatement(sql)) {
+            for (int i = 0; i < uuids.size(); i++) {
+                select.setString(i + 1, uuids.get(i).toString());
+            }
+            try (ResultSet rs = select.executeQuery()) {
+                while (rs.next()) {
+                    balances.put(UUID.fromString(rs.getString("uuid")), new BigDecimal(rs.getString("balance")));
+                }
+            }
+        }
+        return balances;
+    }
+
+    /**
+     * Run a single-row write through the group commit writer if enabled, otherwise in a transaction
+     * only if the change log needs to be written along with it.
+     *
+     * @param work the work to run
+     * @return the result of the work
+     */
+    private <T> T writeTransaction(SqlWork<T> work) throws SQLException {
+        if (groupCommit != null) {
+            return groupCommit.execute(work);
+        }
+        return changeLogEnabled ? inTransaction(work) : withConnection(work);
+    }
+
+    /**
+     * Run the given work holding the connection lock.
+     * <p>
+     * Must not be used around writes with group commit enabled, the writer thread needs the lock to run them.
+     *
+     * @param work the work to run
+     * @return the result of the work
+     */
+    private <T> T withConnection(SqlWork<T> work) throws SQLException {
+        connectionLock.lock();
+        try {
+            return work.run();
+        } finally {
+            connectionLock.unlock();
+        }
+    }
+
+    /**
+     * Run the given work in a single transaction, rolling back if it fails.
+     *
+     * @param work the work to run
+     * @return the result of the work
+     */
+    protected <T> T inTransaction(SqlWork<T> work) throws SQLException {
+        if (groupCommit != null) {
+            // The writer thread wraps every write in its own savepoint inside the group's transaction
+            return groupCommit.execute(work);
+        }
+        connectionLock.lock();
+        try {
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try {
+                T result = work.run();
+                connection.commit();
+                return result;
+            } catch (SQLException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        } finally {
+            connectionLock.unlock();
         }
-        return result;
     }
 
     @Override
     public void save() {
-        // Most databases auto-commit by default, nothing to do here
+        // Every write is committed as it happens, what is left is syncing the commits in batched and relaxed mode
+        if (syncConnection == null) {
+            return;
+        }
+        StorageCallEvent event = StorageCallEvent.begin("save", getDatabaseName(), 0);
+        try (Statement stmt = syncConnection.createStatement()) {
+            stmt.execute(getSyncSql());
+        } catch (SQLException e) {
+            log.error("Failed to sync {} database to disk", getDatabaseName(), e);
+        } finally {
+            event.finish();
+        }
+    }
+
+    /**
+     * Thrown inside a transaction to roll it back when a compare-and-set update loses a race.
+     */
+    private static class WriteConflictException extends RuntimeException {
+        WriteConflictException() {
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * A unit of JDBC work that may throw {@link SQLException}.
+     */
+    @FunctionalInterface
+    protected interface SqlWork<T> {
+        T run() throws SQLException;
     }
 }
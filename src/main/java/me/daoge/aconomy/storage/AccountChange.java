@@ -0,0 +1,33 @@
+package me.daoge.aconomy.storage;
+
+import java.math.BigDecimal;
+import java.util.UUID;
+
+/**
+ * An entry of the storage change log, used to keep caches on several servers sharing one database coherent.
+ *
+ * @param sequence   the monotonically increasing sequence number of the change
+ * @param uuid       the account that changed, or null for changes affecting many accounts
+ * @param type       the kind of change
+ * @param oldBalance the default currency balance before the change, null if the account didn't exist or the balance didn't change
+ * @param newBalance the default currency balance after the change, null if the account was removed or the balance didn't change
+ * @param local      whether the change was made through this storage instance
+ * @author daoge_cmd
+ */
+public record AccountChange(long sequence, UUID uuid, Type type, BigDecimal oldBalance, BigDecimal newBalance, boolean local) {
+
+    public enum Type {
+        CREATE,
+        DELETE,
+        BALANCE,
+        /**
+         * Only balances of additional currencies changed, the default currency balance did not.
+         */
+        EXTRA_BALANCE,
+        NAME,
+        /**
+         * A bulk update that may have touched any account.
+         */
+        BULK
+    }
+}
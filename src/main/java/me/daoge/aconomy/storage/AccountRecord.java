@@ -0,0 +1,25 @@
+package me.daoge.aconomy.storage;
+
+import java.math.BigDecimal;
+import java.util.UUID;
+
+/**
+ * A snapshot of one account, used to stream accounts out of and into a storage.
+ *
+ * @param uuid    the unique identifier of the account
+ * @param name    the account name, may be null
+ * @param balance the account balance
+ * @param extra   the balances of the additional currencies, see {@link CurrencyBalances#extra()}
+ * @author daoge_cmd
+ */
+public record AccountRecord(UUID uuid, String name, BigDecimal balance, long[] extra) {
+
+    private static final long[] NO_EXTRA_BALANCES = new long[0];
+
+    /**
+     * Create a record of an account that only has a default currency balance.
+     */
+    public AccountRecord(UUID uuid, String name, BigDecimal balance) {
+        this(uuid, name, balance, NO_EXTRA_BALANCES);
+    }
+}
@@ -0,0 +1,15 @@
+package me.daoge.aconomy.storage;
+
+import java.math.BigDecimal;
+
+/**
+ * The outcome of applying a {@link RateAdjustment}.
+ *
+ * @param accounts the number of accounts changed
+ * @param total    the sum of all changes, negative if money was taken away
+ * @author daoge_cmd
+ */
+public record AdjustmentResult(int accounts, BigDecimal total) {
+
+    public static final AdjustmentResult NONE = new AdjustmentResult(0, BigDecimal.ZERO);
+}
@@ -0,0 +1,26 @@
+package me.daoge.aconomy.storage;
+
+import java.math.BigDecimal;
+
+/**
+ * An inclusive balance range used to select accounts for bulk operations.
+ *
+ * @param min the minimum balance (inclusive), or null for no lower bound
+ * @param max the maximum balance (inclusive), or null for no upper bound
+ * @author daoge_cmd
+ */
+public record BalanceFilter(BigDecimal min, BigDecimal max) {
+
+    /**
+     * Check whether a balance is within this filter.
+     *
+     * @param balance the balance to check
+     * @return true if the balance matches
+     */
+    public boolean matches(BigDecimal balance) {
+        if (min != null && balance.compareTo(min) < 0) {
+            return false;
+        }
+        return max == null || balance.compareTo(max) <= 0;
+    }
+}
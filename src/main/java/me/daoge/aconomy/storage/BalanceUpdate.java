@@ -0,0 +1,15 @@
+package me.daoge.aconomy.storage;
+
+import java.math.BigDecimal;
+import java.util.UUID;
+
+/**
+ * A default currency balance changed by a bulk update.
+ *
+ * @param uuid       the account that changed
+ * @param oldBalance the balance before the update
+ * @param newBalance the balance after the update
+ * @author daoge_cmd
+ */
+public record BalanceUpdate(UUID uuid, BigDecimal oldBalance, BigDecimal newBalance) {
+}
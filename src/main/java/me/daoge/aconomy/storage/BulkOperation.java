@@ -0,0 +1,42 @@
+package me.daoge.aconomy.storage;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Operations that can be applied to many account balances at once.
+ *
+ * @author daoge_cmd
+ */
+public enum BulkOperation {
+
+    /**
+     * Add the amount to the balance.
+     */
+    DEPOSIT,
+    /**
+     * Replace the balance with the amount.
+     */
+    SET,
+    /**
+     * Multiply the balance by the amount.
+     */
+    MULTIPLY;
+
+    /**
+     * Apply this operation to a single balance.
+     *
+     * @param balance the current balance
+     * @param amount  the operand of the operation
+     * @param scale   the number of fraction digits of the currency, the new balance is rounded to it
+     * @return the new balance
+     */
+    public BigDecimal apply(BigDecimal balance, BigDecimal amount, int scale) {
+        BigDecimal result = switch (this) {
+            case DEPOSIT -> balance.add(amount);
+            case SET -> amount;
+            case MULTIPLY -> balance.multiply(amount);
+        };
+        return result.setScale(scale, RoundingMode.HALF_UP).stripTrailingZeros();
+    }
+}
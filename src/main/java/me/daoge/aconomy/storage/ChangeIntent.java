@@ -0,0 +1,95 @@
+package me.daoge.aconomy.storage;
+
+import java.math.BigDecimal;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * A change spanning several storages, recorded by each storage in the same transaction as its part of
+ * the change. After a crash, the storages holding the record tell which parts were applied.
+ *
+ * @param id         the unique id of the change
+ * @param deltas     the amount added to each account's balance by the whole change, in smallest units
+ *                   for an additional currency
+ * @param extraIndex the currency ordinal minus one, or {@link #DEFAULT_CURRENCY}
+ * @author daoge_cmd
+ */
+public record ChangeIntent(String id, Map<UUID, BigDecimal> deltas, int extraIndex) {
+
+    /**
+     * The {@link #extraIndex()} of changes to the default currency balance.
+     */
+    public static final int DEFAULT_CURRENCY = -1;
+
+    /**
+     * Create an intent changing default currency balances, with a new random id.
+     *
+     * @param deltas the amount added to each account's balance by the whole change
+     * @return the intent
+     */
+    public static ChangeIntent of(Map<UUID, BigDecimal> deltas) {
+        return of(DEFAULT_CURRENCY, deltas);
+    }
+
+    /**
+     * Create an intent with a new random id.
+     *
+     * @param extraIndex the currency ordinal minus one, or {@link #DEFAULT_CURRENCY}
+     * @param deltas     the amount added to each account's balance by the whole change
+     * @return the intent
+     */
+    public static ChangeIntent of(int extraIndex, Map<UUID, BigDecimal> deltas) {
+        return new ChangeIntent(UUID.randomUUID().toString(), Map.copyOf(deltas), extraIndex);
+    }
+
+    /**
+     * Whether this intent changes the balances of an additional currency.
+     *
+     * @return true for an additional currency, false for the default currency
+     */
+    public boolean isExtra() {
+        return extraIndex != DEFAULT_CURRENCY;
+    }
+
+    /**
+     * Encode the changes for a text column.
+     *
+     * @return the changes as uuid=amount pairs separated by commas, led by #index; for an additional currency
+     */
+    public String encodeDeltas() {
+        StringBuilder text = new StringBuilder();
+        if (isExtra()) {
+            text.append('#').append(extraIndex).append(';');
+        }
+        for (Map.Entry<UUID, BigDecimal> entry : deltas.entrySet()) {
+            if (!text.isEmpty() && text.charAt(text.length() - 1) != ';') {
+                text.append(',');
+            }
+            text.append(entry.getKey()).append('=').append(entry.getValue().toPlainString());
+        }
+        return text.toString();
+    }
+
+    /**
+     * Decode an intent whose changes were written by {@link #encodeDeltas()}.
+     *
+     * @param id     the id of the intent
+     * @param deltas the encoded changes
+     * @return the intent
+     */
+    public static ChangeIntent decode(String id, String deltas) {
+        int extraIndex = DEFAULT_CURRENCY;
+        if (deltas.startsWith("#")) {
+            int end = deltas.indexOf(';');
+            extraIndex = Integer.parseInt(deltas.substring(1, end));
+            deltas = deltas.substring(end + 1);
+        }
+        Map<UUID, BigDecimal> decoded = new LinkedHashMap<>();
+        for (String pair : deltas.split(",")) {
+            int separator = pair.indexOf('=');
+            decoded.put(UUID.fromString(pair.substring(0, separator)), new BigDecimal(pair.substring(separator + 1)));
+        }
+        return new ChangeIntent(id, decoded, extraIndex);
+    }
+}
@@ -0,0 +1,47 @@
+package me.daoge.aconomy.storage;
+
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * The outcome of {@link EconomyStorage#applyChanges(Map)}.
+ *
+ * @param status   whether the changes were applied
+ * @param balances the resulting balance of every changed account, empty unless the changes were applied
+ * @author daoge_cmd
+ */
+public record ChangeResult(Status status, Map<UUID, BigDecimal> balances) {
+
+    public static final ChangeResult REJECTED = new ChangeResult(Status.REJECTED, Map.of());
+    public static final ChangeResult CONFLICT = new ChangeResult(Status.CONFLICT, Map.of());
+
+    /**
+     * Create a result for changes that were applied.
+     *
+     * @param balances the resulting balance of every changed account
+     * @return the result
+     */
+    public static ChangeResult applied(Map<UUID, BigDecimal> balances) {
+        return new ChangeResult(Status.APPLIED, balances);
+    }
+
+    public boolean isApplied() {
+        return status == Status.APPLIED;
+    }
+
+    public enum Status {
+        /**
+         * Every change was applied.
+         */
+        APPLIED,
+        /**
+         * Nothing was applied because an account is missing or would end up negative.
+         */
+        REJECTED,
+        /**
+         * Nothing was applied because an account was modified concurrently, the caller may retry.
+         */
+        CONFLICT
+    }
+}
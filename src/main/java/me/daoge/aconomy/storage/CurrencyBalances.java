@@ -0,0 +1,84 @@
+package me.daoge.aconomy.storage;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+
+/**
+ * Every balance of an account as stored in one row or record: the default currency balance and the
+ * balances of the additional currencies as a primitive array.
+ * <p>
+ * The additional balances are kept in the smallest unit of their currency, such as cents, and indexed
+ * by currency ordinal minus one. The array can be shorter than the number of currencies, missing
+ * balances are zero.
+ *
+ * @param balance the balance of the default currency
+ * @param extra   the balances of the additional currencies in smallest units, not to be modified
+ * @param version the account version, shared by all balances
+ * @author daoge_cmd
+ */
+public record CurrencyBalances(BigDecimal balance, long[] extra, long version) {
+
+    private static final long[] NONE = new long[0];
+
+    /**
+     * Get the balance of an additional currency.
+     *
+     * @param index the currency ordinal minus one
+     * @return the balance in smallest units
+     */
+    public long extra(int index) {
+        return index < extra.length ? extra[index] : 0;
+    }
+
+    /**
+     * Copy the additional balances with one of them replaced, growing the array if needed.
+     *
+     * @param index the currency ordinal minus one
+     * @param units the new balance in smallest units
+     * @return the new additional balances
+     */
+    public long[] withExtra(int index, long units) {
+        long[] copy = Arrays.copyOf(extra, Math.max(extra.length, index + 1));
+        copy[index] = units;
+        return copy;
+    }
+
+    /**
+     * Encode additional balances for a text column, without trailing zero balances.
+     *
+     * @param extra the balances in smallest units
+     * @return the balances separated by commas, empty if all are zero
+     */
+    public static String encode(long[] extra) {
+        int length = extra.length;
+        while (length > 0 && extra[length - 1] == 0) {
+            length--;
+        }
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            if (i > 0) {
+                text.append(',');
+            }
+            text.append(extra[i]);
+        }
+        return text.toString();
+    }
+
+    /**
+     * Decode additional balances written by {@link #encode(long[])}.
+     *
+     * @param text the encoded balances, null or empty if all are zero
+     * @return the balances in smallest units
+     */
+    public static long[] decode(String text) {
+        if (text == null || text.isEmpty()) {
+            return NONE;
+        }
+        String[] parts = text.split(",");
+        long[] extra = new long[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            extra[i] = Long.parseLong(parts[i]);
+        }
+        return extra;
+    }
+}
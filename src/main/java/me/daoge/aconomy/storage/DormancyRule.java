@@ -0,0 +1,28 @@
+package me.daoge.aconomy.storage;
+
+import java.math.BigDecimal;
+
+/**
+ * Decides which accounts are dormant enough to be moved to the archive.
+ * <p>
+ * An account is dormant if its owner hasn't been seen since {@code seenBefore}, or if it still holds
+ * exactly the default balance and its owner hasn't been seen since {@code defaultBalanceSeenBefore}.
+ *
+ * @param seenBefore               accounts last seen before this time in epoch milliseconds are dormant
+ * @param defaultBalance           the balance new accounts start with
+ * @param defaultBalanceSeenBefore accounts at the default balance last seen before this time are dormant
+ * @author daoge_cmd
+ */
+public record DormancyRule(long seenBefore, BigDecimal defaultBalance, long defaultBalanceSeenBefore) {
+
+    /**
+     * Check whether an account is dormant.
+     *
+     * @param balance  the account balance
+     * @param lastSeen when the owner of the account was last seen
+     * @return true if the account should be archived
+     */
+    public boolean matches(BigDecimal balance, long lastSeen) {
+        return lastSeen < seenBefore || (lastSeen < defaultBalanceSeenBefore && balance.compareTo(defaultBalance) == 0);
+    }
+}
@@ -0,0 +1,25 @@
+package me.daoge.aconomy.storage;
+
+/**
+ * How much of the latest writes a storage may lose if the machine crashes, traded against write latency.
+ * Configured with {@code storage.durability.mode} in config.yml.
+ *
+ * @author daoge_cmd
+ */
+public enum Durability {
+
+    /**
+     * Every write is synced to disk before it returns. Nothing that returned is lost.
+     */
+    STRICT,
+    /**
+     * Writes go to the operating system and are synced to disk at a fixed interval.
+     * At most the writes of the last interval are lost.
+     */
+    BATCHED,
+    /**
+     * Writes go to the operating system, which syncs them whenever it likes.
+     * Survives a server crash but not a power loss or operating system crash.
+     */
+    RELAXED
+}
@@ -1,16 +1,37 @@
 package me.daoge.aconomy.storage;
 
+import me.daoge.aconomy.ledger.LedgerEntry;
+
 import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.function.Consumer;
 
 /**
  * Storage interface for economy data persistence.
+ * <p>
+ * Accounts and their default currency balance are the core every storage implements. The ledger,
+ * change log, archive, additional currencies, cross-storage intents, snapshots and backups are optional
+ * capabilities with default implementations that store nothing and report nothing, so a storage only
+ * overrides the ones it supports.
  *
  * @author daoge_cmd
  */
 public interface EconomyStorage {
 
+    /**
+     * The order accounts are paged in: by UUID in the order of its string form, which is how SQL
+     * databases sort the UUID text column. Cheaper than comparing the strings themselves.
+     */
+    Comparator<UUID> ACCOUNT_ORDER = (a, b) -> {
+        int high = Long.compareUnsigned(a.getMostSignificantBits(), b.getMostSignificantBits());
+        return high != 0 ? high : Long.compareUnsigned(a.getLeastSignificantBits(), b.getLeastSignificantBits());
+    };
+
     /**
      * Initialize the storage system.
      */
@@ -45,6 +66,48 @@ public interface EconomyStorage {
      */
     void setBalance(UUID uuid, BigDecimal balance);
 
+    /**
+     * Get the balance for an account together with its current version.
+     *
+     * @param uuid the unique identifier of the account
+     * @return the versioned balance, or null if the account doesn't exist
+     */
+    VersionedBalance getVersionedBalance(UUID uuid);
+
+    /**
+     * Set the balance for an account only if it has not been modified since it was read at the expected version.
+     *
+     * @param uuid            the unique identifier of the account
+     * @param expectedVersion the version the balance was read at
+     * @param balance         the new balance
+     * @return true if the balance was set, false if the account was modified in between or doesn't exist
+     */
+    boolean compareAndSetBalance(UUID uuid, long expectedVersion, BigDecimal balance);
+
+    /**
+     * Get every balance of an account in a single read.
+     *
+     * @param uuid the unique identifier of the account
+     * @return the balances of all currencies, or null if the account doesn't exist
+     */
+    default CurrencyBalances getCurrencyBalances(UUID uuid) {
+        VersionedBalance balance = getVersionedBalance(uuid);
+        return balance == null ? null : new CurrencyBalances(balance.balance(), new long[0], balance.version());
+    }
+
+    /**
+     * Set the balances of the additional currencies of an account only if it has not been modified
+     * since it was read at the expected version. The default currency balance is left untouched.
+     *
+     * @param uuid            the unique identifier of the account
+     * @param expectedVersion the version the balances were read at
+     * @param extra           the new balances of the additional currencies, see {@link CurrencyBalances#extra()}
+     * @return true if the balances were set, false if the account was modified in between or doesn't exist
+     */
+    default boolean compareAndSetExtraBalances(UUID uuid, long expectedVersion, long[] extra) {
+        return false;
+    }
+
     /**
      * Get the name associated with an account.
      *
@@ -71,6 +134,17 @@ public interface EconomyStorage {
      */
     boolean createAccount(UUID uuid, String name, BigDecimal initialBalance);
 
+    /**
+     * Make sure many accounts exist, in a single write. Existing accounts get the given name and
+     * last-seen time, missing accounts are created with them. Archived accounts are left alone.
+     *
+     * @param names          the name of every account
+     * @param initialBalance the balance of created accounts
+     * @param lastSeen       the last-seen time in epoch milliseconds
+     * @return which accounts were created and which are archived, or null if nothing was written
+     */
+    EnsureResult ensureAccounts(Map<UUID, String> names, BigDecimal initialBalance, long lastSeen);
+
     /**
      * Delete an account.
      *
@@ -81,6 +155,9 @@ public interface EconomyStorage {
 
     /**
      * Get all account UUIDs and their balances.
+     * <p>
+     * Copies every account at once, prefer {@link #getAccountPage(UUID, int)} or
+     * {@link #forEachAccount(int, Consumer)} for passes over all accounts.
      *
      * @return a map of UUID to balance
      */
@@ -88,13 +165,285 @@ public interface EconomyStorage {
 
     /**
      * Get all account UUIDs.
+     * <p>
+     * Copies every account id at once, prefer {@link #getAccountPage(UUID, int)} or
+     * {@link #forEachAccount(int, Consumer)} for passes over all accounts.
      *
      * @return a set of all account UUIDs
      */
     java.util.Set<UUID> getAllAccountIds();
 
+    /**
+     * Get the number of active accounts.
+     *
+     * @return the number of accounts, not counting archived ones
+     */
+    int getAccountCount();
+
+    /**
+     * Get a page of accounts in {@link #ACCOUNT_ORDER}. Passing the UUID of the last account of a page
+     * gets the next page, so a pass over all accounts only ever holds one page and sees accounts
+     * created while it runs if they sort after its position.
+     *
+     * @param after only return accounts with a UUID after this, or null to start from the beginning
+     * @param limit the maximum number of accounts to return
+     * @return the accounts, fewer than the limit only on the last page
+     */
+    List<AccountRecord> getAccountPage(UUID after, int limit);
+
+    /**
+     * Get the accounts with the highest balances.
+     *
+     * @param limit the maximum number of accounts to return
+     * @return the balances of the richest accounts, ordered by balance descending
+     */
+    Map<UUID, BigDecimal> getTopBalances(int limit);
+
+    /**
+     * Find an account by its name, including archived accounts.
+     *
+     * @param name the account name (case-insensitive)
+     * @return the account UUID, or null if no account has that name
+     */
+    UUID findAccountByName(String name);
+
+    /**
+     * Stream every account in bounded batches, without loading all accounts at once.
+     *
+     * @param batchSize the maximum number of accounts per batch
+     * @param consumer  called with each batch, in {@link #ACCOUNT_ORDER} unless the storage reads several parts in parallel
+     */
+    void forEachAccount(int batchSize, Consumer<List<AccountRecord>> consumer);
+
+    /**
+     * Read every account as of a single point in time, without blocking writers for longer than
+     * it takes to copy the data.
+     *
+     * @return a consistent copy of all accounts
+     * @throws IllegalStateException if the accounts could not be read, a snapshot is never partial
+     */
+    default List<AccountRecord> snapshot() {
+        throw new IllegalStateException(getClass().getSimpleName() + " does not support snapshots");
+    }
+
+    /**
+     * Insert accounts that don't exist yet in a single transaction, for example when migrating
+     * from another storage. File based storages only persist them on the next {@link #save()}.
+     *
+     * @param accounts the accounts to insert
+     * @return the number of accounts inserted, 0 if the batch failed
+     */
+    int importAccounts(List<AccountRecord> accounts);
+
+    /**
+     * Record when the owner of an account was last seen. File based storages only persist it on the next {@link #save()}.
+     *
+     * @param uuid the unique identifier of the account
+     * @param time the time in epoch milliseconds
+     */
+    void setLastSeen(UUID uuid, long time);
+
+    /**
+     * Find active accounts matching a dormancy rule, in {@link #ACCOUNT_ORDER}.
+     *
+     * @param rule  the rule accounts must match
+     * @param after only return accounts with a UUID greater than this, or null to start from the beginning
+     * @param limit the maximum number of accounts to return
+     * @return the UUIDs of the dormant accounts
+     */
+    default List<UUID> findDormantAccounts(DormancyRule rule, UUID after, int limit) {
+        return List.of();
+    }
+
+    /**
+     * Move accounts out of the active set into the archive. Archived accounts are invisible to every
+     * other method until {@link #restoreAccount(UUID)} brings them back.
+     *
+     * @param uuids the accounts to archive
+     * @return the number of accounts archived
+     */
+    default int archiveAccounts(Collection<UUID> uuids) {
+        return 0;
+    }
+
+    /**
+     * Move an archived account back into the active set.
+     *
+     * @param uuid the unique identifier of the account
+     * @return true if the account was archived and has been restored
+     */
+    default boolean restoreAccount(UUID uuid) {
+        return false;
+    }
+
+    /**
+     * Get the number of archived accounts.
+     *
+     * @return the number of accounts in the archive
+     */
+    default int getArchivedAccountCount() {
+        return 0;
+    }
+
+    /**
+     * Get the UUIDs of all archived accounts.
+     *
+     * @return a set of all archived account UUIDs
+     */
+    default java.util.Set<UUID> getArchivedAccountIds() {
+        return java.util.Set.of();
+    }
+
+    /**
+     * Atomically add a signed amount to the balance of several accounts.
+     * Either every change is applied or none is.
+     *
+     * @param deltas the amount to add to each account's balance, negative to take money away
+     * @return the result, {@link ChangeResult.Status#CONFLICT} if an account was modified concurrently
+     */
+    ChangeResult applyChanges(Map<UUID, BigDecimal> deltas);
+
+    /**
+     * Atomically add a signed amount to the balance of an additional currency of several accounts,
+     * like {@link #applyChanges(Map)}. The default currency balance is left untouched.
+     *
+     * @param index  the currency ordinal minus one
+     * @param deltas the whole number of smallest units to add to each balance, negative to take away
+     * @return the result, with the new balances in smallest units
+     */
+    default ChangeResult applyExtraChanges(int index, Map<UUID, BigDecimal> deltas) {
+        return ChangeResult.REJECTED;
+    }
+
+    /**
+     * Apply this storage's part of a change spanning several storages like {@link #applyChanges(Map)},
+     * recording the intent in the same transaction. Does nothing if the intent is already recorded.
+     * Only needed by storages used as a part of a {@link ShardedStorage}.
+     *
+     * @param intent the whole change
+     * @param deltas the part of the change applied to this storage
+     * @return the result, applied without balances if the intent was already recorded
+     * @throws UnsupportedOperationException if the storage doesn't record intents
+     */
+    default ChangeResult applyIntent(ChangeIntent intent, Map<UUID, BigDecimal> deltas) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not record intents");
+    }
+
+    /**
+     * Take back this storage's part of a change applied with {@link #applyIntent(ChangeIntent, Map)},
+     * removing the record of the intent in the same transaction. Does nothing if the intent is not recorded.
+     *
+     * @param intent the whole change
+     * @param deltas the part of the change applied to this storage, not yet negated
+     * @return the result, applied without balances if the intent was not recorded
+     * @throws UnsupportedOperationException if the storage doesn't record intents
+     */
+    default ChangeResult revertIntent(ChangeIntent intent, Map<UUID, BigDecimal> deltas) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not record intents");
+    }
+
+    /**
+     * Get every intent recorded by {@link #applyIntent(ChangeIntent, Map)} and not removed since.
+     *
+     * @return the recorded intents
+     */
+    default List<ChangeIntent> getIntents() {
+        return List.of();
+    }
+
+    /**
+     * Remove the records of completed intents.
+     *
+     * @param ids the ids of the intents
+     */
+    default void removeIntents(Collection<String> ids) {
+    }
+
+    /**
+     * Apply a bulk balance update to many accounts at once.
+     * Implementations should apply the whole update in a single transaction or save.
+     *
+     * @param operation the operation to apply
+     * @param amount    the operand of the operation
+     * @param scale     the number of fraction digits of the currency, new balances are rounded to it
+     * @param uuids     the accounts to update, or null to update every account
+     * @param filter    the balance filter accounts must match, or null to match any balance
+     * @return every balance changed, empty if nothing was applied
+     */
+    List<BalanceUpdate> bulkUpdate(BulkOperation operation, BigDecimal amount, int scale, Collection<UUID> uuids, BalanceFilter filter);
+
+    /**
+     * Apply a proportional change to every balance above a threshold in a single transaction.
+     * Either every matching account is changed or none is.
+     *
+     * @param adjustment the change to apply
+     * @return the number of accounts changed and the total amount, or null if the change failed and nothing was applied
+     */
+    AdjustmentResult applyAdjustment(RateAdjustment adjustment);
+
+    /**
+     * Append entries to the transaction ledger.
+     *
+     * @param entries the entries to append, in order
+     */
+    default void appendLedgerEntries(List<LedgerEntry> entries) {
+    }
+
+    /**
+     * Get a page of ledger entries for an account, newest first.
+     *
+     * @param uuid     the account to get the entries of
+     * @param fromTime the start of the time range in epoch milliseconds (inclusive)
+     * @param toTime   the end of the time range in epoch milliseconds (exclusive)
+     * @param offset   the number of matching entries to skip
+     * @param limit    the maximum number of entries to return
+     * @return the matching entries, newest first
+     */
+    default List<LedgerEntry> getLedgerEntries(UUID uuid, long fromTime, long toTime, int offset, int limit) {
+        return List.of();
+    }
+
+    /**
+     * Get the changes recorded in the change log after the given sequence number, oldest first.
+     * Storages that are never shared between servers don't keep a change log and return nothing.
+     *
+     * @param sequence the last sequence number already seen
+     * @param limit    the maximum number of changes to return
+     * @return the changes after the given sequence number
+     */
+    default List<AccountChange> getChangesSince(long sequence, int limit) {
+        return List.of();
+    }
+
+    /**
+     * Get the sequence number of the latest change in the change log.
+     *
+     * @return the latest sequence number, or 0 if there are no changes
+     */
+    default long getLatestChangeSequence() {
+        return 0;
+    }
+
+    /**
+     * Remove change log entries recorded before the given time.
+     *
+     * @param beforeTime the time in epoch milliseconds before which entries are removed
+     */
+    default void pruneChanges(long beforeTime) {
+    }
+
     /**
      * Save any pending changes to persistent storage.
      */
     void save();
+
+    /**
+     * Write a consistent copy of the stored accounts and ledger to a file while the storage stays in use.
+     *
+     * @param file the backup file to create
+     * @return true if the backup was written
+     */
+    default boolean backup(Path file) {
+        return false;
+    }
 }
@@ -0,0 +1,16 @@
+package me.daoge.aconomy.storage;
+
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * The outcome of {@link EconomyStorage#ensureAccounts(Map, BigDecimal, long)}.
+ *
+ * @param created  the accounts that didn't exist and were created
+ * @param archived the accounts that were left alone because they are archived
+ * @author daoge_cmd
+ */
+public record EnsureResult(Set<UUID> created, Set<UUID> archived) {
+}
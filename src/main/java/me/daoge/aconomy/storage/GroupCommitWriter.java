@@ -0,0 +1,219 @@
+package me.daoge.aconomy.storage;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Funnels every write of a JDBC storage through one dedicated thread, which drains the queued
+ * writes and commits them together in a single transaction.
+ * <p>
+ * Each write runs inside its own savepoint, so a failing write is rolled back on its own without
+ * affecting the others in the same group. Callers always wait until their write has been executed,
+ * so they see its result; whether they also wait for the group to be committed is configurable.
+ * The connection lock is held for the whole group, so reads on other threads never observe the
+ * writes of a group before it has been committed. Callers that don't wait for the commit can't be
+ * told if it fails, such writes are counted and logged as lost.
+ *
+ * @author daoge_cmd
+ */
+@Slf4j
+public class GroupCommitWriter {
+
+    private final Connection connection;
+    private final Lock connectionLock;
+    private final boolean waitForDurability;
+    private final int maxBatchSize;
+    private final BlockingQueue<PendingWrite<?>> queue = new LinkedBlockingQueue<>();
+    private final Thread thread;
+    private final LongAdder lostWrites = new LongAdder();
+    private volatile boolean running = true;
+    /**
+     * Set once the writer thread stopped taking writes, guarded by the queue.
+     */
+    private boolean closed;
+
+    /**
+     * @param connection        the connection every write runs on
+     * @param connectionLock    the lock guarding every use of the connection
+     * @param name              the name of the database, used for the thread name
+     * @param waitForDurability whether callers wait until their write has been committed
+     * @param maxBatchSize      the maximum number of writes committed together
+     */
+    public GroupCommitWriter(Connection connection, Lock connectionLock, String name, boolean waitForDurability, int maxBatchSize) {
+        this.connection = connection;
+        this.connectionLock = connectionLock;
+        this.waitForDurability = waitForDurability;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.thread = new Thread(this::run, "Aconomy-" + name + "-GroupCommit");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Run a write on the writer thread as part of the next group commit.
+     *
+     * @param work the write to run
+     * @return the result of the write
+     */
+    public <T> T execute(AbstractDatabaseStorage.SqlWork<T> work) throws SQLException {
+        if (Thread.currentThread() == thread) {
+            // Already part of the current group
+            return work.run();
+        }
+        PendingWrite<T> write = new PendingWrite<>(work);
+        synchronized (queue) {
+            if (closed) {
+                throw new SQLException("Group commit writer has been shut down");
+            }
+            queue.add(write);
+        }
+        T result = await(write.executed);
+        if (waitForDurability) {
+            await(write.committed);
+        }
+        return result;
+    }
+
+    /**
+     * Get the number of writes that were reported as executed but whose group failed to commit.
+     * Always zero when callers wait for durability, they are told about the failure instead.
+     *
+     * @return the number of lost writes since startup
+     */
+    public long getLostWriteCount() {
+        return lostWrites.sum();
+    }
+
+    /**
+     * Commit every queued write and stop the writer thread.
+     */
+    public void shutdown() {
+        running = false;
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        try {
+            List<PendingWrite<?>> batch = new ArrayList<>(maxBatchSize);
+            while (running || !queue.isEmpty()) {
+                try {
+                    PendingWrite<?> first = queue.poll(100, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    batch.add(first);
+                    queue.drainTo(batch, maxBatchSize - 1);
+                    commit(batch);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } finally {
+                    batch.clear();
+                }
+            }
+        } finally {
+            failLeftovers();
+        }
+    }
+
+    private void failLeftovers() {
+        // Writes queued after the writer stopped would never be run, fail them instead of leaving their callers waiting
+        synchronized (queue) {
+            closed = true;
+        }
+        SQLException stopped = new SQLException("Group commit writer has been shut down");
+        PendingWrite<?> leftover;
+        while ((leftover = queue.poll()) != null) {
+            leftover.executed.completeExceptionally(stopped);
+            leftover.committed.completeExceptionally(stopped);
+        }
+    }
+
+    private void commit(List<PendingWrite<?>> batch) {
+        connectionLock.lock();
+        try {
+            connection.setAutoCommit(false);
+            for (PendingWrite<?> write : batch) {
+                write.run(connection);
+            }
+            connection.commit();
+            batch.forEach(write -> write.committed.complete(null));
+        } catch (SQLException e) {
+            log.error("Failed to commit a group of {} writes", batch.size(), e);
+            try {
+                connection.rollback();
+            } catch (SQLException rollbackException) {
+                log.error("Failed to roll back a failed group commit", rollbackException);
+            }
+            int lost = 0;
+            for (PendingWrite<?> write : batch) {
+                if (!waitForDurability && write.executed.isDone() && !write.executed.isCompletedExceptionally()) {
+                    // The caller has already been told the write succeeded
+                    lost++;
+                }
+                write.executed.completeExceptionally(e);
+                write.committed.completeExceptionally(e);
+            }
+            if (lost > 0) {
+                lostWrites.add(lost);
+                log.error("Lost {} writes that had already been reported as executed, set wait_for_durability to true to report such failures to the caller", lost);
+            }
+        } finally {
+            try {
+                connection.setAutoCommit(true);
+            } catch (SQLException e) {
+                log.error("Failed to restore auto-commit after a group commit", e);
+            }
+            connectionLock.unlock();
+        }
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws SQLException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof SQLException sqlException) {
+                throw sqlException;
+            }
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new SQLException(e.getCause());
+        }
+    }
+
+    private static class PendingWrite<T> {
+        final AbstractDatabaseStorage.SqlWork<T> work;
+        final CompletableFuture<T> executed = new CompletableFuture<>();
+        final CompletableFuture<Void> committed = new CompletableFuture<>();
+
+        PendingWrite(AbstractDatabaseStorage.SqlWork<T> work) {
+            this.work = work;
+        }
+
+        void run(Connection connection) throws SQLException {
+            Savepoint savepoint = connection.setSavepoint();
+            try {
+                T result = work.run();
+                connection.releaseSavepoint(savepoint);
+                executed.complete(result);
+            } catch (SQLException | RuntimeException e) {
+                // Only this write is undone, the rest of the group still commits
+                connection.rollback(savepoint);
+                executed.completeExceptionally(e);
+            }
+        }
+    }
+}
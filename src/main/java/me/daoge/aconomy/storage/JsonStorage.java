@@ -2,18 +2,44 @@ package me.daoge.aconomy.storage;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
 import com.google.gson.reflect.TypeToken;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
+import me.daoge.aconomy.jfr.StorageCallEvent;
+import me.daoge.aconomy.ledger.LedgerEntry;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
 import java.lang.reflect.Type;
 import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 /**
  * JSON file based storage implementation for economy data.
@@ -24,120 +50,1322 @@ import java.util.concurrent.ConcurrentHashMap;
 public class JsonStorage implements EconomyStorage {
 
     private static final String DATA_FILE_NAME = "accounts.json";
+    private static final String LEDGER_FILE_NAME = "ledger.jsonl";
+    private static final String ARCHIVE_FILE_NAME = "archive.jsonl.gz";
+    private static final String ARCHIVE_INDEX_FILE_NAME = "archive.idx";
+    /**
+     * Accounts per gzip member when compacting the archive, restoring reads at most one member.
+     */
+    private static final int ARCHIVE_MEMBER_SIZE = 500;
+    private static final String BACKEND_NAME = "JSON";
+    private static final long[] NO_EXTRA_BALANCES = new long[0];
     private static final Type ACCOUNT_LIST_TYPE = new TypeToken<List<AccountData>>() {}.getType();
 
     private final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+    private final Gson ledgerGson = new Gson();
     private final Path dataFile;
+    private final Path ledgerFile;
+    private final Path archiveFile;
+    private final Path archiveIndexFile;
     private final Map<UUID, AccountData> accounts = new ConcurrentHashMap<>();
+    /**
+     * The ids of the accounts in {@link #ACCOUNT_ORDER}, for paging without copying or sorting all accounts.
+     * Only ever changed together with {@link #accounts}.
+     */
+    private final NavigableSet<UUID> accountOrder = new ConcurrentSkipListSet<>(ACCOUNT_ORDER);
+    /**
+     * Only the ids of archived accounts are kept in memory, each with the offset of the gzip member holding
+     * its data in the compressed archive file.
+     */
+    private final Map<UUID, Long> archiveIndex = new ConcurrentHashMap<>();
+    /**
+     * Guards the archive file and its index file.
+     */
+    private final Object archiveLock = new Object();
+    /**
+     * Guards balance and version updates so multi-account changes and compare-and-set are atomic.
+     */
+    private final Object balanceLock = new Object();
+    private Durability durability = Durability.STRICT;
+    private long syncIntervalMillis;
+    private ScheduledExecutorService syncExecutor;
+    /**
+     * Whether accounts changed since the last save, only tracked in batched mode.
+     */
+    private volatile boolean dirty;
+    private volatile boolean ledgerDirty;
+    /**
+     * The offset of every ledger line of each account in the ledger file, in file order. Built by the
+     * first history read and kept up to date by appends from then on. Guarded by the ledger file.
+     */
+    private Map<UUID, LineOffsets> ledgerIndex;
 
     public JsonStorage(Path dataFolder) {
         this.dataFile = dataFolder.resolve(DATA_FILE_NAME);
+        this.ledgerFile = dataFolder.resolve(LEDGER_FILE_NAME);
+        this.archiveFile = dataFolder.resolve(ARCHIVE_FILE_NAME);
+        this.archiveIndexFile = dataFolder.resolve(ARCHIVE_INDEX_FILE_NAME);
+    }
+
+    /**
+     * Set when written data is synced to disk. Must be called before {@link #init()}.
+     *
+     * @param durability         the durability mode
+     * @param syncIntervalMillis the interval between syncs in batched mode, in milliseconds
+     */
+    public void setDurability(Durability durability, long syncIntervalMillis) {
+        this.durability = durability;
+        this.syncIntervalMillis = syncIntervalMillis;
     }
 
     @SneakyThrows
     @Override
     public void init() {
         Files.createDirectories(dataFile.getParent());
+        if (durability == Durability.BATCHED) {
+            syncExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "Aconomy-JSON-Sync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            syncExecutor.scheduleWithFixedDelay(this::sync, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+        }
         if (!Files.exists(dataFile)) {
             save();
             return;
         }
         String content = Files.readString(dataFile);
-        if (content.isBlank()) {
-            return;
+        if (!content.isBlank()) {
+            List<AccountData> loaded = gson.fromJson(content, ACCOUNT_LIST_TYPE);
+            if (loaded != null) {
+                long now = System.currentTimeMillis();
+                for (AccountData account : loaded) {
+                    if (account.lastSeen == 0) {
+                        // Saved before last-seen tracking, count as seen now so upgrading doesn't archive everyone at once
+                        account.lastSeen = now;
+                    }
+                    accounts.put(account.uuid, account);
+                    accountOrder.add(account.uuid);
+                }
+            }
+        }
+        if (Files.exists(archiveFile)) {
+            loadArchiveIndex();
+        }
+        log.info("Loaded {} accounts from JSON storage, {} more archived", accounts.size(), archiveIndex.size());
+    }
+
+    /**
+     * Load the archive index, compact the archive if most of it is left over from restored accounts,
+     * and write the index back without the entries of restored accounts.
+     */
+    private void loadArchiveIndex() throws IOException {
+        long entries = 0;
+        if (Files.exists(archiveIndexFile)) {
+            try (BufferedReader reader = Files.newBufferedReader(archiveIndexFile)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    try {
+                        // "uuid offset" when an account is archived, just "uuid" when it is restored
+                        int separator = line.indexOf(' ');
+                        if (separator < 0) {
+                            archiveIndex.remove(UUID.fromString(line));
+                        } else {
+                            archiveIndex.put(UUID.fromString(line.substring(0, separator)), Long.parseLong(line.substring(separator + 1)));
+                            entries++;
+                        }
+                    } catch (IllegalArgumentException e) {
+                        // The last line may be cut off by a crash, the account is still in the data file then
+                        log.warn("Skipping malformed JSON archive index line: {}", line);
+                    }
+                }
+            }
+        } else {
+            // Written before the index existed, these entries are found by reading the archive from the start
+            try (BufferedReader reader = openArchive(0)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    archiveIndex.put(ledgerGson.fromJson(line, AccountData.class).uuid, 0L);
+                    entries++;
+                }
+            }
+        }
+        // Left behind if the server stopped between saving a restored account and recording the restore
+        archiveIndex.keySet().removeIf(accounts::containsKey);
+        if (entries > 2L * archiveIndex.size()) {
+            compactArchive();
+        }
+        writeArchiveIndex();
+    }
+
+    /**
+     * Rewrite the archive without the entries of restored accounts and the older entries of accounts that
+     * were archived again. Only done while loading, restoring an account just records it in the index.
+     */
+    private void compactArchive() throws IOException {
+        // Appended in order, so the last entry of an account is its newest
+        Map<UUID, Integer> remaining = new HashMap<>();
+        try (BufferedReader reader = openArchive(0)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                UUID uuid = ledgerGson.fromJson(line, AccountData.class).uuid;
+                if (archiveIndex.containsKey(uuid)) {
+                    remaining.merge(uuid, 1, Integer::sum);
+                }
+            }
+        }
+        Path tempFile = archiveFile.resolveSibling(ARCHIVE_FILE_NAME + ".tmp");
+        Map<UUID, Long> offsets = new HashMap<>();
+        try (BufferedReader reader = openArchive(0);
+             BufferedOutputStream out = new BufferedOutputStream(Files.newOutputStream(tempFile))) {
+            List<String> member = new ArrayList<>();
+            List<UUID> memberIds = new ArrayList<>();
+            long offset = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                UUID uuid = ledgerGson.fromJson(line, AccountData.class).uuid;
+                Integer count = remaining.get(uuid);
+                if (count == null) {
+                    continue;
+                }
+                if (count > 1) {
+                    remaining.put(uuid, count - 1);
+                    continue;
+                }
+                member.add(line);
+                memberIds.add(uuid);
+                if (member.size() == ARCHIVE_MEMBER_SIZE) {
+                    offset = writeMember(out, member, memberIds, offset, offsets);
+                }
+            }
+            if (!member.isEmpty()) {
+                writeMember(out, member, memberIds, offset, offsets);
+            }
+        }
+        force(tempFile);
+        Files.move(tempFile, archiveFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        archiveIndex.putAll(offsets);
+        log.info("Compacted JSON archive to {} accounts", offsets.size());
+    }
+
+    private static long writeMember(BufferedOutputStream out, List<String> member, List<UUID> memberIds,
+                                    long offset, Map<UUID, Long> offsets) throws IOException {
+        byte[] compressed = compress(member);
+        out.write(compressed);
+        memberIds.forEach(uuid -> offsets.put(uuid, offset));
+        member.clear();
+        memberIds.clear();
+        return offset + compressed.length;
+    }
+
+    /**
+     * Compress lines into one gzip member. Reading decompresses concatenated members as one stream.
+     */
+    private static byte[] compress(List<String> lines) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (Writer writer = new OutputStreamWriter(new GZIPOutputStream(bytes), StandardCharsets.UTF_8)) {
+            for (String line : lines) {
+                writer.write(line);
+                writer.write('\n');
+            }
         }
-        List<AccountData> loaded = gson.fromJson(content, ACCOUNT_LIST_TYPE);
-        if (loaded != null) {
-            loaded.forEach(account -> accounts.put(account.uuid, account));
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Replace the archive index file with the index in memory.
+     */
+    private void writeArchiveIndex() throws IOException {
+        Path tempFile = archiveIndexFile.resolveSibling(ARCHIVE_INDEX_FILE_NAME + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(tempFile)) {
+            for (Map.Entry<UUID, Long> entry : archiveIndex.entrySet()) {
+                writer.write(entry.getKey() + " " + entry.getValue() + "\n");
+            }
+        }
+        force(tempFile);
+        Files.move(tempFile, archiveIndexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void appendToArchiveIndex(String lines) throws IOException {
+        Files.writeString(archiveIndexFile, lines, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        if (durability != Durability.RELAXED) {
+            force(archiveIndexFile);
         }
-        log.info("Loaded {} accounts from JSON storage", accounts.size());
     }
 
     @Override
     public void shutdown() {
+        if (syncExecutor != null) {
+            syncExecutor.shutdown();
+            try {
+                syncExecutor.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        save();
+        if (durability != Durability.RELAXED) {
+            synchronized (ledgerFile) {
+                force(ledgerFile);
+            }
+        }
+    }
+
+    /**
+     * Write the accounts after a change, right away or with the next sync in batched mode.
+     */
+    private void persist() {
+        if (durability == Durability.BATCHED) {
+            dirty = true;
+            return;
+        }
         save();
     }
 
+    /**
+     * Write the accounts and sync the ledger if they changed since the last sync, in batched mode.
+     */
+    private void sync() {
+        if (ledgerDirty) {
+            ledgerDirty = false;
+            synchronized (ledgerFile) {
+                force(ledgerFile);
+            }
+        }
+        if (dirty) {
+            save();
+        }
+    }
+
+    /**
+     * Sync a file written through another channel to disk.
+     */
+    private static void force(Path file) {
+        if (!Files.exists(file)) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        } catch (IOException e) {
+            log.error("Failed to sync {} to disk", file, e);
+        }
+    }
+
     @Override
     public boolean hasAccount(UUID uuid) {
-        return accounts.containsKey(uuid);
+        StorageCallEvent event = StorageCallEvent.begin("hasAccount", BACKEND_NAME, 1);
+        try {
+            return accounts.containsKey(uuid);
+        } finally {
+            event.finish();
+        }
     }
 
     @Override
     public BigDecimal getBalance(UUID uuid) {
-        AccountData account = accounts.get(uuid);
-        return account != null ? account.balance : BigDecimal.ZERO;
+        StorageCallEvent event = StorageCallEvent.begin("getBalance", BACKEND_NAME, 1);
+        try {
+            AccountData account = accounts.get(uuid);
+            return account != null ? account.balance : BigDecimal.ZERO;
+        } finally {
+            event.finish();
+        }
     }
 
     @Override
     public void setBalance(UUID uuid, BigDecimal balance) {
-        AccountData account = accounts.get(uuid);
-        if (account != null) {
-            account.balance = balance;
-            save();
+        StorageCallEvent event = StorageCallEvent.begin("setBalance", BACKEND_NAME, 1);
+        try {
+            AccountData account = accounts.get(uuid);
+            if (account != null) {
+                synchronized (balanceLock) {
+                    account.balance = balance;
+                    account.version++;
+                }
+                persist();
+            }
+        } finally {
+            event.finish();
+        }
+    }
+
+    @Override
+    public VersionedBalance getVersionedBalance(UUID uuid) {
+        StorageCallEvent event = StorageCallEvent.begin("getVersionedBalance", BACKEND_NAME, 1);
+        try {
+            AccountData account = accounts.get(uuid);
+            if (account == null) {
+                return null;
+            }
+            synchronized (balanceLock) {
+                return new VersionedBalance(account.balance, account.version);
+            }
+        } finally {
+            event.finish();
+        }
+    }
+
+    @Override
+    public boolean compareAndSetBalance(UUID uuid, long expectedVersion, BigDecimal balance) {
+        StorageCallEvent event = StorageCallEvent.begin("compareAndSetBalance", BACKEND_NAME, 1);
+        try {
+            AccountData account = accounts.get(uuid);
+            if (account == null) {
+                return false;
+            }
+            synchronized (balanceLock) {
+                if (account.version != expectedVersion) {
+                    return false;
+                }
+                account.balance = balance;
+                account.version++;
+            }
+            persist();
+            return true;
+        } finally {
+            event.finish();
+        }
+    }
+
+    @Override
+    public CurrencyBalances getCurrencyBalances(UUID uuid) {
+        StorageCallEvent event = StorageCallEvent.begin("getCurrencyBalances", BACKEND_NAME, 1);
+        try {
+            AccountData account = accounts.get(uuid);
+            if (account == null) {
+                return null;
+            }
+            synchronized (balanceLock) {
+                // The array is replaced on every change, never modified, so it can be handed out as is
+                return new CurrencyBalances(account.balance, account.extra != null ? account.extra : NO_EXTRA_BALANCES, account.version);
+            }
+        } finally {
+            event.finish();
+        }
+    }
+
+    @Override
+    public boolean compareAndSetExtraBalances(UUID uuid, long expectedVersion, long[] extra) {
+        StorageCallEvent event = StorageCallEvent.begin("compareAndSetExtraBalances", BACKEND_NAME, 1);
+        try {
+            AccountData account = accounts.get(uuid);
+            if (account == null) {
+                return false;
+            }
+            synchronized (balanceLock) {
+                if (account.version != expectedVersion) {
+                    return false;
+                }
+                account.extra = extra.clone();
+                account.version++;
+            }
+            persist();
+            return true;
+        } finally {
+            event.finish();
         }
     }
 
     @Override
     public String getAccountName(UUID uuid) {
-        AccountData account = accounts.get(uuid);
-        return account != null ? account.name : null;
+        StorageCallEvent event = StorageCallEvent.begin("getAccountName", BACKEND_NAME, 1);
+        try {
+            AccountData account = accounts.get(uuid);
+            return account != null ? account.name : null;
+        } finally {
+            event.finish();
+        }
     }
 
     @Override
     public void setAccountName(UUID uuid, String name) {
-        AccountData account = accounts.get(uuid);
-        if (account != null) {
-            account.name = name;
-            save();
+        StorageCallEvent event = StorageCallEvent.begin("setAccountName", BACKEND_NAME, 1);
+        try {
+            AccountData account = accounts.get(uuid);
+            if (account != null) {
+                account.name = name;
+                persist();
+            }
+        } finally {
+            event.finish();
         }
     }
 
     @Override
     public boolean createAccount(UUID uuid, String name, BigDecimal initialBalance) {
-        if (accounts.containsKey(uuid)) {
-            return false;
+        StorageCallEvent event = StorageCallEvent.begin("createAccount", BACKEND_NAME, 1);
+        try {
+            if (accounts.containsKey(uuid)) {
+                return false;
+            }
+            AccountData account = new AccountData(uuid, name, initialBalance);
+            account.lastSeen = System.currentTimeMillis();
+            accounts.put(uuid, account);
+            accountOrder.add(uuid);
+            persist();
+            return true;
+        } finally {
+            event.finish();
+        }
+    }
+
+    @Override
+    public EnsureResult ensureAccounts(Map<UUID, String> names, BigDecimal initialBalance, long lastSeen) {
+        StorageCallEvent event = StorageCallEvent.begin("ensureAccounts", BACKEND_NAME, names.size());
+        try {
+            Set<UUID> created = new HashSet<>();
+            Set<UUID> archived = new HashSet<>();
+            names.forEach((uuid, name) -> {
+                AccountData account = accounts.get(uuid);
+                if (account != null) {
+                    account.name = name;
+                    account.lastSeen = lastSeen;
+                } else if (archiveIndex.containsKey(uuid)) {
+                    archived.add(uuid);
+                } else {
+                    account = new AccountData(uuid, name, initialBalance);
+                    account.lastSeen = lastSeen;
+                    accounts.put(uuid, account);
+                    accountOrder.add(uuid);
+                    created.add(uuid);
+                }
+            });
+            // One file write for the whole batch instead of one per account
+            persist();
+            return new EnsureResult(created, archived);
+        } finally {
+            event.finish();
         }
-        accounts.put(uuid, new AccountData(uuid, name, initialBalance));
-        save();
-        return true;
     }
 
     @Override
     public boolean deleteAccount(UUID uuid) {
-        AccountData removed = accounts.remove(uuid);
-        if (removed != null) {
-            save();
-            return true;
+        StorageCallEvent event = StorageCallEvent.begin("deleteAccount", BACKEND_NAME, 1);
+        try {
+            AccountData removed = accounts.remove(uuid);
+            if (removed != null) {
+                accountOrder.remove(uuid);
+                persist();
+                return true;
+            }
+            return false;
+        } finally {
+            event.finish();
         }
-        return false;
     }
 
     @Override
     public Map<UUID, BigDecimal> getAllBalances() {
-        Map<UUID, BigDecimal> result = new HashMap<>();
-        accounts.forEach((uuid, account) -> result.put(uuid, account.balance));
-        return result;
+        StorageCallEvent event = StorageCallEvent.begin("getAllBalances", BACKEND_NAME, accounts.size());
+        try {
+            Map<UUID, BigDecimal> result = new HashMap<>();
+            accounts.forEach((uuid, account) -> result.put(uuid, account.balance));
+            return result;
+        } finally {
+            event.finish();
+        }
     }
 
     @Override
     public Set<UUID> getAllAccountIds() {
-        return new HashSet<>(accounts.keySet());
+        StorageCallEvent event = StorageCallEvent.begin("getAllAccountIds", BACKEND_NAME, accounts.size());
+        try {
+            return new HashSet<>(accounts.keySet());
+        } finally {
+            event.finish();
+        }
+    }
+
+    @Override
+    public int getAccountCount() {
+        return accounts.size();
+    }
+
+    @Override
+    public List<AccountRecord> getAccountPage(UUID after, int limit) {
+        StorageCallEvent event = StorageCallEvent.begin("getAccountPage", BACKEND_NAME, 0);
+        try {
+            List<AccountRecord> page = new ArrayList<>(Math.min(limit, accounts.size()));
+            for (UUID uuid : after != null ? accountOrder.tailSet(after, false) : accountOrder) {
+                AccountData account = accounts.get(uuid);
+                // Deleted in between
+                if (account != null) {
+                    page.add(account.toRecord());
+                    if (page.size() == limit) {
+                        break;
+                    }
+                }
+            }
+            event.setAccountCount(page.size());
+            return page;
+        } finally {
+            event.finish();
+        }
+    }
+
+    @Override
+    public Map<UUID, BigDecimal> getTopBalances(int limit) {
+        StorageCallEvent event = StorageCallEvent.begin("getTopBalances", BACKEND_NAME, accounts.size());
+        try {
+            Map<UUID, BigDecimal> result = new LinkedHashMap<>();
+            accounts.values().stream()
+                    .sorted((a, b) -> b.balance.compareTo(a.balance))
+                    .limit(limit)
+                    .forEach(account -> result.put(account.uuid, account.balance));
+            return result;
+        } finally {
+            event.finish();
+        }
+    }
+
+    @Override
+    public UUID findAccountByName(String name) {
+        StorageCallEvent event = StorageCallEvent.begin("findAccountByName", BACKEND_NAME, accounts.size());
+        try {
+            for (AccountData account : accounts.values()) {
+                if (name.equalsIgnoreCase(account.name)) {
+                    return account.uuid;
+                }
+            }
+            if (archiveIndex.isEmpty()) {
+                return null;
+            }
+            synchronized (archiveLock) {
+                // Until the archive is compacted an account archived again has older entries, only its last one counts
+                Set<UUID> matches = new LinkedHashSet<>();
+                try (BufferedReader reader = openArchive(0)) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        AccountData account = ledgerGson.fromJson(line, AccountData.class);
+                        if (name.equalsIgnoreCase(account.name) && archiveIndex.containsKey(account.uuid)) {
+                            matches.add(account.uuid);
+                        } else {
+                            matches.remove(account.uuid);
+                        }
+                    }
+                }
+                return matches.isEmpty() ? null : matches.iterator().next();
+            }
+        } catch (IOException e) {
+            log.error("Failed to read JSON archive", e);
+            return null;
+        } finally {
+            event.finish();
+        }
+    }
+
+    @Override
+    public void forEachAccount(int batchSize, Consumer<List<AccountRecord>> consumer) {
+        StorageCallEvent event = StorageCallEvent.begin("forEachAccount", BACKEND_NAME, accounts.size());
+        try {
+            List<AccountRecord> batch = new ArrayList<>(batchSize);
+            for (UUID uuid : accountOrder) {
+                AccountData account = accounts.get(uuid);
+                if (account == null) {
+                    continue;
+                }
+                batch.add(account.toRecord());
+                if (batch.size() == batchSize) {
+                    consumer.accept(batch);
+                    batch = new ArrayList<>(batchSize);
+                }
+            }
+            if (!batch.isEmpty()) {
+                consumer.accept(batch);
+            }
+        } finally {
+            event.finish();
+        }
+    }
+
+    @Override
+    public List<AccountRecord> snapshot() {
+        StorageCallEvent event = StorageCallEvent.begin("snapshot", BACKEND_NAME, accounts.size());
+        try {
+            List<AccountRecord> snapshot = new ArrayList<>(accounts.size());
+            // Balance writers are held up only for the in-memory copy
+            synchronized (balanceLock) {
+                for (AccountData account : accounts.values()) {
+                    snapshot.add(account.toRecord());
+                }
+            }
+            return snapshot;
+        } finally {
+            event.finish();
+        }
+    }
+
+    @Override
+    public int importAccounts(List<AccountRecord> records) {
+        StorageCallEvent event = StorageCallEvent.begin("importAccounts", BACKEND_NAME, records.size());
+        try {
+            int imported = 0;
+            long now = System.currentTimeMillis();
+            for (AccountRecord record : records) {
+                AccountData account = new AccountData(record.uuid(), record.name(), record.balance());
+                account.lastSeen = now;
+                account.extra = record.extra().length > 0 ? record.extra().clone() : null;
+                // Not saved here, rewriting the whole file per batch would make large imports quadratic
+                if (accounts.putIfAbsent(record.uuid(), account) == null) {
+                    accountOrder.add(record.uuid());
+                    imported++;
+                }
+            }
+            return imported;
+        } finally {
+            event.finish();
+        }
+    }
+
+    @Override
+    public void setLastSeen(UUID uuid, long time) {
+        AccountData account = accounts.get(uuid);
+        if (account != null) {
+            // Not saved here, losing the last-seen time of a crash only delays archival
+            account.lastSeen = time;
+        }
+    }
+
+    @Override
+    public List<UUID> findDormantAccounts(DormancyRule rule, UUID after, int limit) {
+        StorageCallEvent event = StorageCallEvent.begin("findDormantAccounts", BACKEND_NAME, accounts.size());
+        try {
+            List<UUID> dormant = new ArrayList<>();
+            for (UUID uuid : after != null ? accountOrder.tailSet(after, false) : accountOrder) {
+                AccountData account = accounts.get(uuid);
+                if (account != null && rule.matches(account.balance, account.lastSeen)) {
+                    dormant.add(uuid);
+                    if (dormant.size() == limit) {
+                        break;
+                    }
+                }
+            }
+            return dormant;
+        } finally {
+            event.finish();
+        }
+    }
+
+    @Override
+    public int archiveAccounts(Collection<UUID> uuids) {
+        StorageCallEvent event = StorageCallEvent.begin("archiveAccounts", BACKEND_NAME, uuids.size());
+        try {
+            synchronized (archiveLock) {
+                List<AccountData> archived = new ArrayList<>();
+                List<String> lines = new ArrayList<>();
+                // Removed and serialized together, so a balance change can't land on an account that is already written out
+                synchronized (balanceLock) {
+                    for (UUID uuid : uuids) {
+                        AccountData account = accounts.remove(uuid);
+                        if (account != null) {
+                            accountOrder.remove(uuid);
+                            archived.add(account);
+                            lines.add(ledgerGson.toJson(account));
+                        }
+                    }
+                }
+                if (archived.isEmpty()) {
+                    return 0;
+                }
+                long offset;
+                try {
+                    // Appended as a new gzip member, restoring an account only reads from the member its index entry points to
+                    offset = Files.exists(archiveFile) ? Files.size(archiveFile) : 0;
+                    Files.write(archiveFile, compress(lines), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                    if (durability != Durability.RELAXED) {
+                        force(archiveFile);
+                    }
+                    StringBuilder indexLines = new StringBuilder();
+                    archived.forEach(account -> indexLines.append(account.uuid).append(' ').append(offset).append('\n'));
+                    appendToArchiveIndex(indexLines.toString());
+                } catch (IOException e) {
+                    synchronized (balanceLock) {
+                        archived.forEach(account -> {
+                            if (accounts.putIfAbsent(account.uuid, account) == null) {
+                                accountOrder.add(account.uuid);
+                            }
+                        });
+                    }
+                    log.error("Failed to write JSON archive", e);
+                    return 0;
+                }
+                archived.forEach(account -> archiveIndex.put(account.uuid, offset));
+                save();
+                event.setAccountCount(archived.size());
+                return archived.size();
+            }
+        } finally {
+            event.finish();
+        }
+    }
+
+    @Override
+    public boolean restoreAccount(UUID uuid) {
+        if (!archiveIndex.containsKey(uuid)) {
+            return false;
+        }
+        synchronized (archiveLock) {
+            Long offset = archiveIndex.get(uuid);
+            if (offset == null) {
+                // Restored by another thread in between
+                return false;
+            }
+            StorageCallEvent event = StorageCallEvent.begin("restoreAccount", BACKEND_NAME, 1);
+            try {
+                // Only the member the account was archived in is read, the archive itself is left as is
+                // and the entry is dropped when the archive is compacted
+                AccountData restored = readArchived(uuid, offset);
+                if (restored == null) {
+                    log.warn("Archived account {} is missing from the JSON archive", uuid);
+                    archiveIndex.remove(uuid);
+                    appendToArchiveIndex(uuid + "\n");
+                    return false;
+                }
+                // Saved before the restore is recorded in the index, so a crash in between leaves the account in both rather than in neither
+                accounts.put(uuid, restored);
+                accountOrder.add(uuid);
+                save();
+                archiveIndex.remove(uuid);
+                appendToArchiveIndex(uuid + "\n");
+                return true;
+            } catch (IOException e) {
+                log.error("Failed to restore account {} from JSON archive", uuid, e);
+                return accounts.containsKey(uuid);
+            } finally {
+                event.finish();
+            }
+        }
+    }
+
+    /**
+     * Read an archived account from the gzip member its index entry points to, or from the whole archive
+     * if the entry is stale, like after a crash while compacting.
+     */
+    private AccountData readArchived(UUID uuid, long offset) throws IOException {
+        if (offset > 0) {
+            try {
+                AccountData account = readArchivedFrom(uuid, offset);
+                if (account != null) {
+                    return account;
+                }
+            } catch (IOException e) {
+                log.warn("Stale JSON archive index entry for {}, reading the whole archive", uuid);
+            }
+        }
+        return readArchivedFrom(uuid, 0);
+    }
+
+    private AccountData readArchivedFrom(UUID uuid, long offset) throws IOException {
+        try (BufferedReader reader = openArchive(offset)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                AccountData account = ledgerGson.fromJson(line, AccountData.class);
+                if (uuid.equals(account.uuid)) {
+                    return account;
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public int getArchivedAccountCount() {
+        return archiveIndex.size();
+    }
+
+    @Override
+    public Set<UUID> getArchivedAccountIds() {
+        return new HashSet<>(archiveIndex.keySet());
+    }
+
+    /**
+     * Open the archive for reading from the start of a gzip member.
+     *
+     * @param offset the offset of the member in the archive file
+     */
+    private BufferedReader openArchive(long offset) throws IOException {
+        if (!Files.exists(archiveFile)) {
+            return new BufferedReader(new StringReader(""));
+        }
+        FileChannel channel = FileChannel.open(archiveFile, StandardOpenOption.READ);
+        try {
+            channel.position(offset);
+            return new BufferedReader(new InputStreamReader(new GZIPInputStream(Channels.newInputStream(channel)), StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public ChangeResult applyChanges(Map<UUID, BigDecimal> deltas) {
+        StorageCallEvent event = StorageCallEvent.begin("applyChanges", BACKEND_NAME, deltas.size());
+        try {
+            ChangeResult result;
+            synchronized (balanceLock) {
+                result = applyDeltas(deltas);
+            }
+            if (result.isApplied()) {
+                persist();
+            }
+            return result;
+        } finally {
+            event.finish();
+        }
+    }
+
+    /**
+     * Add the given amounts to the balances, holding the balance lock.
+     */
+    private ChangeResult applyDeltas(Map<UUID, BigDecimal> deltas) {
+        Map<UUID, BigDecimal> result = new HashMap<>();
+        for (Map.Entry<UUID, BigDecimal> entry : deltas.entrySet()) {
+            AccountData account = accounts.get(entry.getKey());
+            if (account == null) {
+                return ChangeResult.REJECTED;
+            }
+            BigDecimal newBalance = account.balance.add(entry.getValue());
+            if (newBalance.compareTo(BigDecimal.ZERO) < 0) {
+                return ChangeResult.REJECTED;
+            }
+            result.put(entry.getKey(), newBalance);
+        }
+        result.forEach((uuid, balance) -> {
+            AccountData account = accounts.get(uuid);
+            account.balance = balance;
+            account.version++;
+        });
+        return ChangeResult.applied(result);
+    }
+
+    @Override
+    public ChangeResult applyExtraChanges(int index, Map<UUID, BigDecimal> deltas) {
+        StorageCallEvent event = StorageCallEvent.begin("applyExtraChanges", BACKEND_NAME, deltas.size());
+        try {
+            ChangeResult result;
+            synchronized (balanceLock) {
+                result = applyExtraDeltas(index, deltas);
+            }
+            if (result.isApplied()) {
+                persist();
+            }
+            return result;
+        } finally {
+            event.finish();
+        }
+    }
+
+    /**
+     * Add the given amounts in smallest units to the balances of an additional currency, holding the balance lock.
+     */
+    private ChangeResult applyExtraDeltas(int index, Map<UUID, BigDecimal> deltas) {
+        Map<UUID, long[]> newExtra = new HashMap<>();
+        Map<UUID, BigDecimal> result = new HashMap<>();
+        for (Map.Entry<UUID, BigDecimal> entry : deltas.entrySet()) {
+            AccountData account = accounts.get(entry.getKey());
+            if (account == null) {
+                return ChangeResult.REJECTED;
+            }
+            CurrencyBalances balances = new CurrencyBalances(account.balance, account.extra != null ? account.extra : NO_EXTRA_BALANCES, account.version);
+            long newUnits;
+            try {
+                newUnits = Math.addExact(balances.extra(index), entry.getValue().longValueExact());
+            } catch (ArithmeticException e) {
+                return ChangeResult.REJECTED;
+            }
+            if (newUnits < 0) {
+                return ChangeResult.REJECTED;
+            }
+            newExtra.put(entry.getKey(), balances.withExtra(index, newUnits));
+            result.put(entry.getKey(), BigDecimal.valueOf(newUnits));
+        }
+        newExtra.forEach((uuid, extra) -> {
+            AccountData account = accounts.get(uuid);
+            account.extra = extra;
+            account.version++;
+        });
+        return ChangeResult.applied(result);
+    }
+
+    @Override
+    public ChangeResult applyIntent(ChangeIntent intent, Map<UUID, BigDecimal> deltas) {
+        StorageCallEvent event = StorageCallEvent.begin("applyIntent", BACKEND_NAME, deltas.size());
+        try {
+            // Recorded on one of the changed accounts, so it is saved in the same write as the balances
+            UUID anchor = Collections.min(deltas.keySet());
+            ChangeResult result;
+            synchronized (balanceLock) {
+                AccountData account = accounts.get(anchor);
+                if (account != null && account.intents != null && account.intents.containsKey(intent.id())) {
+                    return ChangeResult.applied(Map.of());
+                }
+                result = intent.isExtra() ? applyExtraDeltas(intent.extraIndex(), deltas) : applyDeltas(deltas);
+                if (result.isApplied()) {
+                    if (account.intents == null) {
+                        account.intents = new HashMap<>();
+                    }
+                    account.intents.put(intent.id(), intent.encodeDeltas());
+                }
+            }
+            if (result.isApplied()) {
+                persist();
+            }
+            return result;
+        } finally {
+            event.finish();
+        }
+    }
+
+    @Override
+    public ChangeResult revertIntent(ChangeIntent intent, Map<UUID, BigDecimal> deltas) {
+        StorageCallEvent event = StorageCallEvent.begin("revertIntent", BACKEND_NAME, deltas.size());
+        try {
+            UUID anchor = Collections.min(deltas.keySet());
+            ChangeResult result;
+            synchronized (balanceLock) {
+                AccountData account = accounts.get(anchor);
+                if (account == null || account.intents == null || !account.intents.containsKey(intent.id())) {
+                    return ChangeResult.applied(Map.of());
+                }
+                Map<UUID, BigDecimal> inverse = new HashMap<>();
+                deltas.forEach((uuid, delta) -> inverse.put(uuid, delta.negate()));
+                result = intent.isExtra() ? applyExtraDeltas(intent.extraIndex(), inverse) : applyDeltas(inverse);
+                if (result.isApplied()) {
+                    account.intents.remove(intent.id());
+                }
+            }
+            if (result.isApplied()) {
+                persist();
+            }
+            return result;
+        } finally {
+            event.finish();
+        }
+    }
+
+    @Override
+    public List<ChangeIntent> getIntents() {
+        List<ChangeIntent> intents = new ArrayList<>();
+        synchronized (balanceLock) {
+            for (AccountData account : accounts.values()) {
+                if (account.intents != null) {
+                    account.intents.forEach((id, deltas) -> intents.add(ChangeIntent.decode(id, deltas)));
+                }
+            }
+        }
+        return intents;
+    }
+
+    @Override
+    public void removeIntents(Collection<String> ids) {
+        boolean removed = false;
+        synchronized (balanceLock) {
+            for (AccountData account : accounts.values()) {
+                if (account.intents != null && account.intents.keySet().removeAll(ids)) {
+                    removed = true;
+                    if (account.intents.isEmpty()) {
+                        account.intents = null;
+                    }
+                }
+            }
+        }
+        if (removed) {
+            persist();
+        }
+    }
+
+    @Override
+    public List<BalanceUpdate> bulkUpdate(BulkOperation operation, BigDecimal amount, int scale, Collection<UUID> uuids, BalanceFilter filter) {
+        StorageCallEvent event = StorageCallEvent.begin("bulkUpdate", BACKEND_NAME, 0);
+        try {
+            Collection<AccountData> targets = uuids == null
+                    ? accounts.values()
+                    : uuids.stream().map(accounts::get).filter(Objects::nonNull).toList();
+            List<BalanceUpdate> updates = new ArrayList<>();
+            synchronized (balanceLock) {
+                for (AccountData account : targets) {
+                    if (filter != null && !filter.matches(account.balance)) {
+                        continue;
+                    }
+                    BigDecimal newBalance = operation.apply(account.balance, amount, scale);
+                    if (newBalance.compareTo(account.balance) == 0) {
+                        continue;
+                    }
+                    updates.add(new BalanceUpdate(account.uuid, account.balance, newBalance));
+                    account.balance = newBalance;
+                    account.version++;
+                }
+            }
+            if (!updates.isEmpty()) {
+                persist();
+            }
+            event.setAccountCount(updates.size());
+            return updates;
+        } finally {
+            event.finish();
+        }
+    }
+
+    @Override
+    public AdjustmentResult applyAdjustment(RateAdjustment adjustment) {
+        StorageCallEvent event = StorageCallEvent.begin("applyAdjustment", BACKEND_NAME, 0);
+        try {
+            int updated = 0;
+            BigDecimal total = BigDecimal.ZERO;
+            // One pass over all accounts and a single save, instead of a write per account
+            synchronized (balanceLock) {
+                for (AccountData account : accounts.values()) {
+                    if (!adjustment.matches(account.balance)) {
+                        continue;
+                    }
+                    BigDecimal change = adjustment.changeFor(account.balance);
+                    account.balance = account.balance.add(change);
+                    account.version++;
+                    total = total.add(change);
+                    updated++;
+                }
+            }
+            if (updated > 0) {
+                persist();
+            }
+            event.setAccountCount(updated);
+            return new AdjustmentResult(updated, total);
+        } finally {
+            event.finish();
+        }
+    }
+
+    @Override
+    public void appendLedgerEntries(List<LedgerEntry> entries) {
+        StorageCallEvent event = StorageCallEvent.begin("appendLedgerEntries", BACKEND_NAME, entries.size());
+        try {
+            List<byte[]> lines = new ArrayList<>(entries.size());
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            for (LedgerEntry entry : entries) {
+                byte[] line = (ledgerGson.toJson(LedgerLine.of(entry)) + "\n").getBytes(StandardCharsets.UTF_8);
+                lines.add(line);
+                bytes.write(line);
+            }
+            synchronized (ledgerFile) {
+                long position = ledgerIndex != null && Files.exists(ledgerFile) ? Files.size(ledgerFile) : 0;
+                Files.write(ledgerFile, bytes.toByteArray(), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                if (durability == Durability.STRICT) {
+                    force(ledgerFile);
+                } else if (durability == Durability.BATCHED) {
+                    ledgerDirty = true;
+                }
+                if (ledgerIndex != null) {
+                    for (int i = 0; i < entries.size(); i++) {
+                        ledgerIndex.computeIfAbsent(entries.get(i).account(), uuid -> new LineOffsets()).add(position);
+                        position += lines.get(i).length;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            log.error("Failed to append to JSON ledger", e);
+        } finally {
+            event.finish();
+        }
+    }
+
+    @Override
+    public List<LedgerEntry> getLedgerEntries(UUID uuid, long fromTime, long toTime, int offset, int limit) {
+        StorageCallEvent event = StorageCallEvent.begin("getLedgerEntries", BACKEND_NAME, 1);
+        try {
+            long[] offsets;
+            synchronized (ledgerFile) {
+                if (!Files.exists(ledgerFile)) {
+                    return List.of();
+                }
+                if (ledgerIndex == null) {
+                    ledgerIndex = indexLedger();
+                }
+                LineOffsets lines = ledgerIndex.get(uuid);
+                if (lines == null) {
+                    return List.of();
+                }
+                offsets = lines.toArray();
+            }
+            // Lines below the offsets taken are complete, the file is only ever appended to.
+            // The file is in time order, so reading the account's lines backwards yields the newest first
+            List<LedgerEntry> result = new ArrayList<>(limit);
+            try (FileChannel channel = FileChannel.open(ledgerFile, StandardOpenOption.READ)) {
+                int skipped = 0;
+                for (int i = offsets.length - 1; i >= 0 && result.size() < limit; i--) {
+                    LedgerEntry entry = parseLedgerLine(readLine(channel, offsets[i]));
+                    if (entry == null || entry.time() < fromTime || entry.time() >= toTime) {
+                        continue;
+                    }
+                    if (skipped < offset) {
+                        skipped++;
+                    } else {
+                        result.add(entry);
+                    }
+                }
+            }
+            return result;
+        } catch (IOException e) {
+            log.error("Failed to read JSON ledger", e);
+            return List.of();
+        } finally {
+            event.finish();
+        }
+    }
+
+    /**
+     * Find the offset of every complete ledger line, by the account it belongs to.
+     */
+    private Map<UUID, LineOffsets> indexLedger() throws IOException {
+        Map<UUID, LineOffsets> index = new HashMap<>();
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(ledgerFile))) {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            long position = 0;
+            long start = 0;
+            int read;
+            while ((read = in.read()) >= 0) {
+                position++;
+                if (read != '\n') {
+                    line.write(read);
+                    continue;
+                }
+                LedgerEntry entry = parseLedgerLine(line.toString(StandardCharsets.UTF_8));
+                if (entry != null) {
+                    index.computeIfAbsent(entry.account(), uuid -> new LineOffsets()).add(start);
+                }
+                line.reset();
+                start = position;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Read the ledger line starting at the given offset, without its line break.
+     */
+    private static String readLine(FileChannel channel, long offset) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        long position = offset;
+        while (channel.read(buffer.clear(), position) > 0) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                byte next = buffer.get();
+                if (next == '\n') {
+                    return line.toString(StandardCharsets.UTF_8);
+                }
+                line.write(next);
+            }
+            position += buffer.limit();
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Parse a ledger line, or get null for a blank or malformed one. A crash can leave the last line cut off,
+     * and a line appended after it then shares its line.
+     */
+    private LedgerEntry parseLedgerLine(String line) {
+        if (line.isBlank()) {
+            return null;
+        }
+        try {
+            LedgerLine parsed = ledgerGson.fromJson(line, LedgerLine.class);
+            return parsed != null && parsed.account != null ? parsed.toEntry() : null;
+        } catch (JsonParseException e) {
+            return null;
+        }
     }
 
     @Override
     public void save() {
+        StorageCallEvent event = StorageCallEvent.begin("save", BACKEND_NAME, accounts.size());
+        try {
+            // Cleared first, so changes made while the accounts are written are picked up by the next sync
+            dirty = false;
+            try {
+                Files.createDirectories(dataFile.getParent());
+                String json = gson.toJson(new ArrayList<>(accounts.values()), ACCOUNT_LIST_TYPE);
+                // Written next to the data file and moved over it, so a crash never leaves a half written file
+                Path tempFile = dataFile.resolveSibling(DATA_FILE_NAME + ".tmp");
+                synchronized (dataFile) {
+                    Files.writeString(
+                            tempFile,
+                            json,
+                            StandardOpenOption.CREATE,
+                            StandardOpenOption.TRUNCATE_EXISTING
+                    );
+                    if (durability != Durability.RELAXED) {
+                        force(tempFile);
+                    }
+                    Files.move(tempFile, dataFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                }
+            } catch (IOException e) {
+                log.error("Failed to save JSON storage", e);
+            }
+        } finally {
+            event.finish();
+        }
+    }
+
+    @Override
+    public boolean backup(Path file) {
+        StorageCallEvent event = StorageCallEvent.begin("backup", BACKEND_NAME, accounts.size());
         try {
-            Files.createDirectories(dataFile.getParent());
-            String json = gson.toJson(new ArrayList<>(accounts.values()), ACCOUNT_LIST_TYPE);
-            Files.writeString(
-                    dataFile,
-                    json,
-                    StandardOpenOption.CREATE,
-                    StandardOpenOption.TRUNCATE_EXISTING
-            );
+            // Copy-on-write snapshot: only copying the accounts in memory holds up writers,
+            // serializing them happens afterwards on the calling thread
+            List<AccountData> snapshot = new ArrayList<>(accounts.size());
+            long ledgerSize;
+            synchronized (balanceLock) {
+                for (AccountData account : accounts.values()) {
+                    snapshot.add(account.copy());
+                }
+                // Taken at the same moment as the accounts, so the ledger doesn't run ahead of the balances.
+                // The ledger is append-only, everything below the current size is complete lines
+                synchronized (ledgerFile) {
+                    ledgerSize = Files.exists(ledgerFile) ? Files.size(ledgerFile) : 0;
+                }
+            }
+
+            try (ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+                zip.putNextEntry(new ZipEntry(DATA_FILE_NAME));
+                Writer writer = new OutputStreamWriter(zip, StandardCharsets.UTF_8);
+                gson.toJson(snapshot, ACCOUNT_LIST_TYPE, writer);
+                writer.flush();
+                zip.closeEntry();
+
+                if (ledgerSize > 0) {
+                    zip.putNextEntry(new ZipEntry(LEDGER_FILE_NAME));
+                    try (InputStream in = Files.newInputStream(ledgerFile)) {
+                        byte[] buffer = new byte[8192];
+                        long remaining = ledgerSize;
+                        int read;
+                        while (remaining > 0 && (read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) > 0) {
+                            zip.write(buffer, 0, read);
+                            remaining -= read;
+                        }
+                    }
+                    zip.closeEntry();
+                }
+
+                synchronized (archiveLock) {
+                    if (Files.exists(archiveFile)) {
+                        zip.putNextEntry(new ZipEntry(ARCHIVE_FILE_NAME));
+                        Files.copy(archiveFile, zip);
+                        zip.closeEntry();
+                    }
+                    if (Files.exists(archiveIndexFile)) {
+                        zip.putNextEntry(new ZipEntry(ARCHIVE_INDEX_FILE_NAME));
+                        Files.copy(archiveIndexFile, zip);
+                        zip.closeEntry();
+                    }
+                }
+            }
+            return true;
         } catch (IOException e) {
-            log.error("Failed to save JSON storage", e);
+            log.error("Failed to back up JSON storage", e);
+            return false;
+        } finally {
+            event.finish();
         }
     }
 
@@ -148,11 +1376,80 @@ public class JsonStorage implements EconomyStorage {
         UUID uuid;
         String name;
         BigDecimal balance;
+        long version;
+        long lastSeen;
+        /**
+         * Balances of the additional currencies, see {@link CurrencyBalances#extra()}. Null if all are zero.
+         */
+        long[] extra;
+        /**
+         * Parts of cross-storage changes applied to this storage, see {@link ChangeIntent}. Null if there are none.
+         */
+        Map<String, String> intents;
 
         AccountData(UUID uuid, String name, BigDecimal balance) {
             this.uuid = uuid;
             this.name = name;
             this.balance = balance;
         }
+
+        AccountData copy() {
+            AccountData copy = new AccountData(uuid, name, balance);
+            copy.version = version;
+            copy.lastSeen = lastSeen;
+            copy.extra = extra;
+            copy.intents = intents != null ? new HashMap<>(intents) : null;
+            return copy;
+        }
+
+        AccountRecord toRecord() {
+            return new AccountRecord(uuid, name, balance, extra != null ? extra : NO_EXTRA_BALANCES);
+        }
+    }
+
+    /**
+     * The offsets of the ledger lines of one account, growing as lines are appended.
+     */
+    private static class LineOffsets {
+        long[] offsets = new long[4];
+        int size;
+
+        void add(long offset) {
+            if (size == offsets.length) {
+                offsets = Arrays.copyOf(offsets, size * 2);
+            }
+            offsets[size++] = offset;
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(offsets, size);
+        }
+    }
+
+    /**
+     * Internal data class for JSON ledger lines.
+     */
+    private static class LedgerLine {
+        long time;
+        UUID account;
+        UUID counterparty;
+        BigDecimal amount;
+        BigDecimal balance;
+        String cause;
+
+        static LedgerLine of(LedgerEntry entry) {
+            LedgerLine line = new LedgerLine();
+            line.time = entry.time();
+            line.account = entry.account();
+            line.counterparty = entry.counterparty();
+            line.amount = entry.amount();
+            line.balance = entry.balance();
+            line.cause = entry.cause();
+            return line;
+        }
+
+        LedgerEntry toEntry() {
+            return new LedgerEntry(time, account, counterparty, amount, balance, cause);
+        }
     }
 }
@@ -0,0 +1,21 @@
+package me.daoge.aconomy.storage;
+
+import java.nio.file.Path;
+
+/**
+ * Provides the built-in {@link JsonStorage}.
+ *
+ * @author daoge_cmd
+ */
+public class JsonStorageProvider implements StorageProvider {
+
+    @Override
+    public String getType() {
+        return "json";
+    }
+
+    @Override
+    public EconomyStorage create(Path dataFolder, StorageOptions options) {
+        return new JsonStorage(dataFolder);
+    }
+}
@@ -0,0 +1,358 @@
+package me.daoge.aconomy.storage;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import me.daoge.aconomy.Aconomy;
+import me.daoge.aconomy.ledger.LedgerEntry;
+
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Wraps another storage and slows down every call according to a {@link LatencyProfile}, for testing
+ * that a slow or stalling disk doesn't lag the server.
+ * <p>
+ * Every call is counted by the name of the thread it ran on. Calls made on the server tick thread
+ * are counted separately and logged with their stack trace the first time per operation, since each
+ * of them holds up the tick by the injected latency. Failing calls throw an {@link InjectedFailureException}
+ * before reaching the wrapped storage. {@link #init()} and {@link #shutdown()} are never slowed down.
+ *
+ * @author daoge_cmd
+ */
+@Slf4j
+public class LatencyInjectingStorage implements EconomyStorage {
+
+    @Getter
+    private final EconomyStorage delegate;
+    private final LatencyProfile profile;
+    private final Map<String, LongAdder> callsByThread = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> tickThreadCalls = new ConcurrentHashMap<>();
+    private final LongAdder injectedFailures = new LongAdder();
+
+    public LatencyInjectingStorage(EconomyStorage delegate, LatencyProfile profile) {
+        this.delegate = delegate;
+        this.profile = profile;
+    }
+
+    /**
+     * Get the number of calls per thread name.
+     *
+     * @return a copy of the call counts, by thread name
+     */
+    public Map<String, Long> getCallsByThread() {
+        Map<String, Long> counts = new TreeMap<>();
+        callsByThread.forEach((thread, count) -> counts.put(thread, count.sum()));
+        return counts;
+    }
+
+    /**
+     * Get the number of calls made on the server tick thread per operation.
+     *
+     * @return a copy of the call counts, by operation name
+     */
+    public Map<String, Long> getTickThreadCalls() {
+        Map<String, Long> counts = new TreeMap<>();
+        tickThreadCalls.forEach((operation, count) -> counts.put(operation, count.sum()));
+        return counts;
+    }
+
+    /**
+     * Get the number of calls made on the server tick thread.
+     *
+     * @return the total over all operations
+     */
+    public long getTickThreadCallCount() {
+        long total = 0;
+        for (LongAdder count : tickThreadCalls.values()) {
+            total += count.sum();
+        }
+        return total;
+    }
+
+    /**
+     * Get the number of calls that were failed on purpose.
+     *
+     * @return the number of injected failures since startup
+     */
+    public long getInjectedFailureCount() {
+        return injectedFailures.sum();
+    }
+
+    /**
+     * Record the calling thread, then wait and possibly fail as the profile decides.
+     *
+     * @param operation the name of the storage method called
+     */
+    private void inject(String operation) {
+        callsByThread.computeIfAbsent(Thread.currentThread().getName(), thread -> new LongAdder()).increment();
+        if (Aconomy.isTickThread()) {
+            LongAdder count = tickThreadCalls.get(operation);
+            if (count == null) {
+                count = tickThreadCalls.computeIfAbsent(operation, key -> {
+                    log.warn("Storage call {} made on the server tick thread", key, new Throwable("Called from here"));
+                    return new LongAdder();
+                });
+            }
+            count.increment();
+        }
+
+        long latency = profile.nextLatencyMillis();
+        if (latency > 0) {
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (profile.nextFailure()) {
+            injectedFailures.increment();
+            throw new InjectedFailureException(operation);
+        }
+    }
+
+    private <T> T call(String operation, Supplier<T> work) {
+        inject(operation);
+        return work.get();
+    }
+
+    private void run(String operation, Runnable work) {
+        inject(operation);
+        work.run();
+    }
+
+    @Override
+    public void init() {
+        delegate.init();
+        log.warn("Storage latency injection is enabled, this slows down the economy on purpose: {}", profile);
+    }
+
+    @Override
+    public void shutdown() {
+        delegate.shutdown();
+    }
+
+    @Override
+    public boolean hasAccount(UUID uuid) {
+        return call("hasAccount", () -> delegate.hasAccount(uuid));
+    }
+
+    @Override
+    public BigDecimal getBalance(UUID uuid) {
+        return call("getBalance", () -> delegate.getBalance(uuid));
+    }
+
+    @Override
+    public void setBalance(UUID uuid, BigDecimal balance) {
+        run("setBalance", () -> delegate.setBalance(uuid, balance));
+    }
+
+    @Override
+    public VersionedBalance getVersionedBalance(UUID uuid) {
+        return call("getVersionedBalance", () -> delegate.getVersionedBalance(uuid));
+    }
+
+    @Override
+    public boolean compareAndSetBalance(UUID uuid, long expectedVersion, BigDecimal balance) {
+        return call("compareAndSetBalance", () -> delegate.compareAndSetBalance(uuid, expectedVersion, balance));
+    }
+
+    @Override
+    public CurrencyBalances getCurrencyBalances(UUID uuid) {
+        return call("getCurrencyBalances", () -> delegate.getCurrencyBalances(uuid));
+    }
+
+    @Override
+    public boolean compareAndSetExtraBalances(UUID uuid, long expectedVersion, long[] extra) {
+        return call("compareAndSetExtraBalances", () -> delegate.compareAndSetExtraBalances(uuid, expectedVersion, extra));
+    }
+
+    @Override
+    public String getAccountName(UUID uuid) {
+        return call("getAccountName", () -> delegate.getAccountName(uuid));
+    }
+
+    @Override
+    public void setAccountName(UUID uuid, String name) {
+        run("setAccountName", () -> delegate.setAccountName(uuid, name));
+    }
+
+    @Override
+    public boolean createAccount(UUID uuid, String name, BigDecimal initialBalance) {
+        return call("createAccount", () -> delegate.createAccount(uuid, name, initialBalance));
+    }
+
+    @Override
+    public EnsureResult ensureAccounts(Map<UUID, String> names, BigDecimal initialBalance, long lastSeen) {
+        return call("ensureAccounts", () -> delegate.ensureAccounts(names, initialBalance, lastSeen));
+    }
+
+    @Override
+    public boolean deleteAccount(UUID uuid) {
+        return call("deleteAccount", () -> delegate.deleteAccount(uuid));
+    }
+
+    @Override
+    public Map<UUID, BigDecimal> getAllBalances() {
+        return call("getAllBalances", delegate::getAllBalances);
+    }
+
+    @Override
+    public Set<UUID> getAllAccountIds() {
+        return call("getAllAccountIds", delegate::getAllAccountIds);
+    }
+
+    @Override
+    public int getAccountCount() {
+        return call("getAccountCount", delegate::getAccountCount);
+    }
+
+    @Override
+    public List<AccountRecord> getAccountPage(UUID after, int limit) {
+        return call("getAccountPage", () -> delegate.getAccountPage(after, limit));
+    }
+
+    @Override
+    public Map<UUID, BigDecimal> getTopBalances(int limit) {
+        return call("getTopBalances", () -> delegate.getTopBalances(limit));
+    }
+
+    @Override
+    public UUID findAccountByName(String name) {
+        return call("findAccountByName", () -> delegate.findAccountByName(name));
+    }
+
+    @Override
+    public void forEachAccount(int batchSize, Consumer<List<AccountRecord>> consumer) {
+        run("forEachAccount", () -> delegate.forEachAccount(batchSize, consumer));
+    }
+
+    @Override
+    public List<AccountRecord> snapshot() {
+        return call("snapshot", delegate::snapshot);
+    }
+
+    @Override
+    public int importAccounts(List<AccountRecord> accounts) {
+        return call("importAccounts", () -> delegate.importAccounts(accounts));
+    }
+
+    @Override
+    public void setLastSeen(UUID uuid, long time) {
+        run("setLastSeen", () -> delegate.setLastSeen(uuid, time));
+    }
+
+    @Override
+    public List<UUID> findDormantAccounts(DormancyRule rule, UUID after, int limit) {
+        return call("findDormantAccounts", () -> delegate.findDormantAccounts(rule, after, limit));
+    }
+
+    @Override
+    public int archiveAccounts(Collection<UUID> uuids) {
+        return call("archiveAccounts", () -> delegate.archiveAccounts(uuids));
+    }
+
+    @Override
+    public boolean restoreAccount(UUID uuid) {
+        return call("restoreAccount", () -> delegate.restoreAccount(uuid));
+    }
+
+    @Override
+    public int getArchivedAccountCount() {
+        return call("getArchivedAccountCount", delegate::getArchivedAccountCount);
+    }
+
+    @Override
+    public Set<UUID> getArchivedAccountIds() {
+        return call("getArchivedAccountIds", delegate::getArchivedAccountIds);
+    }
+
+    @Override
+    public ChangeResult applyChanges(Map<UUID, BigDecimal> deltas) {
+        return call("applyChanges", () -> delegate.applyChanges(deltas));
+    }
+
+    @Override
+    public ChangeResult applyExtraChanges(int index, Map<UUID, BigDecimal> deltas) {
+        return call("applyExtraChanges", () -> delegate.applyExtraChanges(index, deltas));
+    }
+
+    @Override
+    public ChangeResult applyIntent(ChangeIntent intent, Map<UUID, BigDecimal> deltas) {
+        return call("applyIntent", () -> delegate.applyIntent(intent, deltas));
+    }
+
+    @Override
+    public ChangeResult revertIntent(ChangeIntent intent, Map<UUID, BigDecimal> deltas) {
+        return call("revertIntent", () -> delegate.revertIntent(intent, deltas));
+    }
+
+    @Override
+    public List<ChangeIntent> getIntents() {
+        return call("getIntents", delegate::getIntents);
+    }
+
+    @Override
+    public void removeIntents(Collection<String> ids) {
+        run("removeIntents", () -> delegate.removeIntents(ids));
+    }
+
+    @Override
+    public List<BalanceUpdate> bulkUpdate(BulkOperation operation, BigDecimal amount, int scale, Collection<UUID> uuids, BalanceFilter filter) {
+        return call("bulkUpdate", () -> delegate.bulkUpdate(operation, amount, scale, uuids, filter));
+    }
+
+    @Override
+    public AdjustmentResult applyAdjustment(RateAdjustment adjustment) {
+        return call("applyAdjustment", () -> delegate.applyAdjustment(adjustment));
+    }
+
+    @Override
+    public void appendLedgerEntries(List<LedgerEntry> entries) {
+        run("appendLedgerEntries", () -> delegate.appendLedgerEntries(entries));
+    }
+
+    @Override
+    public List<LedgerEntry> getLedgerEntries(UUID uuid, long fromTime, long toTime, int offset, int limit) {
+        return call("getLedgerEntries", () -> delegate.getLedgerEntries(uuid, fromTime, toTime, offset, limit));
+    }
+
+    @Override
+    public List<AccountChange> getChangesSince(long sequence, int limit) {
+        return call("getChangesSince", () -> delegate.getChangesSince(sequence, limit));
+    }
+
+    @Override
+    public long getLatestChangeSequence() {
+        return call("getLatestChangeSequence", delegate::getLatestChangeSequence);
+    }
+
+    @Override
+    public void pruneChanges(long beforeTime) {
+        run("pruneChanges", () -> delegate.pruneChanges(beforeTime));
+    }
+
+    @Override
+    public void save() {
+        run("save", delegate::save);
+    }
+
+    @Override
+    public boolean backup(Path file) {
+        return call("backup", () -> delegate.backup(file));
+    }
+
+    /**
+     * Thrown by a storage call that was failed on purpose.
+     */
+    public static class InjectedFailureException extends RuntimeException {
+
+        InjectedFailureException(String operation) {
+            super("Injected failure of storage call " + operation);
+        }
+    }
+}
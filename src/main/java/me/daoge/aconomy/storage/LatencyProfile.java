@@ -0,0 +1,60 @@
+package me.daoge.aconomy.storage;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The latency, stalls and failures a {@link LatencyInjectingStorage} adds to every storage call.
+ *
+ * @param baseMillis         the latency every call gets
+ * @param jitterMillis       the scale of the random latency added on top, the maximum for a uniform
+ *                           distribution and the mean for an exponential one
+ * @param distribution       how the jitter is distributed
+ * @param stallProbability   the probability that a call stalls, between 0 and 1
+ * @param stallMillis        how long a stalled call takes
+ * @param failureProbability the probability that a call fails, between 0 and 1
+ * @author daoge_cmd
+ */
+public record LatencyProfile(long baseMillis, long jitterMillis, Distribution distribution,
+                             double stallProbability, long stallMillis, double failureProbability) {
+
+    /**
+     * Pick the latency of a single call.
+     *
+     * @return the latency in milliseconds
+     */
+    public long nextLatencyMillis() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (stallProbability > 0 && random.nextDouble() < stallProbability) {
+            return stallMillis;
+        }
+        if (jitterMillis <= 0) {
+            return baseMillis;
+        }
+        long jitter = switch (distribution) {
+            case UNIFORM -> random.nextLong(jitterMillis + 1);
+            // A long tail, most calls are fast and a few are many times slower than the mean
+            case EXPONENTIAL -> (long) (-Math.log(1 - random.nextDouble()) * jitterMillis);
+        };
+        return baseMillis + jitter;
+    }
+
+    /**
+     * Decide whether a single call fails.
+     *
+     * @return true if the call should fail
+     */
+    public boolean nextFailure() {
+        return failureProbability > 0 && ThreadLocalRandom.current().nextDouble() < failureProbability;
+    }
+
+    public enum Distribution {
+        /**
+         * Every jitter between zero and the jitter scale is equally likely.
+         */
+        UNIFORM,
+        /**
+         * The jitter is exponentially distributed with the jitter scale as its mean.
+         */
+        EXPONENTIAL
+    }
+}
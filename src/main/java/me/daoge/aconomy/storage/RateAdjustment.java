@@ -0,0 +1,44 @@
+package me.daoge.aconomy.storage;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * A proportional change of every balance above a threshold, such as interest or a wealth tax.
+ * <p>
+ * Each matching account changes by {@code (balance - threshold) * rate}, limited to {@code cap}
+ * in either direction. A positive rate pays interest, a negative rate takes tax.
+ *
+ * @param rate      the fraction of the balance above the threshold to add, negative to take it away
+ * @param threshold only the part of a balance above this is affected, accounts at or below it are left untouched
+ * @param cap       the maximum absolute change of one account, or null for no limit
+ * @param scale     the number of fraction digits of the currency, changes are rounded to it
+ * @author daoge_cmd
+ */
+public record RateAdjustment(BigDecimal rate, BigDecimal threshold, BigDecimal cap, int scale) {
+
+    /**
+     * Check whether an account with the given balance is affected.
+     *
+     * @param balance the balance to check
+     * @return true if the balance is above the threshold
+     */
+    public boolean matches(BigDecimal balance) {
+        return balance.compareTo(threshold) > 0;
+    }
+
+    /**
+     * Compute the change of a single balance.
+     *
+     * @param balance a balance above the threshold
+     * @return the signed amount to add to the balance
+     */
+    public BigDecimal changeFor(BigDecimal balance) {
+        BigDecimal change = balance.subtract(threshold).multiply(rate);
+        if (cap != null && change.abs().compareTo(cap) > 0) {
+            change = rate.signum() < 0 ? cap.negate() : cap;
+        }
+        // Rounded to the currency, so balances stay in whole smallest units and repeated cycles don't grow the scale
+        return change.setScale(scale, RoundingMode.HALF_UP).stripTrailingZeros();
+    }
+}
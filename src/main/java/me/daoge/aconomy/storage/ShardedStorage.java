@@ -0,0 +1,720 @@
+package me.daoge.aconomy.storage;
+
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+import me.daoge.aconomy.ledger.LedgerEntry;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Spreads accounts over several independent storages by a hash of their UUID.
+ * <p>
+ * Every shard has its own connection and writer, so writes to accounts in different shards never
+ * wait for each other. Queries over all accounts run on every shard in parallel and merge the
+ * results. An account's ledger entries are kept in the account's shard.
+ * <p>
+ * Changes within one shard are atomic. A change spanning several shards is applied shard by shard,
+ * debits first, and undone on the shards already changed if a later shard rejects it. Every shard
+ * records the {@link ChangeIntent} in the same transaction as its part of the change, so a change
+ * interrupted by a crash is completed or undone by {@link #init()}. Once every part is applied, the
+ * change is durably marked as completed before any shard drops its record, so recovery never applies
+ * a completed change again on the shards that already dropped theirs. Set-based operations such as
+ * bulk updates and rate adjustments are applied to each shard separately and never run concurrently
+ * with a cross-shard change.
+ * <p>
+ * The number of shards is fixed when the storage is created, accounts would be looked up in the
+ * wrong shard otherwise. Sharded storages are never shared between servers and keep no change log.
+ *
+ * @author daoge_cmd
+ */
+@Slf4j
+public class ShardedStorage implements EconomyStorage {
+
+    private static final int MAX_UNDO_ATTEMPTS = 8;
+
+    private final Path markerFile;
+    /**
+     * The ids of completed cross-shard changes whose records may still be held by some shards, one per line.
+     */
+    private final Path completedFile;
+    private final Object completedLock = new Object();
+    private final List<String> names;
+    private final List<EconomyStorage> shards;
+    private final ExecutorService executor;
+    /**
+     * Held shared by cross-shard changes and exclusively by operations that must not see one half applied.
+     */
+    private final ReadWriteLock crossShardLock = new ReentrantReadWriteLock();
+
+    /**
+     * Create a sharded storage. The shards still need to be initialized with {@link #init()}.
+     *
+     * @param markerFile the file recording the number of shards the storage was created with
+     * @param shards     the shards by their file name, used to name the entries of backups
+     */
+    public ShardedStorage(Path markerFile, SequencedMap<String, EconomyStorage> shards) {
+        this.markerFile = markerFile;
+        this.completedFile = markerFile.resolveSibling(markerFile.getFileName() + ".completed");
+        this.names = List.copyOf(shards.keySet());
+        this.shards = List.copyOf(shards.values());
+        this.executor = Executors.newFixedThreadPool(Math.min(this.shards.size(), Runtime.getRuntime().availableProcessors()), runnable -> {
+            Thread thread = new Thread(runnable, "Aconomy-Shards");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Get the shards, in shard order.
+     *
+     * @return the shards
+     */
+    public List<EconomyStorage> getShards() {
+        return shards;
+    }
+
+    private EconomyStorage shardOf(UUID uuid) {
+        return shards.get(Math.floorMod(uuid.hashCode(), shards.size()));
+    }
+
+    private Map<EconomyStorage, List<UUID>> groupByShard(Collection<UUID> uuids) {
+        Map<EconomyStorage, List<UUID>> groups = new LinkedHashMap<>();
+        for (UUID uuid : uuids) {
+            groups.computeIfAbsent(shardOf(uuid), shard -> new ArrayList<>()).add(uuid);
+        }
+        return groups;
+    }
+
+    /**
+     * Run the same work on every shard in parallel.
+     *
+     * @return the results, in shard order
+     */
+    private <T> List<T> onAllShards(Function<EconomyStorage, T> work) {
+        List<CompletableFuture<T>> futures = new ArrayList<>(shards.size());
+        for (EconomyStorage shard : shards) {
+            futures.add(CompletableFuture.supplyAsync(() -> work.apply(shard), executor));
+        }
+        List<T> results = new ArrayList<>(futures.size());
+        for (CompletableFuture<T> future : futures) {
+            results.add(future.join());
+        }
+        return results;
+    }
+
+    @SneakyThrows
+    @Override
+    public void init() {
+        if (Files.exists(markerFile)) {
+            int created = Integer.parseInt(Files.readString(markerFile, StandardCharsets.UTF_8).trim());
+            if (created != shards.size()) {
+                throw new IllegalStateException("The storage was created with " + created + " shards but " + shards.size() +
+                                                " are configured, migrate it to change the number of shards");
+            }
+        } else {
+            Files.createDirectories(markerFile.getParent());
+            Files.writeString(markerFile, Integer.toString(shards.size()), StandardCharsets.UTF_8);
+        }
+        onAllShards(shard -> {
+            shard.init();
+            return null;
+        });
+        recoverIntents();
+        log.info("Sharded storage initialized with {} shards", shards.size());
+    }
+
+    @Override
+    public void shutdown() {
+        onAllShards(shard -> {
+            shard.shutdown();
+            return null;
+        });
+        executor.shutdown();
+    }
+
+    @Override
+    public boolean hasAccount(UUID uuid) {
+        return shardOf(uuid).hasAccount(uuid);
+    }
+
+    @Override
+    public BigDecimal getBalance(UUID uuid) {
+        return shardOf(uuid).getBalance(uuid);
+    }
+
+    @Override
+    public void setBalance(UUID uuid, BigDecimal balance) {
+        shardOf(uuid).setBalance(uuid, balance);
+    }
+
+    @Override
+    public VersionedBalance getVersionedBalance(UUID uuid) {
+        return shardOf(uuid).getVersionedBalance(uuid);
+    }
+
+    @Override
+    public boolean compareAndSetBalance(UUID uuid, long expectedVersion, BigDecimal balance) {
+        return shardOf(uuid).compareAndSetBalance(uuid, expectedVersion, balance);
+    }
+
+    @Override
+    public CurrencyBalances getCurrencyBalances(UUID uuid) {
+        return shardOf(uuid).getCurrencyBalances(uuid);
+    }
+
+    @Override
+    public boolean compareAndSetExtraBalances(UUID uuid, long expectedVersion, long[] extra) {
+        return shardOf(uuid).compareAndSetExtraBalances(uuid, expectedVersion, extra);
+    }
+
+    @Override
+    public String getAccountName(UUID uuid) {
+        return shardOf(uuid).getAccountName(uuid);
+    }
+
+    @Override
+    public void setAccountName(UUID uuid, String name) {
+        shardOf(uuid).setAccountName(uuid, name);
+    }
+
+    @Override
+    public boolean createAccount(UUID uuid, String name, BigDecimal initialBalance) {
+        return shardOf(uuid).createAccount(uuid, name, initialBalance);
+    }
+
+    @Override
+    public EnsureResult ensureAccounts(Map<UUID, String> names, BigDecimal initialBalance, long lastSeen) {
+        Map<EconomyStorage, List<UUID>> groups = groupByShard(names.keySet());
+        List<EnsureResult> results = onAllShards(shard -> {
+            List<UUID> group = groups.get(shard);
+            if (group == null) {
+                return new EnsureResult(Set.of(), Set.of());
+            }
+            Map<UUID, String> shardNames = new HashMap<>();
+            group.forEach(uuid -> shardNames.put(uuid, names.get(uuid)));
+            return shard.ensureAccounts(shardNames, initialBalance, lastSeen);
+        });
+        Set<UUID> created = new HashSet<>();
+        Set<UUID> archived = new HashSet<>();
+        for (EnsureResult result : results) {
+            if (result == null) {
+                // The other shards did their part, ensuring the same accounts again is harmless
+                return null;
+            }
+            created.addAll(result.created());
+            archived.addAll(result.archived());
+        }
+        return new EnsureResult(created, archived);
+    }
+
+    @Override
+    public boolean deleteAccount(UUID uuid) {
+        return shardOf(uuid).deleteAccount(uuid);
+    }
+
+    @Override
+    public Map<UUID, BigDecimal> getAllBalances() {
+        Map<UUID, BigDecimal> balances = new HashMap<>();
+        onAllShards(EconomyStorage::getAllBalances).forEach(balances::putAll);
+        return balances;
+    }
+
+    @Override
+    public Set<UUID> getAllAccountIds() {
+        Set<UUID> ids = new HashSet<>();
+        onAllShards(EconomyStorage::getAllAccountIds).forEach(ids::addAll);
+        return ids;
+    }
+
+    @Override
+    public int getAccountCount() {
+        return sum(onAllShards(EconomyStorage::getAccountCount));
+    }
+
+    @Override
+    public List<AccountRecord> getAccountPage(UUID after, int limit) {
+        // The first accounts of the union of every shard's first page are the first overall
+        List<AccountRecord> candidates = new ArrayList<>();
+        onAllShards(shard -> shard.getAccountPage(after, limit)).forEach(candidates::addAll);
+        candidates.sort(Comparator.comparing(AccountRecord::uuid, ACCOUNT_ORDER));
+        return candidates.subList(0, Math.min(limit, candidates.size()));
+    }
+
+    @Override
+    public Map<UUID, BigDecimal> getTopBalances(int limit) {
+        // The richest accounts overall are among the richest of their shard
+        List<Map.Entry<UUID, BigDecimal>> candidates = new ArrayList<>();
+        for (Map<UUID, BigDecimal> top : onAllShards(shard -> shard.getTopBalances(limit))) {
+            candidates.addAll(top.entrySet());
+        }
+        candidates.sort(Map.Entry.<UUID, BigDecimal>comparingByValue().reversed());
+        Map<UUID, BigDecimal> result = new LinkedHashMap<>();
+        for (Map.Entry<UUID, BigDecimal> entry : candidates.subList(0, Math.min(limit, candidates.size()))) {
+            result.put(entry.getKey(), entry.getValue());
+        }
+        return result;
+    }
+
+    @Override
+    public UUID findAccountByName(String name) {
+        for (UUID uuid : onAllShards(shard -> shard.findAccountByName(name))) {
+            if (uuid != null) {
+                return uuid;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void forEachAccount(int batchSize, Consumer<List<AccountRecord>> consumer) {
+        // Shards are read in parallel, the consumer is only ever called by one of them at a time
+        Object consumerLock = new Object();
+        onAllShards(shard -> {
+            shard.forEachAccount(batchSize, batch -> {
+                synchronized (consumerLock) {
+                    consumer.accept(batch);
+                }
+            });
+            return null;
+        });
+    }
+
+    @Override
+    public List<AccountRecord> snapshot() {
+        crossShardLock.writeLock().lock();
+        try {
+            List<AccountRecord> records = new ArrayList<>();
+            onAllShards(EconomyStorage::snapshot).forEach(records::addAll);
+            return records;
+        } catch (CompletionException e) {
+            // Failing as a whole, like a single storage
+            throw e.getCause() instanceof RuntimeException cause ? cause : e;
+        } finally {
+            crossShardLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public int importAccounts(List<AccountRecord> accounts) {
+        Map<EconomyStorage, List<AccountRecord>> groups = new LinkedHashMap<>();
+        for (AccountRecord account : accounts) {
+            groups.computeIfAbsent(shardOf(account.uuid()), shard -> new ArrayList<>()).add(account);
+        }
+        return sum(onAllShards(shard -> {
+            List<AccountRecord> group = groups.get(shard);
+            return group != null ? shard.importAccounts(group) : 0;
+        }));
+    }
+
+    @Override
+    public void setLastSeen(UUID uuid, long time) {
+        shardOf(uuid).setLastSeen(uuid, time);
+    }
+
+    @Override
+    public List<UUID> findDormantAccounts(DormancyRule rule, UUID after, int limit) {
+        // Every shard returns its first matches in the same order, the first of their union are the first overall
+        List<UUID> candidates = new ArrayList<>();
+        onAllShards(shard -> shard.findDormantAccounts(rule, after, limit)).forEach(candidates::addAll);
+        candidates.sort(ACCOUNT_ORDER);
+        return candidates.subList(0, Math.min(limit, candidates.size()));
+    }
+
+    @Override
+    public int archiveAccounts(Collection<UUID> uuids) {
+        Map<EconomyStorage, List<UUID>> groups = groupByShard(uuids);
+        return sum(onAllShards(shard -> {
+            List<UUID> group = groups.get(shard);
+            return group != null ? shard.archiveAccounts(group) : 0;
+        }));
+    }
+
+    @Override
+    public boolean restoreAccount(UUID uuid) {
+        return shardOf(uuid).restoreAccount(uuid);
+    }
+
+    @Override
+    public int getArchivedAccountCount() {
+        return sum(onAllShards(EconomyStorage::getArchivedAccountCount));
+    }
+
+    @Override
+    public Set<UUID> getArchivedAccountIds() {
+        Set<UUID> ids = new HashSet<>();
+        onAllShards(EconomyStorage::getArchivedAccountIds).forEach(ids::addAll);
+        return ids;
+    }
+
+    @Override
+    public ChangeResult applyChanges(Map<UUID, BigDecimal> deltas) {
+        Map<EconomyStorage, Map<UUID, BigDecimal>> groups = groupDeltas(deltas);
+        if (groups.size() <= 1) {
+            return groups.isEmpty() ? ChangeResult.applied(Map.of()) : groups.keySet().iterator().next().applyChanges(deltas);
+        }
+
+        return applyCrossShard(ChangeIntent.of(deltas), groups);
+    }
+
+    @Override
+    public ChangeResult applyExtraChanges(int index, Map<UUID, BigDecimal> deltas) {
+        Map<EconomyStorage, Map<UUID, BigDecimal>> groups = groupDeltas(deltas);
+        if (groups.size() <= 1) {
+            return groups.isEmpty() ? ChangeResult.applied(Map.of()) : groups.keySet().iterator().next().applyExtraChanges(index, deltas);
+        }
+        return applyCrossShard(ChangeIntent.of(index, deltas), groups);
+    }
+
+    /**
+     * Apply a change spanning several shards through the intents each shard records with its part.
+     */
+    private ChangeResult applyCrossShard(ChangeIntent intent, Map<EconomyStorage, Map<UUID, BigDecimal>> groups) {
+        crossShardLock.readLock().lock();
+        try {
+            Map<UUID, BigDecimal> balances = new HashMap<>();
+            ChangeResult result = applyIntent(intent, groups, balances);
+            if (result.isApplied()) {
+                // Records are only dropped once the change is marked completed, otherwise recovery finds all of them
+                if (markCompleted(List.of(intent.id()))) {
+                    executor.execute(() -> groups.keySet().forEach(shard -> shard.removeIntents(List.of(intent.id()))));
+                }
+                return ChangeResult.applied(balances);
+            }
+            return result;
+        } finally {
+            crossShardLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public ChangeResult applyIntent(ChangeIntent intent, Map<UUID, BigDecimal> deltas) {
+        Map<EconomyStorage, Map<UUID, BigDecimal>> groups = groupDeltas(deltas);
+        if (groups.size() > 1) {
+            log.error("Refusing to record change {} spanning several shards inside a sharded storage", intent.id());
+            return ChangeResult.REJECTED;
+        }
+        return groups.isEmpty() ? ChangeResult.applied(Map.of()) : groups.keySet().iterator().next().applyIntent(intent, deltas);
+    }
+
+    @Override
+    public ChangeResult revertIntent(ChangeIntent intent, Map<UUID, BigDecimal> deltas) {
+        Map<EconomyStorage, Map<UUID, BigDecimal>> groups = groupDeltas(deltas);
+        if (groups.size() > 1) {
+            log.error("Refusing to revert change {} spanning several shards inside a sharded storage", intent.id());
+            return ChangeResult.REJECTED;
+        }
+        return groups.isEmpty() ? ChangeResult.applied(Map.of()) : groups.keySet().iterator().next().revertIntent(intent, deltas);
+    }
+
+    @Override
+    public List<ChangeIntent> getIntents() {
+        List<ChangeIntent> intents = new ArrayList<>();
+        onAllShards(EconomyStorage::getIntents).forEach(intents::addAll);
+        return intents;
+    }
+
+    @Override
+    public void removeIntents(Collection<String> ids) {
+        onAllShards(shard -> {
+            shard.removeIntents(ids);
+            return null;
+        });
+    }
+
+    private Map<EconomyStorage, Map<UUID, BigDecimal>> groupDeltas(Map<UUID, BigDecimal> deltas) {
+        Map<EconomyStorage, Map<UUID, BigDecimal>> groups = new LinkedHashMap<>();
+        for (Map.Entry<UUID, BigDecimal> entry : deltas.entrySet()) {
+            groups.computeIfAbsent(shardOf(entry.getKey()), shard -> new HashMap<>()).put(entry.getKey(), entry.getValue());
+        }
+        return groups;
+    }
+
+    /**
+     * Apply every part of a cross-shard change, debits first, taking back the parts already applied if one is
+     * rejected. Parts already recorded by a shard are skipped, so this also completes an interrupted change.
+     *
+     * @param balances receives the resulting balances of the changed accounts
+     */
+    private ChangeResult applyIntent(ChangeIntent intent, Map<EconomyStorage, Map<UUID, BigDecimal>> groups, Map<UUID, BigDecimal> balances) {
+        // Shards taking money away go first, a missing account or lack of money is found before anything is credited
+        List<Map.Entry<EconomyStorage, Map<UUID, BigDecimal>>> ordered = new ArrayList<>(groups.entrySet());
+        ordered.sort(Comparator.comparing(group -> group.getValue().values().stream().allMatch(delta -> delta.signum() >= 0)));
+        for (int i = 0; i < ordered.size(); i++) {
+            ChangeResult result = ordered.get(i).getKey().applyIntent(intent, ordered.get(i).getValue());
+            if (!result.isApplied()) {
+                undo(intent, ordered.subList(0, i));
+                return result;
+            }
+            balances.putAll(result.balances());
+        }
+        return ChangeResult.applied(balances);
+    }
+
+    /**
+     * Take back the parts of a cross-shard change already applied to some shards.
+     */
+    private void undo(ChangeIntent intent, List<Map.Entry<EconomyStorage, Map<UUID, BigDecimal>>> applied) {
+        for (Map.Entry<EconomyStorage, Map<UUID, BigDecimal>> group : applied) {
+            for (int attempt = 0; ; attempt++) {
+                ChangeResult result = group.getKey().revertIntent(intent, group.getValue());
+                if (result.isApplied()) {
+                    break;
+                }
+                if (result.status() == ChangeResult.Status.REJECTED || attempt + 1 >= MAX_UNDO_ATTEMPTS) {
+                    // The record stays with the shard, the change is completed or undone again on the next start
+                    log.error("Failed to undo part of cross-shard change {}, balance changes {} remain applied", intent.id(), group.getValue());
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Complete or undo the cross-shard changes a crash interrupted, found through the intents the shards recorded.
+     * Changes marked as completed only have their remaining records removed, some shards may have dropped theirs.
+     */
+    private void recoverIntents() throws IOException {
+        Set<String> marked = readCompleted();
+        Map<String, ChangeIntent> intents = new LinkedHashMap<>();
+        for (ChangeIntent intent : getIntents()) {
+            intents.putIfAbsent(intent.id(), intent);
+        }
+        if (!intents.isEmpty()) {
+            // Undoing a change removes its records, completed changes still need theirs removed
+            List<String> completed = new ArrayList<>();
+            List<String> finished = new ArrayList<>();
+            for (ChangeIntent intent : intents.values()) {
+                if (marked.contains(intent.id())) {
+                    completed.add(intent.id());
+                } else if (applyIntent(intent, groupDeltas(intent.deltas()), new HashMap<>()).isApplied()) {
+                    completed.add(intent.id());
+                    finished.add(intent.id());
+                }
+            }
+            if (markCompleted(finished)) {
+                removeIntents(completed);
+            }
+            log.info("Recovered {} interrupted cross-shard changes, {} completed and {} undone",
+                    intents.size(), completed.size(), intents.size() - completed.size());
+        }
+        // Only ids whose records a shard still holds need to be kept
+        Set<String> remaining = new HashSet<>();
+        getIntents().forEach(intent -> remaining.add(intent.id()));
+        synchronized (completedLock) {
+            Set<String> kept = readCompleted();
+            kept.retainAll(remaining);
+            Path tempFile = completedFile.resolveSibling(completedFile.getFileName() + ".tmp");
+            Files.write(tempFile, kept, StandardCharsets.UTF_8);
+            force(tempFile);
+            Files.move(tempFile, completedFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    private Set<String> readCompleted() throws IOException {
+        synchronized (completedLock) {
+            return Files.exists(completedFile) ? new HashSet<>(Files.readAllLines(completedFile, StandardCharsets.UTF_8)) : new HashSet<>();
+        }
+    }
+
+    /**
+     * Durably mark cross-shard changes as completed, before any shard drops its record of them.
+     *
+     * @param ids the ids of the completed changes
+     * @return false if the mark could not be written, the records must then be kept
+     */
+    private boolean markCompleted(Collection<String> ids) {
+        if (ids.isEmpty()) {
+            return true;
+        }
+        StringBuilder lines = new StringBuilder();
+        ids.forEach(id -> lines.append(id).append('\n'));
+        synchronized (completedLock) {
+            try {
+                Files.writeString(completedFile, lines, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                force(completedFile);
+                return true;
+            } catch (IOException e) {
+                log.error("Failed to mark cross-shard changes {} as completed, their records are kept", ids, e);
+                return false;
+            }
+        }
+    }
+
+    private static void force(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    @Override
+    public List<BalanceUpdate> bulkUpdate(BulkOperation operation, BigDecimal amount, int scale, Collection<UUID> uuids, BalanceFilter filter) {
+        Map<EconomyStorage, List<UUID>> groups = uuids != null ? groupByShard(uuids) : null;
+        crossShardLock.writeLock().lock();
+        try {
+            List<BalanceUpdate> updates = new ArrayList<>();
+            onAllShards(shard -> {
+                if (groups == null) {
+                    return shard.bulkUpdate(operation, amount, scale, null, filter);
+                }
+                List<UUID> group = groups.get(shard);
+                return group != null ? shard.bulkUpdate(operation, amount, scale, group, filter) : List.<BalanceUpdate>of();
+            }).forEach(updates::addAll);
+            return updates;
+        } finally {
+            crossShardLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public AdjustmentResult applyAdjustment(RateAdjustment adjustment) {
+        crossShardLock.writeLock().lock();
+        try {
+            int accounts = 0;
+            BigDecimal total = BigDecimal.ZERO;
+            List<AdjustmentResult> results = onAllShards(shard -> shard.applyAdjustment(adjustment));
+            if (results.stream().allMatch(Objects::isNull)) {
+                return null;
+            }
+            for (int i = 0; i < results.size(); i++) {
+                AdjustmentResult result = results.get(i);
+                if (result == null) {
+                    // Retrying the cycle would apply it twice on the other shards, this shard misses it instead
+                    log.error("Rate adjustment failed on shard {} and was skipped for its accounts this cycle", names.get(i));
+                    continue;
+                }
+                accounts += result.accounts();
+                total = total.add(result.total());
+            }
+            return accounts > 0 ? new AdjustmentResult(accounts, total) : AdjustmentResult.NONE;
+        } finally {
+            crossShardLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void appendLedgerEntries(List<LedgerEntry> entries) {
+        Map<EconomyStorage, List<LedgerEntry>> groups = new LinkedHashMap<>();
+        for (LedgerEntry entry : entries) {
+            groups.computeIfAbsent(shardOf(entry.account()), shard -> new ArrayList<>()).add(entry);
+        }
+        if (groups.size() == 1) {
+            groups.forEach(EconomyStorage::appendLedgerEntries);
+            return;
+        }
+        onAllShards(shard -> {
+            List<LedgerEntry> group = groups.get(shard);
+            if (group != null) {
+                shard.appendLedgerEntries(group);
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public List<LedgerEntry> getLedgerEntries(UUID uuid, long fromTime, long toTime, int offset, int limit) {
+        return shardOf(uuid).getLedgerEntries(uuid, fromTime, toTime, offset, limit);
+    }
+
+    @Override
+    public List<AccountChange> getChangesSince(long sequence, int limit) {
+        return List.of();
+    }
+
+    @Override
+    public long getLatestChangeSequence() {
+        return 0;
+    }
+
+    @Override
+    public void pruneChanges(long beforeTime) {
+        // No change log
+    }
+
+    @Override
+    public void save() {
+        onAllShards(shard -> {
+            shard.save();
+            return null;
+        });
+    }
+
+    @Override
+    public boolean backup(Path file) {
+        // No cross-shard change is half applied while the shards are copied
+        List<Path> parts = new ArrayList<>(shards.size());
+        crossShardLock.writeLock().lock();
+        try {
+            for (int i = 0; i < shards.size(); i++) {
+                Path part = file.resolveSibling(file.getFileName() + "." + i + ".tmp");
+                parts.add(part);
+                Files.deleteIfExists(part);
+            }
+            List<Boolean> results = onAllShards(shard -> shard.backup(parts.get(shards.indexOf(shard))));
+            if (results.contains(false)) {
+                return false;
+            }
+        } catch (IOException e) {
+            log.error("Failed to back up sharded storage", e);
+            return false;
+        } finally {
+            crossShardLock.writeLock().unlock();
+        }
+
+        try {
+            try (ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+                for (int i = 0; i < parts.size(); i++) {
+                    zip.putNextEntry(new ZipEntry(names.get(i)));
+                    Files.copy(parts.get(i), zip);
+                    zip.closeEntry();
+                }
+                // Shards restored from the backup may still hold records of changes that were completed
+                synchronized (completedLock) {
+                    if (Files.exists(completedFile)) {
+                        zip.putNextEntry(new ZipEntry(completedFile.getFileName().toString()));
+                        Files.copy(completedFile, zip);
+                        zip.closeEntry();
+                    }
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            log.error("Failed to write sharded backup {}", file, e);
+            return false;
+        } finally {
+            for (Path part : parts) {
+                try {
+                    Files.deleteIfExists(part);
+                } catch (IOException e) {
+                    log.warn("Failed to delete temporary backup file {}", part, e);
+                }
+            }
+        }
+    }
+
+    private static int sum(List<Integer> counts) {
+        int sum = 0;
+        for (int count : counts) {
+            sum += count;
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,105 @@
+package me.daoge.aconomy.storage;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Creates storage instances by their configured type name, using the {@link StorageProvider}s
+ * found in the plugin jar and in the storage modules folder.
+ * <p>
+ * Every storage module jar gets its own class loader, so the classes and JDBC driver of a backend
+ * are only loaded once a storage of its type is created.
+ *
+ * @author daoge_cmd
+ */
+@Slf4j
+public final class StorageFactory {
+
+    /**
+     * The folder inside the plugin data folder that storage module jars are loaded from.
+     */
+    public static final String MODULE_FOLDER_NAME = "storage";
+    /**
+     * The storage types provided by the storage modules shipped with Aconomy rather than by the plugin jar.
+     */
+    public static final Set<String> MODULE_TYPES = Set.of("sqlite", "sqlite-sharded", "h2");
+
+    private final Map<String, StorageProvider> providers = new LinkedHashMap<>();
+
+    /**
+     * Discover the available storage providers.
+     *
+     * @param dataFolder the plugin data folder, containing the storage modules folder
+     */
+    public StorageFactory(Path dataFolder) {
+        ClassLoader parent = StorageFactory.class.getClassLoader();
+        register(parent);
+
+        Path moduleFolder = dataFolder.resolve(MODULE_FOLDER_NAME);
+        if (!Files.isDirectory(moduleFolder)) {
+            return;
+        }
+        try (DirectoryStream<Path> jars = Files.newDirectoryStream(moduleFolder, "*.jar")) {
+            for (Path jar : jars) {
+                URLClassLoader loader = new URLClassLoader(new URL[]{jar.toUri().toURL()}, parent);
+                if (!register(loader)) {
+                    log.warn("Storage module {} provides no storage type", jar.getFileName());
+                    loader.close();
+                }
+            }
+        } catch (IOException e) {
+            log.error("Failed to load storage modules from {}", moduleFolder, e);
+        }
+    }
+
+    /**
+     * Register the providers defined by the given class loader itself, not by its parents.
+     *
+     * @return true if at least one provider was registered
+     */
+    private boolean register(ClassLoader loader) {
+        boolean registered = false;
+        for (ServiceLoader.Provider<StorageProvider> candidate : ServiceLoader.load(StorageProvider.class, loader).stream().toList()) {
+            if (candidate.type().getClassLoader() != loader) {
+                continue;
+            }
+            StorageProvider provider = candidate.get();
+            String type = provider.getType().toLowerCase(Locale.ROOT);
+            if (providers.putIfAbsent(type, provider) != null) {
+                log.warn("Ignoring duplicate provider {} for storage type {}", provider.getClass().getName(), type);
+                continue;
+            }
+            registered = true;
+        }
+        return registered;
+    }
+
+    /**
+     * Get the names of the storage types that can be created.
+     *
+     * @return the type names, as used by {@code storage.type} in config.yml
+     */
+    public List<String> getTypes() {
+        return List.copyOf(providers.keySet());
+    }
+
+    /**
+     * Create a storage instance. The returned storage still needs to be initialized with {@link EconomyStorage#init()}.
+     *
+     * @param type       the storage type, one of {@link #getTypes()} (case-insensitive)
+     * @param dataFolder the folder the storage files are kept in
+     * @param options    the storage settings from config.yml
+     * @return the storage, or null if no provider for the type is installed
+     */
+    public EconomyStorage create(String type, Path dataFolder, StorageOptions options) {
+        StorageProvider provider = providers.get(type.toLowerCase(Locale.ROOT));
+        return provider != null ? provider.create(dataFolder, options) : null;
+    }
+}
@@ -0,0 +1,16 @@
+package me.daoge.aconomy.storage;
+
+/**
+ * Settings from the {@code storage} section of config.yml handed to a {@link StorageProvider}.
+ *
+ * @param url    the JDBC url of a shared database, or an empty string to use local files
+ * @param shards the number of database files accounts are spread over, for backends that support sharding
+ * @author daoge_cmd
+ */
+public record StorageOptions(String url, int shards) {
+
+    /**
+     * Local files and the default shard count.
+     */
+    public static final StorageOptions DEFAULT = new StorageOptions("", 4);
+}
@@ -0,0 +1,33 @@
+package me.daoge.aconomy.storage;
+
+import java.nio.file.Path;
+
+/**
+ * Creates the storage of one storage type.
+ * <p>
+ * Providers are discovered with {@link java.util.ServiceLoader}, from the plugin jar and from the
+ * storage modules in the {@code storage} folder of the plugin data folder, and are listed in
+ * {@code META-INF/services/me.daoge.aconomy.storage.StorageProvider}. Every available provider is
+ * instantiated at startup, so a provider must not load its storage classes or driver before
+ * {@link #create(Path, StorageOptions)} is called.
+ *
+ * @author daoge_cmd
+ */
+public interface StorageProvider {
+
+    /**
+     * Get the storage type name, as used by {@code storage.type} in config.yml.
+     *
+     * @return the lower case type name
+     */
+    String getType();
+
+    /**
+     * Create a storage instance. The returned storage still needs to be initialized with {@link EconomyStorage#init()}.
+     *
+     * @param dataFolder the folder the storage files are kept in
+     * @param options    the storage settings from config.yml
+     * @return the storage
+     */
+    EconomyStorage create(Path dataFolder, StorageOptions options);
+}
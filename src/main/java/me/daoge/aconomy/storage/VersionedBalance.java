@@ -0,0 +1,13 @@
+package me.daoge.aconomy.storage;
+
+import java.math.BigDecimal;
+
+/**
+ * An account balance together with the row version it was read at, for compare-and-set updates.
+ *
+ * @param balance the balance
+ * @param version the version of the account the balance was read at
+ * @author daoge_cmd
+ */
+public record VersionedBalance(BigDecimal balance, long version) {
+}
@@ -0,0 +1,214 @@
+package me.daoge.aconomy.storage.h2;
+
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+import me.daoge.aconomy.storage.AbstractDatabaseStorage;
+import me.daoge.aconomy.storage.Durability;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.List;
+
+/**
+ * H2 database storage implementation for economy data.
+ *
+ * @author daoge_cmd
+ */
+@Slf4j
+public class H2Storage extends AbstractDatabaseStorage {
+
+    private static final String DB_FILE_NAME = "economy";
+    /**
+     * The compressed SQL script the in-memory database is checkpointed to.
+     */
+    private static final String CHECKPOINT_FILE_NAME = "economy-memory.zip";
+    private static final String CREATE_TABLE_SQL = """
+            CREATE TABLE IF NOT EXISTS accounts (
+                uuid VARCHAR(36) PRIMARY KEY,
+                name VARCHAR(255) NOT NULL,
+                balance VARCHAR(255) NOT NULL,
+                extra_balances VARCHAR(4096) NOT NULL DEFAULT '',
+                version BIGINT NOT NULL DEFAULT 0,
+                last_seen BIGINT NOT NULL DEFAULT 0
+            )
+            """;
+    private static final String CREATE_ARCHIVE_TABLE_SQL = """
+            CREATE TABLE IF NOT EXISTS archived_accounts (
+                uuid VARCHAR(36) PRIMARY KEY,
+                name VARCHAR(255) NOT NULL,
+                balance VARCHAR(255) NOT NULL,
+                extra_balances VARCHAR(4096) NOT NULL DEFAULT '',
+                version BIGINT NOT NULL,
+                last_seen BIGINT NOT NULL,
+                archived_at BIGINT NOT NULL
+            )
+            """;
+    private static final String CREATE_LEDGER_TABLE_SQL = """
+            CREATE TABLE IF NOT EXISTS ledger (
+                id BIGINT AUTO_INCREMENT PRIMARY KEY,
+                created_at BIGINT NOT NULL,
+                account VARCHAR(36) NOT NULL,
+                counterparty VARCHAR(36),
+                amount VARCHAR(255) NOT NULL,
+                balance VARCHAR(255) NOT NULL,
+                cause VARCHAR(64) NOT NULL
+            )
+            """;
+    private static final String CREATE_CHANGE_LOG_TABLE_SQL = """
+            CREATE TABLE IF NOT EXISTS account_changes (
+                seq BIGINT AUTO_INCREMENT PRIMARY KEY,
+                uuid VARCHAR(36),
+                change_type VARCHAR(16) NOT NULL,
+                created_at BIGINT NOT NULL,
+                origin VARCHAR(36),
+                old_balance VARCHAR(255),
+                new_balance VARCHAR(255)
+            )
+            """;
+
+    private final String jdbcUrl;
+
+    public H2Storage(Path dataFolder) {
+        this(dataFolder, null);
+    }
+
+    /**
+     * Create an H2 storage connecting to the given database.
+     *
+     * @param dataFolder the plugin data folder
+     * @param jdbcUrl    the JDBC url of a shared H2 server, or null or empty to use the embedded file database
+     */
+    public H2Storage(Path dataFolder, String jdbcUrl) {
+        super(dataFolder);
+        this.jdbcUrl = jdbcUrl != null && !jdbcUrl.isBlank() ? jdbcUrl : null;
+    }
+
+    @Override
+    protected String getDatabaseName() {
+        return "H2";
+    }
+
+    @Override
+    protected String getDriverClassName() {
+        return "org.h2.Driver";
+    }
+
+    @Override
+    protected String getJdbcUrl() {
+        if (jdbcUrl != null) {
+            return jdbcUrl;
+        }
+        return "jdbc:h2:" + dataFolder.resolve(DB_FILE_NAME).toAbsolutePath();
+    }
+
+    @Override
+    protected String getCreateTableSql() {
+        return CREATE_TABLE_SQL;
+    }
+
+    @Override
+    protected String getCreateLedgerTableSql() {
+        return CREATE_LEDGER_TABLE_SQL;
+    }
+
+    @Override
+    protected String getCreateChangeLogTableSql() {
+        return CREATE_CHANGE_LOG_TABLE_SQL;
+    }
+
+    @Override
+    protected String getCreateArchiveTableSql() {
+        return CREATE_ARCHIVE_TABLE_SQL;
+    }
+
+    @SneakyThrows
+    @Override
+    public void init() {
+        // The two modes keep their data in different files, whichever was written last holds the current data
+        Path databaseFile = dataFolder.resolve(DB_FILE_NAME + ".mv.db");
+        Path checkpointFile = getCheckpointFile();
+        String checkpoint = checkpointFile.toAbsolutePath().toString().replace("'", "''");
+        if (isInMemory() && Files.exists(databaseFile) && !isNewer(checkpointFile, databaseFile)) {
+            // Switching from disk mode, start the in-memory database with the data of the database file
+            try (Connection fileConnection = openConnection(getJdbcUrl());
+                 Statement stmt = fileConnection.createStatement()) {
+                stmt.execute(getCheckpointSql(checkpoint));
+            }
+            log.info("Imported {} into the in-memory H2 database", databaseFile.getFileName());
+        } else if (!isInMemory() && jdbcUrl == null && Files.exists(checkpointFile) && !isNewer(databaseFile, checkpointFile)) {
+            // Switching from in-memory mode, replace the contents of the database file with the last checkpoint
+            try (Connection fileConnection = openConnection(getJdbcUrl());
+                 Statement stmt = fileConnection.createStatement()) {
+                stmt.execute("DROP ALL OBJECTS");
+                stmt.execute(getRestoreSql(checkpoint));
+            }
+            log.info("Imported {} into the H2 database file", checkpointFile.getFileName());
+        }
+        super.init();
+    }
+
+    /**
+     * Check whether a file exists and was modified after another one.
+     */
+    private static boolean isNewer(Path file, Path other) throws IOException {
+        return Files.exists(file) && Files.getLastModifiedTime(file).compareTo(Files.getLastModifiedTime(other)) > 0;
+    }
+
+    @Override
+    protected String getInMemoryJdbcUrl() {
+        if (jdbcUrl != null) {
+            // A shared database server can't be replaced by a local in-memory copy
+            return null;
+        }
+        return "jdbc:h2:mem:aconomy;DB_CLOSE_DELAY=-1";
+    }
+
+    @Override
+    protected Path getCheckpointFile() {
+        return dataFolder.resolve(CHECKPOINT_FILE_NAME);
+    }
+
+    @Override
+    protected String getRestoreSql(String file) {
+        return "RUNSCRIPT FROM '%s' COMPRESSION ZIP".formatted(file);
+    }
+
+    @Override
+    protected String getCheckpointSql(String file) {
+        return "SCRIPT TO '%s' COMPRESSION ZIP".formatted(file);
+    }
+
+    @Override
+    protected List<String> getDurabilitySql(Durability durability, long syncIntervalMillis) {
+        if (jdbcUrl != null) {
+            // A setting of the shared database, up to its server
+            return List.of();
+        }
+        // H2 writes committed changes to the file in the background after the write delay,
+        // so at most the sync interval of changes is lost, like with the other backends
+        long writeDelay = durability == Durability.STRICT ? 0 : Math.min(syncIntervalMillis, Integer.MAX_VALUE);
+        return List.of("SET WRITE_DELAY " + writeDelay);
+    }
+
+    @Override
+    protected String getSyncSql() {
+        return jdbcUrl != null ? null : "CHECKPOINT SYNC";
+    }
+
+    @Override
+    protected String getBackupSql(String file) {
+        if (jdbcUrl != null) {
+            // BACKUP TO would write to the file system of the database server
+            return null;
+        }
+        return "BACKUP TO '%s'".formatted(file);
+    }
+
+    @Override
+    protected String toNumericSql(String expression) {
+        return "CAST(%s AS DECIMAL(38, 8))".formatted(expression);
+    }
+}
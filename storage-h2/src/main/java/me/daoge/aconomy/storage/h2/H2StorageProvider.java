@@ -0,0 +1,25 @@
+package me.daoge.aconomy.storage.h2;
+
+import me.daoge.aconomy.storage.EconomyStorage;
+import me.daoge.aconomy.storage.StorageOptions;
+import me.daoge.aconomy.storage.StorageProvider;
+
+import java.nio.file.Path;
+
+/**
+ * Provides {@link H2Storage}, connecting to a shared H2 server if a url is configured.
+ *
+ * @author daoge_cmd
+ */
+public class H2StorageProvider implements StorageProvider {
+
+    @Override
+    public String getType() {
+        return "h2";
+    }
+
+    @Override
+    public EconomyStorage create(Path dataFolder, StorageOptions options) {
+        return new H2Storage(dataFolder, options.url());
+    }
+}
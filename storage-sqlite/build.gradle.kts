@@ -0,0 +1,37 @@
+plugins {
+    id("java-library")
+    id("com.gradleup.shadow")
+}
+
+group = "me.daoge.aconomy"
+description = "SQLite storage module for Aconomy"
+version = rootProject.version
+
+java {
+    toolchain {
+        languageVersion = JavaLanguageVersion.of(21)
+    }
+}
+
+repositories {
+    mavenCentral()
+}
+
+dependencies {
+    // Provided by the Aconomy plugin jar at runtime
+    compileOnly(project(":"))
+    compileOnly(group = "org.slf4j", name = "slf4j-api", version = "2.0.16")
+    compileOnly(group = "org.projectlombok", name = "lombok", version = "1.18.34")
+    implementation(group = "org.xerial", name = "sqlite-jdbc", version = "3.47.1.0")
+    annotationProcessor(group = "org.projectlombok", name = "lombok", version = "1.18.34")
+}
+
+tasks.shadowJar {
+    archiveBaseName.set("Aconomy-storage-sqlite")
+    archiveClassifier.set("")
+    mergeServiceFiles()
+}
+
+tasks.build {
+    dependsOn(tasks.shadowJar)
+}
@@ -0,0 +1,34 @@
+package me.daoge.aconomy.storage.sqlite;
+
+import me.daoge.aconomy.storage.EconomyStorage;
+import me.daoge.aconomy.storage.ShardedStorage;
+import me.daoge.aconomy.storage.StorageOptions;
+import me.daoge.aconomy.storage.StorageProvider;
+
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.SequencedMap;
+
+/**
+ * Provides a {@link ShardedStorage} over several SQLite database files, {@code economy-0.db} to
+ * {@code economy-<n-1>.db} for {@code storage.shards} shards.
+ *
+ * @author daoge_cmd
+ */
+public class ShardedSqliteStorageProvider implements StorageProvider {
+
+    @Override
+    public String getType() {
+        return "sqlite-sharded";
+    }
+
+    @Override
+    public EconomyStorage create(Path dataFolder, StorageOptions options) {
+        SequencedMap<String, EconomyStorage> shards = new LinkedHashMap<>();
+        for (int i = 0; i < Math.max(options.shards(), 1); i++) {
+            String fileName = "economy-" + i + ".db";
+            shards.put(fileName, new SqliteStorage(dataFolder, fileName));
+        }
+        return new ShardedStorage(dataFolder.resolve("economy.shards"), shards);
+    }
+}
@@ -0,0 +1,162 @@
+package me.daoge.aconomy.storage.sqlite;
+
+import me.daoge.aconomy.storage.AbstractDatabaseStorage;
+import me.daoge.aconomy.storage.Durability;
+
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * SQLite database storage implementation for economy data.
+ *
+ * @author daoge_cmd
+ */
+public class SqliteStorage extends AbstractDatabaseStorage {
+
+    private static final String DB_FILE_NAME = "economy.db";
+    private static final String CREATE_TABLE_SQL = """
+            CREATE TABLE IF NOT EXISTS accounts (
+                uuid TEXT PRIMARY KEY,
+                name TEXT NOT NULL,
+                balance TEXT NOT NULL,
+                extra_balances TEXT NOT NULL DEFAULT '',
+                version INTEGER NOT NULL DEFAULT 0,
+                last_seen INTEGER NOT NULL DEFAULT 0
+            )
+            """;
+    private static final String CREATE_ARCHIVE_TABLE_SQL = """
+            CREATE TABLE IF NOT EXISTS archived_accounts (
+                uuid TEXT PRIMARY KEY,
+                name TEXT NOT NULL,
+                balance TEXT NOT NULL,
+                extra_balances TEXT NOT NULL DEFAULT '',
+                version INTEGER NOT NULL,
+                last_seen INTEGER NOT NULL,
+                archived_at INTEGER NOT NULL
+            ) WITHOUT ROWID
+            """;
+    private static final String CREATE_LEDGER_TABLE_SQL = """
+            CREATE TABLE IF NOT EXISTS ledger (
+                id INTEGER PRIMARY KEY AUTOINCREMENT,
+                created_at INTEGER NOT NULL,
+                account TEXT NOT NULL,
+                counterparty TEXT,
+                amount TEXT NOT NULL,
+                balance TEXT NOT NULL,
+                cause TEXT NOT NULL
+            )
+            """;
+    private static final String CREATE_CHANGE_LOG_TABLE_SQL = """
+            CREATE TABLE IF NOT EXISTS account_changes (
+                seq INTEGER PRIMARY KEY AUTOINCREMENT,
+                uuid TEXT,
+                change_type TEXT NOT NULL,
+                created_at INTEGER NOT NULL,
+                origin TEXT,
+                old_balance TEXT,
+                new_balance TEXT
+            )
+            """;
+
+    private final String fileName;
+
+    public SqliteStorage(Path dataFolder) {
+        this(dataFolder, DB_FILE_NAME);
+    }
+
+    /**
+     * Create a SQLite storage kept in a database file other than the default one, such as one shard of a sharded storage.
+     *
+     * @param dataFolder the folder the database file is kept in
+     * @param fileName   the name of the database file
+     */
+    public SqliteStorage(Path dataFolder, String fileName) {
+        super(dataFolder);
+        this.fileName = fileName;
+    }
+
+    @Override
+    protected String getDatabaseName() {
+        return "SQLite";
+    }
+
+    @Override
+    protected String getDriverClassName() {
+        return "org.sqlite.JDBC";
+    }
+
+    @Override
+    protected String getJdbcUrl() {
+        return "jdbc:sqlite:" + dataFolder.resolve(fileName).toAbsolutePath();
+    }
+
+    @Override
+    protected String getCreateTableSql() {
+        return CREATE_TABLE_SQL;
+    }
+
+    @Override
+    protected String getCreateLedgerTableSql() {
+        return CREATE_LEDGER_TABLE_SQL;
+    }
+
+    @Override
+    protected String getCreateChangeLogTableSql() {
+        return CREATE_CHANGE_LOG_TABLE_SQL;
+    }
+
+    @Override
+    protected String getCreateArchiveTableSql() {
+        return CREATE_ARCHIVE_TABLE_SQL;
+    }
+
+    @Override
+    protected String getInMemoryJdbcUrl() {
+        return "jdbc:sqlite::memory:";
+    }
+
+    @Override
+    protected Path getCheckpointFile() {
+        // The same file as in disk mode, so switching between the modes keeps the data
+        return dataFolder.resolve(fileName);
+    }
+
+    @Override
+    protected String getRestoreSql(String file) {
+        return "restore from '%s'".formatted(file);
+    }
+
+    @Override
+    protected String getCheckpointSql(String file) {
+        return "backup to '%s'".formatted(file);
+    }
+
+    @Override
+    protected List<String> getDurabilitySql(Durability durability, long syncIntervalMillis) {
+        // In WAL mode a commit appends to the log, FULL syncs the log on every commit,
+        // NORMAL only when the log is checkpointed into the database, OFF never
+        return List.of("PRAGMA journal_mode = WAL", switch (durability) {
+            case STRICT -> "PRAGMA synchronous = FULL";
+            case BATCHED -> "PRAGMA synchronous = NORMAL";
+            case RELAXED -> "PRAGMA synchronous = OFF";
+        });
+    }
+
+    @Override
+    protected String getSyncSql() {
+        // Syncs the log and copies it into the database, on a connection with the default synchronous = FULL
+        return "PRAGMA wal_checkpoint(PASSIVE)";
+    }
+
+    @Override
+    protected String getBackupSql(String file) {
+        // Handled by the driver through SQLite's online backup API
+        return "backup to '%s'".formatted(file);
+    }
+
+    @Override
+    protected String toNumericSql(String expression) {
+        // Approximate, only used to order and narrow queries
+        return "CAST(%s AS REAL)".formatted(expression);
+    }
+}
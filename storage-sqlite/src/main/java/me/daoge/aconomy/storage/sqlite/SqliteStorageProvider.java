@@ -0,0 +1,25 @@
+package me.daoge.aconomy.storage.sqlite;
+
+import me.daoge.aconomy.storage.EconomyStorage;
+import me.daoge.aconomy.storage.StorageOptions;
+import me.daoge.aconomy.storage.StorageProvider;
+
+import java.nio.file.Path;
+
+/**
+ * Provides {@link SqliteStorage}.
+ *
+ * @author daoge_cmd
+ */
+public class SqliteStorageProvider implements StorageProvider {
+
+    @Override
+    public String getType() {
+        return "sqlite";
+    }
+
+    @Override
+    public EconomyStorage create(Path dataFolder, StorageOptions options) {
+        return new SqliteStorage(dataFolder);
+    }
+}